@@ -0,0 +1,416 @@
+package cesur.accesodatos.db4o;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Non-interactive alternative to {@link db4oDAO#executeMenu()}: runs a script of commands, one per line, against an open DAO
+ * and writes one JSON object per line with the outcome of each command. Arguments are separated by spaces; values with spaces
+ * go between double quotes. Empty lines and lines starting with "#" are ignored.
+ * <pre>
+ * add-dept 50 "Recursos Humanos" Madrid
+ * add-emp 7 "De la Cruz" Vendedor 50
+ * find-dept 50
+ * delete-emp 7
+ * </pre>
+ * Consecutive mutations are run in one transaction, committed when the script reaches a query, a {@code commit} command, the
+ * end of the input or {@link #MAX_GROUP_SIZE} mutations. Their results are written after the commit, with status "ok", or
+ * "rolled-back" if the transaction failed. A mutation rejected before touching the database (bad arguments, missing or
+ * duplicated record) is reported with status "error" and doesn't affect the rest of its transaction. A mutation that fails
+ * with an unexpected exception rolls back its whole transaction, and so does an exception that stops the script, so the
+ * runner never leaves a transaction open.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class BatchCommandRunner {
+
+    /**
+     * MAX_GROUP_SIZE -> Maximum number of mutations committed together.
+     */
+    public static final int MAX_GROUP_SIZE = 1000;
+    /**
+     * PAGE_SIZE -> Rows read at once by the listing commands, which stream their rows.
+     */
+    static final int PAGE_SIZE = 500;
+    /**
+     * Commands that modify the database.
+     */
+    private static final Set<String> MUTATIONS = Set.of("add-emp", "update-emp", "delete-emp", "add-dept", "update-dept", "delete-dept");
+
+    /**
+     * Outcome of a mutation, written once its transaction ends.
+     * @param line Line number of the command.
+     * @param command Command name.
+     * @param result Encoded result, or null if the command failed.
+     * @param error Error message, or null if the command succeeded.
+     */
+    private record Pending(int line, String command, String result, String error) {
+    }
+
+    /**
+     * DAO the commands run against.
+     */
+    private final db4oDAO dao;
+    /**
+     * Writer of the JSON lines.
+     */
+    private final PrintWriter out;
+    /**
+     * Outcomes of the mutations of the open transaction.
+     */
+    private final List<Pending> pending = new ArrayList<>();
+    /**
+     * Number of commands that failed or were rolled back.
+     */
+    private int errors;
+
+    /**
+     * Creates the runner.
+     * @param dao DAO the commands run against.
+     * @param out Writer of the JSON lines. It is flushed after each transaction and query, and not closed.
+     */
+    public BatchCommandRunner(db4oDAO dao, PrintWriter out) {
+        this.dao = dao;
+        this.out = out;
+    }
+
+    /**
+     * Runs every command of the input.
+     * @param commands Reader of the script.
+     * @return Number of commands that failed or were rolled back.
+     * @throws IOException If the script can't be read. The open transaction is rolled back.
+     */
+    public int run(BufferedReader commands) throws IOException {
+        try {
+            String text;
+            int line = 0;
+            while ((text = commands.readLine()) != null) {
+                line++;
+                if (text.isBlank() || text.trim().startsWith("#")) continue;
+                List<String> args;
+                try {
+                    args = tokenize(text);
+                } catch (IllegalArgumentException iae) {
+                    endTransaction(true);
+                    error(line, "", iae.getMessage());
+                    continue;
+                }
+                String command = args.get(0).toLowerCase();
+                if (MUTATIONS.contains(command)) {
+                    if (!dao.isInTransaction()) dao.begin();
+                    if (!mutate(line, command, args)) endTransaction(false);
+                    else if (pending.size() >= MAX_GROUP_SIZE) endTransaction(true);
+                } else {
+                    endTransaction(true);
+                    query(line, command, args);
+                    out.flush();
+                }
+            }
+            endTransaction(true);
+        } finally {
+            if (dao.isInTransaction()) { // The script stopped with an exception: don't leave the write lock held
+                dao.rollback();
+                pending.clear();
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Runs a mutation inside the open transaction and remembers its outcome.
+     * @param line Line number of the command.
+     * @param command Command name.
+     * @param args Command and its arguments.
+     * @return false if the command failed with an unexpected exception, which may have left the transaction half applied.
+     */
+    private boolean mutate(int line, String command, List<String> args) {
+        String result = null, error = null;
+        try {
+            switch (command) {
+                case "add-emp" -> {
+                    expect(args, 5, "add-emp <empno> <name> <position> <depno>");
+                    Employee employee = new Employee(intArg(args, 1, "empno"), args.get(2), args.get(3), intArg(args, 4, "depno"));
+                    if (dao.hasEmployee(employee.getEmpno())) {
+                        error = "Employee " + employee.getEmpno() + " already exists";
+                    } else {
+                        dao.addEmployee(employee);
+                        if (!dao.hasEmployee(employee.getEmpno())) error = "Unable to add employee " + employee.getEmpno();
+                        else result = Json.value(employee);
+                    }
+                }
+                case "update-emp" -> {
+                    expect(args, 5, "update-emp <empno> <name> <position> <depno>");
+                    Employee updated = dao.updateEmployee(new Employee(intArg(args, 1, "empno"), args.get(2), args.get(3), intArg(args, 4, "depno")));
+                    if (updated == null) error = "Employee " + args.get(1) + " not found or not updated";
+                    else result = Json.value(updated);
+                }
+                case "delete-emp" -> {
+                    expect(args, 2, "delete-emp <empno>");
+                    Employee deleted = dao.deleteEmployee(intArg(args, 1, "empno"));
+                    if (deleted == null) error = "Employee " + args.get(1) + " not found";
+                    else result = Json.value(deleted);
+                }
+                case "add-dept" -> {
+                    expect(args, 4, "add-dept <depno> <name> <location>");
+                    Department department = new Department(intArg(args, 1, "depno"), args.get(2), args.get(3));
+                    if (dao.hasDepartment(department.getDepno())) {
+                        error = "Department " + department.getDepno() + " already exists";
+                    } else {
+                        dao.addDepartment(department);
+                        if (!dao.hasDepartment(department.getDepno())) error = "Unable to add department " + department.getDepno();
+                        else result = Json.value(department);
+                    }
+                }
+                case "update-dept" -> {
+                    expect(args, 4, "update-dept <depno> <name> <location>");
+                    Department updated = dao.updateDepartment(new Department(intArg(args, 1, "depno"), args.get(2), args.get(3)));
+                    if (updated == null) error = "Department " + args.get(1) + " not found or not updated";
+                    else result = Json.value(updated);
+                }
+                default -> {
+                    expect(args, 2, "delete-dept <depno>");
+                    Department deleted = dao.deleteDepartment(intArg(args, 1, "depno"));
+                    if (deleted == null) error = "Department " + args.get(1) + " not found";
+                    else result = Json.value(deleted);
+                }
+            }
+        } catch (IllegalArgumentException iae) {
+            error = iae.getMessage();
+        } catch (RuntimeException e) {
+            pending.add(new Pending(line, command, null, message(e)));
+            return false;
+        }
+        pending.add(new Pending(line, command, result, error));
+        return true;
+    }
+
+    /**
+     * Ends the open transaction, if any, and writes the outcomes of its mutations followed by a "commit" line.
+     * @param commit true to commit the transaction, false to roll it back.
+     */
+    private void endTransaction(boolean commit) {
+        if (!dao.isInTransaction()) return;
+        boolean committed = commit && dao.commit();
+        if (!commit) dao.rollback();
+        int applied = 0;
+        for (Pending p : pending) {
+            if (p.error() != null) {
+                error(p.line(), p.command(), p.error());
+            } else if (committed) {
+                out.println(Json.object("line", p.line(), "command", p.command(), "status", "ok", "result", new Json.Raw(p.result())));
+                applied++;
+            } else {
+                out.println(Json.object("line", p.line(), "command", p.command(), "status", "rolled-back", "result", new Json.Raw(p.result())));
+                errors++;
+            }
+        }
+        out.println(Json.object("command", "commit", "status", committed ? "ok" : "rolled-back", "mutations", applied));
+        pending.clear();
+        out.flush();
+    }
+
+    /**
+     * Runs a query and writes its result. Listing commands write one "row" line per record and a final status line.
+     * @param line Line number of the command.
+     * @param command Command name.
+     * @param args Command and its arguments.
+     */
+    private void query(int line, String command, List<String> args) {
+        try {
+            switch (command) {
+                case "commit" -> {
+                    // The transaction was already ended before running the query
+                }
+                case "find-emp" -> {
+                    expect(args, 2, "find-emp <empno>");
+                    Versioned<Employee> found = dao.findEmployeeVersioned(intArg(args, 1, "empno"));
+                    if (found == null) error(line, command, "Employee " + args.get(1) + " not found");
+                    else ok(line, command, found.value());
+                }
+                case "find-dept" -> {
+                    expect(args, 2, "find-dept <depno>");
+                    Department found = dao.findDepartmentById(intArg(args, 1, "depno"));
+                    if (found == null) error(line, command, "Department " + args.get(1) + " not found");
+                    else ok(line, command, found);
+                }
+                case "list-emp" -> {
+                    expect(args, 1, "list-emp");
+                    stream(line, command, (Employee after, int limit) -> dao.findEmployeesAfter(after == null ? null : after.getEmpno(), limit));
+                }
+                case "list-dept" -> {
+                    expect(args, 1, "list-dept");
+                    stream(line, command, (Department after, int limit) -> dao.findDepartmentsAfter(after == null ? null : after.getDepno(), limit));
+                }
+                case "find-emps-by-dept" -> {
+                    expect(args, 2, "find-emps-by-dept <depno>");
+                    int depno = intArg(args, 1, "depno");
+                    stream(line, command, (Employee after, int limit) -> dao.findEmployeesByDeptAfter(depno, after == null ? null : after.getEmpno(), limit));
+                }
+                case "search" -> {
+                    if (args.size() < 2 || args.size() > 3) throw new IllegalArgumentException("Usage: search <text> [limit]");
+                    int limit = args.size() == 3 ? intArg(args, 2, "limit") : 10;
+                    if (dao.openSearchIndex() == null) {
+                        error(line, command, "The search index could not be opened");
+                        return;
+                    }
+                    List<String> hits = new ArrayList<>();
+                    for (SearchHit hit : dao.search(args.get(1), limit)) {
+                        hits.add(Json.object("type", hit.type().name(), "id", hit.id(), "score", hit.score()));
+                    }
+                    out.println(Json.object("line", line, "command", command, "status", "ok", "result", new Json.Raw(Json.value(hits.stream().map(Json.Raw::new).toList()))));
+                }
+                default -> error(line, command, "Unknown command '" + command + "'");
+            }
+        } catch (IllegalArgumentException iae) {
+            error(line, command, iae.getMessage());
+        } catch (RuntimeException e) {
+            error(line, command, message(e));
+        }
+    }
+
+    /**
+     * Writes every record of a listing, page after page, as "row" lines followed by a status line with the count.
+     * @param line Line number of the command.
+     * @param command Command name.
+     * @param source Pages of the listing.
+     * @param <T> Type of the records.
+     */
+    private <T> void stream(int line, String command, TableRenderer.PageSource<T> source) {
+        long count = 0;
+        T after = null;
+        while (true) {
+            List<T> rows = source.fetch(after, PAGE_SIZE);
+            for (T row : rows) out.println(Json.object("line", line, "command", command, "row", row));
+            count += rows.size();
+            if (rows.size() < PAGE_SIZE) break;
+            after = rows.get(rows.size() - 1);
+            out.flush();
+        }
+        out.println(Json.object("line", line, "command", command, "status", "ok", "count", count));
+    }
+
+    /**
+     * Writes a successful result.
+     * @param line Line number of the command.
+     * @param command Command name.
+     * @param result Result of the command.
+     */
+    private void ok(int line, String command, Object result) {
+        out.println(Json.object("line", line, "command", command, "status", "ok", "result", result));
+    }
+
+    /**
+     * Writes a failed command and counts it.
+     * @param line Line number of the command.
+     * @param command Command name.
+     * @param message Error message.
+     */
+    private void error(int line, String command, String message) {
+        out.println(Json.object("line", line, "command", command, "status", "error", "error", message));
+        errors++;
+    }
+
+    /**
+     * @param e Unexpected exception of a command.
+     * @return Error message of the exception, or its class name if it has none.
+     */
+    private static String message(RuntimeException e) {
+        return e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+    }
+
+    /**
+     * Checks the number of arguments of a command.
+     * @param args Command and its arguments.
+     * @param count Expected size of args, command included.
+     * @param usage Usage of the command, used as error message.
+     */
+    private static void expect(List<String> args, int count, String usage) {
+        if (args.size() != count) throw new IllegalArgumentException("Usage: " + usage);
+    }
+
+    /**
+     * Parses an Integer argument.
+     * @param args Command and its arguments.
+     * @param index Position of the argument.
+     * @param name Name of the argument, used in the error message.
+     * @return Value of the argument.
+     */
+    private static int intArg(List<String> args, int index, String name) {
+        try {
+            return Integer.parseInt(args.get(index));
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException(name + " must be an Integer value, not '" + args.get(index) + "'");
+        }
+    }
+
+    /**
+     * Splits a command line into arguments separated by spaces. Double quotes group an argument with spaces, and a backslash
+     * escapes the next character inside quotes.
+     * @param line Command line.
+     * @return Arguments, the command first.
+     * @throws IllegalArgumentException If a quote is not closed.
+     */
+    static List<String> tokenize(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false, inArg = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '\\' && i + 1 < line.length()) current.append(line.charAt(++i));
+                else if (c == '"') quoted = false;
+                else current.append(c);
+            } else if (c == '"') {
+                quoted = true;
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg) args.add(current.toString());
+                current.setLength(0);
+                inArg = false;
+            } else {
+                current.append(c);
+                inArg = true;
+            }
+        }
+        if (quoted) throw new IllegalArgumentException("Unterminated quote");
+        if (inArg) args.add(current.toString());
+        return args;
+    }
+
+    /**
+     * Runs a script against a database and exits with status 0 if every command succeeded, 1 otherwise.
+     * The console messages of the DAO are discarded, so the standard output only holds the JSON lines; errors of the DAO are
+     * still written to the standard error.
+     * @param args Script file, or "-" (default) for the standard input; and the database file (default "empresa.yap").
+     * @throws IOException If the script can't be read.
+     */
+    public static void main(String[] args) throws IOException {
+        String script = args.length > 0 ? args[0] : "-";
+        String dbPath = args.length > 1 ? args[1] : db4oDAO.path;
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        db4oDAO dao = new db4oDAO(dbPath);
+        int errors;
+        try (BufferedReader in = script.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Path.of(script), StandardCharsets.UTF_8)) {
+            errors = new BatchCommandRunner(dao, out).run(in);
+        } finally {
+            out.flush();
+            dao.closeConnection();
+        }
+        System.exit(errors == 0 ? 0 : 1);
+    }
+}
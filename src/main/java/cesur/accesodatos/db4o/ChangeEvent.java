@@ -0,0 +1,206 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Immutable description of a committed change to an {@link Employee} or a {@link Department}.
+ * Events are created by {@link ChangeFeed} from db4o's committed events and carry a snapshot of the record,
+ * so consumers never see later modifications of the live object.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class ChangeEvent {
+
+    /**
+     * Kind of change reported by the event.
+     */
+    public enum Type { ADDED, UPDATED, DELETED }
+
+    /**
+     * Field separator used by {@link #toLogLine()}.
+     */
+    private static final char SEPARATOR = '\t';
+
+    /**
+     * Position of the event in the feed. Sequence numbers grow by one for every published event.
+     */
+    private final long sequence;
+    /**
+     * Commit time in milliseconds since epoch.
+     */
+    private final long timestamp;
+    /**
+     * Kind of change.
+     */
+    private final Type type;
+    /**
+     * db4o internal object ID of the changed object.
+     */
+    private final long internalId;
+    /**
+     * Snapshot of the changed record, either an {@link Employee} or a {@link Department}.
+     */
+    private final Object record;
+
+    /**
+     * Creates a new change event.
+     * @param sequence Position of the event in the feed.
+     * @param timestamp Commit time in milliseconds since epoch.
+     * @param type Kind of change.
+     * @param internalId db4o internal object ID of the changed object.
+     * @param record Snapshot of the changed {@link Employee} or {@link Department}.
+     */
+    public ChangeEvent(long sequence, long timestamp, Type type, long internalId, Object record) {
+        if (!(record instanceof Employee) && !(record instanceof Department)) {
+            throw new IllegalArgumentException("Change events only support Employee and Department records");
+        }
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.internalId = internalId;
+        this.record = record;
+    }
+
+    /**
+     * @return Position of the event in the feed.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return Commit time in milliseconds since epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return Kind of change.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return db4o internal object ID of the changed object.
+     */
+    public long getInternalId() {
+        return internalId;
+    }
+
+    /**
+     * @return Snapshot of the changed record, an {@link Employee} or a {@link Department}.
+     */
+    public Object getRecord() {
+        return record;
+    }
+
+    /**
+     * @return true if the changed record is an {@link Employee}.
+     */
+    public boolean isEmployee() {
+        return record instanceof Employee;
+    }
+
+    /**
+     * @return Business ID of the changed record (empno for employees, depno for departments).
+     */
+    public int getBusinessId() {
+        return isEmployee() ? ((Employee) record).getEmpno() : ((Department) record).getDepno();
+    }
+
+    /**
+     * Copies the state of a live {@link Employee} or {@link Department} so it can travel inside an event.
+     * @param obj Live object.
+     * @return Detached copy of the object or null if the object is not an Employee or a Department.
+     */
+    static Object snapshot(Object obj) {
+        if (obj instanceof Employee e) {
+            return new Employee(e.getEmpno(), e.getName(), e.getPosition(), e.getDepno());
+        } else if (obj instanceof Department d) {
+            return new Department(d.getDepno(), d.getName(), d.getLocation());
+        }
+        return null;
+    }
+
+    /**
+     * Encodes the event as a single tab-separated line for the on-disk change log.
+     * @return Line representation of the event, without line terminator.
+     */
+    public String toLogLine() {
+        StringBuilder sb = new StringBuilder(96);
+        sb.append(sequence).append(SEPARATOR).append(timestamp).append(SEPARATOR).append(type).append(SEPARATOR)
+                .append(internalId).append(SEPARATOR);
+        if (record instanceof Employee e) {
+            sb.append('E').append(SEPARATOR).append(e.getEmpno()).append(SEPARATOR).append(escape(e.getName()))
+                    .append(SEPARATOR).append(escape(e.getPosition())).append(SEPARATOR).append(e.getDepno() == null ? "\\" : e.getDepno());
+        } else {
+            Department d = (Department) record;
+            sb.append('D').append(SEPARATOR).append(d.getDepno()).append(SEPARATOR).append(escape(d.getName()))
+                    .append(SEPARATOR).append(escape(d.getLocation()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodes a line written by {@link #toLogLine()}.
+     * @param line Line to decode.
+     * @return Decoded event.
+     * @throws IllegalArgumentException If the line is not a valid change log entry.
+     */
+    public static ChangeEvent fromLogLine(String line) {
+        String[] f = line.split(String.valueOf(SEPARATOR), -1);
+        try {
+            Object record;
+            if ("E".equals(f[4]) && f.length == 9) {
+                record = new Employee(Integer.parseInt(f[5]), unescape(f[6]), unescape(f[7]), f[8].equals("\\") ? null : Integer.valueOf(f[8]));
+            } else if ("D".equals(f[4]) && f.length == 8) {
+                record = new Department(Integer.parseInt(f[5]), unescape(f[6]), unescape(f[7]));
+            } else {
+                throw new IllegalArgumentException("Unknown record kind in change log line: " + line);
+            }
+            return new ChangeEvent(Long.parseLong(f[0]), Long.parseLong(f[1]), Type.valueOf(f[2]), Long.parseLong(f[3]), record);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed change log line: " + line, e);
+        }
+    }
+
+    /**
+     * Escapes backslashes, tabs and line breaks of a field value. Null values are written as a lone backslash.
+     * @param value Field value.
+     * @return Escaped value.
+     */
+    private static String escape(String value) {
+        if (value == null) return "\\";
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Reverts {@link #escape(String)}.
+     * @param value Escaped value.
+     * @return Original field value.
+     */
+    private static String unescape(String value) {
+        if (value.equals("\\")) return null;
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char n = value.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeEvent{" +
+                "sequence=" + sequence +
+                ", type=" + type +
+                ", internalId=" + internalId +
+                ", record=" + record +
+                '}';
+    }
+}
@@ -0,0 +1,322 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.ObjectContainer;
+import com.db4o.events.CommitEventArgs;
+import com.db4o.events.EventListener4;
+import com.db4o.events.EventRegistry;
+import com.db4o.events.EventRegistryFactory;
+import com.db4o.ext.ObjectInfo;
+import com.db4o.ext.ObjectInfoCollection;
+import com.db4o.foundation.Iterator4;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Change-data-capture feed built on db4o's committed events.
+ * Every commit of the observed {@link ObjectContainer} is turned into one {@link ChangeEvent} per added, updated or deleted
+ * {@link Employee} or {@link Department}, and the events are handed to the registered {@link ChangeListener}s.
+ *
+ * The commit path only copies the changed records and offers them to one bounded {@link ChangeRingBuffer} per subscription;
+ * each subscription drains its buffer on its own daemon thread, so slow consumers never block commits (they lose the oldest
+ * events instead, which shows up as a gap in the sequence numbers). Optionally every event is also appended to a change log
+ * file with its sequence number, so consumers can resume from the last sequence they processed with {@link #replay(long, ChangeListener)}.
+ * The commit path only queues the log lines; they are written to the file by the flusher thread.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ChangeFeed implements AutoCloseable {
+
+    /**
+     * DEFAULT_CAPACITY -> Default number of pending events per subscription.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+    /**
+     * Interval in milliseconds between change log flushes.
+     */
+    private static final long LOG_FLUSH_INTERVAL = 200;
+
+    /**
+     * Registry of the observed container, kept to unregister the commit listener on close.
+     */
+    private final EventRegistry registry;
+    /**
+     * Listener registered on the container's committed event.
+     */
+    private final EventListener4<CommitEventArgs> commitListener = (source, args) -> onCommitted(args);
+    /**
+     * Capacity of the ring buffer created for every subscription.
+     */
+    private final int capacity;
+    /**
+     * Active subscriptions.
+     */
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    /**
+     * Change log file, or null if the feed is not persisted.
+     */
+    private final File logFile;
+    /**
+     * Writer appending to the change log, or null if the feed is not persisted. Guarded by {@link #logLock}.
+     */
+    private BufferedWriter logWriter;
+    /**
+     * Log lines queued by the commit path, waiting to be written by the flusher.
+     */
+    private final Queue<String> pendingLines = new ConcurrentLinkedQueue<>();
+    /**
+     * Lock of the change log writer, held by the flusher and never by the commit path.
+     */
+    private final Object logLock = new Object();
+    /**
+     * Thread flushing the change log periodically, or null if the feed is not persisted.
+     */
+    private ScheduledExecutorService logFlusher;
+    /**
+     * Sequence number of the last published event.
+     */
+    private long lastSequence;
+
+    /**
+     * Creates a feed over the given container.
+     * If a change log path is given, sequence numbers continue after the last one found in the existing log.
+     * @param db Container to observe.
+     * @param capacity Number of pending events kept per subscription before the oldest ones are dropped.
+     * @param logPath Path of the change log file, or null to keep the feed only in memory.
+     * @throws IOException If the change log can't be read or opened for writing.
+     */
+    public ChangeFeed(ObjectContainer db, int capacity, String logPath) throws IOException {
+        if (capacity <= 0) throw new IllegalArgumentException("The capacity must be positive");
+        this.capacity = capacity;
+        this.logFile = logPath == null ? null : new File(logPath);
+        if (logFile != null) {
+            if (logFile.exists()) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.isEmpty()) lastSequence = ChangeEvent.fromLogLine(line).getSequence();
+                    }
+                }
+            }
+            logWriter = new BufferedWriter(new FileWriter(logFile, true));
+            logFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "change-log-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            logFlusher.scheduleWithFixedDelay(this::flushLog, LOG_FLUSH_INTERVAL, LOG_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        this.registry = EventRegistryFactory.forObjectContainer(db);
+        registry.committed().addListener(commitListener);
+    }
+
+    /**
+     * Registers a listener. The listener receives every event published after this call on its own dispatcher thread.
+     * @param listener Listener to register.
+     * @return The subscription, which must be closed to stop receiving events.
+     */
+    public Subscription subscribe(ChangeListener listener) {
+        Subscription subscription = new Subscription(listener, capacity);
+        subscriptions.add(subscription);
+        subscription.thread.start();
+        return subscription;
+    }
+
+    /**
+     * Delivers every logged event with a sequence number greater than the given one to the listener, on the calling thread.
+     * This is how a consumer resumes after a restart or after dropping events.
+     * @param afterSequence Last sequence number already processed by the consumer (0 to read the whole log).
+     * @param listener Listener receiving the logged events.
+     * @return Sequence number of the last delivered event, or afterSequence if none was delivered.
+     * @throws IOException If the change log can't be read.
+     * @throws IllegalStateException If the feed has no change log.
+     */
+    public long replay(long afterSequence, ChangeListener listener) throws IOException {
+        if (logFile == null) throw new IllegalStateException("The change feed has no change log");
+        flushLog();
+        long last = afterSequence;
+        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                ChangeEvent event = ChangeEvent.fromLogLine(line);
+                if (event.getSequence() > afterSequence) {
+                    listener.onChange(event);
+                    last = event.getSequence();
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return true if the feed keeps an on-disk change log that can be replayed.
+     */
+    public boolean hasLog() {
+        return logFile != null;
+    }
+
+    /**
+     * @return Sequence number of the last published event (0 if no event was ever published).
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Unregisters the commit listener, stops every subscription and flushes and closes the change log.
+     */
+    @Override
+    public void close() {
+        registry.committed().removeListener(commitListener);
+        for (Subscription s : subscriptions) s.close();
+        if (logFlusher != null) {
+            logFlusher.shutdown();
+            flushLog();
+            synchronized (logLock) {
+                try {
+                    logWriter.close();
+                } catch (IOException ioe) {
+                    System.err.println("ERROR: Unable to close the change log - " + ioe.getMessage());
+                }
+                logWriter = null;
+            }
+        }
+    }
+
+    /**
+     * Turns a commit into change events. This runs on the committing thread, so it only copies records, queues the log lines
+     * and offers to the non-blocking ring buffers. It is synchronized only to number the events of concurrent commits in order.
+     * @param args Committed event arguments.
+     */
+    private synchronized void onCommitted(CommitEventArgs args) {
+        long now = System.currentTimeMillis();
+        publish(args.added(), ChangeEvent.Type.ADDED, now);
+        publish(args.updated(), ChangeEvent.Type.UPDATED, now);
+        publish(args.deleted(), ChangeEvent.Type.DELETED, now);
+    }
+
+    /**
+     * Publishes one event per supported object of the given collection.
+     * @param infos Changed objects.
+     * @param type Kind of change.
+     * @param timestamp Commit time.
+     */
+    private void publish(ObjectInfoCollection infos, ChangeEvent.Type type, long timestamp) {
+        for (Iterator4<?> it = infos.iterator(); it.moveNext(); ) {
+            ObjectInfo info = (ObjectInfo) it.current();
+            Object record = ChangeEvent.snapshot(info.getObject());
+            if (record == null) continue; // Not an Employee nor a Department
+            ChangeEvent event = new ChangeEvent(++lastSequence, timestamp, type, info.getInternalID(), record);
+            if (logFile != null) pendingLines.add(event.toLogLine());
+            for (Subscription s : subscriptions) s.buffer.offer(event);
+        }
+    }
+
+    /**
+     * Writes the queued change log lines to the file, in sequence order.
+     */
+    private void flushLog() {
+        synchronized (logLock) {
+            if (logWriter == null) return;
+            try {
+                String line;
+                while ((line = pendingLines.poll()) != null) {
+                    logWriter.write(line);
+                    logWriter.newLine();
+                }
+                logWriter.flush();
+            } catch (IOException ioe) {
+                System.err.println("ERROR: Unable to write the change log - " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Registration of one {@link ChangeListener}, with its own ring buffer and dispatcher thread.
+     */
+    public final class Subscription implements AutoCloseable {
+        /**
+         * Pending events of this subscription.
+         */
+        private final ChangeRingBuffer buffer;
+        /**
+         * Dispatcher thread calling the listener.
+         */
+        private final Thread thread;
+        /**
+         * Flag to keep the dispatcher running.
+         */
+        private volatile boolean running = true;
+
+        /**
+         * Creates the subscription. The dispatcher thread is started by {@link ChangeFeed#subscribe(ChangeListener)}.
+         * @param listener Listener to call.
+         * @param capacity Capacity of the ring buffer.
+         */
+        private Subscription(ChangeListener listener, int capacity) {
+            this.buffer = new ChangeRingBuffer(capacity);
+            this.thread = new Thread(() -> dispatch(listener), "change-feed-dispatcher");
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Dispatcher loop: drains the buffer into the listener until the subscription is closed.
+         * @param listener Listener to call.
+         */
+        private void dispatch(ChangeListener listener) {
+            while (running || buffer.size() > 0) {
+                try {
+                    ChangeEvent event = buffer.poll(LOG_FLUSH_INTERVAL);
+                    if (event != null) listener.onChange(event);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException re) {
+                    System.err.println("ERROR: Change listener failed - " + re.getMessage());
+                }
+            }
+        }
+
+        /**
+         * @return Number of events waiting to be delivered to the listener.
+         */
+        public int getPending() {
+            return buffer.size();
+        }
+
+        /**
+         * @return Number of events dropped because the listener didn't keep up.
+         */
+        public long getDropped() {
+            return buffer.getDropped();
+        }
+
+        /**
+         * Stops receiving events. Events already buffered are still delivered, and the method waits for the dispatcher to end
+         * (unless it is called from the listener), so the listener can release its resources afterwards.
+         */
+        @Override
+        public void close() {
+            running = false;
+            subscriptions.remove(this);
+            if (Thread.currentThread() == thread) return;
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
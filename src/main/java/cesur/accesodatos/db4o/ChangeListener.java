@@ -0,0 +1,18 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Consumer of the committed changes published by {@link ChangeFeed}.
+ * Listeners are called from the subscription's own dispatcher thread, never from the thread that commits.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+@FunctionalInterface
+public interface ChangeListener {
+    /**
+     * Method called once for every published {@link ChangeEvent}, in sequence order.
+     * A gap in the sequence numbers means the subscription's buffer overflowed and events were dropped;
+     * they can be recovered with {@link ChangeFeed#replay(long, ChangeListener)} if the feed has a change log.
+     * @param event Committed change.
+     */
+    public void onChange(ChangeEvent event);
+}
@@ -0,0 +1,83 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Bounded ring buffer of {@link ChangeEvent}s between one producer (the commit path) and one consumer.
+ * Offering never blocks: when the buffer is full the oldest event is overwritten and counted as dropped,
+ * so a slow consumer can only lose events, never delay a commit.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ChangeRingBuffer {
+
+    /**
+     * Slots of the buffer.
+     */
+    private final ChangeEvent[] slots;
+    /**
+     * Total number of events offered. The next write goes to {@code written % slots.length}.
+     */
+    private long written;
+    /**
+     * Total number of events consumed or dropped. The next read comes from {@code read % slots.length}.
+     */
+    private long read;
+    /**
+     * Number of events overwritten before being consumed.
+     */
+    private long dropped;
+
+    /**
+     * Creates an empty buffer.
+     * @param capacity Maximum number of pending events.
+     */
+    public ChangeRingBuffer(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("The capacity must be positive");
+        this.slots = new ChangeEvent[capacity];
+    }
+
+    /**
+     * Adds an event, overwriting the oldest pending one if the buffer is full. This method never waits.
+     * @param event Event to add.
+     */
+    public synchronized void offer(ChangeEvent event) {
+        if (written - read == slots.length) { // Full -> drop the oldest event
+            read++;
+            dropped++;
+        }
+        slots[(int) (written++ % slots.length)] = event;
+        notifyAll();
+    }
+
+    /**
+     * Removes the oldest pending event, waiting up to the given time for one to arrive.
+     * @param timeoutMillis Maximum time to wait in milliseconds.
+     * @return The oldest pending event or null if none arrived in time.
+     * @throws InterruptedException If the waiting thread is interrupted.
+     */
+    public synchronized ChangeEvent poll(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (written == read) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return null;
+            wait(remaining);
+        }
+        int index = (int) (read++ % slots.length);
+        ChangeEvent event = slots[index];
+        slots[index] = null;
+        return event;
+    }
+
+    /**
+     * @return Number of events waiting to be consumed.
+     */
+    public synchronized int size() {
+        return (int) (written - read);
+    }
+
+    /**
+     * @return Number of events overwritten before being consumed since the buffer was created.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
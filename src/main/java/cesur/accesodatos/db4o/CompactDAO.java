@@ -0,0 +1,340 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.Db4oEmbedded;
+import com.db4o.ObjectContainer;
+import com.db4o.ObjectSet;
+import com.db4o.config.EmbeddedConfiguration;
+import com.db4o.query.Query;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * {@link IDAO} backend for database files in the compact layout of {@link CompactLayoutMigration}, storing
+ * {@link CompactEmployee}s and {@link CompactDepartment}s instead of {@link Employee}s and {@link Department}s.
+ * Records are converted to the regular entities on every read, decoding positions and locations with the "position" and
+ * "location" {@link StringDictionary}s stored in the same file, and encoded back on every write. A dictionary that gets a new
+ * value is stored in the same transaction as the record that uses it.
+ *
+ * New files are created with a {@link SchemaVersion} of {@link CompactLayoutMigration#VERSION}, so {@link SchemaMigrator}
+ * treats them as already migrated. Every method is synchronized.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class CompactDAO implements IDAO, FileHandlerInterface {
+
+    /**
+     * Path of the database file.
+     */
+    private final String dbPath;
+    /**
+     * Scanner used for capturing user input from the terminal in the update methods.
+     */
+    private final Scanner scanner = new Scanner(System.in);
+    /**
+     * Database container.
+     */
+    private ObjectContainer db;
+    /**
+     * Dictionary of positions of the file.
+     */
+    private StringDictionary positions;
+    /**
+     * Dictionary of locations of the file.
+     */
+    private StringDictionary locations;
+
+    /**
+     * Opens (or creates) a database file in the compact layout.
+     * @param dbPath Path of the database file.
+     * @throws IllegalStateException If the file holds a migration that hasn't finished or a schema version other than
+     *                               {@link CompactLayoutMigration#VERSION}.
+     */
+    public CompactDAO(String dbPath) {
+        this.dbPath = dbPath;
+        EmbeddedConfiguration config = Db4oEmbedded.newConfiguration();
+        config.common().objectClass(CompactEmployee.class).objectField("empno").indexed(true);
+        config.common().objectClass(CompactEmployee.class).objectField("depno").indexed(true);
+        config.common().objectClass(CompactDepartment.class).objectField("depno").indexed(true);
+        config.common().objectClass(StringDictionary.class).objectField("name").indexed(true);
+        this.db = Db4oEmbedded.openFile(config, dbPath);
+        ObjectSet<SchemaVersion> versions = db.query(SchemaVersion.class);
+        if (!versions.hasNext()) {
+            db.store(new SchemaVersion(CompactLayoutMigration.VERSION, "New file in the compact layout"));
+            db.commit();
+        } else {
+            SchemaVersion version = versions.next();
+            if (version.isInProgress() || version.getVersion() != CompactLayoutMigration.VERSION) {
+                db.close();
+                throw new IllegalStateException("The database file " + dbPath + " isn't in the compact layout (version "
+                        + version.getVersion() + (version.isInProgress() ? ", migration in progress" : "") + ")");
+            }
+        }
+        this.positions = StringDictionary.load(db, "position");
+        this.locations = StringDictionary.load(db, "location");
+    }
+
+    @Override
+    public synchronized List<Employee> findAllEmployees() {
+        List<Employee> employees = new ArrayList<>();
+        for (CompactEmployee e : db.query(CompactEmployee.class)) employees.add(e.toEmployee(positions));
+        return employees;
+    }
+
+    @Override
+    public synchronized Employee findEmployeeById(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID provided. ID must be an integer.");
+            return null;
+        }
+        CompactEmployee employee = storedEmployee((Integer) id);
+        return employee == null ? null : employee.toEmployee(positions);
+    }
+
+    @Override
+    public synchronized void addEmployee(Employee employee) {
+        try {
+            db.store(CompactEmployee.from(employee, positions));
+            commit(positions);
+            System.out.println("Employee added successfully.");
+        } catch (RuntimeException e) {
+            db.rollback();
+            System.err.println("ERROR: Unable to add employee - " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Employee updateEmployee(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        Employee employee = findEmployeeById(id);
+        if (employee == null) {
+            System.out.println("Employee not found.");
+            return null;
+        }
+        System.out.println("Updating employee with ID: " + id);
+        System.out.print("Last name (current: " + employee.getName() + "): ");
+        String surname = scanner.nextLine();
+        if (surname.isEmpty()) throw new IllegalArgumentException("The last name cannot be empty");
+        System.out.print("Job (current: " + employee.getPosition() + "): ");
+        String job = scanner.nextLine();
+        if (job.isEmpty()) throw new IllegalArgumentException("The job cannot be empty");
+        System.out.print("Department ID (current: " + employee.getDepno() + "): ");
+        String departmentId = scanner.nextLine();
+        if (departmentId.isEmpty()) throw new IllegalArgumentException("The department ID cannot be empty");
+        try {
+            return updateEmployee(new Employee((Integer) id, surname, job, Integer.parseInt(departmentId)));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid department ID format");
+            return null;
+        }
+    }
+
+    /**
+     * Compact records have no setters, so the stored record is replaced by a new one in a single transaction.
+     */
+    @Override
+    public synchronized Employee updateEmployee(Employee employee) {
+        CompactEmployee stored = storedEmployee(employee.getEmpno());
+        if (stored == null) {
+            System.out.println("Employee not found.");
+            return null;
+        }
+        try {
+            db.delete(stored);
+            db.store(CompactEmployee.from(employee, positions));
+            commit(positions);
+            System.out.println("Employee has been successfully updated.");
+        } catch (RuntimeException e) {
+            db.rollback();
+            System.err.println("An error occurred: " + e.getMessage());
+            return null;
+        }
+        return new Employee(employee.getEmpno(), employee.getName(), employee.getPosition(), employee.getDepno());
+    }
+
+    @Override
+    public synchronized Employee deleteEmployee(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        CompactEmployee stored = storedEmployee((Integer) id);
+        if (stored == null) {
+            System.out.println("Employee not found.");
+            return null;
+        }
+        try {
+            db.delete(stored);
+            db.commit();
+            System.out.println("Employee deleted successfully.");
+        } catch (RuntimeException e) {
+            db.rollback();
+            System.err.println("ERROR: Unable to delete employee - " + e.getMessage());
+            return null;
+        }
+        return stored.toEmployee(positions);
+    }
+
+    @Override
+    public synchronized List<Department> findAllDepartments() {
+        List<Department> departments = new ArrayList<>();
+        for (CompactDepartment d : db.query(CompactDepartment.class)) departments.add(d.toDepartment(locations));
+        return departments;
+    }
+
+    @Override
+    public synchronized Department findDepartmentById(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        CompactDepartment department = storedDepartment((Integer) id);
+        return department == null ? null : department.toDepartment(locations);
+    }
+
+    @Override
+    public synchronized void addDepartment(Department department) {
+        try {
+            db.store(CompactDepartment.from(department, locations));
+            commit(locations);
+            System.out.println("Department added successfully.");
+        } catch (RuntimeException e) {
+            db.rollback();
+            System.err.println("ERROR: Unable to add department - " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Department updateDepartment(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        Department department = findDepartmentById(id);
+        if (department == null) {
+            System.out.println("Department not found.");
+            return null;
+        }
+        System.out.println("Updating department with ID: " + id);
+        System.out.print("Name (current: " + department.getName() + "): ");
+        String name = scanner.nextLine();
+        if (name.isEmpty()) throw new IllegalArgumentException("The name cannot be empty");
+        System.out.print("City (current: " + department.getLocation() + "): ");
+        String city = scanner.nextLine();
+        if (city.isEmpty()) throw new IllegalArgumentException("The city cannot be empty");
+        return updateDepartment(new Department((Integer) id, name, city));
+    }
+
+    /**
+     * Compact records have no setters, so the stored record is replaced by a new one in a single transaction.
+     */
+    @Override
+    public synchronized Department updateDepartment(Department department) {
+        CompactDepartment stored = storedDepartment(department.getDepno());
+        if (stored == null) {
+            System.out.println("Department not found.");
+            return null;
+        }
+        try {
+            db.delete(stored);
+            db.store(CompactDepartment.from(department, locations));
+            commit(locations);
+            System.out.println("Department has been successfully updated.");
+        } catch (RuntimeException e) {
+            db.rollback();
+            System.err.println("An error occurred while updating the department: " + e.getMessage());
+            return null;
+        }
+        return new Department(department.getDepno(), department.getName(), department.getLocation());
+    }
+
+    @Override
+    public synchronized Department deleteDepartment(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        CompactDepartment stored = storedDepartment((Integer) id);
+        if (stored == null) {
+            System.out.println("Department not found.");
+            return null;
+        }
+        try {
+            db.delete(stored);
+            db.commit();
+            System.out.println("Department has been successfully deleted.");
+        } catch (RuntimeException e) {
+            db.rollback();
+            System.err.println("An error occurred while deleting the department: " + e.getMessage());
+            return null;
+        }
+        return stored.toDepartment(locations);
+    }
+
+    @Override
+    public synchronized List<Employee> findEmployeesByDept(Object idDept) {
+        if (!(idDept instanceof Integer)) {
+            System.out.println("Invalid department ID.");
+            return new ArrayList<>();
+        }
+        Query query = db.query();
+        query.constrain(CompactEmployee.class);
+        query.descend("depno").constrain(idDept);
+        List<Employee> employees = new ArrayList<>();
+        for (Object e : query.execute()) employees.add(((CompactEmployee) e).toEmployee(positions));
+        return employees;
+    }
+
+    @Override
+    public boolean checkDBExists() {
+        boolean exists = new File(dbPath).exists();
+        System.out.println(exists ? "The database file exists." : "The database file does not exist.");
+        return exists;
+    }
+
+    @Override
+    public synchronized void closeConnection() {
+        if (db != null && !db.ext().isClosed()) {
+            db.close();
+            System.out.println("Database connection successfully closed.");
+        }
+    }
+
+    /**
+     * @param empno Identifier of the employee.
+     * @return The stored compact employee, or null if there isn't any.
+     */
+    private CompactEmployee storedEmployee(int empno) {
+        Query query = db.query();
+        query.constrain(CompactEmployee.class);
+        query.descend("empno").constrain(empno);
+        ObjectSet<CompactEmployee> result = query.execute();
+        return result.hasNext() ? result.next() : null;
+    }
+
+    /**
+     * @param depno Identifier of the department.
+     * @return The stored compact department, or null if there isn't any.
+     */
+    private CompactDepartment storedDepartment(int depno) {
+        Query query = db.query();
+        query.constrain(CompactDepartment.class);
+        query.descend("depno").constrain(depno);
+        ObjectSet<CompactDepartment> result = query.execute();
+        return result.hasNext() ? result.next() : null;
+    }
+
+    /**
+     * Stores the dictionary used by the write, which may have a new value, and commits the transaction.
+     * @param dictionary Dictionary used to encode the written record.
+     */
+    private void commit(StringDictionary dictionary) {
+        dictionary.store(db);
+        db.commit();
+    }
+}
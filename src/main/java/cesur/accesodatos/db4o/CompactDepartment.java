@@ -0,0 +1,86 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Compact persisted representation of a {@link Department}.
+ * The ID is a primitive int and the location is a code of the "location" {@link StringDictionary}, since there are only a
+ * handful of distinct cities. Use {@link #from(Department, StringDictionary)} and {@link #toDepartment(StringDictionary)}
+ * to convert between both representations.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class CompactDepartment {
+
+    /**
+     * Identifier of the Department.
+     */
+    private int depno;
+    /**
+     * Name of the Department.
+     */
+    private String name;
+    /**
+     * Code of the location in the "location" dictionary.
+     */
+    private int locationCode;
+
+    /**
+     * Constructs a new CompactDepartment.
+     * @param depno Identifier of the Department.
+     * @param name Name of the Department.
+     * @param locationCode Code of the location.
+     */
+    public CompactDepartment(int depno, String name, int locationCode) {
+        this.depno = depno;
+        this.name = name;
+        this.locationCode = locationCode;
+    }
+
+    /**
+     * Converts a {@link Department} to its compact representation, encoding its location.
+     * @param department Department to convert.
+     * @param locations Dictionary of locations.
+     * @return New compact department.
+     */
+    public static CompactDepartment from(Department department, StringDictionary locations) {
+        return new CompactDepartment(department.getDepno(), department.getName(), locations.encode(department.getLocation()));
+    }
+
+    /**
+     * Converts back to a regular {@link Department}, decoding the location.
+     * @param locations Dictionary of locations.
+     * @return New department.
+     */
+    public Department toDepartment(StringDictionary locations) {
+        return new Department(depno, name, locations.decode(locationCode));
+    }
+
+    /**
+     * @return Identifier of the Department.
+     */
+    public int getDepno() {
+        return depno;
+    }
+
+    /**
+     * @return Name of the Department.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Code of the location in the "location" dictionary.
+     */
+    public int getLocationCode() {
+        return locationCode;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactDepartment{" +
+                "depno=" + depno +
+                ", name='" + name + '\'' +
+                ", locationCode=" + locationCode +
+                '}';
+    }
+}
@@ -0,0 +1,107 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Compact persisted representation of an {@link Employee}.
+ * IDs are primitive ints instead of {@link Integer} boxes and the position is a code of the "position" {@link StringDictionary},
+ * since there are only a handful of distinct job titles. Use {@link #from(Employee, StringDictionary)} and
+ * {@link #toEmployee(StringDictionary)} to convert between both representations.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class CompactEmployee {
+
+    /**
+     * NO_DEPARTMENT -> Value of depno for employees without department.
+     */
+    public static final int NO_DEPARTMENT = Integer.MIN_VALUE;
+
+    /**
+     * The unique identifier for the Employee.
+     */
+    private int empno;
+    /**
+     * The name of the Employee.
+     */
+    private String name;
+    /**
+     * Code of the job position in the "position" dictionary.
+     */
+    private int positionCode;
+    /**
+     * The department number where the Employee works, or {@link #NO_DEPARTMENT}.
+     */
+    private int depno;
+
+    /**
+     * Constructs a new CompactEmployee.
+     * @param empno The unique identifier for the Employee.
+     * @param name The name of the Employee.
+     * @param positionCode Code of the job position.
+     * @param depno The department number, or {@link #NO_DEPARTMENT}.
+     */
+    public CompactEmployee(int empno, String name, int positionCode, int depno) {
+        this.empno = empno;
+        this.name = name;
+        this.positionCode = positionCode;
+        this.depno = depno;
+    }
+
+    /**
+     * Converts an {@link Employee} to its compact representation, encoding its position.
+     * @param employee Employee to convert.
+     * @param positions Dictionary of positions.
+     * @return New compact employee.
+     */
+    public static CompactEmployee from(Employee employee, StringDictionary positions) {
+        Integer depno = employee.getDepno();
+        return new CompactEmployee(employee.getEmpno(), employee.getName(), positions.encode(employee.getPosition()),
+                depno == null ? NO_DEPARTMENT : depno);
+    }
+
+    /**
+     * Converts back to a regular {@link Employee}, decoding the position.
+     * @param positions Dictionary of positions.
+     * @return New employee.
+     */
+    public Employee toEmployee(StringDictionary positions) {
+        return new Employee(empno, name, positions.decode(positionCode), depno == NO_DEPARTMENT ? null : depno);
+    }
+
+    /**
+     * @return The identifier of the Employee.
+     */
+    public int getEmpno() {
+        return empno;
+    }
+
+    /**
+     * @return The name of the Employee.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Code of the job position in the "position" dictionary.
+     */
+    public int getPositionCode() {
+        return positionCode;
+    }
+
+    /**
+     * @return The department number, or {@link #NO_DEPARTMENT}.
+     */
+    public int getDepno() {
+        return depno;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactEmployee{" +
+                "empno=" + empno +
+                ", name='" + name + '\'' +
+                ", positionCode=" + positionCode +
+                ", depno=" + depno +
+                '}';
+    }
+}
@@ -0,0 +1,174 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.Db4oEmbedded;
+import com.db4o.ObjectContainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Migration step from the {@link Employee}/{@link Department} layout to the compact
+ * {@link CompactEmployee}/{@link CompactDepartment} layout, plus the measurements that justify it.
+ * The "position" and "location" {@link StringDictionary}s are stored in the target file of the {@link SchemaMigrator}.
+ * Migrated files are read and written with {@link CompactDAO}; {@link db4oDAO} only reads the regular layout.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class CompactLayoutMigration implements MigrationStep {
+
+    /**
+     * VERSION -> Schema version of the compact layout.
+     */
+    public static final int VERSION = 1;
+    /**
+     * Job titles used by the synthetic data of the measurements.
+     */
+    private static final String[] POSITIONS = {"Vendedor", "Contable", "Responsable", "Administrativo", "Programador", "Director"};
+
+    /**
+     * Dictionary of positions of the target file.
+     */
+    private StringDictionary positions;
+    /**
+     * Dictionary of locations of the target file.
+     */
+    private StringDictionary locations;
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Compact employees and departments with dictionary-encoded positions and locations";
+    }
+
+    @Override
+    public void prepare(ObjectContainer target) {
+        positions = StringDictionary.load(target, "position");
+        locations = StringDictionary.load(target, "location");
+    }
+
+    @Override
+    public Object transform(Object record) {
+        if (record instanceof Employee e) return CompactEmployee.from(e, positions);
+        if (record instanceof Department d) return CompactDepartment.from(d, locations);
+        return record;
+    }
+
+    @Override
+    public void beforeCommit(ObjectContainer target) {
+        positions.store(target);
+        locations.store(target);
+    }
+
+    /**
+     * Migrates every {@link Department} and {@link Employee} of the source file to the compact layout in the target file.
+     * @param sourcePath Path of the database file in the regular layout.
+     * @param targetPath Path of the new database file. It must not exist, unless it holds an interrupted migration.
+     * @return Number of objects written to the target, or -1 if the migration couldn't be done.
+     */
+    public static long migrate(String sourcePath, String targetPath) {
+        SchemaMigrator migrator = new SchemaMigrator(sourcePath, targetPath).addStep(new CompactLayoutMigration());
+        return migrator.run() ? migrator.getWritten() : -1;
+    }
+
+    /**
+     * Measures the retained heap of the given number of employees in both layouts.
+     * The regular employees are built the way db4o loads them: every object gets its own position String and Integer boxes.
+     * @param count Number of employees.
+     * @return Retained bytes per employee: index 0 for {@link Employee}, index 1 for {@link CompactEmployee}
+     *         (the shared dictionary included).
+     */
+    public static double[] measureHeap(int count) {
+        double[] bytes = new double[2];
+        long before = usedHeap();
+        Employee[] regular = new Employee[count];
+        for (int i = 0; i < count; i++) {
+            regular[i] = new Employee(i + 1, "Empleado " + i, new String(POSITIONS[i % POSITIONS.length]), Integer.valueOf(10 * (1 + i % 500)));
+        }
+        bytes[0] = (double) (usedHeap() - before) / count;
+        Reference.reachabilityFence(regular);
+        regular = null;
+        before = usedHeap();
+        StringDictionary positions = new StringDictionary("position");
+        CompactEmployee[] compact = new CompactEmployee[count];
+        for (int i = 0; i < count; i++) {
+            compact[i] = new CompactEmployee(i + 1, "Empleado " + i, positions.encode(POSITIONS[i % POSITIONS.length]), 10 * (1 + i % 500));
+        }
+        bytes[1] = (double) (usedHeap() - before) / count;
+        Reference.reachabilityFence(compact);
+        return bytes;
+    }
+
+    /**
+     * Writes the given number of synthetic employees to a temporary file in the regular layout, migrates it and measures both files.
+     * @param count Number of employees.
+     * @return File sizes in bytes: index 0 for the regular layout, index 1 for the compact layout, or null if an error occurred.
+     */
+    public static long[] measureFiles(int count) {
+        try {
+            Path dir = Files.createTempDirectory("compact");
+            Path regular = dir.resolve("regular.yap"), compact = dir.resolve("compact.yap");
+            ObjectContainer db = Db4oEmbedded.openFile(Db4oEmbedded.newConfiguration(), regular.toString());
+            try {
+                for (int d = 1; d <= 500; d++) db.store(new Department(10 * d, "Departamento " + d, "Ciudad " + d % 20));
+                for (int i = 0; i < count; i++) {
+                    db.store(new Employee(i + 1, "Empleado " + i, POSITIONS[i % POSITIONS.length], 10 * (1 + i % 500)));
+                    if ((i + 1) % SchemaMigrator.DEFAULT_BATCH_SIZE == 0) db.commit();
+                }
+                db.commit();
+            } finally {
+                db.close();
+            }
+            if (migrate(regular.toString(), compact.toString()) < 0) return null;
+            long[] sizes = {Files.size(regular), Files.size(compact)};
+            Files.delete(regular);
+            Files.delete(compact);
+            Files.delete(dir);
+            return sizes;
+        } catch (IOException e) {
+            System.err.println("ERROR: The file measurement failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return Used heap after a full garbage collection.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Command line entry point.
+     * "migrate source target" migrates a database file; "measure [employees]" compares the heap and file footprint of both
+     * layouts with synthetic data (100000 employees by default).
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) {
+        if (args.length >= 3 && args[0].equals("migrate")) {
+            long before = new File(args[1]).length();
+            long migrated = migrate(args[1], args[2]);
+            if (migrated >= 0) {
+                System.out.println("Migrated " + migrated + " objects: " + before + " bytes -> " + new File(args[2]).length() + " bytes.");
+            }
+        } else if (args.length >= 1 && args[0].equals("measure")) {
+            int count = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+            double[] heap = measureHeap(count);
+            System.out.printf("Heap per million employees: %.1f MB regular, %.1f MB compact%n", heap[0], heap[1]);
+            long[] files = measureFiles(count);
+            if (files != null) {
+                System.out.printf("File size for %d employees: %d bytes regular, %d bytes compact%n", count, files[0], files[1]);
+            }
+        } else {
+            System.out.println("Usage: CompactLayoutMigration migrate <source.yap> <target.yap> | measure [employees]");
+        }
+    }
+}
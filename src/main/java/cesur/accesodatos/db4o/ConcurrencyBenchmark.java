@@ -0,0 +1,231 @@
+package cesur.accesodatos.db4o;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Contention benchmark of concurrent read-modify-write updates of the same {@link Employee}s through {@link db4oDAO}.
+ * Every operation reads a random employee of a small hot set and increments its depno, so at the end the depnos must add up
+ * to the number of operations; any difference is a lost update. Three strategies are compared:
+ * <ul>
+ *     <li>{@link Strategy#UNPROTECTED}: read and plain update, the last writer wins (shows the lost updates).</li>
+ *     <li>{@link Strategy#OPTIMISTIC}: versioned read and conditional update, retried on conflicts.</li>
+ *     <li>{@link Strategy#STRIPED}: pessimistic, the read and the update run holding one of {@link #STRIPES} locks chosen by empno.</li>
+ * </ul>
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ConcurrencyBenchmark {
+
+    /**
+     * STRIPES -> Number of locks of the pessimistic strategy.
+     */
+    public static final int STRIPES = 16;
+
+    /**
+     * Concurrency control strategies compared by the benchmark.
+     */
+    public enum Strategy {
+        UNPROTECTED, OPTIMISTIC, STRIPED
+    }
+
+    /**
+     * Results of one strategy.
+     * @param strategy Strategy measured.
+     * @param operations Completed operations.
+     * @param elapsedNanos Duration of the run in nanoseconds.
+     * @param conflicts Version conflicts (retries) of the optimistic strategy.
+     * @param lostUpdates Increments missing from the final depnos.
+     * @param latencies Latencies of the operations, retries included.
+     */
+    public record Result(Strategy strategy, long operations, long elapsedNanos, long conflicts, long lostUpdates, LatencyHistogram latencies) {
+
+        /**
+         * @return Operations per second.
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : operations * 1e9 / elapsedNanos;
+        }
+    }
+
+    /**
+     * Number of worker threads.
+     */
+    private int threads = 8;
+    /**
+     * Number of employees all the threads update.
+     */
+    private int hotRecords = 4;
+    /**
+     * Number of operations of each thread.
+     */
+    private int operationsPerThread = 500;
+
+    /**
+     * @param threads Number of worker threads.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param hotRecords Number of employees all the threads update. Fewer records mean more contention.
+     */
+    public void setHotRecords(int hotRecords) {
+        this.hotRecords = hotRecords;
+    }
+
+    /**
+     * @param operationsPerThread Number of operations of each thread.
+     */
+    public void setOperationsPerThread(int operationsPerThread) {
+        this.operationsPerThread = operationsPerThread;
+    }
+
+    /**
+     * Runs the benchmark with one strategy on a new temporary database, deleted at the end.
+     * The console output of the DAO is discarded meanwhile.
+     *
+     * @param strategy Strategy to measure.
+     * @return Results of the run.
+     * @throws Exception If the temporary database can't be created or a worker is interrupted.
+     */
+    public Result run(Strategy strategy) throws Exception {
+        Path file = Files.createTempFile("concurrency", ".yap");
+        Files.delete(file);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        db4oDAO dao = new db4oDAO(file.toString());
+        try {
+            dao.inTransaction(tx -> {
+                for (int empno = 1; empno <= hotRecords; empno++) tx.addEmployee(new Employee(empno, "Hot" + empno, "Vendedor", 0));
+            });
+            ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+            for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicLong done = new AtomicLong();
+            List<LatencyHistogram> histograms = new ArrayList<>();
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                LatencyHistogram histogram = new LatencyHistogram();
+                histograms.add(histogram);
+                Thread worker = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    for (int i = 0; i < operationsPerThread; i++) {
+                        int empno = 1 + ThreadLocalRandom.current().nextInt(hotRecords);
+                        long begin = System.nanoTime();
+                        if (increment(dao, strategy, stripes, empno)) done.incrementAndGet();
+                        histogram.record(System.nanoTime() - begin);
+                    }
+                }, "benchmark-worker-" + t);
+                worker.start();
+                workers.add(worker);
+            }
+            long conflictsBefore = dao.getVersionConflicts();
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers) worker.join();
+            long elapsed = System.nanoTime() - begin;
+
+            long total = 0;
+            for (int empno = 1; empno <= hotRecords; empno++) total += dao.findEmployeeVersioned(empno).value().getDepno();
+            LatencyHistogram latencies = new LatencyHistogram();
+            for (LatencyHistogram h : histograms) latencies.merge(h);
+            return new Result(strategy, done.get(), elapsed, dao.getVersionConflicts() - conflictsBefore, done.get() - total, latencies);
+        } finally {
+            dao.closeConnection();
+            System.setOut(console);
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Increments the depno of one employee with the given strategy.
+     * @param dao DAO to update.
+     * @param strategy Concurrency control strategy.
+     * @param stripes Locks of the striped strategy.
+     * @param empno Employee to update.
+     * @return true if the update was applied.
+     */
+    private static boolean increment(db4oDAO dao, Strategy strategy, ReentrantLock[] stripes, int empno) {
+        switch (strategy) {
+            case OPTIMISTIC -> {
+                return dao.updateEmployee(empno, e -> {
+                    e.setDepno(e.getDepno() + 1);
+                    return e;
+                }, Integer.MAX_VALUE) != null;
+            }
+            case STRIPED -> {
+                ReentrantLock lock = stripes[Math.floorMod(empno, stripes.length)];
+                lock.lock();
+                try {
+                    return readAndUpdate(dao, empno);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            default -> {
+                return readAndUpdate(dao, empno);
+            }
+        }
+    }
+
+    /**
+     * Reads an employee and stores it with its depno incremented, without any concurrency control.
+     * @param dao DAO to update.
+     * @param empno Employee to update.
+     * @return true if the update was applied.
+     */
+    private static boolean readAndUpdate(db4oDAO dao, int empno) {
+        Employee copy = dao.findEmployeeVersioned(empno).value();
+        copy.setDepno(copy.getDepno() + 1);
+        return dao.updateEmployee(copy) != null;
+    }
+
+    /**
+     * @param results Results of the strategies.
+     * @return Table comparing the throughput, conflicts, lost updates and latency percentiles in microseconds.
+     */
+    public static String format(List<Result> results) {
+        StringBuilder sb = new StringBuilder();
+        String row = "+" + "-".repeat(13) + ("+" + "-".repeat(11)).repeat(6) + "+\n";
+        sb.append(row);
+        sb.append(String.format("| %-11s | %9s | %9s | %9s | %9s | %9s | %9s |%n", "STRATEGY", "OPS", "OPS/S", "CONFLICTS", "LOST", "P50 us", "P99 us"));
+        sb.append(row);
+        for (Result r : results) {
+            sb.append(String.format("| %-11s | %9d | %9.0f | %9d | %9d | %9.1f | %9.1f |%n", r.strategy(), r.operations(), r.getThroughput(),
+                    r.conflicts(), r.lostUpdates(), r.latencies().getPercentile(50) / 1e3, r.latencies().getPercentile(99) / 1e3));
+        }
+        sb.append(row);
+        return sb.toString();
+    }
+
+    /**
+     * Runs the benchmark with every strategy and prints the comparison.
+     * @param args Optional: number of threads, number of hot employees and operations per thread.
+     * @throws Exception If a run fails.
+     */
+    public static void main(String[] args) throws Exception {
+        ConcurrencyBenchmark benchmark = new ConcurrencyBenchmark();
+        if (args.length > 0) benchmark.setThreads(Integer.parseInt(args[0]));
+        if (args.length > 1) benchmark.setHotRecords(Integer.parseInt(args[1]));
+        if (args.length > 2) benchmark.setOperationsPerThread(Integer.parseInt(args[2]));
+        List<Result> results = new ArrayList<>();
+        for (Strategy strategy : Strategy.values()) results.add(benchmark.run(strategy));
+        System.out.printf("%d threads updating %d employees, %d operations each%n", benchmark.threads, benchmark.hotRecords, benchmark.operationsPerThread);
+        System.out.print(format(results));
+    }
+}
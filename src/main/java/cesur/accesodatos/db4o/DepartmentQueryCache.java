@@ -0,0 +1,180 @@
+package cesur.accesodatos.db4o;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the results of {@link IDAO#findEmployeesByDept(Object)}: the empnos of the employees of each department.
+ * Every department has a version counter that is bumped after each committed change of its members (an employee added to,
+ * removed from or moved into or out of it), which invalidates only that department's entry. A result is only cached if the
+ * version didn't change while it was being read, so a write that commits during the query can't leave a stale entry behind.
+ * The total number of cached empnos is bounded; the least recently used departments are evicted first.
+ * This class is thread-safe.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class DepartmentQueryCache {
+
+    /**
+     * DEFAULT_MAX_IDS -> Default bound of cached empnos (4 MB of int arrays).
+     */
+    public static final int DEFAULT_MAX_IDS = 1 << 20;
+
+    /**
+     * Cached empnos of one department, tagged with the department version they were read at.
+     * @param version Department version when the empnos were read.
+     * @param empnos Empnos of the department's employees.
+     */
+    private record Entry(long version, int[] empnos) {
+    }
+
+    /**
+     * Maximum number of cached empnos over all departments.
+     */
+    private final int maxIds;
+    /**
+     * Cached entries by depno, in access order (least recently used first).
+     */
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Version of every department that has changed at least once. Departments not present are at version 0.
+     */
+    private final IntLongHashMap versions = new IntLongHashMap();
+    /**
+     * Number of cached empnos over all departments.
+     */
+    private long cachedIds;
+    /**
+     * Metrics: lookups answered from the cache, lookups that had to query, and entries evicted because of the bound.
+     */
+    private long hits, misses, evictions;
+
+    /**
+     * Creates the cache.
+     * @param maxIds Maximum number of cached empnos over all departments.
+     */
+    public DepartmentQueryCache(int maxIds) {
+        if (maxIds <= 0) throw new IllegalArgumentException("The cache bound must be positive");
+        this.maxIds = maxIds;
+    }
+
+    /**
+     * Returns the current version of a department, to be passed to {@link #put(int, long, int[])} after querying it.
+     * @param depno Department's ID.
+     * @return Version of the department.
+     */
+    public synchronized long getVersion(int depno) {
+        return versions.get(depno);
+    }
+
+    /**
+     * Returns the cached empnos of a department, counting a hit or a miss.
+     * @param depno Department's ID.
+     * @return Empnos of the department's employees (not to be modified), or null if they aren't cached or are outdated.
+     */
+    public synchronized int[] get(int depno) {
+        Entry entry = entries.get(depno);
+        if (entry != null && entry.version() == versions.get(depno)) {
+            hits++;
+            return entry.empnos();
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Caches the empnos of a department, unless the department changed since the given version was read.
+     * @param depno Department's ID.
+     * @param version Version returned by {@link #getVersion(int)} before the query.
+     * @param empnos Empnos of the department's employees.
+     */
+    public synchronized void put(int depno, long version, int[] empnos) {
+        if (version != versions.get(depno) || empnos.length > maxIds) return;
+        remove(depno);
+        entries.put(depno, new Entry(version, empnos));
+        cachedIds += empnos.length;
+        Iterator<Map.Entry<Integer, Entry>> eldest = entries.entrySet().iterator();
+        while (cachedIds > maxIds && eldest.hasNext()) {
+            cachedIds -= eldest.next().getValue().empnos().length;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Bumps the version of a department and drops its entry. Must be called after the change is committed.
+     * @param depno Department's ID.
+     */
+    public synchronized void invalidate(int depno) {
+        versions.put(depno, versions.get(depno) + 1);
+        remove(depno);
+    }
+
+    /**
+     * Drops every entry and resets the metrics. Versions are kept, so queries running meanwhile can't cache stale results.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        cachedIds = 0;
+        hits = misses = evictions = 0;
+    }
+
+    /**
+     * @return Number of cached departments.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Number of cached empnos over all departments.
+     */
+    public synchronized long getCachedIds() {
+        return cachedIds;
+    }
+
+    /**
+     * @return Number of lookups answered from the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of lookups that had to query the database.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Number of entries evicted because of the bound.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Fraction of lookups answered from the cache, or 0 if there was no lookup.
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Drops the entry of a department, if any.
+     * @param depno Department's ID.
+     */
+    private void remove(int depno) {
+        Entry entry = entries.remove(depno);
+        if (entry != null) cachedIds -= entry.empnos().length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DepartmentQueryCache{departments=%d, ids=%d/%d, hits=%d, misses=%d, hitRatio=%.1f%%, evictions=%d}",
+                entries.size(), cachedIds, maxIds, hits, misses, getHitRatio() * 100, evictions);
+    }
+}
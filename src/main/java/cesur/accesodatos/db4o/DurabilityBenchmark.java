@@ -0,0 +1,92 @@
+package cesur.accesodatos.db4o;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the commits per second of concurrent writers adding employees, one commit each, in every {@link DurabilityMode}
+ * of {@link db4oDAO}. What each mode keeps after a power failure is checked by the crash test of the test sources
+ * ({@code DurabilityCrashTest}).
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class DurabilityBenchmark {
+
+    /**
+     * Utility class, not meant to be instantiated.
+     */
+    private DurabilityBenchmark() {
+    }
+
+    /**
+     * Measures the commit throughput of one mode on a new temporary database, deleted at the end.
+     * @param mode Durability mode.
+     * @param threads Number of concurrent writers.
+     * @param millis Duration of the measure.
+     * @return Commits per second.
+     * @throws Exception If the database can't be created or a writer is interrupted.
+     */
+    public static double commitsPerSecond(DurabilityMode mode, int threads, long millis) throws Exception {
+        Path file = Files.createTempFile("durability", ".yap");
+        Files.delete(file);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        db4oDAO dao = new db4oDAO(file.toString(), mode);
+        try {
+            AtomicInteger ids = new AtomicInteger();
+            AtomicLong commits = new AtomicLong();
+            CountDownLatch start = new CountDownLatch(1);
+            long deadline = System.nanoTime() + millis * 1_000_000 + 50_000_000;
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Thread writer = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    while (System.nanoTime() < deadline) {
+                        int id = ids.incrementAndGet();
+                        dao.addEmployee(new Employee(id, "Employee" + id, "Vendedor", 10));
+                        commits.incrementAndGet();
+                    }
+                }, "durability-writer-" + t);
+                writer.start();
+                writers.add(writer);
+            }
+            start.countDown();
+            Thread.sleep(50); // Warm-up, not measured
+            long before = commits.get();
+            long begin = System.nanoTime();
+            Thread.sleep(millis);
+            double rate = (commits.get() - before) * 1e9 / (System.nanoTime() - begin);
+            for (Thread writer : writers) writer.join();
+            return rate;
+        } finally {
+            dao.closeConnection();
+            System.setOut(console);
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     * @param args Optionally the number of writers (4 by default) and the duration of each measure in milliseconds (3000).
+     * @throws Exception If a run fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 3000;
+        System.out.printf("Commits per second, %d writers, %d ms%n", threads, millis);
+        for (DurabilityMode mode : DurabilityMode.values()) {
+            System.out.printf("  %-6s %10.0f%n", mode, commitsPerSecond(mode, threads, millis));
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * How durable a commit of {@link db4oDAO} is when the write method returns, selected when the DAO is opened.
+ * The three modes keep the same atomicity and visibility; they only differ in when the data reaches the disk, applied by
+ * {@link DurableStorage}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public enum DurabilityMode {
+    /**
+     * Every commit is synced to disk (fsync) before it returns, as db4o does by default. Nothing acknowledged is ever lost,
+     * but each commit pays at least one disk sync.
+     */
+    SYNC,
+    /**
+     * Group commit: each commit only syncs its data before writing its commit pointer; the writer then waits, without holding
+     * the write lock, for a background sync of the pointers shared by every commit made within a short time window. Nothing
+     * acknowledged is lost, and concurrent writers share the second sync.
+     */
+    GROUP,
+    /**
+     * Asynchronous flush: commits return without syncing and a background thread syncs periodically. The fastest mode, but the
+     * commits acknowledged since the last sync are lost on power failure or a crash of the operating system, and since nothing
+     * orders a commit's data before its commit pointer, a disk that reorders writes can leave the file unreadable.
+     */
+    ASYNC
+}
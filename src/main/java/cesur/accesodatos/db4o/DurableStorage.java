@@ -0,0 +1,324 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.ext.Db4oIOException;
+import com.db4o.io.Bin;
+import com.db4o.io.BinConfiguration;
+import com.db4o.io.BinDecorator;
+import com.db4o.io.Storage;
+import com.db4o.io.StorageDecorator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * db4o storage that applies a {@link DurabilityMode} by controlling when the syncs requested by db4o reach the disk.
+ * A db4o commit writes its data, syncs, writes the commit pointer to it and syncs again. In {@link DurabilityMode#SYNC} every
+ * sync is passed through. In {@link DurabilityMode#GROUP} the first sync is kept, as the barrier that keeps the pointer from
+ * reaching the disk before the data it points to, and the second one is left to a background thread that runs as soon as a
+ * writer waits in {@link #awaitDurable()} (after a window that lets other commits join the same sync). In
+ * {@link DurabilityMode#ASYNC} both syncs are skipped and the background thread syncs every {@link #ASYNC_FLUSH_MILLIS}
+ * milliseconds; without the barrier a disk that reorders writes can persist a commit pointer before its data, so a power
+ * failure may leave the file unreadable, not only without the last commits.
+ * <p>
+ * For crash tests the storage can simulate the volatile write cache of a disk: written pages are kept in memory until they
+ * are synced, so killing the process loses what a power failure would lose. The simulation loses the unsynced pages as a
+ * whole and never reorders them, so it checks that acknowledged commits survive, but a clean reopen in ASYNC mode doesn't
+ * prove that the file survives a real power failure.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class DurableStorage extends StorageDecorator {
+
+    /**
+     * DEFAULT_GROUP_WINDOW_MILLIS -> Time the group sync waits for more commits to join it. With 0 the sync starts at once and
+     * the commits made while it runs join the next one, which measured better than a fixed wait for both one and many writers.
+     */
+    public static final long DEFAULT_GROUP_WINDOW_MILLIS = 0;
+    /**
+     * ASYNC_FLUSH_MILLIS -> Interval between the background syncs of the asynchronous mode.
+     */
+    public static final long ASYNC_FLUSH_MILLIS = 1000;
+    /**
+     * PAGE_SIZE -> Size of the pages kept in memory by the power-loss simulation.
+     */
+    static final int PAGE_SIZE = 4096;
+
+    /**
+     * Durability mode applied.
+     */
+    private final DurabilityMode mode;
+    /**
+     * true to keep unsynced writes in memory, as the volatile write cache of a disk.
+     */
+    private final boolean simulatePowerLoss;
+    /**
+     * Time the group sync waits for more commits to join it, in milliseconds.
+     */
+    private final long groupWindowMillis;
+    /**
+     * Files opened through this storage.
+     */
+    private final List<DurableBin> bins = new CopyOnWriteArrayList<>();
+    /**
+     * Background thread syncing the files, null in {@link DurabilityMode#SYNC}.
+     */
+    private final Thread flusher;
+    /**
+     * Number of syncs requested by {@link #awaitDurable()}, and number of them already covered by a completed sync.
+     */
+    private long requested, synced;
+    /**
+     * Set by {@link #close()} to stop the background thread.
+     */
+    private boolean closed;
+
+    /**
+     * Creates the storage.
+     * @param storage Storage of the files, e.g. a {@link com.db4o.io.FileStorage}.
+     * @param mode Durability mode to apply.
+     * @param simulatePowerLoss true to keep unsynced writes in memory (crash tests only).
+     */
+    public DurableStorage(Storage storage, DurabilityMode mode, boolean simulatePowerLoss) {
+        this(storage, mode, simulatePowerLoss, DEFAULT_GROUP_WINDOW_MILLIS);
+    }
+
+    /**
+     * Creates the storage.
+     * @param storage Storage of the files, e.g. a {@link com.db4o.io.FileStorage}.
+     * @param mode Durability mode to apply.
+     * @param simulatePowerLoss true to keep unsynced writes in memory (crash tests only).
+     * @param groupWindowMillis Time the group sync waits for more commits to join it, in milliseconds.
+     */
+    public DurableStorage(Storage storage, DurabilityMode mode, boolean simulatePowerLoss, long groupWindowMillis) {
+        super(storage);
+        this.mode = mode;
+        this.simulatePowerLoss = simulatePowerLoss;
+        this.groupWindowMillis = groupWindowMillis;
+        if (mode == DurabilityMode.SYNC) {
+            this.flusher = null;
+        } else {
+            this.flusher = new Thread(this::flushLoop, "durability-flusher");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        }
+    }
+
+    /**
+     * Wraps every file opened by db4o.
+     * @param config Configuration of the file.
+     * @param bin File opened by the decorated storage.
+     * @return Wrapped file.
+     */
+    @Override
+    protected Bin decorate(BinConfiguration config, Bin bin) {
+        DurableBin durable = new DurableBin(bin);
+        bins.add(durable);
+        return durable;
+    }
+
+    /**
+     * @return Durability mode applied.
+     */
+    public DurabilityMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Waits until everything committed so far is on disk. Only {@link DurabilityMode#GROUP} waits: the commits of the writers
+     * waiting at the same time are synced together. It must be called after the commit and without holding the write lock,
+     * so other writers can commit meanwhile and join the sync.
+     */
+    public void awaitDurable() {
+        if (mode != DurabilityMode.GROUP) return;
+        boolean interrupted = false;
+        synchronized (this) {
+            long ticket = ++requested;
+            notifyAll();
+            while (synced < ticket && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    interrupted = true; // Keep waiting: returning early would acknowledge a commit that isn't durable yet
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Stops the background thread. The files sync on their own when db4o closes them.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Loop of the background thread: waits for a sync request (group mode) or for the next interval (async mode), syncs every
+     * open file and wakes up the writers whose commits are now durable.
+     */
+    private void flushLoop() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (mode == DurabilityMode.GROUP) {
+                        while (!closed && requested == synced) wait();
+                    } else if (!closed) {
+                        wait(ASYNC_FLUSH_MILLIS);
+                    }
+                    if (closed) return;
+                }
+                if (mode == DurabilityMode.GROUP && groupWindowMillis > 0) Thread.sleep(groupWindowMillis);
+                long target;
+                synchronized (this) {
+                    target = requested;
+                }
+                for (DurableBin bin : bins) {
+                    try {
+                        bin.flush();
+                    } catch (Db4oIOException e) {
+                        System.err.println("ERROR: Unable to sync the database file - " + e.getMessage());
+                    }
+                }
+                synchronized (this) {
+                    synced = target;
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Database file that passes the syncs through or skips them depending on the mode, and optionally keeps the unsynced pages
+     * in memory. Every method is synchronized, since the background thread syncs while db4o is using the file.
+     */
+    private class DurableBin extends BinDecorator {
+
+        /**
+         * Unsynced pages by page number, only used by the power-loss simulation.
+         */
+        private final Map<Long, byte[]> pending = new HashMap<>();
+        /**
+         * Length of the file including the unsynced pages, only used by the power-loss simulation.
+         */
+        private long length;
+
+        /**
+         * Wraps a file.
+         * @param bin File opened by the decorated storage.
+         */
+        DurableBin(Bin bin) {
+            super(bin);
+            this.length = bin.length();
+        }
+
+        @Override
+        public synchronized long length() {
+            return simulatePowerLoss ? length : _bin.length();
+        }
+
+        @Override
+        public synchronized int read(long position, byte[] bytes, int bytesToRead) {
+            if (!simulatePowerLoss || pending.isEmpty()) return _bin.read(position, bytes, bytesToRead);
+            int available = (int) Math.max(0, Math.min(bytesToRead, length - position));
+            for (int done = 0; done < available; ) {
+                long pos = position + done;
+                int offset = (int) (pos % PAGE_SIZE);
+                int count = Math.min(available - done, PAGE_SIZE - offset);
+                byte[] page = pending.get(pos / PAGE_SIZE);
+                if (page != null) System.arraycopy(page, offset, bytes, done, count);
+                else readFromFile(pos, bytes, done, count);
+                done += count;
+            }
+            return available == 0 ? -1 : available;
+        }
+
+        @Override
+        public int syncRead(long position, byte[] bytes, int bytesToRead) {
+            return read(position, bytes, bytesToRead);
+        }
+
+        @Override
+        public synchronized void write(long position, byte[] bytes, int bytesToWrite) {
+            if (!simulatePowerLoss) {
+                _bin.write(position, bytes, bytesToWrite);
+                return;
+            }
+            for (int done = 0; done < bytesToWrite; ) {
+                long pos = position + done;
+                int offset = (int) (pos % PAGE_SIZE);
+                int count = Math.min(bytesToWrite - done, PAGE_SIZE - offset);
+                byte[] page = pending.get(pos / PAGE_SIZE);
+                if (page == null) {
+                    page = new byte[PAGE_SIZE];
+                    readFromFile(pos - offset, page, 0, PAGE_SIZE);
+                    pending.put(pos / PAGE_SIZE, page);
+                }
+                System.arraycopy(bytes, done, page, offset, count);
+                done += count;
+            }
+            length = Math.max(length, position + bytesToWrite);
+        }
+
+        @Override
+        public synchronized void sync() {
+            if (mode == DurabilityMode.SYNC) flush();
+        }
+
+        /**
+         * Commit of db4o: syncs, runs the action writing the commit pointer and syncs again. The first sync is the barrier that
+         * orders the data before the pointer, so only {@link DurabilityMode#ASYNC} skips it.
+         * @param runnable Action writing the commit pointer.
+         */
+        @Override
+        public void sync(Runnable runnable) {
+            if (mode == DurabilityMode.ASYNC) sync();
+            else flush();
+            runnable.run();
+            sync();
+        }
+
+        @Override
+        public synchronized void close() {
+            flush();
+            bins.remove(this);
+            _bin.close();
+        }
+
+        /**
+         * Writes the unsynced pages (if any) to the file and syncs it.
+         */
+        synchronized void flush() {
+            if (simulatePowerLoss && !pending.isEmpty()) {
+                for (Map.Entry<Long, byte[]> e : new TreeMap<>(pending).entrySet()) {
+                    long pos = e.getKey() * PAGE_SIZE;
+                    _bin.write(pos, e.getValue(), (int) Math.min(PAGE_SIZE, length - pos));
+                }
+                pending.clear();
+            }
+            _bin.sync();
+        }
+
+        /**
+         * Reads a region of the file as synced, with zeros past its end.
+         * @param position Position in the file.
+         * @param bytes Destination array.
+         * @param offset Position in the destination array.
+         * @param count Number of bytes to read.
+         */
+        private void readFromFile(long position, byte[] bytes, int offset, int count) {
+            byte[] buffer = offset == 0 ? bytes : new byte[count];
+            int read = Math.max(0, _bin.read(position, buffer, count));
+            if (buffer != bytes) System.arraycopy(buffer, 0, bytes, offset, read);
+            Arrays.fill(bytes, offset + read, offset + count, (byte) 0);
+        }
+    }
+}
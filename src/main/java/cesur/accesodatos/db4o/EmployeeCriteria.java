@@ -0,0 +1,128 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.query.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Filter of {@link Employee}s for the bulk operations of {@link db4oDAO}, e.g. {@code new EmployeeCriteria().depno(10).position("Vendedor")}.
+ * Every condition that is set must hold (they are combined with AND); a criteria without conditions matches every employee.
+ * The conditions are translated to SODA constraints on indexed fields, so the database doesn't have to scan every employee.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class EmployeeCriteria {
+
+    /**
+     * Required department number, or null for any.
+     */
+    private Integer depno;
+    /**
+     * Required job position, or null for any.
+     */
+    private String position;
+    /**
+     * Required name, or null for any.
+     */
+    private String name;
+    /**
+     * Lowest and highest allowed empno (both inclusive), or null for no bound.
+     */
+    private Integer minEmpno, maxEmpno;
+
+    /**
+     * @param depno Required department number.
+     * @return This criteria.
+     */
+    public EmployeeCriteria depno(int depno) {
+        this.depno = depno;
+        return this;
+    }
+
+    /**
+     * @param position Required job position.
+     * @return This criteria.
+     */
+    public EmployeeCriteria position(String position) {
+        this.position = position;
+        return this;
+    }
+
+    /**
+     * @param name Required name.
+     * @return This criteria.
+     */
+    public EmployeeCriteria name(String name) {
+        this.name = name;
+        return this;
+    }
+
+    /**
+     * @param min Lowest allowed empno (inclusive).
+     * @param max Highest allowed empno (inclusive).
+     * @return This criteria.
+     */
+    public EmployeeCriteria empnoBetween(int min, int max) {
+        this.minEmpno = min;
+        this.maxEmpno = max;
+        return this;
+    }
+
+    /**
+     * Adds the conditions as constraints of a query on {@link Employee}.
+     * @param query Query already constrained to the Employee class.
+     */
+    public void constrain(Query query) {
+        if (depno != null) query.descend("depno").constrain(depno);
+        if (position != null) query.descend("position").constrain(position);
+        if (name != null) query.descend("name").constrain(name);
+        if (minEmpno != null) query.descend("empno").constrain(minEmpno).greater().equal();
+        if (maxEmpno != null) query.descend("empno").constrain(maxEmpno).smaller().equal();
+    }
+
+    /**
+     * Checks the conditions against an employee in memory.
+     * @param employee Employee to check.
+     * @return true if the employee meets every condition.
+     */
+    public boolean matches(Employee employee) {
+        return (depno == null || depno.equals(employee.getDepno()))
+                && (position == null || position.equals(employee.getPosition()))
+                && (name == null || name.equals(employee.getName()))
+                && (minEmpno == null || employee.getEmpno() >= minEmpno)
+                && (maxEmpno == null || employee.getEmpno() <= maxEmpno);
+    }
+
+    /**
+     * @return true if no condition is set, so the criteria matches every employee.
+     */
+    public boolean isEmpty() {
+        return depno == null && position == null && name == null && minEmpno == null && maxEmpno == null;
+    }
+
+    /**
+     * @return Conditions without their values, e.g. "depno = ? and position = ?", to group queries of the same shape.
+     */
+    public String getShape() {
+        List<String> conditions = new ArrayList<>();
+        if (depno != null) conditions.add("depno = ?");
+        if (position != null) conditions.add("position = ?");
+        if (name != null) conditions.add("name = ?");
+        if (minEmpno != null) conditions.add("empno >= ?");
+        if (maxEmpno != null) conditions.add("empno <= ?");
+        return isEmpty() ? "(all)" : String.join(" and ", conditions);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("EmployeeCriteria{");
+        if (depno != null) sb.append("depno=").append(depno).append(", ");
+        if (position != null) sb.append("position='").append(position).append("', ");
+        if (name != null) sb.append("name='").append(name).append("', ");
+        if (minEmpno != null) sb.append("empno>=").append(minEmpno).append(", ");
+        if (maxEmpno != null) sb.append("empno<=").append(maxEmpno).append(", ");
+        if (sb.charAt(sb.length() - 1) == ' ') sb.setLength(sb.length() - 2);
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,14 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Row of the join of an {@link Employee} with its {@link Department}, returned by
+ * {@link db4oDAO#findEmployeesWithDepartments(EmployeeCriteria)} so listings can show the department's name and location
+ * without looking it up for every employee.
+ *
+ * @param employee The employee.
+ * @param department The employee's department, the same object in every row of that department; null if the employee has no
+ *                   department or it isn't stored.
+ * @author Marc Albert Seguí Olmos
+ */
+public record EmployeeDepartment(Employee employee, Department department) {
+}
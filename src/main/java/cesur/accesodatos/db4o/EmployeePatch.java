@@ -0,0 +1,84 @@
+package cesur.accesodatos.db4o;
+
+import java.util.Objects;
+
+/**
+ * Set of attribute changes applied to every {@link Employee} matched by a bulk update of {@link db4oDAO},
+ * e.g. {@code new EmployeePatch().position("Comercial")}. Attributes that are not set keep their current value.
+ * The empno can't be patched, since it identifies the employee.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class EmployeePatch {
+
+    /**
+     * New name, or null to keep the current one.
+     */
+    private String name;
+    /**
+     * New job position, or null to keep the current one.
+     */
+    private String position;
+    /**
+     * New department number, or null to keep the current one.
+     */
+    private Integer depno;
+
+    /**
+     * @param name New name.
+     * @return This patch.
+     */
+    public EmployeePatch name(String name) {
+        this.name = name;
+        return this;
+    }
+
+    /**
+     * @param position New job position.
+     * @return This patch.
+     */
+    public EmployeePatch position(String position) {
+        this.position = position;
+        return this;
+    }
+
+    /**
+     * @param depno New department number.
+     * @return This patch.
+     */
+    public EmployeePatch depno(int depno) {
+        this.depno = depno;
+        return this;
+    }
+
+    /**
+     * Applies the changes to an employee.
+     * @param employee Employee to modify.
+     * @return true if any attribute changed, false if the employee already had the patched values.
+     */
+    public boolean applyTo(Employee employee) {
+        boolean changed = false;
+        if (name != null && !name.equals(employee.getName())) {
+            employee.setName(name);
+            changed = true;
+        }
+        if (position != null && !position.equals(employee.getPosition())) {
+            employee.setPosition(position);
+            changed = true;
+        }
+        if (depno != null && !Objects.equals(depno, employee.getDepno())) {
+            employee.setDepno(depno);
+            changed = true;
+        }
+        return changed;
+    }
+
+    @Override
+    public String toString() {
+        return "EmployeePatch{" +
+                "name=" + name +
+                ", position=" + position +
+                ", depno=" + depno +
+                '}';
+    }
+}
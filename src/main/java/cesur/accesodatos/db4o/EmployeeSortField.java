@@ -0,0 +1,40 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Indexed {@link Employee} fields the ordered queries of {@link db4oDAO} can sort by.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public enum EmployeeSortField {
+    /**
+     * Sort by employee ID.
+     */
+    EMPNO("empno"),
+    /**
+     * Sort by name, ties broken by employee ID.
+     */
+    NAME("name"),
+    /**
+     * Sort by department number, ties broken by employee ID.
+     */
+    DEPNO("depno");
+
+    /**
+     * Name of the stored field.
+     */
+    private final String field;
+
+    /**
+     * @param field Name of the stored field.
+     */
+    EmployeeSortField(String field) {
+        this.field = field;
+    }
+
+    /**
+     * @return Name of the stored field, as used in SODA queries.
+     */
+    public String getField() {
+        return field;
+    }
+}
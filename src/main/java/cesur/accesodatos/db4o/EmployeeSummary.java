@@ -0,0 +1,12 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Lightweight projection of an {@link Employee} with only its ID and name, for listing screens that don't need the rest of
+ * the attributes. Returned by {@link db4oDAO#findEmployeeSummaries(EmployeeCriteria)} without activating the stored employees.
+ *
+ * @param empno The unique identifier of the Employee.
+ * @param name The name of the Employee.
+ * @author Marc Albert Seguí Olmos
+ */
+public record EmployeeSummary(int empno, String name) {
+}
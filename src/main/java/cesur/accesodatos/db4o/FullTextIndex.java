@@ -0,0 +1,712 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.ObjectContainer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In-process inverted index for full-text search over {@link Employee} names and positions and {@link Department} names and locations.
+ * Text is split into tokens that are lowercased and stripped of accents, so "García" is found by "garcia". Each token has a
+ * posting list with the records containing it and how many times, compressed as delta-encoded varints, and results are ranked with BM25.
+ * Updates don't re-encode the compressed lists: they are kept in a small sorted map per token and merged into the compressed list
+ * once they reach an eighth of it (see {@link Posting}), and a record update only touches the tokens whose frequency changed.
+ *
+ * The index is kept up to date record by record through the put and remove methods, can be rebuilt in parallel from a database
+ * with {@link #rebuild(ObjectContainer, int)}, and is persisted in a sidecar file with {@link #save(Path, String)}.
+ * This class is thread-safe; searches run concurrently with each other.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class FullTextIndex {
+
+    /**
+     * Magic number identifying index files ("FTS1").
+     */
+    private static final int MAGIC = 0x46545331;
+    /**
+     * BM25 term frequency saturation.
+     */
+    private static final double K1 = 1.2;
+    /**
+     * BM25 document length normalization.
+     */
+    private static final double B = 0.75;
+    /**
+     * Separator of tokens: anything that is not a letter or a digit.
+     */
+    private static final Pattern SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    /**
+     * Combining marks left by decomposing accented letters.
+     */
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    /**
+     * Minimum number of pending changes of a posting list before they are merged into its compressed entries.
+     */
+    private static final int MIN_PENDING_CHANGES = 32;
+
+    /**
+     * Indexed record: its length in tokens and the frequency of its distinct tokens, needed to update and remove it from the
+     * posting lists.
+     * @param length Number of tokens.
+     * @param terms Distinct tokens.
+     * @param frequencies Frequency of every distinct token, in the same order.
+     */
+    private record Document(int length, String[] terms, int[] frequencies) {
+
+        /**
+         * @param length Number of tokens.
+         * @param frequencies Frequency of every distinct token.
+         * @return New document.
+         */
+        private static Document of(int length, Map<String, Integer> frequencies) {
+            String[] terms = new String[frequencies.size()];
+            int[] counts = new int[terms.length];
+            int i = 0;
+            for (Map.Entry<String, Integer> f : frequencies.entrySet()) {
+                terms[i] = f.getKey();
+                counts[i++] = f.getValue();
+            }
+            return new Document(length, terms, counts);
+        }
+
+        /**
+         * @return Frequency of every distinct token.
+         */
+        private Map<String, Integer> frequencyMap() {
+            Map<String, Integer> map = new HashMap<>();
+            for (int i = 0; i < terms.length; i++) map.put(terms[i], frequencies[i]);
+            return map;
+        }
+    }
+
+    /**
+     * Posting list of every token.
+     */
+    private final Map<String, Posting> postings = new HashMap<>();
+    /**
+     * Indexed records by document key (see {@link #key(SearchHit.Type, int)}).
+     */
+    private final Map<Long, Document> documents = new HashMap<>();
+    /**
+     * Sum of the lengths of every indexed record.
+     */
+    private long totalLength;
+    /**
+     * Lock protecting the index: searches share it, updates are exclusive.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Indexes an employee's name and position, replacing its previous version if it was indexed.
+     * @param employee Employee to index.
+     */
+    public void putEmployee(Employee employee) {
+        put(key(SearchHit.Type.EMPLOYEE, employee.getEmpno()), tokenize(employee.getName(), employee.getPosition()));
+    }
+
+    /**
+     * Indexes a department's name and location, replacing its previous version if it was indexed.
+     * @param department Department to index.
+     */
+    public void putDepartment(Department department) {
+        put(key(SearchHit.Type.DEPARTMENT, department.getDepno()), tokenize(department.getName(), department.getLocation()));
+    }
+
+    /**
+     * Removes an employee from the index.
+     * @param empno Employee's ID.
+     */
+    public void removeEmployee(int empno) {
+        lock.writeLock().lock();
+        try {
+            remove(key(SearchHit.Type.EMPLOYEE, empno));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a department from the index.
+     * @param depno Department's ID.
+     */
+    public void removeDepartment(int depno) {
+        lock.writeLock().lock();
+        try {
+            remove(key(SearchHit.Type.DEPARTMENT, depno));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Searches the records containing any of the query's tokens, ranked by BM25 relevance.
+     * @param query Free text, e.g. "vendedor madrid".
+     * @param limit Maximum number of hits.
+     * @return Hits from most to least relevant. The list is empty if nothing matches.
+     */
+    public List<SearchHit> search(String query, int limit) {
+        Set<String> terms = new LinkedHashSet<>(tokenize(query));
+        Map<Long, Double> scores = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            int n = documents.size();
+            double averageLength = n == 0 ? 0 : (double) totalLength / n;
+            for (String term : terms) {
+                Posting list = postings.get(term);
+                if (list == null) continue;
+                double idf = Math.log(1 + (n - list.count + 0.5) / (list.count + 0.5));
+                Posting.Cursor reader = list.cursor();
+                while (reader.next()) {
+                    double tf = reader.frequency;
+                    double norm = K1 * (1 - B + B * documents.get(reader.key).length() / averageLength);
+                    scores.merge(reader.key, idf * tf * (K1 + 1) / (tf + norm), Double::sum);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Comparator<Map.Entry<Long, Double>> byRelevance = Map.Entry.<Long, Double>comparingByValue()
+                .thenComparing(Map.Entry.<Long, Double>comparingByKey().reversed());
+        PriorityQueue<Map.Entry<Long, Double>> top = new PriorityQueue<>(byRelevance);
+        for (Map.Entry<Long, Double> score : scores.entrySet()) {
+            top.add(score);
+            if (top.size() > limit) top.poll();
+        }
+        List<SearchHit> hits = new ArrayList<>();
+        while (!top.isEmpty()) {
+            Map.Entry<Long, Double> e = top.poll();
+            long key = e.getKey();
+            hits.add(new SearchHit(SearchHit.Type.values()[(int) (key >>> 32)], (int) key, e.getValue()));
+        }
+        Collections.reverse(hits);
+        return hits;
+    }
+
+    /**
+     * @return Number of indexed records.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of distinct tokens.
+     */
+    public int getTermCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Builds a new index with every employee and department of a database.
+     * The records are loaded and tokenized in parallel, and the posting lists are then written in document key order,
+     * so they are compressed in a single pass. The caller must keep the database from being modified meanwhile.
+     * @param db Container to index.
+     * @param guard Lock held from loading each record until it is activated, so the container doesn't purge it meanwhile
+     *              (see {@link ReferenceManager#readGuard()}).
+     * @param threads Number of loading threads.
+     * @return The new index.
+     * @throws Exception If a record can't be loaded.
+     */
+    public static FullTextIndex rebuild(ObjectContainer db, Lock guard, int threads) throws Exception {
+        long[] employees = db.query(Employee.class).ext().getIDs();
+        long[] departments = db.query(Department.class).ext().getIDs();
+        long[] ids = Arrays.copyOf(employees, employees.length + departments.length);
+        System.arraycopy(departments, 0, ids, employees.length, departments.length);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "fts-rebuild");
+            t.setDaemon(true);
+            return t;
+        });
+        long[] keys = new long[ids.length];
+        List<String>[] tokens = newTokenArray(ids.length);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            int slice = Math.max(1, (ids.length + threads - 1) / threads);
+            for (int from = 0; from < ids.length; from += slice) {
+                int start = from, end = Math.min(ids.length, from + slice);
+                futures.add(pool.submit(() -> {
+                    for (int i = start; i < end; i++) {
+                        Object record;
+                        guard.lock();
+                        try {
+                            record = db.ext().getByID(ids[i]);
+                            db.activate(record, 1);
+                        } finally {
+                            guard.unlock();
+                        }
+                        if (record instanceof Employee e) {
+                            keys[i] = key(SearchHit.Type.EMPLOYEE, e.getEmpno());
+                            tokens[i] = tokenize(e.getName(), e.getPosition());
+                        } else if (record instanceof Department d) {
+                            keys[i] = key(SearchHit.Type.DEPARTMENT, d.getDepno());
+                            tokens[i] = tokenize(d.getName(), d.getLocation());
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Integer[] order = new Integer[ids.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong(i -> keys[i]));
+        FullTextIndex index = new FullTextIndex();
+        Map<String, PostingWriter> writers = new HashMap<>();
+        long previous = -1;
+        for (int i : order) {
+            if (tokens[i] == null || keys[i] == previous) continue; // Not an indexed record, or a duplicated ID
+            previous = keys[i];
+            Map<String, Integer> frequencies = frequencies(tokens[i]);
+            for (Map.Entry<String, Integer> f : frequencies.entrySet()) {
+                writers.computeIfAbsent(f.getKey(), t -> new PostingWriter()).add(keys[i], f.getValue());
+            }
+            index.documents.put(keys[i], Document.of(tokens[i].size(), frequencies));
+            index.totalLength += tokens[i].size();
+        }
+        for (Map.Entry<String, PostingWriter> w : writers.entrySet()) index.postings.put(w.getKey(), new Posting(w.getValue().toBytes()));
+        return index;
+    }
+
+    /**
+     * Writes the index to a sidecar file, replacing it atomically.
+     * @param file Path of the sidecar file.
+     * @param stamp Identification of the database state the index corresponds to, checked by {@link #load(Path, String)}.
+     * @throws IOException If the file can't be written.
+     */
+    public void save(Path file, String stamp) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        lock.readLock().lock();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(stamp);
+            out.writeInt(documents.size());
+            for (Map.Entry<Long, Document> d : documents.entrySet()) {
+                out.writeLong(d.getKey());
+                out.writeInt(d.getValue().length());
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Posting> p : postings.entrySet()) {
+                byte[] list = p.getValue().merged();
+                out.writeUTF(p.getKey());
+                out.writeInt(list.length);
+                out.write(list);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads an index from its sidecar file.
+     * @param file Path of the sidecar file.
+     * @param stamp Expected database state; an index saved for another state is outdated and not loaded.
+     * @return The index, or null if the file doesn't exist, is outdated or is corrupted.
+     */
+    public static FullTextIndex load(Path file, String stamp) {
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(stamp)) return null;
+            FullTextIndex index = new FullTextIndex();
+            Map<Long, Integer> lengths = new HashMap<>();
+            Map<Long, Map<String, Integer>> frequencies = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                long key = in.readLong();
+                int length = in.readInt();
+                lengths.put(key, length);
+                index.totalLength += length;
+                frequencies.put(key, new HashMap<>());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String term = in.readUTF();
+                byte[] list = new byte[in.readInt()];
+                in.readFully(list);
+                index.postings.put(term, new Posting(list));
+                PostingReader reader = new PostingReader(list);
+                while (reader.next()) frequencies.get(reader.key).put(term, reader.frequency); // Rebuild the forward index from the postings
+            }
+            for (Map.Entry<Long, Map<String, Integer>> f : frequencies.entrySet()) {
+                index.documents.put(f.getKey(), Document.of(lengths.get(f.getKey()), f.getValue()));
+            }
+            return index;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("ERROR: The search index file " + file + " can't be read - " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Splits text into lowercase tokens without accents.
+     * @param texts Texts to split. Null texts are skipped.
+     * @return Tokens in order of appearance, repetitions included.
+     */
+    public static List<String> tokenize(String... texts) {
+        List<String> tokens = new ArrayList<>();
+        for (String text : texts) {
+            if (text == null) continue;
+            String plain = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+            for (String token : SEPARATOR.split(plain)) {
+                if (!token.isEmpty()) tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Replaces a record in the index. Only the posting lists of the tokens that were added, removed or changed frequency
+     * are touched.
+     * @param key Document key of the record.
+     * @param tokens Tokens of the record.
+     */
+    private void put(long key, List<String> tokens) {
+        Map<String, Integer> frequencies = frequencies(tokens);
+        lock.writeLock().lock();
+        try {
+            Document old = documents.put(key, Document.of(tokens.size(), frequencies));
+            Map<String, Integer> before = old == null ? Map.of() : old.frequencyMap();
+            if (old != null) totalLength -= old.length();
+            totalLength += tokens.size();
+            for (Map.Entry<String, Integer> f : before.entrySet()) {
+                if (!frequencies.containsKey(f.getKey())) setPosting(f.getKey(), key, 0, true);
+            }
+            for (Map.Entry<String, Integer> f : frequencies.entrySet()) {
+                Integer previous = before.get(f.getKey());
+                if (!f.getValue().equals(previous)) setPosting(f.getKey(), key, f.getValue(), previous != null);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a record from the index. The caller holds the write lock.
+     * @param key Document key of the record.
+     */
+    private void remove(long key) {
+        Document old = documents.remove(key);
+        if (old == null) return;
+        totalLength -= old.length();
+        for (String term : old.terms()) setPosting(term, key, 0, true);
+    }
+
+    /**
+     * Inserts, replaces or removes one entry of a token's posting list, dropping the list when it becomes empty.
+     * The caller holds the write lock.
+     * @param term Token.
+     * @param key Document key of the entry.
+     * @param frequency Token frequency, or 0 to remove the entry.
+     * @param present true if the list has an entry for the key.
+     */
+    private void setPosting(String term, long key, int frequency, boolean present) {
+        Posting list = postings.computeIfAbsent(term, t -> new Posting(null));
+        list.set(key, frequency, present);
+        if (list.count == 0) postings.remove(term);
+    }
+
+    /**
+     * Counts the occurrences of every token.
+     * @param tokens Tokens of a record.
+     * @return Frequency of every distinct token.
+     */
+    private static Map<String, Integer> frequencies(List<String> tokens) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String token : tokens) frequencies.merge(token, 1, Integer::sum);
+        return frequencies;
+    }
+
+    /**
+     * Builds the document key of a record: its type in the high 32 bits and its ID in the low 32 bits.
+     * @param type Kind of record.
+     * @param id empno or depno.
+     * @return Non-negative document key.
+     */
+    private static long key(SearchHit.Type type, int id) {
+        return ((long) type.ordinal() << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param length Array length.
+     * @return New array of token lists.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<String>[] newTokenArray(int length) {
+        return new List[length];
+    }
+
+    /**
+     * Posting list of one token: a compressed list plus the entries changed since it was compressed, sorted by document key,
+     * with frequency 0 for removed entries. Readers merge both. The changes are merged into the compressed list when they reach
+     * {@link #MIN_PENDING_CHANGES} or an eighth of it, so an update costs a map insertion and, amortized, re-encoding a few
+     * entries instead of the whole list.
+     */
+    private static final class Posting {
+        /**
+         * Compressed entries, or null if there are none.
+         */
+        private byte[] compressed;
+        /**
+         * Number of compressed entries.
+         */
+        private int compressedCount;
+        /**
+         * Entries changed since the list was compressed.
+         */
+        private final TreeMap<Long, Integer> changes = new TreeMap<>();
+        /**
+         * Number of entries of the list, changes included.
+         */
+        private int count;
+
+        /**
+         * @param compressed Compressed list, or null for an empty list.
+         */
+        private Posting(byte[] compressed) {
+            this.compressed = compressed;
+            this.compressedCount = compressed == null ? 0 : new PostingReader(compressed).count;
+            this.count = compressedCount;
+        }
+
+        /**
+         * Inserts, replaces or removes an entry.
+         * @param key Document key of the entry.
+         * @param frequency Token frequency, or 0 to remove the entry.
+         * @param present true if the list has an entry for the key.
+         */
+        private void set(long key, int frequency, boolean present) {
+            changes.put(key, frequency);
+            if (present && frequency == 0) count--;
+            else if (!present && frequency != 0) count++;
+            if (changes.size() >= Math.max(MIN_PENDING_CHANGES, compressedCount / 8)) {
+                compressed = count == 0 ? null : merged();
+                compressedCount = count;
+                changes.clear();
+            }
+        }
+
+        /**
+         * @return The whole list compressed, changes included.
+         */
+        private byte[] merged() {
+            PostingWriter writer = new PostingWriter();
+            Cursor cursor = cursor();
+            while (cursor.next()) writer.add(cursor.key, cursor.frequency);
+            return writer.toBytes();
+        }
+
+        /**
+         * @return New cursor over the entries of the list, in document key order.
+         */
+        private Cursor cursor() {
+            return new Cursor();
+        }
+
+        /**
+         * Sequential reader of the list, merging the compressed entries with the changes.
+         */
+        private final class Cursor {
+            /**
+             * Reader of the compressed entries, or null if there are none.
+             */
+            private final PostingReader reader = compressed == null ? null : new PostingReader(compressed);
+            /**
+             * Remaining changes.
+             */
+            private final Iterator<Map.Entry<Long, Integer>> pending = changes.entrySet().iterator();
+            /**
+             * Current compressed entry is valid.
+             */
+            private boolean readerValid;
+            /**
+             * Current change, or null if there are no more.
+             */
+            private Map.Entry<Long, Integer> change;
+            /**
+             * Document key and token frequency of the current entry.
+             */
+            private long key;
+            private int frequency;
+
+            /**
+             * Positions the cursor before the first entry.
+             */
+            private Cursor() {
+                readerValid = reader != null && reader.next();
+                change = pending.hasNext() ? pending.next() : null;
+            }
+
+            /**
+             * Moves to the next entry.
+             * @return false if there are no more entries.
+             */
+            private boolean next() {
+                while (readerValid || change != null) {
+                    if (change == null || (readerValid && reader.key < change.getKey())) {
+                        key = reader.key;
+                        frequency = reader.frequency;
+                        readerValid = reader.next();
+                        return true;
+                    }
+                    long changedKey = change.getKey();
+                    int changedFrequency = change.getValue();
+                    if (readerValid && reader.key == changedKey) readerValid = reader.next(); // Replaced by the change
+                    change = pending.hasNext() ? pending.next() : null;
+                    if (changedFrequency != 0) {
+                        key = changedKey;
+                        frequency = changedFrequency;
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Sequential decoder of a compressed posting list: the number of entries, then for every entry the difference with the
+     * previous document key and the token frequency, all as unsigned varints.
+     */
+    private static final class PostingReader {
+        /**
+         * Compressed list.
+         */
+        private final byte[] bytes;
+        /**
+         * Number of entries of the list.
+         */
+        private final int count;
+        /**
+         * Read position and number of entries read.
+         */
+        private int position, read;
+        /**
+         * Document key and token frequency of the current entry.
+         */
+        private long key;
+        private int frequency;
+
+        /**
+         * @param bytes Compressed list.
+         */
+        private PostingReader(byte[] bytes) {
+            this.bytes = bytes;
+            this.count = (int) readVarint();
+        }
+
+        /**
+         * Moves to the next entry.
+         * @return false if there are no more entries.
+         */
+        private boolean next() {
+            if (read == count) return false;
+            key += readVarint();
+            frequency = (int) readVarint();
+            read++;
+            return true;
+        }
+
+        /**
+         * @return Next unsigned varint of the list.
+         */
+        private long readVarint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+    }
+
+    /**
+     * Encoder of compressed posting lists. Entries must be added in ascending document key order.
+     */
+    private static final class PostingWriter {
+        /**
+         * Encoded entries, without the count.
+         */
+        private byte[] bytes = new byte[16];
+        /**
+         * Used bytes, number of entries and last added document key.
+         */
+        private int length, count;
+        private long last;
+
+        /**
+         * Appends an entry.
+         * @param key Document key, greater than the previous one.
+         * @param frequency Token frequency.
+         */
+        private void add(long key, int frequency) {
+            writeVarint(key - last);
+            writeVarint(frequency);
+            last = key;
+            count++;
+        }
+
+        /**
+         * @return The compressed list, count included.
+         */
+        private byte[] toBytes() {
+            PostingWriter header = new PostingWriter();
+            header.writeVarint(count);
+            byte[] result = Arrays.copyOf(header.bytes, header.length + length);
+            System.arraycopy(bytes, 0, result, header.length, length);
+            return result;
+        }
+
+        /**
+         * Appends an unsigned varint.
+         * @param value Non-negative value.
+         */
+        private void writeVarint(long value) {
+            if (length + 10 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+    }
+}
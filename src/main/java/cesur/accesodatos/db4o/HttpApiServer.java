@@ -0,0 +1,549 @@
+package cesur.accesodatos.db4o;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Embedded HTTP/JSON server exposing the {@link IDAO} operations of a {@link db4oDAO}, so several clients can share the process
+ * holding the db4o container. Built on the JDK's {@link HttpServer}; each request runs on its own virtual thread, so slow
+ * clients don't hold platform threads, and connections are kept alive between requests. Routes:
+ * <pre>
+ * GET    /employees[?after=empno&amp;limit=n]     every employee streamed as a JSON array, or one page {"items":[...],"next":empno|null}
+ * POST   /employees                           add {"empno":..,"name":..,"position":..,"depno":..}: 201, or 409 if it exists
+ * GET    /employees/{empno}                   one employee, with its version as ETag
+ * PUT    /employees/{empno}                   replace {"name":..,"position":..,"depno":..}; with If-Match, 412 if the version changed
+ * DELETE /employees/{empno}                   delete, returns the deleted employee
+ * GET    /departments[?after=depno&amp;limit=n]   same as employees
+ * POST   /departments                         add {"depno":..,"name":..,"location":..}
+ * GET|PUT|DELETE /departments/{depno}
+ * GET    /departments/{depno}/employees[?after=empno&amp;limit=n]
+ * POST   /batch                               run a {@link BatchCommandRunner} script (text body), results streamed as JSON lines
+ * </pre>
+ * Errors are returned as {"error":"message"} with status 400 (bad request), 404, 405, 409, 412 or 500.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class HttpApiServer {
+
+    /**
+     * DEFAULT_PORT -> Port used when none is given.
+     */
+    public static final int DEFAULT_PORT = 8080;
+    /**
+     * MAX_PAGE_SIZE -> Maximum "limit" of a paged listing.
+     */
+    public static final int MAX_PAGE_SIZE = 1000;
+    /**
+     * STREAM_PAGE_SIZE -> Rows read at once while streaming a full listing.
+     */
+    static final int STREAM_PAGE_SIZE = 500;
+    /**
+     * JSON_TYPE -> Content type of the JSON responses.
+     */
+    private static final String JSON_TYPE = "application/json; charset=utf-8";
+
+    static {
+        // The JDK server writes the headers and the body of a response separately; with Nagle's algorithm the body waits for the
+        // delayed ACK of the client (~40 ms) on kept-alive connections. Read once, when the first server is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /**
+     * Handler of the requests under one context.
+     */
+    @FunctionalInterface
+    private interface Route {
+        /**
+         * @param exchange Request and response.
+         * @param path Segments of the path after the context, e.g. ["7"] for /employees/7.
+         * @throws IOException If the request can't be read or the response written.
+         */
+        void handle(HttpExchange exchange, String[] path) throws IOException;
+    }
+
+    /**
+     * Keyset paged source of a listing.
+     * @param <T> Type of the rows.
+     */
+    @FunctionalInterface
+    private interface Pages<T> {
+        /**
+         * @param after ID of the last row of the previous page, or null for the first page.
+         * @param limit Maximum number of rows.
+         * @return The next rows in ID order.
+         */
+        List<T> fetch(Integer after, int limit);
+    }
+
+    /**
+     * Error answered to the client with the given status.
+     */
+    private static final class HttpError extends RuntimeException {
+
+        /**
+         * Version of the serialized form.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * HTTP status of the response.
+         */
+        private final int status;
+
+        /**
+         * @param status HTTP status of the response.
+         * @param message Error message returned to the client.
+         */
+        private HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * DAO the requests run against.
+     */
+    private final db4oDAO dao;
+    /**
+     * Underlying JDK server.
+     */
+    private final HttpServer server;
+    /**
+     * Executor running the requests.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Creates a server listening on the loopback interface, running each request on a new virtual thread.
+     * @param dao DAO the requests run against. It is not closed by the server.
+     * @param port Port to listen on, 0 for any free port.
+     * @throws IOException If the port can't be bound.
+     */
+    public HttpApiServer(db4oDAO dao, int port) throws IOException {
+        this(dao, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * Creates a server.
+     * @param dao DAO the requests run against. It is not closed by the server.
+     * @param address Address to listen on.
+     * @param executor Executor running the requests, shut down by {@link #stop(int)}.
+     * @throws IOException If the address can't be bound.
+     */
+    public HttpApiServer(db4oDAO dao, InetSocketAddress address, ExecutorService executor) throws IOException {
+        this.dao = dao;
+        this.executor = executor;
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/employees", exchange -> handle(exchange, this::employees));
+        server.createContext("/departments", exchange -> handle(exchange, this::departments));
+        server.createContext("/batch", exchange -> handle(exchange, this::batch));
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops the server.
+     * @param delaySeconds Maximum time to wait for the requests in progress.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    /**
+     * @return Port the server listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Runs a route and turns its errors into JSON responses. The exchange is always closed, so the connection can be reused.
+     * @param exchange Request and response.
+     * @param route Route handling the request.
+     */
+    private void handle(HttpExchange exchange, Route route) {
+        try {
+            route.handle(exchange, segments(exchange));
+        } catch (HttpError e) {
+            sendError(exchange, e.status, e.getMessage());
+        } catch (VersionConflictException e) {
+            sendError(exchange, 412, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (Exception e) {
+            System.err.println("ERROR: Unable to handle " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + " - " + e.getMessage());
+            sendError(exchange, 500, "Internal error");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Routes of /employees.
+     * @param exchange Request and response.
+     * @param path Segments of the path after /employees.
+     * @throws IOException If the request can't be read or the response written.
+     */
+    private void employees(HttpExchange exchange, String[] path) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (path.length == 0) {
+            switch (method) {
+                case "GET" -> list(exchange, dao::findEmployeesAfter, Employee::getEmpno);
+                case "POST" -> {
+                    Map<String, Object> body = bodyObject(exchange);
+                    Employee employee = new Employee(intField(body, "empno"), stringField(body, "name"), stringField(body, "position"),
+                            intField(body, "depno"));
+                    create(exchange, () -> dao.hasEmployee(employee.getEmpno()), () -> dao.addEmployee(employee),
+                            "/employees/" + employee.getEmpno(), employee);
+                }
+                default -> throw new HttpError(405, "Method not allowed");
+            }
+            return;
+        }
+        if (path.length != 1) throw new HttpError(404, "Not found");
+        int empno = intSegment(path[0]);
+        switch (method) {
+            case "GET" -> {
+                Versioned<Employee> found = dao.findEmployeeVersioned(empno);
+                if (found == null) throw new HttpError(404, "Employee " + empno + " not found");
+                exchange.getResponseHeaders().set("ETag", "\"" + found.version() + "\"");
+                send(exchange, 200, Json.value(found.value()));
+            }
+            case "PUT" -> {
+                Map<String, Object> body = bodyObject(exchange);
+                Employee employee = new Employee(empno, stringField(body, "name"), stringField(body, "position"), intField(body, "depno"));
+                String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+                Employee updated = ifMatch == null ? dao.updateEmployee(employee) : dao.updateEmployee(employee, version(ifMatch));
+                if (updated == null) throw new HttpError(404, "Employee " + empno + " not found or not updated");
+                Versioned<Employee> current = dao.findEmployeeVersioned(empno);
+                if (current != null) exchange.getResponseHeaders().set("ETag", "\"" + current.version() + "\"");
+                send(exchange, 200, Json.value(updated));
+            }
+            case "DELETE" -> {
+                Employee deleted = dao.deleteEmployee(empno);
+                if (deleted == null) throw new HttpError(404, "Employee " + empno + " not found");
+                send(exchange, 200, Json.value(deleted));
+            }
+            default -> throw new HttpError(405, "Method not allowed");
+        }
+    }
+
+    /**
+     * Routes of /departments.
+     * @param exchange Request and response.
+     * @param path Segments of the path after /departments.
+     * @throws IOException If the request can't be read or the response written.
+     */
+    private void departments(HttpExchange exchange, String[] path) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (path.length == 0) {
+            switch (method) {
+                case "GET" -> list(exchange, dao::findDepartmentsAfter, Department::getDepno);
+                case "POST" -> {
+                    Map<String, Object> body = bodyObject(exchange);
+                    Department department = new Department(intField(body, "depno"), stringField(body, "name"), stringField(body, "location"));
+                    create(exchange, () -> dao.hasDepartment(department.getDepno()), () -> dao.addDepartment(department),
+                            "/departments/" + department.getDepno(), department);
+                }
+                default -> throw new HttpError(405, "Method not allowed");
+            }
+            return;
+        }
+        int depno = intSegment(path[0]);
+        if (path.length == 2 && path[1].equals("employees")) {
+            if (!method.equals("GET")) throw new HttpError(405, "Method not allowed");
+            list(exchange, (after, limit) -> dao.findEmployeesByDeptAfter(depno, after, limit), Employee::getEmpno);
+            return;
+        }
+        if (path.length != 1) throw new HttpError(404, "Not found");
+        switch (method) {
+            case "GET" -> {
+                Department found = dao.findDepartmentById(depno);
+                if (found == null) throw new HttpError(404, "Department " + depno + " not found");
+                send(exchange, 200, Json.value(found));
+            }
+            case "PUT" -> {
+                Map<String, Object> body = bodyObject(exchange);
+                Department updated = dao.updateDepartment(new Department(depno, stringField(body, "name"), stringField(body, "location")));
+                if (updated == null) throw new HttpError(404, "Department " + depno + " not found or not updated");
+                send(exchange, 200, Json.value(updated));
+            }
+            case "DELETE" -> {
+                Department deleted = dao.deleteDepartment(depno);
+                if (deleted == null) throw new HttpError(404, "Department " + depno + " not found");
+                send(exchange, 200, Json.value(deleted));
+            }
+            default -> throw new HttpError(405, "Method not allowed");
+        }
+    }
+
+    /**
+     * POST /batch: runs the request body as a {@link BatchCommandRunner} script and streams its JSON lines. A transaction left
+     * open by a failed script is rolled back, so the thread of the exchange never keeps the write lock of the DAO.
+     * @param exchange Request and response.
+     * @param path Segments of the path after /batch, must be empty.
+     * @throws IOException If the request can't be read or the response written.
+     */
+    private void batch(HttpExchange exchange, String[] path) throws IOException {
+        if (path.length != 0) throw new HttpError(404, "Not found");
+        if (!exchange.getRequestMethod().equals("POST")) throw new HttpError(405, "Method not allowed");
+        String script = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0); // Chunked: the results are written as the commands run
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)));
+        try {
+            new BatchCommandRunner(dao, out).run(new BufferedReader(new StringReader(script)));
+        } finally {
+            if (dao.isInTransaction()) dao.rollback();
+            out.flush();
+        }
+    }
+
+    /**
+     * Answers a listing: one page if the request has a "limit" parameter, otherwise every row streamed as a JSON array, reading
+     * {@link #STREAM_PAGE_SIZE} rows at a time so the whole listing is never held in memory.
+     * @param exchange Request and response.
+     * @param pages Source of the rows.
+     * @param id Function returning the ID of a row, used as "after" of the next page.
+     * @param <T> Type of the rows.
+     * @throws IOException If the response can't be written.
+     */
+    private <T> void list(HttpExchange exchange, Pages<T> pages, Function<T, Integer> id) throws IOException {
+        Map<String, String> query = query(exchange);
+        Integer after = query.containsKey("after") ? intParameter(query, "after") : null;
+        if (query.containsKey("limit")) {
+            int limit = intParameter(query, "limit");
+            if (limit < 1 || limit > MAX_PAGE_SIZE) throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+            List<T> rows = pages.fetch(after, limit + 1); // One more row tells if there is a next page
+            List<T> page = rows.subList(0, Math.min(limit, rows.size()));
+            Integer next = rows.size() > limit ? id.apply(page.get(limit - 1)) : null;
+            send(exchange, 200, Json.object("items", page, "next", next));
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+            out.write('[');
+            boolean first = true;
+            while (true) {
+                List<T> rows = pages.fetch(after, STREAM_PAGE_SIZE);
+                for (T row : rows) {
+                    if (!first) out.write(',');
+                    out.write(Json.value(row));
+                    first = false;
+                }
+                if (rows.size() < STREAM_PAGE_SIZE) break;
+                after = id.apply(rows.get(rows.size() - 1));
+                out.flush();
+            }
+            out.write(']');
+        }
+    }
+
+    /**
+     * Adds a record unless one with the same ID exists, atomically: the check and the add run in one transaction, so two
+     * concurrent requests can't add the same ID. Answers 201 with the record, 409 if it existed or 500 if the add failed.
+     * @param exchange Request and response.
+     * @param exists Check of an existing record with the same ID.
+     * @param add Add of the record.
+     * @param location Path of the new record.
+     * @param record Record added.
+     * @throws IOException If the response can't be written.
+     */
+    private void create(HttpExchange exchange, BooleanSupplier exists, Runnable add, String location, Object record) throws IOException {
+        boolean existed;
+        dao.begin();
+        try {
+            existed = exists.getAsBoolean();
+            if (!existed) add.run();
+        } catch (RuntimeException e) {
+            dao.rollback();
+            throw e;
+        }
+        boolean committed = dao.commit();
+        if (existed) throw new HttpError(409, location + " already exists");
+        if (!committed || !exists.getAsBoolean()) throw new HttpError(500, "Unable to add " + location);
+        exchange.getResponseHeaders().set("Location", location);
+        send(exchange, 201, Json.value(record));
+    }
+
+    /**
+     * Sends a JSON response with a known length, so the connection can be kept alive.
+     * @param exchange Request and response.
+     * @param status HTTP status.
+     * @param json Body.
+     * @throws IOException If the response can't be written.
+     */
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Sends an error response, unless the headers were already sent (e.g. a listing failed while streaming).
+     * @param exchange Request and response.
+     * @param status HTTP status.
+     * @param message Error message.
+     */
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        if (exchange.getResponseCode() != -1) return;
+        try {
+            send(exchange, status, Json.object("error", message));
+        } catch (IOException e) {
+            System.err.println("ERROR: Unable to send the response - " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param exchange Request.
+     * @return Segments of the path after the context, without empty ones.
+     */
+    private static String[] segments(HttpExchange exchange) {
+        String rest = exchange.getRequestURI().getPath().substring(exchange.getHttpContext().getPath().length());
+        if (!rest.isEmpty() && !rest.startsWith("/")) throw new HttpError(404, "Not found"); // e.g. /employeesX
+        String trimmed = rest.replaceAll("^/+|/+$", "");
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("/+");
+    }
+
+    /**
+     * @param exchange Request.
+     * @return Parameters of the query string.
+     */
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null || raw.isEmpty()) return parameters;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            parameters.put(key, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    /**
+     * @param exchange Request.
+     * @return Body parsed as a JSON object.
+     * @throws IOException If the body can't be read.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> bodyObject(HttpExchange exchange) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        if (!(Json.parse(body) instanceof Map<?, ?> map)) throw new IllegalArgumentException("The body must be a JSON object");
+        return (Map<String, Object>) map;
+    }
+
+    /**
+     * @param body Parsed body.
+     * @param key Name of the field.
+     * @return Value of an Integer field.
+     */
+    private static int intField(Map<String, Object> body, String key) {
+        if (!(body.get(key) instanceof Long value) || value != value.intValue()) {
+            throw new IllegalArgumentException("'" + key + "' must be an Integer value");
+        }
+        return value.intValue();
+    }
+
+    /**
+     * @param body Parsed body.
+     * @param key Name of the field.
+     * @return Value of a non-empty String field.
+     */
+    private static String stringField(Map<String, Object> body, String key) {
+        if (!(body.get(key) instanceof String value) || value.isBlank()) {
+            throw new IllegalArgumentException("'" + key + "' must be a non-empty string");
+        }
+        return value;
+    }
+
+    /**
+     * @param segment Segment of the path holding an ID.
+     * @return The ID.
+     */
+    private static int intSegment(String segment) {
+        try {
+            return Integer.parseInt(segment);
+        } catch (NumberFormatException nfe) {
+            throw new HttpError(404, "Not found");
+        }
+    }
+
+    /**
+     * @param query Parameters of the query string.
+     * @param key Name of the parameter.
+     * @return Value of an Integer parameter.
+     */
+    private static int intParameter(Map<String, String> query, String key) {
+        try {
+            return Integer.parseInt(query.get(key));
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("'" + key + "' must be an Integer value");
+        }
+    }
+
+    /**
+     * @param etag Value of an If-Match header, e.g. "123" with its quotes.
+     * @return Version it holds.
+     */
+    private static long version(String etag) {
+        try {
+            return Long.parseLong(etag.replace("W/", "").replace("\"", "").trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Invalid If-Match header");
+        }
+    }
+
+    /**
+     * Runs the server until the process is stopped. The console messages of the DAO are discarded; errors still go to the
+     * standard error.
+     * @param args Optional: port (default {@value #DEFAULT_PORT}) and database file (default "empresa.yap").
+     * @throws IOException If the port can't be bound.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String dbPath = args.length > 1 ? args[1] : db4oDAO.path;
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        db4oDAO dao = new db4oDAO(dbPath);
+        HttpApiServer server = new HttpApiServer(dao, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            dao.closeConnection();
+        }, "http-api-shutdown"));
+        server.start();
+        console.println("Listening on http://127.0.0.1:" + server.getPort() + "/ (Ctrl+C to stop)");
+    }
+}
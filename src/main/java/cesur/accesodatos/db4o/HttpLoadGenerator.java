@@ -0,0 +1,306 @@
+package cesur.accesodatos.db4o;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local load generator of {@link HttpApiServer}: starts the server on a temporary database with some employees and measures
+ * concurrent clients reading random employees with GET /employees/{empno}, in two modes:
+ * <ul>
+ *     <li>{@link Mode#KEEP_ALIVE}: each client sends all its requests through one persistent connection.</li>
+ *     <li>{@link Mode#CLOSE}: each request opens a new connection and asks the server to close it, paying the TCP handshake
+ *     and the connection setup of the server every time.</li>
+ * </ul>
+ * The clients speak plain HTTP/1.1 over sockets, so the connection handling is exactly the one of each mode.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class HttpLoadGenerator {
+
+    /**
+     * WARMUP_MILLIS -> Unmeasured run of each mode before the measures, so the JIT compilation doesn't favour the last mode.
+     */
+    public static final long WARMUP_MILLIS = 2000;
+
+    /**
+     * Connection handling of the clients.
+     */
+    public enum Mode {
+        KEEP_ALIVE, CLOSE
+    }
+
+    /**
+     * Results of one mode.
+     * @param mode Mode measured.
+     * @param requests Successful requests.
+     * @param errors Failed requests (I/O errors or a status other than 200).
+     * @param elapsedNanos Duration of the run.
+     * @param latencies Latencies of the successful requests, connection included in {@link Mode#CLOSE}.
+     */
+    public record Result(Mode mode, long requests, long errors, long elapsedNanos, LatencyHistogram latencies) {
+
+        /**
+         * @return Requests per second.
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : requests * 1e9 / elapsedNanos;
+        }
+    }
+
+    /**
+     * Minimal HTTP/1.1 client connection.
+     */
+    private static final class Connection implements AutoCloseable {
+
+        /**
+         * Socket of the connection.
+         */
+        private final Socket socket;
+        /**
+         * Buffered input of the socket.
+         */
+        private final InputStream in;
+        /**
+         * Output of the socket.
+         */
+        private final OutputStream out;
+
+        /**
+         * Opens a connection to the local server.
+         * @param port Port of the server.
+         * @throws IOException If the connection fails.
+         */
+        private Connection(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * Sends a GET request and reads the whole response.
+         * @param path Path of the request.
+         * @param close true to ask the server to close the connection after the response.
+         * @return HTTP status of the response.
+         * @throws IOException If the request fails, the response is truncated or has no Content-Length.
+         */
+        private int get(String path, boolean close) throws IOException {
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + (close ? "Connection: close\r\n" : "") + "\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String status = readLine();
+            if (status == null || status.length() < 12) throw new IOException("Connection closed by the server");
+            long length = -1;
+            String header;
+            while ((header = readLine()) != null && !header.isEmpty()) {
+                if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) length = Long.parseLong(header.substring(15).trim());
+            }
+            if (length < 0) throw new IOException("Response without Content-Length");
+            in.skipNBytes(length); // The body is not needed, only its status
+            return Integer.parseInt(status.substring(9, 12));
+        }
+
+        /**
+         * @return Next line of the response without its CRLF, or null at the end of the stream.
+         * @throws IOException If the socket can't be read.
+         */
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') if (b != '\r') line.write(b);
+            return b == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Number of concurrent clients.
+     */
+    private int clients = 16;
+    /**
+     * Duration of each mode in milliseconds.
+     */
+    private long millis = 3000;
+    /**
+     * Number of employees of the database.
+     */
+    private int records = 1000;
+
+    /**
+     * @param clients Number of concurrent clients.
+     */
+    public void setClients(int clients) {
+        this.clients = clients;
+    }
+
+    /**
+     * @param millis Duration of each mode in milliseconds.
+     */
+    public void setMillis(long millis) {
+        this.millis = millis;
+    }
+
+    /**
+     * @param records Number of employees of the database.
+     */
+    public void setRecords(int records) {
+        this.records = records;
+    }
+
+    /**
+     * Measures every mode against one server on a new temporary database, deleted at the end.
+     * The console output of the DAO is discarded meanwhile.
+     *
+     * @return Results of each mode.
+     * @throws Exception If the database or the server can't be created, or a client is interrupted.
+     */
+    public List<Result> run() throws Exception {
+        Path file = Files.createTempFile("http", ".yap");
+        Files.delete(file);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        db4oDAO dao = new db4oDAO(file.toString());
+        HttpApiServer server = new HttpApiServer(dao, 0);
+        try {
+            dao.inTransaction(tx -> {
+                for (int empno = 1; empno <= records; empno++) tx.addEmployee(new Employee(empno, "Employee" + empno, "Vendedor", 10));
+            });
+            server.start();
+            List<Result> results = new ArrayList<>();
+            for (Mode mode : Mode.values()) run(mode, server.getPort(), WARMUP_MILLIS);
+            for (Mode mode : Mode.values()) results.add(run(mode, server.getPort(), millis));
+            return results;
+        } finally {
+            server.stop(0);
+            dao.closeConnection();
+            System.setOut(console);
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Measures one mode.
+     * @param mode Connection handling of the clients.
+     * @param port Port of the server.
+     * @param millis Duration of the run.
+     * @return Results of the mode.
+     * @throws InterruptedException If a client is interrupted.
+     */
+    private Result run(Mode mode, int port, long millis) throws InterruptedException {
+        AtomicLong requests = new AtomicLong(), errors = new AtomicLong();
+        List<LatencyHistogram> histograms = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        for (int c = 0; c < clients; c++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histograms.add(histogram);
+            Thread client = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                Connection connection = null;
+                while (System.nanoTime() < deadline[0]) {
+                    String path = "/employees/" + (1 + ThreadLocalRandom.current().nextInt(records));
+                    long begin = System.nanoTime();
+                    try {
+                        if (connection == null) connection = new Connection(port);
+                        int status = connection.get(path, mode == Mode.CLOSE);
+                        if (mode == Mode.CLOSE) {
+                            connection.close();
+                            connection = null;
+                        }
+                        if (status == 200) {
+                            histogram.record(System.nanoTime() - begin);
+                            requests.incrementAndGet();
+                        } else {
+                            errors.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                        connection = closeQuietly(connection);
+                    }
+                }
+                closeQuietly(connection);
+            }, "http-client-" + c);
+            client.start();
+            threads.add(client);
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + millis * 1_000_000;
+        start.countDown();
+        for (Thread client : threads) client.join();
+        long elapsed = System.nanoTime() - begin;
+        LatencyHistogram latencies = new LatencyHistogram();
+        for (LatencyHistogram h : histograms) latencies.merge(h);
+        return new Result(mode, requests.get(), errors.get(), elapsed, latencies);
+    }
+
+    /**
+     * Closes a connection ignoring errors.
+     * @param connection Connection to close, can be null.
+     * @return null, to clear the variable holding the connection.
+     */
+    private static Connection closeQuietly(Connection connection) {
+        if (connection == null) return null;
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+            // Already broken
+        }
+        return null;
+    }
+
+    /**
+     * @param results Results of the modes.
+     * @return Table comparing the throughput, errors and latency percentiles in microseconds.
+     */
+    public static String format(List<Result> results) {
+        StringBuilder sb = new StringBuilder();
+        String row = "+" + "-".repeat(12) + ("+" + "-".repeat(11)).repeat(5) + "+\n";
+        sb.append(row);
+        sb.append(String.format("| %-10s | %9s | %9s | %9s | %9s | %9s |%n", "MODE", "REQUESTS", "REQ/S", "ERRORS", "P50 us", "P99 us"));
+        sb.append(row);
+        for (Result r : results) {
+            sb.append(String.format("| %-10s | %9d | %9.0f | %9d | %9.1f | %9.1f |%n", r.mode(), r.requests(), r.getThroughput(), r.errors(),
+                    r.latencies().getPercentile(50) / 1e3, r.latencies().getPercentile(99) / 1e3));
+        }
+        sb.append(row);
+        return sb.toString();
+    }
+
+    /**
+     * Runs the load test and prints the comparison.
+     * @param args Optional: number of clients, milliseconds per mode and number of employees.
+     * @throws Exception If a run fails.
+     */
+    public static void main(String[] args) throws Exception {
+        HttpLoadGenerator generator = new HttpLoadGenerator();
+        if (args.length > 0) generator.setClients(Integer.parseInt(args[0]));
+        if (args.length > 1) generator.setMillis(Long.parseLong(args[1]));
+        if (args.length > 2) generator.setRecords(Integer.parseInt(args[2]));
+        List<Result> results = generator.run();
+        System.out.printf("%d clients, %d ms per mode, GET /employees/{random of %d}%n", generator.clients, generator.millis, generator.records);
+        System.out.print(format(results));
+    }
+}
@@ -33,6 +33,12 @@ public interface IDAO {
      * @return Updated {@link Employee} object. Null values are not possible to be returned since the object existence must be checked before calling.
      */
     public Employee updateEmployee(Object id);
+    /**
+     * Method to update an existing {@link Employee} with the given information, without asking the user.
+     * @param employee {@link Employee} object with the ID of an existing Employee and all the new attribute values set.
+     * @return Updated {@link Employee} object or null if there is no Employee with that ID or an error occurs.
+     */
+    public Employee updateEmployee(Employee employee);
     /**
      * Method to delete an existing {@link Employee} from the storage system.
      * @param id Employee's ID (Integer value).
@@ -62,6 +68,12 @@ public interface IDAO {
      * @return Updated {@link Department} object. Null values are not possible to be returned since the object existence must be checked before calling.
      */
     public Department updateDepartment(Object id);
+    /**
+     * Method to update an existing {@link Department} with the given information, without asking the user.
+     * @param department {@link Department} object with the ID of an existing Department and all the new attribute values set.
+     * @return Updated {@link Department} object or null if there is no Department with that ID or an error occurs.
+     */
+    public Department updateDepartment(Department department);
     /**
      * Method to delete an existing {@link Department} from the storage system.
      * @param id Department's ID (Integer value).
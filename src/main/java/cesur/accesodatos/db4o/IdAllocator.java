@@ -0,0 +1,187 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.ObjectContainer;
+import com.db4o.ObjectSet;
+import com.db4o.query.Query;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+import java.util.function.IntSupplier;
+
+/**
+ * Allocator of new business IDs (empnos or depnos) with hi/lo block reservation.
+ * The last reserved value of the sequence is kept in an {@link IdSequence} stored in the database. When the current block is
+ * used up, the allocator reserves the next {@link #getBlockSize()} values with a single commit, made through a private session
+ * so it never commits (nor waits for) the transaction of a writer; the IDs of the block are then handed out from memory with
+ * an atomic increment, so concurrent callers don't take any lock until the block runs out.
+ * <p>
+ * The IDs are unique but not gap-free: the unused values of a block are lost when the database is closed. A value already
+ * taken (e.g. by an object added with an ID chosen by hand) is skipped. The first block of a new sequence starts after the
+ * highest ID in use.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class IdAllocator {
+
+    /**
+     * DEFAULT_BLOCK_SIZE -> IDs reserved per commit of the sequence.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 100;
+
+    /**
+     * Block of reserved IDs being handed out.
+     */
+    private static final class Block {
+
+        /**
+         * Next ID to hand out; may go past {@link #end} when the block is used up.
+         */
+        private final AtomicInteger cursor;
+        /**
+         * First ID after the block.
+         */
+        private final int end;
+
+        /**
+         * @param start First ID of the block.
+         * @param end First ID after the block.
+         */
+        private Block(int start, int end) {
+            this.cursor = new AtomicInteger(start);
+            this.end = end;
+        }
+    }
+
+    /**
+     * Container storing the sequence.
+     */
+    private final ObjectContainer db;
+    /**
+     * Name of the sequence.
+     */
+    private final String name;
+    /**
+     * Tells if an ID is already in use.
+     */
+    private final IntPredicate taken;
+    /**
+     * First value of the sequence if it isn't stored yet.
+     */
+    private final IntSupplier firstValue;
+    /**
+     * Number of IDs reserved per commit.
+     */
+    private volatile int blockSize = DEFAULT_BLOCK_SIZE;
+    /**
+     * Block being handed out; starts empty, so the first ID reserves a block.
+     */
+    private volatile Block block = new Block(0, 0);
+    /**
+     * Blocks reserved by this allocator.
+     */
+    private final AtomicLong reservations = new AtomicLong();
+
+    /**
+     * Creates an allocator. Use {@link db4oDAO#getEmployeeIdAllocator()} or {@link db4oDAO#getDepartmentIdAllocator()} to get
+     * the allocators of a DAO; there must be one allocator per sequence and database.
+     *
+     * @param db Container storing the sequence.
+     * @param name Name of the sequence.
+     * @param taken Tells if an ID is already in use, so it is skipped.
+     * @param firstValue First value of the sequence if it isn't stored yet, e.g. the highest ID in use plus one.
+     */
+    public IdAllocator(ObjectContainer db, String name, IntPredicate taken, IntSupplier firstValue) {
+        this.db = db;
+        this.name = name;
+        this.taken = taken;
+        this.firstValue = firstValue;
+    }
+
+    /**
+     * @return Number of IDs reserved per commit.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @param blockSize Number of IDs reserved per commit, from the next reservation on. Larger blocks commit less often but
+     *                  lose more values when the database is closed.
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    /**
+     * @return Name of the sequence.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Blocks reserved by this allocator.
+     */
+    public long getReservations() {
+        return reservations.get();
+    }
+
+    /**
+     * Hands out a new ID, reserving a new block if the current one is used up.
+     * @return A new ID, or -1 if the block couldn't be reserved.
+     */
+    public int next() {
+        while (true) {
+            Block current = block;
+            int id = current.cursor.getAndIncrement();
+            if (id < current.end) {
+                if (taken.test(id)) continue; // Chosen by hand
+                return id;
+            }
+            try {
+                refill(current);
+            } catch (Exception e) {
+                System.err.println("ERROR: Unable to reserve IDs of the sequence " + name + " - " + e.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Replaces a used up block with a new one, unless another thread already did it.
+     * @param usedUp Block that was used up.
+     */
+    private synchronized void refill(Block usedUp) {
+        if (block != usedUp) return;
+        int size = blockSize;
+        int start = reserve(size);
+        block = new Block(start, start + size);
+        reservations.incrementAndGet();
+    }
+
+    /**
+     * Reserves the next values of the stored sequence, creating it if it doesn't exist, and commits it through a private session.
+     * @param count Number of values to reserve.
+     * @return First reserved value.
+     */
+    private int reserve(int count) {
+        ObjectContainer session = db.ext().openSession();
+        try {
+            Query query = session.query();
+            query.constrain(IdSequence.class);
+            query.descend("name").constrain(name);
+            ObjectSet<IdSequence> result = query.execute();
+            IdSequence sequence = result.hasNext() ? result.next() : new IdSequence(name, firstValue.getAsInt());
+            int start = sequence.reserve(count);
+            session.store(sequence);
+            session.commit();
+            return start;
+        } catch (RuntimeException e) {
+            session.rollback();
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Persistent state of a sequence of business IDs (e.g. the empnos), stored as one object per sequence in the database it
+ * numbers. It only records the first value not yet reserved; the values of the reserved blocks are handed out from memory
+ * by an {@link IdAllocator}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class IdSequence {
+
+    /**
+     * Name of the sequence, e.g. "Employee.empno".
+     */
+    private String name;
+    /**
+     * First value not reserved yet.
+     */
+    private int next;
+
+    /**
+     * Creates a sequence.
+     * @param name Name of the sequence.
+     * @param next First value to reserve.
+     */
+    public IdSequence(String name, int next) {
+        this.name = name;
+        this.next = next;
+    }
+
+    /**
+     * @return Name of the sequence.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return First value not reserved yet.
+     */
+    public int getNext() {
+        return next;
+    }
+
+    /**
+     * Reserves the next values of the sequence.
+     * @param count Number of values to reserve.
+     * @return First reserved value.
+     * @throws IllegalStateException If the sequence would go past {@link Integer#MAX_VALUE}.
+     */
+    public int reserve(int count) {
+        if (next > Integer.MAX_VALUE - count) throw new IllegalStateException("The sequence " + name + " is exhausted");
+        int first = next;
+        next += count;
+        return first;
+    }
+
+    @Override
+    public String toString() {
+        return "IdSequence{name='" + name + "', next=" + next + '}';
+    }
+}
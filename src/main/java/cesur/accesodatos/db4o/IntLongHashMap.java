@@ -0,0 +1,274 @@
+package cesur.accesodatos.db4o;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive {@code int} keys to primitive {@code long} values.
+ * This class is meant to keep business identifiers (empno/depno) mapped to db4o internal object IDs
+ * without boxing any of them. Keys and values live in two parallel arrays and collisions are resolved
+ * with linear probing, so a million entries need roughly 12 bytes per slot instead of the ~80 bytes
+ * per entry of a {@code HashMap<Integer, Long>}.
+ *
+ * The value {@link #NO_VALUE} (0) is reserved to mark empty slots, which is safe for db4o IDs since
+ * they are always positive. This class is not thread-safe; callers must synchronize externally.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class IntLongHashMap {
+
+    /**
+     * NO_VALUE -> Value returned by {@link #get(int)} when the key is not present. It can't be stored as a value.
+     */
+    public static final long NO_VALUE = 0L;
+    /**
+     * Maximum fraction of used slots before the tables are doubled.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Keys table. A slot is free when its value in {@link #values} is {@link #NO_VALUE}.
+     */
+    private int[] keys;
+    /**
+     * Values table, parallel to {@link #keys}.
+     */
+    private long[] values;
+    /**
+     * Number of stored entries.
+     */
+    private int size;
+    /**
+     * Number of entries allowed before resizing.
+     */
+    private int threshold;
+
+    /**
+     * Creates an empty map with a small default capacity.
+     */
+    public IntLongHashMap() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty map able to hold the given number of entries without resizing.
+     * @param expectedSize Number of entries expected to be stored.
+     */
+    public IntLongHashMap(int expectedSize) {
+        allocate(tableSizeFor((int) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR)));
+    }
+
+    /**
+     * Returns the value mapped to the given key.
+     * @param key Key to search.
+     * @return The mapped value or {@link #NO_VALUE} if the key is not present.
+     */
+    public long get(int key) {
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            if (values[i] == NO_VALUE) return NO_VALUE;
+            if (keys[i] == key) return values[i];
+        }
+    }
+
+    /**
+     * Checks if the given key is present in the map.
+     * @param key Key to search.
+     * @return true if there is a value mapped to the key.
+     */
+    public boolean containsKey(int key) {
+        return get(key) != NO_VALUE;
+    }
+
+    /**
+     * Maps the given key to the given value, replacing any previous mapping.
+     * @param key Key to store.
+     * @param value Value to store. It must be different from {@link #NO_VALUE}.
+     * @return The previous value mapped to the key or {@link #NO_VALUE} if there was none.
+     */
+    public long put(int key, long value) {
+        if (value == NO_VALUE) throw new IllegalArgumentException("The value " + NO_VALUE + " is reserved");
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (values[i] != NO_VALUE) {
+            if (keys[i] == key) {
+                long previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > threshold) resize(keys.length << 1);
+        return NO_VALUE;
+    }
+
+    /**
+     * Removes the mapping of the given key. Following entries of the probe sequence are shifted back,
+     * so no tombstones are left behind and lookups keep stopping at the first free slot.
+     * @param key Key to remove.
+     * @return The removed value or {@link #NO_VALUE} if the key was not present.
+     */
+    public long remove(int key) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (values[i] != NO_VALUE) {
+            if (keys[i] == key) {
+                long previous = values[i];
+                shiftBack(i, mask);
+                size--;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Returns the number of stored entries.
+     * @return Number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks if the map has no entries.
+     * @return true if the map is empty.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all entries keeping the current capacity.
+     */
+    public void clear() {
+        Arrays.fill(values, NO_VALUE);
+        size = 0;
+    }
+
+    /**
+     * Returns all stored keys in table order.
+     * @return New array with every key of the map.
+     */
+    public int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != NO_VALUE) result[n++] = keys[i];
+        }
+        return result;
+    }
+
+    /**
+     * Writes the entries: their number followed by each key and value.
+     * @param out Output to write to.
+     * @throws IOException If the output can't be written.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] == NO_VALUE) continue;
+            out.writeInt(keys[i]);
+            out.writeLong(values[i]);
+        }
+    }
+
+    /**
+     * Replaces the entries with the ones written by {@link #writeTo(DataOutput)}.
+     * @param in Input to read from.
+     * @throws IOException If the input can't be read or holds an invalid value; the map is left empty.
+     */
+    public void readFrom(DataInput in) throws IOException {
+        int entries = in.readInt();
+        if (entries < 0) {
+            clear();
+            throw new IOException("Invalid number of entries " + entries);
+        }
+        allocate(tableSizeFor((int) Math.ceil(Math.max(entries, 1) / LOAD_FACTOR)));
+        size = 0;
+        try {
+            for (int i = 0; i < entries; i++) {
+                int key = in.readInt();
+                long value = in.readLong();
+                if (value == NO_VALUE) throw new IOException("Invalid value for key " + key);
+                put(key, value);
+            }
+        } catch (IOException e) {
+            clear();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the gap left at the given slot by moving back the entries that were displaced past it.
+     * @param gap Freed slot.
+     * @param mask Table mask.
+     */
+    private void shiftBack(int gap, int mask) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == NO_VALUE) break;
+            int home = mix(keys[i]) & mask;
+            // Move the entry only if its home slot is not between the gap and its current slot (cyclically)
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = NO_VALUE;
+    }
+
+    /**
+     * Rehashes every entry into tables of the given capacity.
+     * @param capacity New capacity, must be a power of two.
+     */
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == NO_VALUE) continue;
+            int i = mix(oldKeys[j]) & mask;
+            while (values[i] != NO_VALUE) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    /**
+     * Allocates empty tables of the given capacity.
+     * @param capacity Table capacity, must be a power of two.
+     */
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new long[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Scrambles the key bits so sequential IDs spread over the table.
+     * @param key Key to hash.
+     * @return Hash of the key.
+     */
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the smallest power of two greater than or equal to the given value.
+     * @param n Minimum capacity.
+     * @return Power of two capacity.
+     */
+    private static int tableSizeFor(int n) {
+        return Math.max(2, Integer.highestOneBit(Math.max(n - 1, 1)) << 1);
+    }
+}
@@ -0,0 +1,281 @@
+package cesur.accesodatos.db4o;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON support for the machine-readable interfaces ({@link BatchCommandRunner}, {@link HttpApiServer}). Written values
+ * can be strings, numbers, booleans, null, {@link Employee}s, {@link Department}s, maps, iterables and already encoded
+ * {@link Raw} JSON. {@link #parse(String)} reads request bodies.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class Json {
+
+    /**
+     * JSON text that is written as it is, e.g. an object encoded before.
+     * @param json Encoded JSON.
+     */
+    public record Raw(String json) {
+    }
+
+    /**
+     * Utility class, not meant to be instantiated.
+     */
+    private Json() {
+    }
+
+    /**
+     * Encodes an object from alternating keys and values, e.g. {@code Json.object("empno", 1, "name", "Ana")}.
+     * @param keysAndValues Keys (strings) followed by their values.
+     * @return Encoded object, with the keys in the given order.
+     */
+    public static String object(Object... keysAndValues) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(quote(String.valueOf(keysAndValues[i]))).append(':').append(value(keysAndValues[i + 1]));
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Encodes a value.
+     * @param value Value to encode.
+     * @return Encoded value.
+     */
+    public static String value(Object value) {
+        if (value == null) return "null";
+        if (value instanceof Raw raw) return raw.json();
+        if (value instanceof Number || value instanceof Boolean) return value.toString();
+        if (value instanceof Employee e) {
+            return object("empno", e.getEmpno(), "name", e.getName(), "position", e.getPosition(), "depno", e.getDepno());
+        }
+        if (value instanceof Department d) return object("depno", d.getDepno(), "name", d.getName(), "location", d.getLocation());
+        if (value instanceof Map<?, ?> map) {
+            StringBuilder sb = new StringBuilder("{");
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append(quote(String.valueOf(e.getKey()))).append(':').append(value(e.getValue()));
+            }
+            return sb.append('}').toString();
+        }
+        if (value instanceof Iterable<?> items) {
+            StringBuilder sb = new StringBuilder("[");
+            for (Object item : items) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append(value(item));
+            }
+            return sb.append(']').toString();
+        }
+        return quote(value.toString());
+    }
+
+    /**
+     * Encodes a string, escaping quotes, backslashes and control characters.
+     * @param s String to encode.
+     * @return Quoted string.
+     */
+    public static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Parses a JSON text. Objects are returned as ordered maps, arrays as lists, numbers as Long (integers) or Double.
+     * @param json JSON text.
+     * @return Parsed value.
+     * @throws IllegalArgumentException If the text is not valid JSON.
+     */
+    public static Object parse(String json) {
+        Parser parser = new Parser(json);
+        Object value = parser.value();
+        parser.skipSpaces();
+        if (parser.pos < json.length()) throw parser.error("Unexpected text after the value");
+        return value;
+    }
+
+    /**
+     * Recursive descent parser of {@link #parse(String)}.
+     */
+    private static final class Parser {
+
+        /**
+         * Text being parsed.
+         */
+        private final String s;
+        /**
+         * Position of the next character.
+         */
+        private int pos;
+
+        /**
+         * @param s Text to parse.
+         */
+        private Parser(String s) {
+            this.s = s;
+        }
+
+        /**
+         * @return Value starting at the current position.
+         */
+        private Object value() {
+            skipSpaces();
+            if (pos >= s.length()) throw error("Unexpected end of the text");
+            char c = s.charAt(pos);
+            switch (c) {
+                case '{' -> {
+                    Map<String, Object> map = new LinkedHashMap<>();
+                    pos++;
+                    skipSpaces();
+                    if (peek('}')) return map;
+                    do {
+                        skipSpaces();
+                        if (pos >= s.length() || s.charAt(pos) != '"') throw error("Expected a key");
+                        String key = string();
+                        skipSpaces();
+                        expect(':');
+                        map.put(key, value());
+                        skipSpaces();
+                    } while (peek(','));
+                    expect('}');
+                    return map;
+                }
+                case '[' -> {
+                    List<Object> list = new ArrayList<>();
+                    pos++;
+                    skipSpaces();
+                    if (peek(']')) return list;
+                    do {
+                        list.add(value());
+                        skipSpaces();
+                    } while (peek(','));
+                    expect(']');
+                    return list;
+                }
+                case '"' -> {
+                    return string();
+                }
+                default -> {
+                    if (s.startsWith("true", pos)) {
+                        pos += 4;
+                        return true;
+                    }
+                    if (s.startsWith("false", pos)) {
+                        pos += 5;
+                        return false;
+                    }
+                    if (s.startsWith("null", pos)) {
+                        pos += 4;
+                        return null;
+                    }
+                    return number();
+                }
+            }
+        }
+
+        /**
+         * @return String starting at the current position, on its opening quote.
+         */
+        private String string() {
+            StringBuilder sb = new StringBuilder();
+            pos++;
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= s.length()) break;
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    case 't' -> sb.append('\t');
+                    case 'b' -> sb.append('\b');
+                    case 'f' -> sb.append('\f');
+                    case 'u' -> {
+                        if (pos + 4 > s.length()) throw error("Invalid unicode escape");
+                        try {
+                            sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException nfe) {
+                            throw error("Invalid unicode escape");
+                        }
+                        pos += 4;
+                    }
+                    default -> sb.append(e); // \" \\ and \/
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        /**
+         * @return Number starting at the current position.
+         */
+        private Object number() {
+            int start = pos;
+            while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0) pos++;
+            String text = s.substring(start, pos);
+            try {
+                if (text.contains(".") || text.contains("e") || text.contains("E")) return Double.parseDouble(text);
+                return Long.parseLong(text);
+            } catch (NumberFormatException nfe) {
+                pos = start;
+                throw error("Unexpected character");
+            }
+        }
+
+        /**
+         * Consumes the given character if it is the next one.
+         * @param c Character.
+         * @return true if it was consumed.
+         */
+        private boolean peek(char c) {
+            if (pos < s.length() && s.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Consumes the given character, which must be the next one.
+         * @param c Character.
+         */
+        private void expect(char c) {
+            if (!peek(c)) throw error("Expected '" + c + "'");
+        }
+
+        /**
+         * Skips spaces, tabs and line breaks.
+         */
+        private void skipSpaces() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+
+        /**
+         * @param message Description of the error.
+         * @return Exception reporting the error and its position.
+         */
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds.
+ * Values are counted in buckets of 16 linear sub-buckets per power of two, which keeps the relative error of the reported
+ * percentiles below 6.25% with a fixed footprint of {@value #BUCKETS} counters. Each thread records into its own instance
+ * and the instances are merged at the end, so recording never contends. This class is not thread-safe.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of linear sub-buckets per power of two (as a power of two exponent).
+     */
+    private static final int SUB_BITS = 4;
+    /**
+     * Number of linear sub-buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /**
+     * Total number of buckets, enough for any positive long value.
+     */
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    /**
+     * Counters of every bucket.
+     */
+    private final long[] counts = new long[BUCKETS];
+    /**
+     * Number of recorded values.
+     */
+    private long count;
+    /**
+     * Sum of the recorded values.
+     */
+    private long sum;
+    /**
+     * Largest recorded value.
+     */
+    private long max;
+
+    /**
+     * Records one latency.
+     * @param nanos Latency in nanoseconds. Negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucketOf(value)]++;
+        count++;
+        sum += value;
+        if (value > max) max = value;
+    }
+
+    /**
+     * Adds all the values recorded by another histogram to this one.
+     * @param other Histogram to merge.
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) counts[i] += other.counts[i];
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return Number of recorded values.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Largest recorded value in nanoseconds.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return Mean of the recorded values in nanoseconds, or 0 if nothing was recorded.
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values fall.
+     * @param percentile Percentile between 0 and 100.
+     * @return Upper bound of the bucket holding the percentile, in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(max, upperBoundOf(i));
+        }
+        return max;
+    }
+
+    /**
+     * Returns the bucket of a value.
+     * @param value Non-negative value.
+     * @return Bucket index.
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value falling in a bucket.
+     * @param bucket Bucket index.
+     * @return Upper bound of the bucket.
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
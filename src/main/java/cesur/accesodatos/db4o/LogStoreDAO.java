@@ -0,0 +1,754 @@
+package cesur.accesodatos.db4o;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Alternative {@link IDAO} backend storing {@link Employee}s and {@link Department}s in a memory-mapped append-only log.
+ * Every add, update or delete appends one fixed-size record ({@link #RECORD_SIZE} bytes, protected by a CRC32) to the log,
+ * and two primitive {@link IntLongHashMap}s map empno and depno to the offset of the latest record of each object.
+ * Reads decode the record straight from the mapped file.
+ *
+ * On open the log is replayed to rebuild the indexes; a torn or corrupted record at the tail (e.g. after a crash in the middle
+ * of a write) ends the replay and is overwritten by the next write. Superseded and deleted records are discarded by
+ * {@link #compact()}, which can also run periodically with {@link #startCompaction(long)}. The compaction rewrites the file in
+ * place instead of replacing it, because a mapped file can't be replaced on every platform (e.g. Windows).
+ *
+ * Strings are limited to {@link #MAX_STRING_BYTES} bytes of UTF-8 by the fixed record layout, and the whole log to
+ * {@link #MAX_LOG_SIZE} bytes by the single mapping: when it is full, appends compact it first and fail if that frees nothing.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class LogStoreDAO implements IDAO, FileHandlerInterface {
+
+    /**
+     * RECORD_SIZE -> Size in bytes of every log record.
+     */
+    public static final int RECORD_SIZE = 128;
+    /**
+     * MAX_STRING_BYTES -> Maximum UTF-8 length of the string fields.
+     */
+    public static final int MAX_STRING_BYTES = 52;
+    /**
+     * MAX_LOG_SIZE -> Maximum size in bytes of the log file, the largest mapping a {@link MappedByteBuffer} can address.
+     */
+    public static final long MAX_LOG_SIZE = Integer.MAX_VALUE;
+    /**
+     * Size of the file header, which holds the magic number and the format version.
+     */
+    private static final int HEADER_SIZE = 16;
+    /**
+     * Magic number identifying log store files ("LOGS").
+     */
+    private static final int MAGIC = 0x4C4F4753;
+    /**
+     * Version of the record layout.
+     */
+    private static final int FORMAT_VERSION = 1;
+    /**
+     * Initial size of the mapped region.
+     */
+    private static final long INITIAL_MAPPING = 1L << 20;
+    /**
+     * Record kinds.
+     */
+    private static final byte KIND_EMPLOYEE = 1, KIND_DEPARTMENT = 2;
+    /**
+     * Record operations.
+     */
+    private static final byte OP_PUT = 1, OP_DELETE = 2;
+    /**
+     * Null flags of the record fields.
+     */
+    private static final byte NULL_FIRST = 1, NULL_SECOND = 2, NULL_DEPNO = 4;
+    /**
+     * Offsets of the record fields: kind(1) op(1) null flags(1) pad(1) id(4) depno(4) first string(2+52) second string(2+52) crc(4).
+     */
+    private static final int OFF_KIND = 0, OFF_OP = 1, OFF_FLAGS = 2, OFF_ID = 4, OFF_DEPNO = 8, OFF_FIRST = 12,
+            OFF_SECOND = OFF_FIRST + 2 + MAX_STRING_BYTES, OFF_CRC = OFF_SECOND + 2 + MAX_STRING_BYTES;
+
+    /**
+     * Path of the log file.
+     */
+    private final Path path;
+    /**
+     * Lock protecting the mapping and the indexes: reads share it, appends and compactions take it exclusively.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Scanner used for capturing user input from the terminal in the update methods.
+     */
+    private final Scanner scanner = new Scanner(System.in);
+    /**
+     * Channel of the log file.
+     */
+    private FileChannel channel;
+    /**
+     * Mapped region of the log file.
+     */
+    private MappedByteBuffer buffer;
+    /**
+     * Offset where the next record is written.
+     */
+    private long writePosition;
+    /**
+     * Offset of the latest live record of each employee, by empno.
+     */
+    private IntLongHashMap employeeIndex = new IntLongHashMap();
+    /**
+     * Offset of the latest live record of each department, by depno.
+     */
+    private IntLongHashMap departmentIndex = new IntLongHashMap();
+    /**
+     * Number of records in the log that are not live anymore.
+     */
+    private long deadRecords;
+    /**
+     * Whether every append is forced to disk before returning.
+     */
+    private volatile boolean syncOnWrite = true;
+    /**
+     * Thread running the periodic compaction, or null if it isn't enabled.
+     */
+    private ScheduledExecutorService compactor;
+
+    /**
+     * Opens (or creates) the log file and replays it to rebuild the indexes.
+     * @param logPath Path of the log file.
+     * @throws IOException If the file can't be opened or isn't a log store file.
+     */
+    public LogStoreDAO(String logPath) throws IOException {
+        this.path = Path.of(logPath);
+        open();
+    }
+
+    /**
+     * Sets whether every append is forced to disk. Disabling it trades durability on power loss for throughput.
+     * @param syncOnWrite true to force every append to disk (default).
+     */
+    public void setSyncOnWrite(boolean syncOnWrite) {
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    /**
+     * Starts compacting the log periodically, whenever dead records outnumber live ones.
+     * @param periodSeconds Seconds between compaction checks.
+     */
+    public synchronized void startCompaction(long periodSeconds) {
+        if (compactor != null) return;
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "log-store-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            if (getDeadRecords() > getLiveRecords()) compact();
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return Number of live employee and department records.
+     */
+    public long getLiveRecords() {
+        lock.readLock().lock();
+        try {
+            return employeeIndex.size() + departmentIndex.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of records in the log that were superseded or deleted and will be dropped by the next compaction.
+     */
+    public long getDeadRecords() {
+        lock.readLock().lock();
+        try {
+            return deadRecords;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the log keeping only the latest record of every live object.
+     * The live records are first written to a side file, which is renamed to "&lt;log&gt;.compacted" once it is complete and synced,
+     * and then copied over the start of the mapped log, whose old tail is cleared. If the process stops during the copy, the
+     * next open replaces the log with the side file, so a compaction never loses records. The file keeps its size; the freed
+     * space is reused by the next appends.
+     *
+     * @return true if the log was compacted, false if an error occurred (the old log stays in use).
+     */
+    public boolean compact() {
+        lock.writeLock().lock();
+        try {
+            if (buffer == null) throw new IOException("The log store is closed");
+            Path tmp = sidePath(".compact"), compacted = sidePath(".compacted");
+            long size;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                out.write(header());
+                copyLive(out, employeeIndex);
+                copyLive(out, departmentIndex);
+                out.force(true);
+                size = out.size();
+            }
+            Files.move(tmp, compacted, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            try (FileChannel in = FileChannel.open(compacted, StandardOpenOption.READ)) {
+                ByteBuffer target = buffer.duplicate().position(0).limit((int) size);
+                while (target.hasRemaining()) {
+                    if (in.read(target) < 0) throw new IOException("The compacted log is truncated");
+                }
+            }
+            byte[] zeros = new byte[RECORD_SIZE * 64];
+            for (long o = size; o < writePosition; o += zeros.length) { // An empty kind byte ends the replay
+                buffer.put((int) o, zeros, 0, (int) Math.min(zeros.length, writePosition - o));
+            }
+            buffer.force();
+            Files.delete(compacted);
+            replay(); // Rebuilds the indexes with the new offsets
+            return true;
+        } catch (IOException ioe) {
+            System.err.println("ERROR: Unable to compact the log store - " + ioe.getMessage());
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Employee> findAllEmployees() {
+        List<Employee> employees = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int empno : employeeIndex.keys()) employees.add(readEmployee(employeeIndex.get(empno)));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return employees;
+    }
+
+    @Override
+    public Employee findEmployeeById(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID provided. ID must be an integer.");
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            long offset = employeeIndex.get((Integer) id);
+            return offset == IntLongHashMap.NO_VALUE ? null : readEmployee(offset);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addEmployee(Employee employee) {
+        try {
+            appendEmployee(employee, OP_PUT, false);
+            System.out.println("Employee added successfully.");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("ERROR: Unable to add employee - " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Employee updateEmployee(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        Employee employee = findEmployeeById(id);
+        if (employee == null) {
+            System.out.println("Employee not found.");
+            return null;
+        }
+        System.out.println("Updating employee with ID: " + id);
+        System.out.print("Last name (current: " + employee.getName() + "): ");
+        String surname = scanner.nextLine();
+        if (surname.isEmpty()) throw new IllegalArgumentException("The last name cannot be empty");
+        System.out.print("Job (current: " + employee.getPosition() + "): ");
+        String job = scanner.nextLine();
+        if (job.isEmpty()) throw new IllegalArgumentException("The job cannot be empty");
+        System.out.print("Department ID (current: " + employee.getDepno() + "): ");
+        String departmentId = scanner.nextLine();
+        if (departmentId.isEmpty()) throw new IllegalArgumentException("The department ID cannot be empty");
+        try {
+            return updateEmployee(new Employee((Integer) id, surname, job, Integer.parseInt(departmentId)));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid department ID format");
+            return null;
+        }
+    }
+
+    @Override
+    public Employee updateEmployee(Employee employee) {
+        try {
+            if (appendEmployee(employee, OP_PUT, true) == null) {
+                System.out.println("Employee not found.");
+                return null;
+            }
+            System.out.println("Employee has been successfully updated.");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("An error occurred: " + e.getMessage());
+            return null;
+        }
+        return new Employee(employee.getEmpno(), employee.getName(), employee.getPosition(), employee.getDepno());
+    }
+
+    @Override
+    public Employee deleteEmployee(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID provided. ID must be an integer.");
+            return null;
+        }
+        Employee employee;
+        try {
+            employee = appendEmployee(new Employee((Integer) id, null, null, null), OP_DELETE, true);
+            if (employee == null) {
+                System.out.println("Employee not found.");
+                return null;
+            }
+            System.out.println("Employee deleted successfully.");
+        } catch (IOException e) {
+            System.err.println("ERROR: Unable to delete employee - " + e.getMessage());
+            return null;
+        }
+        return employee;
+    }
+
+    @Override
+    public List<Department> findAllDepartments() {
+        List<Department> departments = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int depno : departmentIndex.keys()) departments.add(readDepartment(departmentIndex.get(depno)));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return departments;
+    }
+
+    @Override
+    public Department findDepartmentById(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            long offset = departmentIndex.get((Integer) id);
+            return offset == IntLongHashMap.NO_VALUE ? null : readDepartment(offset);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addDepartment(Department department) {
+        try {
+            appendDepartment(department, OP_PUT, false);
+            System.out.println("Department added successfully.");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("ERROR: Unable to add department - " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Department updateDepartment(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        Department department = findDepartmentById(id);
+        if (department == null) {
+            System.out.println("Department not found.");
+            return null;
+        }
+        System.out.println("Updating department with ID: " + id);
+        System.out.print("Name (current: " + department.getName() + "): ");
+        String name = scanner.nextLine();
+        if (name.isEmpty()) throw new IllegalArgumentException("The name cannot be empty");
+        System.out.print("City (current: " + department.getLocation() + "): ");
+        String city = scanner.nextLine();
+        if (city.isEmpty()) throw new IllegalArgumentException("The city cannot be empty");
+        return updateDepartment(new Department((Integer) id, name, city));
+    }
+
+    @Override
+    public Department updateDepartment(Department department) {
+        try {
+            if (appendDepartment(department, OP_PUT, true) == null) {
+                System.out.println("Department not found.");
+                return null;
+            }
+            System.out.println("Department has been successfully updated.");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("An error occurred while updating the department: " + e.getMessage());
+            return null;
+        }
+        return new Department(department.getDepno(), department.getName(), department.getLocation());
+    }
+
+    @Override
+    public Department deleteDepartment(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        Department department;
+        try {
+            department = appendDepartment(new Department((Integer) id, null, null), OP_DELETE, true);
+            if (department == null) {
+                System.out.println("Department not found.");
+                return null;
+            }
+            System.out.println("Department has been successfully deleted.");
+        } catch (IOException e) {
+            System.err.println("An error occurred while deleting the department: " + e.getMessage());
+            return null;
+        }
+        return department;
+    }
+
+    @Override
+    public List<Employee> findEmployeesByDept(Object idDept) {
+        if (!(idDept instanceof Integer)) {
+            System.out.println("Invalid department ID.");
+            return new ArrayList<>();
+        }
+        int deptId = (Integer) idDept;
+        List<Employee> employees = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int empno : employeeIndex.keys()) {
+                long offset = employeeIndex.get(empno);
+                if ((buffer.get((int) offset + OFF_FLAGS) & NULL_DEPNO) == 0 && buffer.getInt((int) offset + OFF_DEPNO) == deptId) {
+                    employees.add(readEmployee(offset));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return employees;
+    }
+
+    @Override
+    public boolean checkDBExists() {
+        boolean exists = Files.exists(path);
+        System.out.println(exists ? "The log store file exists." : "The log store file does not exist.");
+        return exists;
+    }
+
+    /**
+     * Stops the periodic compaction, forces pending writes to disk and closes the log file.
+     */
+    @Override
+    public void closeConnection() {
+        synchronized (this) {
+            if (compactor != null) compactor.shutdown();
+        }
+        lock.writeLock().lock();
+        try {
+            if (buffer != null) buffer.force();
+            if (channel != null) channel.close();
+            buffer = null;
+            System.out.println("Log store successfully closed.");
+        } catch (IOException ioe) {
+            System.err.println("ERROR: An error occurred while closing the log store: " + ioe.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param extension Extension added to the log file name.
+     * @return Path of a side file of the log, e.g. the result of a compaction.
+     */
+    private Path sidePath(String extension) {
+        return path.resolveSibling(path.getFileName() + extension);
+    }
+
+    /**
+     * Opens the log file, writes the header if the file is new and replays the records to rebuild the indexes.
+     * A compaction interrupted while copying its result over the log is finished first.
+     * @throws IOException If the file can't be opened or isn't a log store file.
+     */
+    private void open() throws IOException {
+        Path compacted = sidePath(".compacted");
+        if (Files.exists(compacted)) { // A compaction was interrupted while copying its result over the log
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.deleteIfExists(sidePath(".compact"));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if (size > MAX_LOG_SIZE) {
+            channel.close();
+            throw new IOException("The log store file is larger than " + MAX_LOG_SIZE + " bytes: " + path);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(MAX_LOG_SIZE, Math.max(INITIAL_MAPPING, roundUp(size))));
+        if (size == 0) {
+            buffer.put(0, header(), 0, HEADER_SIZE);
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            channel.close();
+            throw new IOException("Not a log store file: " + path);
+        }
+        replay();
+    }
+
+    /**
+     * Replays the records of the mapping to rebuild the indexes and find the end of the log.
+     */
+    private void replay() {
+        employeeIndex = new IntLongHashMap();
+        departmentIndex = new IntLongHashMap();
+        deadRecords = 0;
+        long position = HEADER_SIZE;
+        while (position + RECORD_SIZE <= buffer.capacity() && buffer.get((int) position + OFF_KIND) != 0) {
+            if (!validRecord(position)) {
+                System.err.println("WARNING: Discarding torn log record at offset " + position);
+                break;
+            }
+            index(position);
+            position += RECORD_SIZE;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * Updates the indexes with the record at the given offset.
+     * @param offset Offset of the record.
+     */
+    private void index(long offset) {
+        int o = (int) offset;
+        IntLongHashMap index = buffer.get(o + OFF_KIND) == KIND_EMPLOYEE ? employeeIndex : departmentIndex;
+        int id = buffer.getInt(o + OFF_ID);
+        long previous;
+        if (buffer.get(o + OFF_OP) == OP_DELETE) {
+            previous = index.remove(id);
+            deadRecords++; // The delete record itself is never live
+        } else {
+            previous = index.put(id, offset);
+        }
+        if (previous != IntLongHashMap.NO_VALUE) deadRecords++;
+    }
+
+    /**
+     * Appends an employee record. The current record is read and checked under the same write lock as the append, so an
+     * update or delete can't bring back or delete again an employee deleted by another thread meanwhile.
+     * @param employee Employee to write. A delete writes the fields of the current record instead.
+     * @param op Operation (put or delete).
+     * @param mustExist true to append nothing if the employee doesn't exist (updates and deletes).
+     * @return The employee replaced or deleted, or null if there wasn't any.
+     * @throws IOException If the log can't grow or be forced to disk.
+     */
+    private Employee appendEmployee(Employee employee, byte op, boolean mustExist) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (buffer == null) throw new IOException("The log store is closed");
+            long offset = employeeIndex.get(employee.getEmpno());
+            Employee current = offset == IntLongHashMap.NO_VALUE ? null : readEmployee(offset);
+            if (current == null && mustExist) return null;
+            Employee written = op == OP_DELETE ? current : employee;
+            append(KIND_EMPLOYEE, op, written.getEmpno(), written.getDepno(), written.getName(), written.getPosition());
+            return current;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a department record, checking the current one under the same write lock, see
+     * {@link #appendEmployee(Employee, byte, boolean)}.
+     * @param department Department to write. A delete writes the fields of the current record instead.
+     * @param op Operation (put or delete).
+     * @param mustExist true to append nothing if the department doesn't exist (updates and deletes).
+     * @return The department replaced or deleted, or null if there wasn't any.
+     * @throws IOException If the log can't grow or be forced to disk.
+     */
+    private Department appendDepartment(Department department, byte op, boolean mustExist) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (buffer == null) throw new IOException("The log store is closed");
+            long offset = departmentIndex.get(department.getDepno());
+            Department current = offset == IntLongHashMap.NO_VALUE ? null : readDepartment(offset);
+            if (current == null && mustExist) return null;
+            Department written = op == OP_DELETE ? current : department;
+            append(KIND_DEPARTMENT, op, written.getDepno(), null, written.getName(), written.getLocation());
+            return current;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Encodes and appends one record, growing the mapping if needed, and updates the indexes.
+     * @param kind Record kind.
+     * @param op Operation.
+     * @param id Business ID.
+     * @param depno Department of the employee, or null.
+     * @param first Name.
+     * @param second Position (employees) or location (departments).
+     * @throws IOException If the log can't grow (e.g. it is full even after a compaction) or be forced to disk.
+     */
+    private void append(byte kind, byte op, int id, Integer depno, String first, String second) throws IOException {
+        byte[] record = encode(kind, op, id, depno, first, second);
+        lock.writeLock().lock();
+        try {
+            if (buffer == null) throw new IOException("The log store is closed");
+            if (writePosition + RECORD_SIZE > MAX_LOG_SIZE && (deadRecords == 0 || !compact() || writePosition + RECORD_SIZE > MAX_LOG_SIZE)) {
+                throw new IOException("The log store is full (" + MAX_LOG_SIZE + " bytes)");
+            }
+            if (writePosition + RECORD_SIZE > buffer.capacity()) {
+                buffer.force();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(MAX_LOG_SIZE, (long) buffer.capacity() * 2));
+            }
+            buffer.put((int) writePosition, record);
+            if (syncOnWrite) buffer.force((int) writePosition, RECORD_SIZE);
+            index(writePosition);
+            writePosition += RECORD_SIZE;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Builds the bytes of one record, including its CRC.
+     * @param kind Record kind.
+     * @param op Operation.
+     * @param id Business ID.
+     * @param depno Department of the employee, or null.
+     * @param first Name.
+     * @param second Position (employees) or location (departments).
+     * @return The encoded record.
+     */
+    private static byte[] encode(byte kind, byte op, int id, Integer depno, String first, String second) {
+        ByteBuffer b = ByteBuffer.allocate(RECORD_SIZE);
+        byte flags = (byte) ((first == null ? NULL_FIRST : 0) | (second == null ? NULL_SECOND : 0) | (depno == null ? NULL_DEPNO : 0));
+        b.put(OFF_KIND, kind).put(OFF_OP, op).put(OFF_FLAGS, flags).putInt(OFF_ID, id).putInt(OFF_DEPNO, depno == null ? 0 : depno);
+        putString(b, OFF_FIRST, first);
+        putString(b, OFF_SECOND, second);
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), 0, OFF_CRC);
+        b.putInt(OFF_CRC, (int) crc.getValue());
+        return b.array();
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string field.
+     * @param b Record buffer.
+     * @param offset Offset of the field.
+     * @param value String value (null is written as empty, the null flag tells them apart).
+     */
+    private static void putString(ByteBuffer b, int offset, String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("'" + value + "' is longer than " + MAX_STRING_BYTES + " bytes");
+        }
+        b.putShort(offset, (short) bytes.length);
+        b.put(offset + 2, bytes);
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string field from the mapping.
+     * @param offset Offset of the field.
+     * @return The string value.
+     */
+    private String getString(int offset) {
+        byte[] bytes = new byte[buffer.getShort(offset)];
+        buffer.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the employee record at the given offset.
+     * @param offset Offset of the record.
+     * @return New {@link Employee} object.
+     */
+    private Employee readEmployee(long offset) {
+        int o = (int) offset;
+        byte flags = buffer.get(o + OFF_FLAGS);
+        return new Employee(buffer.getInt(o + OFF_ID),
+                (flags & NULL_FIRST) != 0 ? null : getString(o + OFF_FIRST),
+                (flags & NULL_SECOND) != 0 ? null : getString(o + OFF_SECOND),
+                (flags & NULL_DEPNO) != 0 ? null : buffer.getInt(o + OFF_DEPNO));
+    }
+
+    /**
+     * Decodes the department record at the given offset.
+     * @param offset Offset of the record.
+     * @return New {@link Department} object.
+     */
+    private Department readDepartment(long offset) {
+        int o = (int) offset;
+        byte flags = buffer.get(o + OFF_FLAGS);
+        return new Department(buffer.getInt(o + OFF_ID),
+                (flags & NULL_FIRST) != 0 ? null : getString(o + OFF_FIRST),
+                (flags & NULL_SECOND) != 0 ? null : getString(o + OFF_SECOND));
+    }
+
+    /**
+     * Checks the CRC and the kind and operation bytes of the record at the given offset.
+     * @param offset Offset of the record.
+     * @return true if the record is complete and consistent.
+     */
+    private boolean validRecord(long offset) {
+        byte[] record = new byte[RECORD_SIZE];
+        buffer.get((int) offset, record);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, OFF_CRC);
+        ByteBuffer b = ByteBuffer.wrap(record);
+        byte kind = b.get(OFF_KIND), op = b.get(OFF_OP);
+        return b.getInt(OFF_CRC) == (int) crc.getValue()
+                && (kind == KIND_EMPLOYEE || kind == KIND_DEPARTMENT) && (op == OP_PUT || op == OP_DELETE);
+    }
+
+    /**
+     * Copies the live records of an index at the end of the compacted file.
+     * @param out Channel of the compacted file.
+     * @param index Index of the live records.
+     * @throws IOException If the compacted file can't be written.
+     */
+    private void copyLive(FileChannel out, IntLongHashMap index) throws IOException {
+        byte[] record = new byte[RECORD_SIZE];
+        for (int id : index.keys()) {
+            buffer.get((int) index.get(id), record);
+            out.write(ByteBuffer.wrap(record));
+        }
+    }
+
+    /**
+     * Builds the file header.
+     * @return Header bytes ready to be written.
+     */
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION);
+        header.clear();
+        return header;
+    }
+
+    /**
+     * Rounds a file size up to the next power of two, so remappings double the region.
+     * @param size File size.
+     * @return Mapping size.
+     */
+    private static long roundUp(long size) {
+        return size <= 1 ? 1 : Long.highestOneBit(size - 1) << 1;
+    }
+}
@@ -18,8 +18,8 @@ public interface Menu {
     public void executeMenu();
     /**
      * Method to display a table with all {@link Employee}s stored.
-     * This method displays all Employees information in a table view from a list that is returned by {@link IDAO}'s corresponding method, that will be called inside.
-     * If the returned list is empty, a message notifying it will be shown.
+     * This method displays all Employees information in a table view, one page at a time: the user moves to the next or previous page or stops the listing.
+     * If there are no Employees, a message notifying it will be shown.
      */
     public void executeFindAllEmployees();
     /**
@@ -49,8 +49,8 @@ public interface Menu {
     public void executeDeleteEmployee();
     /**
      * Method to display a table with all {@link Department}s stored.
-     * This method displays all Departments information in a table view from a list that is returned by {@link IDAO}'s corresponding method, that will be called inside.
-     * If the returned list is empty, a message notifying it will be shown.
+     * This method displays all Departments information in a table view, one page at a time: the user moves to the next or previous page or stops the listing.
+     * If there are no Departments, a message notifying it will be shown.
      */
     public void executeFindAllDepartments();
     /**
@@ -80,8 +80,14 @@ public interface Menu {
     public void executeDeleteDepartment();
     /**
      * Method to display a table with all {@link Employee}s from a {@link Department} stored.
-     * This method lists all Employees that belong to a Department in a table view from a list that is returned by {@link IDAO}'s corresponding method, that will be called inside.
-     * If the returned list is empty, a message notifying it will be shown.
+     * This method lists all Employees that belong to a Department in a table view, one page at a time: the user moves to the next or previous page or stops the listing.
+     * If the Department has no Employees, a message notifying it will be shown.
      */
     public void executeFindEmployeesByDept();
+    /**
+     * Method to explain how a query on the {@link Employee}s is executed.
+     * This method asks the user for the query conditions, runs the query and displays its plan, candidates, results and time.
+     * If the conditions are not valid, an error will be shown.
+     */
+    public void executeExplainQuery();
 }
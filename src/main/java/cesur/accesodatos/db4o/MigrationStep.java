@@ -0,0 +1,41 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.ObjectContainer;
+
+/**
+ * Versioned transformation applied by {@link SchemaMigrator} to every object of a database file.
+ * Steps are applied in version order, and only the steps with a version greater than the one recorded in the source file's
+ * {@link SchemaVersion} are applied. {@link #transform(Object)} is called from several threads at once, so it must be thread-safe.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public interface MigrationStep {
+    /**
+     * @return Schema version the data has after this step. Every step of a migration must have a different version.
+     */
+    public int getVersion();
+    /**
+     * @return Short description of the change, shown in the migration output.
+     */
+    public String getDescription();
+    /**
+     * Method called once before any object is transformed, e.g. to load lookup data stored in the target.
+     * In dry-run mode the target is an empty in-memory container that is discarded afterwards.
+     * @param target Container the migrated objects are written to.
+     */
+    public default void prepare(ObjectContainer target) {
+    }
+    /**
+     * Method to transform one object. Objects the step isn't interested in must be returned unchanged.
+     * @param record Object read from the source file (or returned by the previous step), activated to depth 1.
+     * @return Object to store in the target file, or null to drop the object.
+     */
+    public Object transform(Object record);
+    /**
+     * Method called before every commit of the target, so the state kept by the step (e.g. lookup data) is committed in the
+     * same transaction as the objects that depend on it. It is not called in dry-run mode.
+     * @param target Container the migrated objects are written to.
+     */
+    public default void beforeCommit(ObjectContainer target) {
+    }
+}
@@ -0,0 +1,304 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.ObjectContainer;
+import com.db4o.diagnostic.Diagnostic;
+import com.db4o.diagnostic.DiagnosticBase;
+import com.db4o.diagnostic.DiagnosticListener;
+import com.db4o.diagnostic.LoadedFromClassIndex;
+import com.db4o.diagnostic.NativeQueryNotOptimized;
+import com.db4o.diagnostic.NativeQueryOptimizerNotLoaded;
+import com.db4o.events.EventRegistryFactory;
+import com.db4o.ext.StoredClass;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Query diagnostics of a db4o container: for every query run through {@link #start(String, Class)} and {@link #finish(Probe, long)}
+ * it records a {@link QueryProfile} with the query shape, how db4o executed it, the candidate, result and activation counts
+ * and the elapsed time. The execution mode comes from the diagnostics db4o reports while the query runs (a
+ * {@link LoadedFromClassIndex} diagnostic means no field index could be used and every instance of the class was a candidate,
+ * and a {@link NativeQueryNotOptimized} or {@link NativeQueryOptimizerNotLoaded} one that a native query was evaluated object
+ * by object instead of being optimized to SODA). Only the public db4o API is used.
+ *
+ * Queries slower than a threshold are appended to a slow-query log, rotated when it exceeds {@link #MAX_LOG_BYTES} bytes
+ * keeping {@link #LOG_FILES} old files. Probes are per thread, so concurrent queries are measured separately. Lookups that
+ * don't run a query (identity maps, cached results) are not profiled, as a probe would cost more than the lookup itself.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class QueryDiagnostics implements DiagnosticListener {
+
+    /**
+     * DEFAULT_SLOW_THRESHOLD_MILLIS -> Default duration above which a query is written to the slow-query log.
+     */
+    public static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 100;
+    /**
+     * MAX_LOG_BYTES -> Size above which the slow-query log is rotated.
+     */
+    public static final long MAX_LOG_BYTES = 1 << 20;
+    /**
+     * LOG_FILES -> Number of rotated slow-query logs kept (".1" is the most recent one).
+     */
+    public static final int LOG_FILES = 3;
+    /**
+     * Number of recent profiles kept in memory.
+     */
+    private static final int RECENT_PROFILES = 100;
+
+    /**
+     * Query being measured in the current thread.
+     */
+    private final ThreadLocal<Probe> current = new ThreadLocal<>();
+    /**
+     * Path of the slow-query log.
+     */
+    private final Path slowLog;
+    /**
+     * Most recent profiles, oldest first.
+     */
+    private final Deque<QueryProfile> recent = new ArrayDeque<>();
+    /**
+     * Container whose queries are measured, used to count class instances.
+     */
+    private ObjectContainer db;
+    /**
+     * Duration above which a query is written to the slow-query log.
+     */
+    private volatile long slowThresholdMillis = DEFAULT_SLOW_THRESHOLD_MILLIS;
+    /**
+     * Number of measured and of slow queries.
+     */
+    private long queries, slowQueries;
+
+    /**
+     * Query being measured. Obtained from {@link #start(String, Class)} and passed to {@link #finish(Probe, long)}.
+     */
+    public static final class Probe {
+        /**
+         * Time the query started, in nanoseconds and in milliseconds since the epoch.
+         */
+        private final long startNanos = System.nanoTime();
+        private final long startMillis = System.currentTimeMillis();
+        /**
+         * Description of the query.
+         */
+        private final String shape;
+        /**
+         * Class queried, used to count the candidates of a class index scan.
+         */
+        private final Class<?> extent;
+        /**
+         * Execution mode set by the caller or reported by db4o, or null.
+         */
+        private String mode;
+        /**
+         * Number of candidates set by the caller, or -1.
+         */
+        private long candidates = -1;
+        /**
+         * true if db4o reported a class index scan.
+         */
+        private boolean classIndexScan;
+        /**
+         * Number of activations while the query ran.
+         */
+        private long activations;
+        /**
+         * db4o diagnostics reported while the query ran.
+         */
+        private final List<String> notes = new ArrayList<>();
+
+        /**
+         * @param shape Description of the query.
+         * @param extent Class queried.
+         */
+        private Probe(String shape, Class<?> extent) {
+            this.shape = shape;
+            this.extent = extent;
+        }
+
+        /**
+         * Sets the execution mode of a query that didn't run as a plain db4o query, e.g. "department cache".
+         * @param mode Execution mode.
+         * @param candidates Number of objects considered.
+         */
+        public void setMode(String mode, long candidates) {
+            this.mode = mode;
+            this.candidates = candidates;
+        }
+
+        /**
+         * Marks the query as a read of every object of the class, e.g. a query without constraints.
+         * db4o only reports class index scans of constrained queries, so these have to be marked by the caller.
+         */
+        public void setClassIndexScan() {
+            this.classIndexScan = true;
+        }
+    }
+
+    /**
+     * Creates the diagnostics. It must be added as diagnostic listener to the configuration used to open the container,
+     * and then attached to the container with {@link #attach(ObjectContainer)}.
+     * @param slowLog Path of the slow-query log.
+     */
+    public QueryDiagnostics(Path slowLog) {
+        this.slowLog = slowLog;
+    }
+
+    /**
+     * Starts listening to the activations of a container.
+     * @param db Container opened with this object as diagnostic listener.
+     */
+    public void attach(ObjectContainer db) {
+        this.db = db;
+        EventRegistryFactory.forObjectContainer(db).activated().addListener((event, args) -> {
+            Probe probe = current.get();
+            if (probe != null) probe.activations++;
+        });
+    }
+
+    /**
+     * Starts measuring a query in the current thread.
+     * @param shape Description of the query, without the values of its parameters.
+     * @param extent Class queried.
+     * @return Probe to pass to {@link #finish(Probe, long)}.
+     */
+    public Probe start(String shape, Class<?> extent) {
+        Probe probe = new Probe(shape, extent);
+        current.set(probe);
+        return probe;
+    }
+
+    /**
+     * Finishes measuring a query: records its profile and writes it to the slow-query log if it exceeded the threshold.
+     * @param probe Probe returned by {@link #start(String, Class)}.
+     * @param results Number of objects returned by the query.
+     * @return Profile of the query.
+     */
+    public QueryProfile finish(Probe probe, long results) {
+        long elapsed = System.nanoTime() - probe.startNanos;
+        if (current.get() == probe) current.remove();
+        String mode = probe.mode != null ? probe.mode : probe.classIndexScan ? "class index scan" : "field index";
+        long candidates = probe.candidates >= 0 ? probe.candidates : probe.classIndexScan || probe.mode != null ? instanceCount(probe.extent) : results;
+        QueryProfile profile = new QueryProfile(Instant.ofEpochMilli(probe.startMillis), probe.shape, mode, candidates, results, probe.activations,
+                elapsed, List.copyOf(probe.notes));
+        boolean slow = elapsed >= slowThresholdMillis * 1_000_000;
+        synchronized (this) {
+            queries++;
+            if (slow) slowQueries++;
+            recent.addLast(profile);
+            if (recent.size() > RECENT_PROFILES) recent.removeFirst();
+        }
+        if (slow) writeSlow(profile);
+        return profile;
+    }
+
+    /**
+     * Method called by db4o with the diagnostics of the queries run in the current thread.
+     * @param diagnostic Reported diagnostic.
+     */
+    @Override
+    public void onDiagnostic(Diagnostic diagnostic) {
+        Probe probe = current.get();
+        if (probe == null) return;
+        if (diagnostic instanceof LoadedFromClassIndex) probe.classIndexScan = true;
+        if (diagnostic instanceof NativeQueryNotOptimized || diagnostic instanceof NativeQueryOptimizerNotLoaded) {
+            probe.mode = "native query UNOPTIMIZED";
+        }
+        String problem = diagnostic instanceof DiagnosticBase base ? ": " + base.problem() : "";
+        probe.notes.add(diagnostic.getClass().getSimpleName() + problem);
+    }
+
+    /**
+     * @param millis Duration above which a query is written to the slow-query log. 0 logs every query.
+     */
+    public void setSlowThresholdMillis(long millis) {
+        this.slowThresholdMillis = millis;
+    }
+
+    /**
+     * @return Duration above which a query is written to the slow-query log.
+     */
+    public long getSlowThresholdMillis() {
+        return slowThresholdMillis;
+    }
+
+    /**
+     * @return Number of measured queries.
+     */
+    public synchronized long getQueryCount() {
+        return queries;
+    }
+
+    /**
+     * @return Number of queries that exceeded the threshold.
+     */
+    public synchronized long getSlowQueryCount() {
+        return slowQueries;
+    }
+
+    /**
+     * @return The most recent profiles, oldest first.
+     */
+    public synchronized List<QueryProfile> getRecent() {
+        return new ArrayList<>(recent);
+    }
+
+    /**
+     * @return Path of the slow-query log.
+     */
+    public Path getSlowLog() {
+        return slowLog;
+    }
+
+    /**
+     * Counts the stored instances of a class.
+     * @param extent Class to count.
+     * @return Number of instances, or -1 if unknown.
+     */
+    private long instanceCount(Class<?> extent) {
+        StoredClass storedClass = db == null ? null : db.ext().storedClass(extent);
+        return storedClass == null ? -1 : storedClass.instanceCount();
+    }
+
+    /**
+     * Appends a profile to the slow-query log, rotating it first if it is full.
+     * @param profile Profile of a slow query.
+     */
+    private synchronized void writeSlow(QueryProfile profile) {
+        try {
+            if (Files.exists(slowLog) && Files.size(slowLog) >= MAX_LOG_BYTES) {
+                for (int i = LOG_FILES - 1; i >= 1; i--) {
+                    Path older = rotated(i);
+                    if (Files.exists(older)) Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.move(slowLog, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (Writer out = Files.newBufferedWriter(slowLog, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(profile.toLogLine());
+                out.write(System.lineSeparator());
+            }
+        } catch (IOException ioe) {
+            System.err.println("ERROR: Unable to write the slow-query log - " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * @param n Rotation number.
+     * @return Path of the n-th rotated log.
+     */
+    private Path rotated(int n) {
+        return slowLog.resolveSibling(slowLog.getFileName() + "." + n);
+    }
+}
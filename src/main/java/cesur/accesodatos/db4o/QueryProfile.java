@@ -0,0 +1,52 @@
+package cesur.accesodatos.db4o;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Execution details of one query, recorded by {@link QueryDiagnostics}.
+ *
+ * @param startedAt Time the query started.
+ * @param shape Description of the query, e.g. "Employee where depno = ?".
+ * @param mode How the query was executed: "field index", "class index scan", "native query UNOPTIMIZED", "department cache"...
+ * @param candidates Number of objects the query had to consider.
+ * @param results Number of objects returned.
+ * @param activations Number of objects activated while the query ran.
+ * @param elapsedNanos Duration of the query in nanoseconds.
+ * @param notes db4o diagnostics reported while the query ran.
+ * @author Marc Albert Seguí Olmos
+ */
+public record QueryProfile(Instant startedAt, String shape, String mode, long candidates, long results, long activations,
+                           long elapsedNanos, List<String> notes) {
+
+    /**
+     * @return Duration of the query in milliseconds.
+     */
+    public double getElapsedMillis() {
+        return elapsedNanos / 1e6;
+    }
+
+    /**
+     * @return One tab-separated line, as written to the slow-query log.
+     */
+    public String toLogLine() {
+        return String.join("\t", startedAt.toString(), String.format("%.3f ms", getElapsedMillis()), mode,
+                "candidates=" + candidates, "results=" + results, "activations=" + activations, shape, String.join("; ", notes));
+    }
+
+    /**
+     * @return Table with every detail of the query, as shown by the explain menu option.
+     */
+    public String toExplain() {
+        String row = "+" + "-".repeat(14) + "+" + "-".repeat(52) + "+\n";
+        StringBuilder sb = new StringBuilder(row);
+        sb.append(String.format("| %-12s | %-50s |%n", "Query", shape));
+        sb.append(String.format("| %-12s | %-50s |%n", "Mode", mode));
+        sb.append(String.format("| %-12s | %-50d |%n", "Candidates", candidates));
+        sb.append(String.format("| %-12s | %-50d |%n", "Results", results));
+        sb.append(String.format("| %-12s | %-50d |%n", "Activations", activations));
+        sb.append(String.format("| %-12s | %-50s |%n", "Elapsed", String.format("%.3f ms", getElapsedMillis())));
+        for (String note : notes) sb.append(String.format("| %-12s | %-50s |%n", "Diagnostic", note));
+        return sb.append(row).toString();
+    }
+}
@@ -0,0 +1,192 @@
+package cesur.accesodatos.db4o;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Secondary copy of a primary database kept up to date from the primary's {@link ChangeFeed}.
+ * The replica opens its own ".yap" file through a {@link db4oDAO}, copies the primary's content once at startup and then
+ * applies every committed change on the feed's dispatcher thread. Reads served by {@link #getDAO()} therefore never touch the
+ * primary's container.
+ *
+ * If the replica misses events (its subscription buffer overflowed), it catches up by replaying the feed's change log when
+ * there is one, or by copying the whole primary again otherwise; give the feed a log when the replica may fall behind often. Replication lag is exposed in events and in milliseconds.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ReadReplica implements AutoCloseable {
+
+    /**
+     * COPY_PAGE_SIZE -> Records read at once from the primary during a full copy.
+     */
+    static final int COPY_PAGE_SIZE = 1000;
+
+    /**
+     * DAO over the replica's database file.
+     */
+    private final db4oDAO replica;
+    /**
+     * Primary DAO, used for full copies.
+     */
+    private final db4oDAO primary;
+    /**
+     * Change feed of the primary.
+     */
+    private final ChangeFeed feed;
+    /**
+     * Subscription delivering the primary's changes.
+     */
+    private final ChangeFeed.Subscription subscription;
+    /**
+     * Sequence number of the last change applied to the replica.
+     */
+    private volatile long appliedSequence;
+    /**
+     * Time in milliseconds between the primary's commit and its application on the replica, for the last applied change.
+     */
+    private volatile long applyDelay;
+
+    /**
+     * Opens the replica file, copies the primary's content into it and starts following the primary's changes.
+     * @param primary Primary DAO.
+     * @param feed Change feed of the primary.
+     * @param replicaPath Path of the replica's database file.
+     */
+    public ReadReplica(db4oDAO primary, ChangeFeed feed, String replicaPath) {
+        this.primary = primary;
+        this.feed = feed;
+        this.replica = new db4oDAO(replicaPath);
+        // Subscribe before copying so no change committed during the copy is missed; re-applying one is harmless
+        this.subscription = feed.subscribe(this::onChange);
+        synchronized (this) {
+            fullCopy();
+        }
+    }
+
+    /**
+     * @return DAO reading from the replica's database file.
+     */
+    public db4oDAO getDAO() {
+        return replica;
+    }
+
+    /**
+     * @return Sequence number of the last change applied to the replica.
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return Number of changes committed on the primary and not yet applied to the replica.
+     */
+    public long getLagEvents() {
+        return Math.max(0, feed.getLastSequence() - appliedSequence);
+    }
+
+    /**
+     * @return Milliseconds between the primary's commit and the replica's application of the last applied change, or 0 if the replica is caught up.
+     */
+    public long getLagMillis() {
+        return getLagEvents() == 0 ? 0 : applyDelay;
+    }
+
+    /**
+     * Stops following the primary and closes the replica's database file.
+     */
+    @Override
+    public void close() {
+        subscription.close();
+        synchronized (this) {
+            replica.closeConnection();
+        }
+    }
+
+    /**
+     * Applies one change of the primary. Already applied changes are skipped and gaps in the sequence trigger a catch-up.
+     * @param event Change published by the primary.
+     */
+    private synchronized void onChange(ChangeEvent event) {
+        if (event.getSequence() <= appliedSequence) return;
+        if (event.getSequence() != appliedSequence + 1) { // Events were dropped for this replica
+            catchUp();
+            if (event.getSequence() <= appliedSequence) return;
+        }
+        if (replica.applyChange(event)) {
+            appliedSequence = event.getSequence();
+            applyDelay = System.currentTimeMillis() - event.getTimestamp();
+        }
+    }
+
+    /**
+     * Recovers missed changes from the feed's change log, or copies the whole primary if the feed has no log.
+     * The replay stops at the first change the replica can't apply, so {@link #appliedSequence} never moves past it, and the
+     * primary is copied again instead.
+     */
+    private void catchUp() {
+        if (feed.hasLog()) {
+            boolean[] failed = {false};
+            try {
+                feed.replay(appliedSequence, e -> {
+                    if (failed[0]) return; // Skip everything after the failed change
+                    if (replica.applyChange(e)) appliedSequence = e.getSequence();
+                    else failed[0] = true;
+                });
+                if (!failed[0]) return;
+                System.err.println("ERROR: Unable to apply change " + (appliedSequence + 1) + " of the change log, copying the primary again");
+            } catch (IOException ioe) {
+                System.err.println("ERROR: Unable to replay the change log, copying the primary again - " + ioe.getMessage());
+            }
+        }
+        fullCopy();
+    }
+
+    /**
+     * Makes the replica equal to the primary: upserts every primary record and deletes the replica records the primary doesn't have.
+     * The primary is read page by page in business ID order, so it is never loaded whole, and every change is applied in one
+     * transaction of the replica, so the copy costs a single commit (records that didn't change are not even stored again).
+     * If the copy fails it is rolled back and the replica keeps its previous content and sequence.
+     */
+    private void fullCopy() {
+        long sequence = feed.getLastSequence();
+        replica.begin();
+        try {
+            Integer after = null;
+            for (List<Department> page; !(page = primary.findDepartmentsAfter(after, COPY_PAGE_SIZE)).isEmpty(); ) {
+                for (Department d : page) apply(ChangeEvent.Type.UPDATED, sequence, ChangeEvent.snapshot(d));
+                after = page.get(page.size() - 1).getDepno();
+            }
+            after = null;
+            for (List<Employee> page; !(page = primary.findEmployeesAfter(after, COPY_PAGE_SIZE)).isEmpty(); ) {
+                for (Employee e : page) apply(ChangeEvent.Type.UPDATED, sequence, ChangeEvent.snapshot(e));
+                after = page.get(page.size() - 1).getEmpno();
+            }
+            after = null;
+            for (List<Department> page; !(page = replica.findDepartmentsAfter(after, COPY_PAGE_SIZE)).isEmpty(); ) {
+                for (Department d : page) {
+                    if (!primary.hasDepartment(d.getDepno())) apply(ChangeEvent.Type.DELETED, sequence, ChangeEvent.snapshot(d));
+                }
+                after = page.get(page.size() - 1).getDepno();
+            }
+            for (int empno : replica.findAllEmpnos()) {
+                if (!primary.hasEmployee(empno)) apply(ChangeEvent.Type.DELETED, sequence, new Employee(empno, null, null, null));
+            }
+        } catch (RuntimeException e) {
+            replica.rollback();
+            System.err.println("ERROR: Unable to copy the primary into the replica - " + e.getMessage());
+            return;
+        }
+        if (replica.commit()) appliedSequence = Math.max(appliedSequence, sequence); // Rolled back instead if an apply failed
+        else System.err.println("ERROR: Unable to copy the primary into the replica");
+    }
+
+    /**
+     * Applies one change of the full copy to the replica, inside the copy's transaction.
+     * @param type Kind of change.
+     * @param sequence Sequence of the primary when the copy started.
+     * @param record Copy of the record.
+     */
+    private void apply(ChangeEvent.Type type, long sequence, Object record) {
+        replica.applyChange(new ChangeEvent(sequence, System.currentTimeMillis(), type, 0, record));
+    }
+}
@@ -0,0 +1,286 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.ObjectContainer;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps the db4o reference system of a {@link db4oDAO} (the table of the objects its container has loaded) from growing with
+ * every object a scan loads.
+ * <ul>
+ *     <li>Scans add the objects they are done with to a {@link Batch}, which removes them from the reference system
+ *     ({@code ext().purge(Object)}) every {@link ReferenceSettings#purgeBatchSize()} objects. Objects read through a private
+ *     session are also deactivated, so their fields are freed; objects of the DAO's container may have been returned to other
+ *     threads, so they are only purged: they stay usable but the container stops referencing them.</li>
+ *     <li>A heap monitor sets a collection usage threshold on the heap pools that support it ({@link MemoryPoolMXBean}); when the
+ *     heap is still above it after a garbage collection, the whole container is purged ({@code ext().purge()}).</li>
+ * </ul>
+ * An object being modified must not be purged, or storing it again would add a copy, and an object must not be purged between
+ * its load and its activation. Purges of the DAO's container therefore run holding its write lock and the write side of
+ * {@link #readGuard()}, and are skipped (the objects are left to the weak references) if another thread is writing or the
+ * current thread has a transaction open.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ReferenceManager implements AutoCloseable {
+
+    /**
+     * MIN_PRESSURE_INTERVAL_NANOS -> Minimum time between two purges triggered by the heap monitor.
+     */
+    static final long MIN_PRESSURE_INTERVAL_NANOS = 1_000_000_000L;
+
+    /**
+     * Container whose reference system is managed.
+     */
+    private final ObjectContainer db;
+    /**
+     * Write lock of the DAO, held while purging.
+     */
+    private final ReentrantLock writeLock;
+    /**
+     * Tells if the current thread has a transaction open.
+     */
+    private final BooleanSupplier inTransaction;
+    /**
+     * Settings of the manager.
+     */
+    private final ReferenceSettings settings;
+    /**
+     * Held for reading while an object of the container is loaded and activated, and for writing while purging.
+     */
+    private final ReentrantReadWriteLock guard = new ReentrantReadWriteLock();
+    /**
+     * Listener of the heap monitor, or null if it is disabled.
+     */
+    private NotificationListener heapListener;
+    /**
+     * Objects removed from the reference system.
+     */
+    private final AtomicLong purged = new AtomicLong();
+    /**
+     * Objects left in the reference system because a write was in progress.
+     */
+    private final AtomicLong skipped = new AtomicLong();
+    /**
+     * Purges triggered by the heap monitor.
+     */
+    private final AtomicLong pressurePurges = new AtomicLong();
+    /**
+     * Time of the last purge triggered by the heap monitor.
+     */
+    private volatile long lastPressurePurge = System.nanoTime() - MIN_PRESSURE_INTERVAL_NANOS;
+
+    /**
+     * Creates the manager and starts the heap monitor if the settings enable it.
+     * @param db Container whose reference system is managed.
+     * @param writeLock Write lock of the DAO.
+     * @param inTransaction Tells if the current thread has a transaction open.
+     * @param settings Settings of the manager.
+     */
+    ReferenceManager(ObjectContainer db, ReentrantLock writeLock, BooleanSupplier inTransaction, ReferenceSettings settings) {
+        this.db = db;
+        this.writeLock = writeLock;
+        this.inTransaction = inTransaction;
+        this.settings = settings;
+        if (settings.heapThreshold() > 0) startHeapMonitor();
+    }
+
+    /**
+     * Objects of one scan waiting to be released, flushed every {@link ReferenceSettings#purgeBatchSize()} objects and on close.
+     * A batch belongs to the thread running the scan.
+     */
+    public final class Batch implements AutoCloseable {
+
+        /**
+         * Container the objects were loaded from.
+         */
+        private final ObjectContainer container;
+        /**
+         * true if the container is a private session of the scan, whose objects nobody else holds.
+         */
+        private final boolean privateSession;
+        /**
+         * Objects waiting to be released.
+         */
+        private final List<Object> pending = new ArrayList<>();
+
+        /**
+         * @param container Container the objects were loaded from.
+         * @param privateSession true if the container is a private session of the scan.
+         */
+        private Batch(ObjectContainer container, boolean privateSession) {
+            this.container = container;
+            this.privateSession = privateSession;
+        }
+
+        /**
+         * Adds an object the scan is done with.
+         * @param stored Object loaded from the container.
+         */
+        public void add(Object stored) {
+            pending.add(stored);
+            if (pending.size() >= settings.purgeBatchSize()) flush();
+        }
+
+        /**
+         * Releases the pending objects.
+         */
+        public void flush() {
+            if (pending.isEmpty()) return;
+            if (privateSession) {
+                for (Object stored : pending) {
+                    container.ext().deactivate(stored);
+                    container.ext().purge(stored);
+                }
+                purged.addAndGet(pending.size());
+            } else if (!exclusive(() -> {
+                for (Object stored : pending) container.ext().purge(stored);
+            })) {
+                skipped.addAndGet(pending.size()); // They may be part of a transaction in progress
+            } else {
+                purged.addAndGet(pending.size());
+            }
+            pending.clear();
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+
+    /**
+     * Starts a batch for a scan of the DAO's container. Its objects are only purged, as they may be in use elsewhere.
+     * @return New batch, to be closed at the end of the scan.
+     */
+    public Batch batch() {
+        return new Batch(db, false);
+    }
+
+    /**
+     * Starts a batch for a scan of a private session, whose objects are deactivated and purged.
+     * @param session Session opened by the scan and used by it only.
+     * @return New batch, to be closed at the end of the scan, before closing the session.
+     */
+    public Batch batch(ObjectContainer session) {
+        return new Batch(session, true);
+    }
+
+    /**
+     * Lock that readers of the DAO's container hold from loading an object until it is activated (or until they are done with
+     * it inside the container, e.g. reading its commit timestamp), so it isn't purged meanwhile. It is reentrant and readers
+     * don't block each other.
+     * @return Read side of the guard.
+     */
+    Lock readGuard() {
+        return guard.readLock();
+    }
+
+    /**
+     * Runs an action holding the write lock of the DAO and the write side of the guard, unless a write is in progress.
+     * @param action Action to run.
+     * @return true if the action ran.
+     */
+    private boolean exclusive(Runnable action) {
+        if (!writeLock.tryLock()) return false;
+        try {
+            if (inTransaction.getAsBoolean()) return false;
+            guard.writeLock().lock();
+            try {
+                action.run();
+                return true;
+            } finally {
+                guard.writeLock().unlock();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Purges the whole container (clean indexes and unused objects), unless a write is in progress.
+     * @return true if the container was purged.
+     */
+    public boolean purgeAll() {
+        return exclusive(() -> db.ext().purge());
+    }
+
+    /**
+     * Sets the collection usage threshold of the heap pools that support it and listens to the notifications of the JVM.
+     * The thresholds are global to the JVM, so they replace the ones set by other components.
+     */
+    private void startHeapMonitor() {
+        boolean monitored = false;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported() || max <= 0) continue;
+            pool.setCollectionUsageThreshold((long) (max * settings.heapThreshold()));
+            monitored = true;
+        }
+        if (!monitored) return; // E.g. a collector without collection usage thresholds
+        heapListener = (Notification notification, Object handback) -> {
+            if (notification.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) onHeapPressure();
+        };
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(heapListener, null, null);
+    }
+
+    /**
+     * Purges the container when the heap is over the threshold after a garbage collection, at most once per
+     * {@link #MIN_PRESSURE_INTERVAL_NANOS}.
+     */
+    void onHeapPressure() {
+        long now = System.nanoTime();
+        if (now - lastPressurePurge < MIN_PRESSURE_INTERVAL_NANOS) return;
+        lastPressurePurge = now;
+        if (purgeAll()) pressurePurges.incrementAndGet();
+    }
+
+    /**
+     * @return Objects removed from the reference system by the scans.
+     */
+    public long getPurged() {
+        return purged.get();
+    }
+
+    /**
+     * @return Objects the scans couldn't release because a write was in progress.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return Purges of the whole container triggered by the heap monitor.
+     */
+    public long getPressurePurges() {
+        return pressurePurges.get();
+    }
+
+    /**
+     * Stops the heap monitor.
+     */
+    @Override
+    public void close() {
+        if (heapListener == null) return;
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(heapListener);
+        } catch (ListenerNotFoundException ignored) {
+            // Already removed
+        }
+        heapListener = null;
+    }
+}
@@ -0,0 +1,31 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Settings of the db4o reference system of a {@link db4oDAO} (the table of the objects the container has loaded) and of the
+ * {@link ReferenceManager} that keeps it small.
+ *
+ * @param weakReferences true to reference the loaded objects weakly, so the garbage collector can reclaim the ones the
+ *                       application doesn't hold anymore. With false every loaded object stays in memory until it is purged.
+ * @param collectionIntervalMillis How often db4o removes the entries of the weakly referenced objects already collected, 0 to never do it.
+ * @param purgeBatchSize Number of objects a scan releases at once from the reference system.
+ * @param heapThreshold Fraction of the maximum old generation heap that, still used after a garbage collection, triggers a purge
+ *                      of the container; 0 to disable the heap monitor.
+ * @author Marc Albert Seguí Olmos
+ */
+public record ReferenceSettings(boolean weakReferences, int collectionIntervalMillis, int purgeBatchSize, double heapThreshold) {
+
+    /**
+     * DEFAULT -> db4o's defaults (weak references collected every second), batches of 1000 objects and purge at 80% of the heap.
+     */
+    public static final ReferenceSettings DEFAULT = new ReferenceSettings(true, 1000, 1000, 0.8);
+
+    /**
+     * Checks the settings.
+     * @throws IllegalArgumentException If a value is out of range.
+     */
+    public ReferenceSettings {
+        if (collectionIntervalMillis < 0) throw new IllegalArgumentException("The collection interval can't be negative");
+        if (purgeBatchSize < 1) throw new IllegalArgumentException("The purge batch size must be at least 1");
+        if (heapThreshold < 0 || heapThreshold >= 1) throw new IllegalArgumentException("The heap threshold must be between 0 and 1");
+    }
+}
@@ -0,0 +1,159 @@
+package cesur.accesodatos.db4o;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link IDAO} router over a primary database and one or more read replicas.
+ * Every write method goes to the primary {@link db4oDAO}, whose {@link ChangeFeed} keeps the {@link ReadReplica}s up to date,
+ * and every find method goes to the replicas in round-robin, so reporting reads don't compete with interactive writes for the
+ * same container. A replica lagging more than the configured number of events is skipped; if all of them lag, the read goes
+ * to the primary.
+ *
+ * Replicas are updated asynchronously, so a read issued right after a write may not see it yet.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ReplicatedDAO implements IDAO, FileHandlerInterface {
+
+    /**
+     * Primary DAO receiving all writes.
+     */
+    private final db4oDAO primary;
+    /**
+     * Replicas serving the reads.
+     */
+    private final List<ReadReplica> replicas = new ArrayList<>();
+    /**
+     * Round-robin counter used to pick the next replica.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+    /**
+     * Maximum number of pending events for a replica to be used for reads.
+     */
+    private volatile long maxLagEvents = Long.MAX_VALUE;
+
+    /**
+     * Creates the router and one replica per given path.
+     * @param primary Primary DAO.
+     * @param changeLogPath Path of the primary's change log used by lagging replicas to catch up, or null to fall back to full copies.
+     * @param replicaPaths Paths of the replica database files.
+     */
+    public ReplicatedDAO(db4oDAO primary, String changeLogPath, String... replicaPaths) {
+        if (replicaPaths.length == 0) throw new IllegalArgumentException("At least one replica is required");
+        this.primary = primary;
+        ChangeFeed feed = primary.openChangeFeed(changeLogPath);
+        if (feed == null) throw new IllegalStateException("The primary change feed could not be opened");
+        for (String path : replicaPaths) {
+            replicas.add(new ReadReplica(primary, feed, path));
+        }
+    }
+
+    /**
+     * Sets the maximum lag allowed for a replica to serve reads.
+     * @param maxLagEvents Maximum number of pending events. Use 0 to only read from fully caught up replicas.
+     */
+    public void setMaxLagEvents(long maxLagEvents) {
+        this.maxLagEvents = maxLagEvents;
+    }
+
+    /**
+     * @return The replicas of this router, to inspect their lag.
+     */
+    public List<ReadReplica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Chooses the DAO serving the next read: the next replica in round-robin whose lag is acceptable, or the primary if none is.
+     * @return DAO to read from.
+     */
+    private IDAO reader() {
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            ReadReplica replica = replicas.get((start + i) % replicas.size());
+            if (replica.getLagEvents() <= maxLagEvents) return replica.getDAO();
+        }
+        return primary;
+    }
+
+    @Override
+    public List<Employee> findAllEmployees() {
+        return reader().findAllEmployees();
+    }
+
+    @Override
+    public Employee findEmployeeById(Object id) {
+        return reader().findEmployeeById(id);
+    }
+
+    @Override
+    public void addEmployee(Employee employee) {
+        primary.addEmployee(employee);
+    }
+
+    @Override
+    public Employee updateEmployee(Object id) {
+        return primary.updateEmployee(id);
+    }
+
+    @Override
+    public Employee updateEmployee(Employee employee) {
+        return primary.updateEmployee(employee);
+    }
+
+    @Override
+    public Employee deleteEmployee(Object id) {
+        return primary.deleteEmployee(id);
+    }
+
+    @Override
+    public List<Department> findAllDepartments() {
+        return reader().findAllDepartments();
+    }
+
+    @Override
+    public Department findDepartmentById(Object id) {
+        return reader().findDepartmentById(id);
+    }
+
+    @Override
+    public void addDepartment(Department department) {
+        primary.addDepartment(department);
+    }
+
+    @Override
+    public Department updateDepartment(Object id) {
+        return primary.updateDepartment(id);
+    }
+
+    @Override
+    public Department updateDepartment(Department department) {
+        return primary.updateDepartment(department);
+    }
+
+    @Override
+    public Department deleteDepartment(Object id) {
+        return primary.deleteDepartment(id);
+    }
+
+    @Override
+    public List<Employee> findEmployeesByDept(Object idDept) {
+        return reader().findEmployeesByDept(idDept);
+    }
+
+    @Override
+    public boolean checkDBExists() {
+        return primary.checkDBExists();
+    }
+
+    /**
+     * Closes every replica and then the primary connection.
+     */
+    @Override
+    public void closeConnection() {
+        for (ReadReplica replica : replicas) replica.close();
+        primary.closeConnection();
+    }
+}
@@ -0,0 +1,126 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.ObjectContainer;
+
+import java.util.List;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+
+/**
+ * Filter/map/reduce scans over every stored {@link Employee}, for analytics that would otherwise load the whole extent with
+ * {@link db4oDAO#findAllEmployees()} and hold the write lock of the DAO meanwhile.
+ * <p>
+ * Each scan opens its own db4o session, so it reads through a separate transaction and never takes the write lock of the DAO
+ * nor touches the transaction of the writers, which only wait for single activations instead of the whole scan. The IDs of
+ * the employees are read once at the start and visited in order on the calling thread: each employee is activated, handed to
+ * the scan functions as a detached copy (so they can't modify the database) and deactivated again, so the memory used doesn't
+ * depend on the size of the extent.
+ * <p>
+ * The scan runs on a single thread on purpose: the sessions of a db4o file share the lock of its container, so splitting
+ * the IDs between workers doesn't make the reads any faster.
+ * <p>
+ * A scan is not a snapshot. db4o has no multi-version reads, so only the ID set is fixed when the scan starts: employees
+ * added afterwards are not seen and employees deleted meanwhile are skipped, but an employee updated and committed during
+ * the scan is read with its new values. Those reads are counted in {@link ScanResult#changedDuringScan()} using the commit
+ * timestamps of the objects, so a caller that needs a consistent result can run the scan again when it isn't 0.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ScanEngine {
+
+    /**
+     * Outcome of a scan.
+     * @param value Result computed by the scan.
+     * @param scanned Employees read.
+     * @param matched Employees accepted by the filter.
+     * @param changedDuringScan Employees read with a change committed after the scan started.
+     * @param elapsedNanos Duration of the scan.
+     * @param <R> Type of the result.
+     */
+    public record ScanResult<R>(R value, long scanned, long matched, long changedDuringScan, long elapsedNanos) {
+    }
+
+    /**
+     * Container whose sessions are scanned.
+     */
+    private final ObjectContainer db;
+
+    /**
+     * Creates an engine. Use {@link db4oDAO#getScanEngine()} to get the engine of a DAO.
+     * @param db Container to scan. Each scan opens and closes its own session of it.
+     */
+    public ScanEngine(ObjectContainer db) {
+        this.db = db;
+    }
+
+    /**
+     * Scans every employee, collecting the ones accepted by the filter in ID order. Example:
+     * {@code engine.collect(e -> e.getDepno() == 10, Collectors.groupingBy(Employee::getPosition, Collectors.counting()))}.
+     *
+     * @param filter Employees to collect.
+     * @param collector Collector of the result.
+     * @param <A> Mutable accumulation type of the collector.
+     * @param <R> Type of the result.
+     * @return Result of the collector, with the statistics of the scan.
+     */
+    public <A, R> ScanResult<R> collect(Predicate<? super Employee> filter, Collector<? super Employee, A, R> collector) {
+        long begin = System.nanoTime();
+        ObjectContainer session = db.ext().openSession();
+        try {
+            long startVersion = session.ext().version();
+            A container = collector.supplier().get();
+            long scanned = 0, matched = 0, changed = 0;
+            for (long id : session.query(Employee.class).ext().getIDs()) {
+                Object stored = session.ext().getByID(id);
+                if (stored == null) continue; // Deleted after the scan started
+                session.activate(stored, 1);
+                if (!(stored instanceof Employee employee)) continue;
+                scanned++;
+                if (session.ext().getObjectInfo(stored).getCommitTimestamp() > startVersion) changed++;
+                Employee copy = (Employee) ChangeEvent.snapshot(employee);
+                session.deactivate(stored, 1); // Keep only the current employee in memory
+                if (filter.test(copy)) {
+                    matched++;
+                    collector.accumulator().accept(container, copy);
+                }
+            }
+            R value = collector.finisher().apply(container);
+            return new ScanResult<>(value, scanned, matched, changed, System.nanoTime() - begin);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Scans every employee, mapping the ones accepted by the filter and reducing the mapped values.
+     * @param filter Employees to include.
+     * @param mapper Function mapping an employee to a value.
+     * @param identity Identity of the reduction, e.g. 0 for a sum.
+     * @param combiner Associative function reducing two values.
+     * @param <R> Type of the values.
+     * @return Reduced value, with the statistics of the scan.
+     */
+    public <R> ScanResult<R> mapReduce(Predicate<? super Employee> filter, Function<? super Employee, ? extends R> mapper, R identity,
+                                       BinaryOperator<R> combiner) {
+        return collect(filter, Collectors.reducing(identity, mapper, combiner));
+    }
+
+    /**
+     * @param filter Employees to count.
+     * @return Number of employees accepted by the filter, with the statistics of the scan.
+     */
+    public ScanResult<Long> count(Predicate<? super Employee> filter) {
+        return collect(filter, Collectors.counting());
+    }
+
+    /**
+     * @param filter Employees to return.
+     * @return Detached copies of the employees accepted by the filter, in ID order, with the statistics of the scan.
+     */
+    public ScanResult<List<Employee>> filter(Predicate<? super Employee> filter) {
+        return collect(filter, Collectors.toList());
+    }
+}
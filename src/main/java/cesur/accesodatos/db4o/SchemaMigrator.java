@@ -0,0 +1,354 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.Db4oEmbedded;
+import com.db4o.ObjectContainer;
+import com.db4o.ObjectSet;
+import com.db4o.config.EmbeddedConfiguration;
+import com.db4o.ext.StoredClass;
+import com.db4o.io.MemoryStorage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streaming rewrite of a database file into a new one, applying the pending {@link MigrationStep}s to every object.
+ * Objects of every class of this package are read from the source by their internal IDs in batches, transformed in parallel
+ * and written to the target, one commit per batch, releasing them from both containers afterwards; only one batch is held in
+ * memory at a time. The checkpoint is the target's {@link SchemaVersion}, committed together with each batch, so an
+ * interrupted migration is resumed by running it again with the same paths. The source file is never modified.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class SchemaMigrator {
+
+    /**
+     * DEFAULT_BATCH_SIZE -> Default number of objects read, transformed and committed at once.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Path of the database file to migrate.
+     */
+    private final String sourcePath;
+    /**
+     * Path of the migrated database file.
+     */
+    private final String targetPath;
+    /**
+     * Migration steps, in any order.
+     */
+    private final List<MigrationStep> steps = new ArrayList<>();
+    /**
+     * Number of objects per batch.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    /**
+     * Number of transformation threads.
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+    /**
+     * Flag to only count the objects, without writing the target file.
+     */
+    private boolean dryRun;
+    /**
+     * Objects read, written and dropped per class name in the last run.
+     */
+    private final Map<String, long[]> counts = new TreeMap<>();
+
+    /**
+     * Creates a migrator.
+     * @param sourcePath Path of the database file to migrate.
+     * @param targetPath Path of the migrated database file. It must not exist, unless it holds an interrupted migration.
+     */
+    public SchemaMigrator(String sourcePath, String targetPath) {
+        this.sourcePath = sourcePath;
+        this.targetPath = targetPath;
+    }
+
+    /**
+     * Adds a migration step.
+     * @param step Step to add.
+     * @return This migrator.
+     */
+    public SchemaMigrator addStep(MigrationStep step) {
+        steps.add(step);
+        return this;
+    }
+
+    /**
+     * @param batchSize Number of objects read, transformed and committed at once.
+     * @return This migrator.
+     */
+    public SchemaMigrator setBatchSize(int batchSize) {
+        if (batchSize <= 0) throw new IllegalArgumentException("The batch size must be positive");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param threads Number of transformation threads.
+     * @return This migrator.
+     */
+    public SchemaMigrator setThreads(int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("The number of threads must be positive");
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param dryRun true to transform and count every object without writing the target file.
+     * @return This migrator.
+     */
+    public SchemaMigrator setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+        return this;
+    }
+
+    /**
+     * Runs the migration, or resumes it if the target holds an interrupted one, and prints the object counts per class.
+     * @return true if the migration finished, false if an error occurred (the target can then be resumed).
+     */
+    public boolean run() {
+        counts.clear();
+        if (!new File(sourcePath).exists()) {
+            System.err.println("ERROR: The database file " + sourcePath + " doesn't exist.");
+            return false;
+        }
+        EmbeddedConfiguration sourceConfig = Db4oEmbedded.newConfiguration();
+        sourceConfig.file().readOnly(true); // Not even the header is written, so the source is left exactly as it was
+        ObjectContainer source = Db4oEmbedded.openFile(sourceConfig, sourcePath);
+        ObjectContainer target = null;
+        ExecutorService pool = null;
+        try {
+            SchemaVersion sourceVersion = readVersion(source);
+            if (sourceVersion != null && sourceVersion.isInProgress()) {
+                System.err.println("ERROR: The database file " + sourcePath + " holds an unfinished migration.");
+                return false;
+            }
+            int fromVersion = sourceVersion == null ? 0 : sourceVersion.getVersion();
+            List<MigrationStep> pending = pendingSteps(fromVersion);
+            if (pending == null) return false;
+            MigrationStep last = pending.isEmpty() ? null : pending.get(pending.size() - 1);
+            int toVersion = last == null ? fromVersion : last.getVersion();
+            for (MigrationStep step : pending) {
+                System.out.println("Step " + step.getVersion() + ": " + step.getDescription());
+            }
+
+            target = openTarget();
+            if (target == null) return false;
+            SchemaVersion version = readVersion(target);
+            if (version == null) {
+                version = new SchemaVersion(toVersion, last == null ? "Copy of version " + fromVersion : last.getDescription());
+            } else if (!version.isInProgress() || version.getVersion() != toVersion) {
+                System.err.println("ERROR: The target file " + targetPath + " already exists.");
+                return false;
+            } else {
+                System.out.println("Resuming the migration at " + version.getCheckpointClass() + " #" + version.getCheckpointIndex());
+            }
+            for (MigrationStep step : pending) step.prepare(target);
+
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "schema-migrator");
+                t.setDaemon(true);
+                return t;
+            });
+            for (String className : storedClassNames(source)) {
+                if (version.isInProgress() && className.compareTo(version.getCheckpointClass()) < 0) continue;
+                int start = className.equals(version.getCheckpointClass()) ? version.getCheckpointIndex() : 0;
+                long[] ids = source.query(Class.forName(className)).ext().getIDs();
+                Arrays.sort(ids);
+                long[] classCounts = counts.computeIfAbsent(className, k -> new long[3]);
+                for (int from = start; from < ids.length; from += batchSize) {
+                    int to = Math.min(ids.length, from + batchSize);
+                    migrateBatch(source, target, pool, pending, Arrays.copyOfRange(ids, from, to), version, className, to, classCounts);
+                }
+            }
+            if (!dryRun) {
+                version.setCheckpoint(null, 0);
+                commit(target, pending, version);
+            }
+            System.out.print(summary());
+            return true;
+        } catch (Exception e) {
+            System.err.println("ERROR: The migration to " + targetPath + " failed: " + e.getMessage());
+            if (target != null) target.rollback();
+            return false;
+        } finally {
+            if (pool != null) pool.shutdownNow();
+            source.close();
+            if (target != null) target.close();
+        }
+    }
+
+    /**
+     * @return Total number of objects written to the target in the last run (or that would be written in dry-run mode).
+     */
+    public long getWritten() {
+        long written = 0;
+        for (long[] c : counts.values()) written += c[1];
+        return written;
+    }
+
+    /**
+     * Reads, transforms and writes one batch of objects.
+     * @param source Source container.
+     * @param target Target container.
+     * @param pool Transformation threads.
+     * @param pending Steps to apply, in version order.
+     * @param ids Internal IDs of the batch in the source.
+     * @param version Target's version record, updated with the checkpoint.
+     * @param className Name of the class being migrated.
+     * @param done Number of objects of the class migrated after this batch.
+     * @param classCounts Read, written and dropped counters of the class.
+     * @throws Exception If an object can't be transformed or stored.
+     */
+    private void migrateBatch(ObjectContainer source, ObjectContainer target, ExecutorService pool, List<MigrationStep> pending,
+                              long[] ids, SchemaVersion version, String className, int done, long[] classCounts) throws Exception {
+        Object[] records = new Object[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            records[i] = source.ext().getByID(ids[i]);
+            source.activate(records[i], 1);
+        }
+        Object[] results = new Object[records.length];
+        int slice = (records.length + threads - 1) / threads;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int from = 0; from < records.length; from += slice) {
+            int start = from, end = Math.min(records.length, from + slice);
+            futures.add(pool.submit(() -> {
+                for (int i = start; i < end; i++) {
+                    Object result = records[i];
+                    for (MigrationStep step : pending) {
+                        if (result == null) break;
+                        result = step.transform(result);
+                    }
+                    results[i] = result;
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+
+        for (Object result : results) {
+            if (result == null) {
+                classCounts[2]++;
+            } else {
+                if (!dryRun) target.store(result);
+                classCounts[1]++;
+            }
+        }
+        classCounts[0] += records.length;
+        if (!dryRun) {
+            version.setCheckpoint(className, done);
+            commit(target, pending, version);
+            for (Object result : results) if (result != null) target.ext().purge(result);
+        }
+        for (Object record : records) source.ext().purge(record);
+    }
+
+    /**
+     * Commits the target together with the state of the steps and the checkpoint.
+     * @param target Target container.
+     * @param pending Steps being applied.
+     * @param version Target's version record.
+     */
+    private static void commit(ObjectContainer target, List<MigrationStep> pending, SchemaVersion version) {
+        for (MigrationStep step : pending) step.beforeCommit(target);
+        target.store(version);
+        target.commit();
+    }
+
+    /**
+     * Opens the target container: the target file, or an in-memory container in dry-run mode.
+     * @return The target container, or null if the target file exists and holds no unfinished migration.
+     */
+    private ObjectContainer openTarget() {
+        if (dryRun) {
+            EmbeddedConfiguration config = Db4oEmbedded.newConfiguration();
+            config.file().storage(new MemoryStorage());
+            return Db4oEmbedded.openFile(config, targetPath);
+        }
+        return Db4oEmbedded.openFile(Db4oEmbedded.newConfiguration(), targetPath);
+    }
+
+    /**
+     * Returns the steps that must be applied to data of the given version.
+     * @param fromVersion Current schema version of the data.
+     * @return Pending steps in version order, or null if two steps have the same version.
+     */
+    private List<MigrationStep> pendingSteps(int fromVersion) {
+        List<MigrationStep> pending = new ArrayList<>();
+        for (MigrationStep step : steps) if (step.getVersion() > fromVersion) pending.add(step);
+        pending.sort(Comparator.comparingInt(MigrationStep::getVersion));
+        for (int i = 1; i < pending.size(); i++) {
+            if (pending.get(i).getVersion() == pending.get(i - 1).getVersion()) {
+                System.err.println("ERROR: There are two migration steps with version " + pending.get(i).getVersion() + ".");
+                return null;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Reads the version record of a container.
+     * @param db Container.
+     * @return The version record, or null if the container has none.
+     */
+    private static SchemaVersion readVersion(ObjectContainer db) {
+        ObjectSet<SchemaVersion> result = db.query(SchemaVersion.class);
+        return result.hasNext() ? result.next() : null;
+    }
+
+    /**
+     * Returns the names of the stored classes of this package that are migrated, in a stable order.
+     * @param db Source container.
+     * @return Sorted class names, without {@link SchemaVersion}.
+     */
+    private static TreeSet<String> storedClassNames(ObjectContainer db) {
+        String prefix = SchemaMigrator.class.getPackageName() + ".";
+        TreeSet<String> names = new TreeSet<>();
+        for (StoredClass storedClass : db.ext().storedClasses()) {
+            String name = storedClass.getName();
+            if (name.startsWith(prefix) && !name.equals(SchemaVersion.class.getName())) names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * @return Table with the objects read, written and dropped per class in the last run.
+     */
+    private String summary() {
+        StringBuilder sb = new StringBuilder(dryRun ? "Dry run, nothing was written:\n" : "Migration to " + targetPath + " finished:\n");
+        sb.append(String.format("%-40s %10s %10s %10s%n", "CLASS", "READ", "WRITTEN", "DROPPED"));
+        for (Map.Entry<String, long[]> e : counts.entrySet()) {
+            long[] c = e.getValue();
+            sb.append(String.format("%-40s %10d %10d %10d%n", e.getKey(), c[0], c[1], c[2]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Command line entry point. Applies the built-in steps ({@link CompactLayoutMigration}) to a database file.
+     * Arguments: source path, target path and optionally "--dry-run", the batch size and the number of threads.
+     * @param args Command line arguments.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: SchemaMigrator <source.yap> <target.yap> [--dry-run] [batchSize] [threads]");
+            return;
+        }
+        SchemaMigrator migrator = new SchemaMigrator(args[0], args[1]).addStep(new CompactLayoutMigration());
+        List<String> options = new ArrayList<>(Arrays.asList(args).subList(2, args.length));
+        migrator.setDryRun(options.remove("--dry-run"));
+        if (!options.isEmpty()) migrator.setBatchSize(Integer.parseInt(options.get(0)));
+        if (options.size() > 1) migrator.setThreads(Integer.parseInt(options.get(1)));
+        migrator.run();
+    }
+}
@@ -0,0 +1,107 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Schema version of a database file, stored as a single object by {@link SchemaMigrator}.
+ * While a migration is running it also holds the checkpoint of the migration, committed in the same transaction as the
+ * migrated objects, so an interrupted migration resumes exactly after the last committed batch.
+ * Files without a SchemaVersion object are considered version 0.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class SchemaVersion {
+
+    /**
+     * Schema version of the data.
+     */
+    private int version;
+    /**
+     * Description of the last applied migration step.
+     */
+    private String description;
+    /**
+     * Time of the last update, in milliseconds since the epoch.
+     */
+    private long updatedAt;
+    /**
+     * Name of the class being migrated, or null if the file isn't being migrated.
+     */
+    private String checkpointClass;
+    /**
+     * Number of objects of {@link #checkpointClass} already migrated, in source ID order.
+     */
+    private int checkpointIndex;
+
+    /**
+     * Creates a version record.
+     * @param version Schema version of the data.
+     * @param description Description of the last applied migration step.
+     */
+    public SchemaVersion(int version, String description) {
+        this.version = version;
+        this.description = description;
+        this.updatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return Schema version of the data.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return Description of the last applied migration step.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return Time of the last update, in milliseconds since the epoch.
+     */
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * @return true if a migration into this file was interrupted and can be resumed.
+     */
+    public boolean isInProgress() {
+        return checkpointClass != null;
+    }
+
+    /**
+     * @return Name of the class being migrated, or null if the file isn't being migrated.
+     */
+    public String getCheckpointClass() {
+        return checkpointClass;
+    }
+
+    /**
+     * @return Number of objects of the checkpoint class already migrated.
+     */
+    public int getCheckpointIndex() {
+        return checkpointIndex;
+    }
+
+    /**
+     * Records the progress of a running migration.
+     * @param className Name of the class being migrated, or null once the migration is complete.
+     * @param index Number of objects of that class already migrated.
+     */
+    public void setCheckpoint(String className, int index) {
+        this.checkpointClass = className;
+        this.checkpointIndex = index;
+        this.updatedAt = System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return "SchemaVersion{" +
+                "version=" + version +
+                ", description='" + description + '\'' +
+                ", checkpointClass=" + checkpointClass +
+                ", checkpointIndex=" + checkpointIndex +
+                '}';
+    }
+}
@@ -0,0 +1,26 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * One result of {@link FullTextIndex#search(String, int)}: the matched {@link Employee} or {@link Department} and its relevance.
+ *
+ * @param type Kind of the matched record.
+ * @param id empno or depno of the matched record.
+ * @param score BM25 relevance of the record for the query. Higher is more relevant.
+ * @author Marc Albert Seguí Olmos
+ */
+public record SearchHit(Type type, int id, double score) {
+
+    /**
+     * Kind of record a hit refers to.
+     */
+    public enum Type {
+        /**
+         * The hit is an {@link Employee}; its name and position are indexed.
+         */
+        EMPLOYEE,
+        /**
+         * The hit is a {@link Department}; its name and location are indexed.
+         */
+        DEPARTMENT
+    }
+}
@@ -0,0 +1,94 @@
+package cesur.accesodatos.db4o;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebalancing tool for {@link ShardedDAO} files.
+ * It moves every {@link Department} and {@link Employee} to the shard {@link ShardedDAO#shardFor(int, int)} (or
+ * {@link ShardedDAO#shardFor(Employee, int)} for employees, which puts the ones without a department in shard 0) assigns it in a
+ * target layout, e.g. when shard files are added or removed. Records are first upserted in the target shard and then deleted
+ * from the source shard, so an interrupted run never loses data and can simply be executed again. The shards are read
+ * {@link #PAGE_SIZE} records at a time in business ID order, so they are never loaded whole.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ShardRebalancer {
+
+    /**
+     * PAGE_SIZE -> Records read at once from a source shard.
+     */
+    static final int PAGE_SIZE = 1000;
+
+    /**
+     * Utility class, not meant to be instantiated.
+     */
+    private ShardRebalancer() {
+    }
+
+    /**
+     * Redistributes the records of the old shard files into the new shard layout.
+     * Paths present in both layouts are opened only once; old files not present in the new layout end up empty.
+     * @param oldPaths Shard paths of the current layout, in shard order.
+     * @param newPaths Shard paths of the target layout, in shard order.
+     * @return Number of moved records.
+     */
+    public static int reshard(String[] oldPaths, String[] newPaths) {
+        Map<String, db4oDAO> open = new LinkedHashMap<>();
+        try {
+            db4oDAO[] sources = new db4oDAO[oldPaths.length];
+            db4oDAO[] layout = new db4oDAO[newPaths.length];
+            for (int i = 0; i < oldPaths.length; i++) sources[i] = open.computeIfAbsent(oldPaths[i], db4oDAO::new);
+            for (int i = 0; i < newPaths.length; i++) layout[i] = open.computeIfAbsent(newPaths[i], db4oDAO::new);
+            int moved = moveMisplaced(sources, layout);
+            System.out.println("Rebalancing finished: " + moved + " records moved to " + newPaths.length + " shards.");
+            return moved;
+        } finally {
+            for (db4oDAO dao : open.values()) dao.closeConnection();
+        }
+    }
+
+    /**
+     * Moves every record of the given source shards that is not in its home shard of the target layout.
+     * @param sources Shards to scan.
+     * @param layout Target layout, in shard order.
+     * @return Number of moved records.
+     */
+    static int moveMisplaced(db4oDAO[] sources, db4oDAO[] layout) {
+        int moved = 0;
+        for (db4oDAO source : sources) {
+            Integer after = null; // Keyset pages: deleting the moved records doesn't shift the next page
+            for (List<Department> page; !(page = source.findDepartmentsAfter(after, PAGE_SIZE)).isEmpty(); ) {
+                for (Department d : page) {
+                    db4oDAO home = layout[ShardedDAO.shardFor(d.getDepno(), layout.length)];
+                    if (home != source && move(d, source, home)) moved++;
+                }
+                after = page.get(page.size() - 1).getDepno();
+            }
+            after = null;
+            for (List<Employee> page; !(page = source.findEmployeesAfter(after, PAGE_SIZE)).isEmpty(); ) {
+                for (Employee e : page) {
+                    db4oDAO home = layout[ShardedDAO.shardFor(e, layout.length)];
+                    if (home != source && move(e, source, home)) moved++;
+                }
+                after = page.get(page.size() - 1).getEmpno();
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Moves one record between shards: upserts a copy in the target and then deletes it from the source.
+     * @param record {@link Employee} or {@link Department} to move.
+     * @param from Shard currently storing the record.
+     * @param to Home shard of the record.
+     * @return true if the record was moved, false if an error occurred (the record is then left in the source shard).
+     */
+    static boolean move(Object record, db4oDAO from, db4oDAO to) {
+        Object copy = ChangeEvent.snapshot(record);
+        long now = System.currentTimeMillis();
+        if (!to.applyChange(new ChangeEvent(0, now, ChangeEvent.Type.UPDATED, 0, copy))) return false;
+        return from.applyChange(new ChangeEvent(0, now, ChangeEvent.Type.DELETED, 0, copy));
+    }
+}
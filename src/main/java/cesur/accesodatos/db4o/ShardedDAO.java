@@ -0,0 +1,300 @@
+package cesur.accesodatos.db4o;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * {@link IDAO} implementation that partitions the data across several ".yap" files by department.
+ * Every {@link Department} and all its {@link Employee}s live in the shard given by {@link #shardFor(int, int)} of the depno,
+ * so single-department calls hit exactly one shard. Employees without a department live in shard 0. Lookups by ID go to the shard whose identity map holds the ID, and
+ * fleet-wide calls ({@link #findAllEmployees()}, {@link #findAllDepartments()}) run on all shards in parallel and merge the results.
+ *
+ * When the number of shards changes, {@link ShardRebalancer} moves the records to their new home shard.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ShardedDAO implements IDAO, FileHandlerInterface {
+
+    /**
+     * One DAO per shard file.
+     */
+    private final db4oDAO[] shards;
+    /**
+     * Pool running the fan-out calls, one thread per shard.
+     */
+    private final ExecutorService fanOut;
+
+    /**
+     * Opens one {@link db4oDAO} per given path. The order of the paths defines the shard numbers and must not change between runs.
+     * @param shardPaths Paths of the shard database files.
+     */
+    public ShardedDAO(String... shardPaths) {
+        if (shardPaths.length == 0) throw new IllegalArgumentException("At least one shard is required");
+        this.shards = new db4oDAO[shardPaths.length];
+        for (int i = 0; i < shardPaths.length; i++) {
+            shards[i] = new db4oDAO(shardPaths[i]);
+        }
+        this.fanOut = Executors.newFixedThreadPool(shardPaths.length, r -> {
+            Thread t = new Thread(r, "shard-fan-out");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Returns the shard that owns a department and its employees.
+     * It uses jump consistent hashing, so going from N to N+1 shards only moves about 1/(N+1) of the departments.
+     * @param depno Department's ID.
+     * @param shardCount Number of shards.
+     * @return Shard number between 0 and shardCount - 1.
+     */
+    public static int shardFor(int depno, int shardCount) {
+        long key = depno * 0x9E3779B97F4A7C15L; // Scramble so round depnos (10, 20, 30...) don't pile up on the same shards
+        long bucket = -1;
+        long jump = 0;
+        while (jump < shardCount) {
+            bucket = jump;
+            key = key * 2862933555777941757L + 1;
+            jump = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+
+    /**
+     * Returns the shard that stores an employee: the shard of its department, or shard 0 if it has no department.
+     * @param employee Employee to place.
+     * @param shardCount Number of shards.
+     * @return Shard number between 0 and shardCount - 1.
+     */
+    public static int shardFor(Employee employee, int shardCount) {
+        return employee.getDepno() == null ? 0 : shardFor(employee.getDepno(), shardCount);
+    }
+
+    /**
+     * @return Number of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Moves every record stored in the wrong shard to its home shard, e.g. after adding shard files.
+     * @return Number of moved records.
+     */
+    public int rebalance() {
+        return ShardRebalancer.moveMisplaced(shards, shards);
+    }
+
+    /**
+     * Returns the DAO of the shard owning the given department.
+     * @param depno Department's ID.
+     * @return DAO of the owning shard.
+     */
+    private db4oDAO shardOf(int depno) {
+        return shards[shardFor(depno, shards.length)];
+    }
+
+    /**
+     * Returns the DAO of the shard where the given employee belongs, see {@link #shardFor(Employee, int)}.
+     * @param employee Employee to place.
+     * @return DAO of the home shard.
+     */
+    private db4oDAO homeOf(Employee employee) {
+        return shards[shardFor(employee, shards.length)];
+    }
+
+    /**
+     * Returns the DAO of the shard storing the given employee.
+     * @param empno Employee's ID.
+     * @return DAO of the shard or null if no shard stores the employee.
+     */
+    private db4oDAO shardOfEmployee(int empno) {
+        for (db4oDAO shard : shards) {
+            if (shard.hasEmployee(empno)) return shard;
+        }
+        return null;
+    }
+
+    /**
+     * Runs a list query on every shard in parallel and concatenates the results.
+     * @param query Query to run on each shard.
+     * @return Merged results, empty if any shard fails.
+     */
+    private <T> List<T> fanOut(Function<db4oDAO, List<T>> query) {
+        List<Future<List<T>>> futures = new ArrayList<>(shards.length);
+        for (db4oDAO shard : shards) {
+            futures.add(fanOut.submit(() -> query.apply(shard)));
+        }
+        List<T> merged = new ArrayList<>();
+        try {
+            for (Future<List<T>> future : futures) {
+                List<T> part = future.get();
+                if (part != null) merged.addAll(part);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            System.err.println("ERROR: Interrupted while querying the shards");
+            merged.clear();
+        } catch (ExecutionException ee) {
+            System.err.println("ERROR: A shard query failed - " + ee.getCause().getMessage());
+            merged.clear();
+        }
+        return merged;
+    }
+
+    @Override
+    public List<Employee> findAllEmployees() {
+        return fanOut(db4oDAO::findAllEmployees);
+    }
+
+    @Override
+    public Employee findEmployeeById(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID provided. ID must be an integer.");
+            return null;
+        }
+        db4oDAO shard = shardOfEmployee((Integer) id);
+        if (shard == null) {
+            System.out.println("No employee found with ID: " + id);
+            return null;
+        }
+        return shard.findEmployeeById(id);
+    }
+
+    @Override
+    public void addEmployee(Employee employee) {
+        homeOf(employee).addEmployee(employee);
+    }
+
+    /**
+     * Updates an employee on its shard. If the new department belongs to another shard, the employee is moved there.
+     * @param id Employee's ID (Integer value).
+     * @return Updated {@link Employee} object, or null if the ID is invalid, the employee is not found, or an error occurs.
+     */
+    @Override
+    public Employee updateEmployee(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        db4oDAO shard = shardOfEmployee((Integer) id);
+        if (shard == null) {
+            System.out.println("Employee not found.");
+            return null;
+        }
+        Employee updated = shard.updateEmployee(id);
+        if (updated != null && homeOf(updated) != shard) {
+            ShardRebalancer.move(updated, shard, homeOf(updated));
+        }
+        return updated;
+    }
+
+    /**
+     * Updates an employee on its shard without asking the user. If the new department belongs to another shard, the employee is moved there.
+     * @param employee {@link Employee} object with the ID of an existing Employee and all the new attribute values set.
+     * @return Updated {@link Employee} object or null if there is no Employee with that ID or an error occurs.
+     */
+    @Override
+    public Employee updateEmployee(Employee employee) {
+        db4oDAO shard = shardOfEmployee(employee.getEmpno());
+        if (shard == null) {
+            System.out.println("Employee not found.");
+            return null;
+        }
+        Employee updated = shard.updateEmployee(employee);
+        if (updated != null && homeOf(updated) != shard) {
+            ShardRebalancer.move(updated, shard, homeOf(updated));
+        }
+        return updated;
+    }
+
+    @Override
+    public Employee deleteEmployee(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID format.");
+            return null;
+        }
+        db4oDAO shard = shardOfEmployee((Integer) id);
+        if (shard == null) {
+            System.out.println("Employee not found.");
+            return null;
+        }
+        return shard.deleteEmployee(id);
+    }
+
+    @Override
+    public List<Department> findAllDepartments() {
+        return fanOut(db4oDAO::findAllDepartments);
+    }
+
+    @Override
+    public Department findDepartmentById(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        return shardOf((Integer) id).findDepartmentById(id);
+    }
+
+    @Override
+    public void addDepartment(Department department) {
+        shardOf(department.getDepno()).addDepartment(department);
+    }
+
+    @Override
+    public Department updateDepartment(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        return shardOf((Integer) id).updateDepartment(id);
+    }
+
+    @Override
+    public Department updateDepartment(Department department) {
+        return shardOf(department.getDepno()).updateDepartment(department);
+    }
+
+    @Override
+    public Department deleteDepartment(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        return shardOf((Integer) id).deleteDepartment(id);
+    }
+
+    @Override
+    public List<Employee> findEmployeesByDept(Object idDept) {
+        if (!(idDept instanceof Integer)) {
+            System.out.println("Invalid department ID.");
+            return new ArrayList<>();
+        }
+        return shardOf((Integer) idDept).findEmployeesByDept(idDept);
+    }
+
+    /**
+     * Checks that every shard file exists.
+     * @return true if all shard files exist.
+     */
+    @Override
+    public boolean checkDBExists() {
+        boolean exists = true;
+        for (db4oDAO shard : shards) exists &= shard.checkDBExists();
+        return exists;
+    }
+
+    /**
+     * Stops the fan-out pool and closes every shard.
+     */
+    @Override
+    public void closeConnection() {
+        fanOut.shutdown();
+        for (db4oDAO shard : shards) shard.closeConnection();
+    }
+}
@@ -0,0 +1,123 @@
+package cesur.accesodatos.db4o;
+
+import com.db4o.ObjectContainer;
+import com.db4o.ObjectSet;
+import com.db4o.query.Query;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent dictionary that encodes heavily repeated strings (job titles, cities...) as small integer codes.
+ * Compact entities store the code instead of the string, so each distinct value is stored and loaded only once.
+ * The dictionary itself is stored in the same container as the entities that use it, identified by its name.
+ * Codes are assigned in insertion order and never change. This class is thread-safe.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class StringDictionary {
+
+    /**
+     * NULL_CODE -> Code representing a null string.
+     */
+    public static final int NULL_CODE = -1;
+
+    /**
+     * Name of the dictionary (e.g. "position" or "location").
+     */
+    private String name;
+    /**
+     * Distinct values, indexed by their code. Only the first {@link #size} slots are used.
+     */
+    private String[] values;
+    /**
+     * Number of distinct values.
+     */
+    private int size;
+    /**
+     * Reverse index from value to code. Not persisted, rebuilt on first use after loading.
+     */
+    private transient Map<String, Integer> codes;
+
+    /**
+     * Creates an empty dictionary.
+     * @param name Name of the dictionary.
+     */
+    public StringDictionary(String name) {
+        this.name = name;
+        this.values = new String[8];
+    }
+
+    /**
+     * Loads the dictionary with the given name from the container, or creates an empty one if it isn't stored yet.
+     * @param db Container holding the dictionary.
+     * @param name Name of the dictionary.
+     * @return The stored or a new dictionary.
+     */
+    public static StringDictionary load(ObjectContainer db, String name) {
+        Query query = db.query();
+        query.constrain(StringDictionary.class);
+        query.descend("name").constrain(name);
+        ObjectSet<StringDictionary> result = query.execute();
+        if (result.hasNext()) {
+            StringDictionary dictionary = result.next();
+            db.activate(dictionary, 2);
+            return dictionary;
+        }
+        return new StringDictionary(name);
+    }
+
+    /**
+     * Stores the dictionary in the container. The caller commits.
+     * @param db Container holding the dictionary.
+     */
+    public synchronized void store(ObjectContainer db) {
+        db.ext().store(this, 2);
+    }
+
+    /**
+     * Returns the code of a value, assigning a new one if the value isn't in the dictionary yet.
+     * @param value Value to encode.
+     * @return Code of the value, or {@link #NULL_CODE} for null.
+     */
+    public synchronized int encode(String value) {
+        if (value == null) return NULL_CODE;
+        Integer code = codes().get(value);
+        if (code != null) return code;
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size] = value;
+        codes.put(value, size);
+        return size++;
+    }
+
+    /**
+     * Returns the value of a code. Every call returns the same String instance for the same code.
+     * @param code Code to decode.
+     * @return The value, or null for {@link #NULL_CODE}.
+     * @throws IllegalArgumentException If the code doesn't belong to the dictionary.
+     */
+    public synchronized String decode(int code) {
+        if (code == NULL_CODE) return null;
+        if (code < 0 || code >= size) throw new IllegalArgumentException("Unknown code " + code + " in dictionary " + name);
+        return values[code];
+    }
+
+    /**
+     * @return Number of distinct values.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return Reverse index, built from the values on first use.
+     */
+    private Map<String, Integer> codes() {
+        if (codes == null) {
+            codes = new HashMap<>();
+            for (int i = 0; i < size; i++) codes.put(values[i], i);
+        }
+        return codes;
+    }
+}
@@ -0,0 +1,200 @@
+package cesur.accesodatos.db4o;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Renders query results as console tables one page at a time, so listing a large database never loads every row or prints
+ * for minutes. Rows are read from a {@link PageSource} with keyset pagination (each page starts after the last row of the
+ * previous one) and only the current page is kept in memory. Column widths adapt to the values of each page, up to
+ * {@link #MAX_COLUMN_WIDTH} characters. Example:
+ * <pre>{@code
+ * new TableRenderer<Employee>((last, n) -> dao.findEmployeesAfter(last == null ? null : last.getEmpno(), n), 20)
+ *         .column("EMPNO", Employee::getEmpno).column("NOMBRE", Employee::getName)
+ *         .browse(reader, writer);
+ * }</pre>
+ *
+ * @param <T> Type of the rows.
+ * @author Marc Albert Seguí Olmos
+ */
+public class TableRenderer<T> {
+
+    /**
+     * DEFAULT_PAGE_SIZE -> Rows per page shown by the menu.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 20;
+    /**
+     * MAX_COLUMN_WIDTH -> Longer values are truncated with "...".
+     */
+    public static final int MAX_COLUMN_WIDTH = 30;
+
+    /**
+     * Source of the rows, read one page at a time.
+     * @param <T> Type of the rows.
+     */
+    @FunctionalInterface
+    public interface PageSource<T> {
+        /**
+         * Reads the rows that follow a given row.
+         * @param after Last row of the previous page, or null for the first page.
+         * @param limit Maximum number of rows to return.
+         * @return The next rows in order, empty after the last one.
+         */
+        List<T> fetch(T after, int limit);
+    }
+
+    /**
+     * Column of the table.
+     * @param header Header of the column.
+     * @param value Function extracting the value of the column from a row.
+     * @param <T> Type of the rows.
+     */
+    private record Column<T>(String header, Function<T, Object> value) {
+    }
+
+    /**
+     * Source of the rows.
+     */
+    private final PageSource<T> source;
+    /**
+     * Rows per page.
+     */
+    private final int pageSize;
+    /**
+     * Columns of the table, in display order.
+     */
+    private final List<Column<T>> columns = new ArrayList<>();
+
+    /**
+     * Creates a renderer without columns; add them with {@link #column(String, Function)}.
+     * @param source Source of the rows.
+     * @param pageSize Rows per page.
+     */
+    public TableRenderer(PageSource<T> source, int pageSize) {
+        this.source = source;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * Adds a column at the right of the table.
+     * @param header Header of the column.
+     * @param value Function extracting the value of the column from a row. Null values are shown empty.
+     * @return This renderer.
+     */
+    public TableRenderer<T> column(String header, Function<T, Object> value) {
+        columns.add(new Column<>(header, value));
+        return this;
+    }
+
+    /**
+     * Shows the table page by page. After each page the user chooses the next page ("n" or an empty line), the previous page
+     * ("p") or to stop ("q"). Going back re-reads the page from the source, so pages are never accumulated.
+     *
+     * @param input Reader of the user's commands. The end of the input stops the browsing.
+     * @param output Writer of the tables. It is flushed after each page and not closed.
+     * @return false if there are no rows at all (nothing is written), true otherwise.
+     * @throws IOException If the input can't be read.
+     */
+    public boolean browse(BufferedReader input, PrintWriter output) throws IOException {
+        List<T> pageStarts = new ArrayList<>(); // Last row before each visited page, null for the first one
+        pageStarts.add(null);
+        while (true) {
+            int page = pageStarts.size();
+            List<T> rows = source.fetch(pageStarts.get(page - 1), pageSize + 1); // One more row tells if there is a next page
+            if (rows.isEmpty() && page == 1) return false;
+            boolean hasNext = rows.size() > pageSize;
+            int count = Math.min(rows.size(), pageSize);
+            writePage(output, rows, count);
+            long first = (long) (page - 1) * pageSize + 1;
+            output.printf("Page %d, rows %d-%d. %s%s[q] quit%n", page, first, first + count - 1,
+                    hasNext ? "[n] next, " : "", page > 1 ? "[p] previous, " : "");
+            output.print(db4oDAO.USER_INPUT);
+            output.flush();
+            String command = input.readLine();
+            if (command == null) return true;
+            switch (command.trim().toLowerCase()) {
+                case "", "n" -> {
+                    if (hasNext) pageStarts.add(rows.get(count - 1));
+                    else if (command.isBlank()) return true; // Enter on the last page ends the listing
+                    else System.err.println("ERROR: This is the last page");
+                }
+                case "p" -> {
+                    if (page > 1) pageStarts.remove(page - 1);
+                    else System.err.println("ERROR: This is the first page");
+                }
+                case "q" -> {
+                    return true;
+                }
+                default -> System.err.println("ERROR: Please provide a valid option: n, p or q");
+            }
+        }
+    }
+
+    /**
+     * Writes every row, page after page, without asking the user. Memory use doesn't depend on the number of rows.
+     *
+     * @param output Writer of the tables. It is flushed after each page and not closed.
+     * @return Number of rows written.
+     */
+    public long writeAll(PrintWriter output) {
+        long total = 0;
+        T after = null;
+        while (true) {
+            List<T> rows = source.fetch(after, pageSize);
+            if (rows.isEmpty()) return total;
+            writePage(output, rows, rows.size());
+            output.flush();
+            total += rows.size();
+            if (rows.size() < pageSize) return total;
+            after = rows.get(rows.size() - 1);
+        }
+    }
+
+    /**
+     * Writes one page as a table, with the columns as wide as their longest value in the page.
+     * @param output Writer of the table.
+     * @param rows Rows read from the source.
+     * @param count Number of rows to write.
+     */
+    private void writePage(PrintWriter output, List<T> rows, int count) {
+        String[][] cells = new String[count][columns.size()];
+        int[] widths = new int[columns.size()];
+        for (int c = 0; c < columns.size(); c++) widths[c] = columns.get(c).header().length();
+        for (int r = 0; r < count; r++) {
+            for (int c = 0; c < columns.size(); c++) {
+                Object value = columns.get(c).value().apply(rows.get(r));
+                String cell = value == null ? "" : value.toString();
+                if (cell.length() > MAX_COLUMN_WIDTH) cell = cell.substring(0, MAX_COLUMN_WIDTH - 3) + "...";
+                cells[r][c] = cell;
+                widths[c] = Math.max(widths[c], cell.length());
+            }
+        }
+        StringBuilder border = new StringBuilder("+");
+        for (int width : widths) border.append("-".repeat(width + 2)).append('+');
+        output.println(border);
+        String[] headers = new String[columns.size()];
+        for (int c = 0; c < columns.size(); c++) headers[c] = columns.get(c).header();
+        writeRow(output, headers, widths);
+        output.println(border);
+        for (String[] row : cells) writeRow(output, row, widths);
+        output.println(border);
+    }
+
+    /**
+     * Writes one row of the table.
+     * @param output Writer of the table.
+     * @param cells Values of the row.
+     * @param widths Width of each column.
+     */
+    private static void writeRow(PrintWriter output, String[] cells, int[] widths) {
+        StringBuilder line = new StringBuilder("|");
+        for (int c = 0; c < cells.length; c++) {
+            line.append(' ').append(cells[c]).append(" ".repeat(widths[c] - cells[c].length())).append(" |");
+        }
+        output.println(line);
+    }
+}
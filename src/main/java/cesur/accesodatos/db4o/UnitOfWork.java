@@ -0,0 +1,46 @@
+package cesur.accesodatos.db4o;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * State of an explicit transaction of {@link db4oDAO}, opened with {@link db4oDAO#begin()} and ended with
+ * {@link db4oDAO#commit()} or {@link db4oDAO#rollback()}. While it is open the write methods don't commit on their own;
+ * this object remembers what they touched so the identity maps, the department cache and the search index can be put back
+ * in sync with the database if the transaction is rolled back.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+final class UnitOfWork {
+
+    /**
+     * Number of nested {@link db4oDAO#begin()} calls not yet ended. Only the outermost commit reaches the database.
+     */
+    int depth = 1;
+    /**
+     * Set when a write method or a nested unit fails, so the outermost commit rolls everything back instead.
+     */
+    boolean rollbackOnly;
+    /**
+     * Internal ID each touched empno had in the identity map before the transaction, or {@link IntLongHashMap#NO_VALUE} if it was not mapped.
+     */
+    final Map<Integer, Long> employeeIdsBefore = new HashMap<>();
+    /**
+     * Internal ID each touched depno had in the identity map before the transaction, or {@link IntLongHashMap#NO_VALUE} if it was not mapped.
+     */
+    final Map<Integer, Long> departmentIdsBefore = new HashMap<>();
+    /**
+     * Empnos of the employees added, updated or deleted in the transaction.
+     */
+    final Set<Integer> empnos = new HashSet<>();
+    /**
+     * Depnos of the departments added, updated or deleted in the transaction.
+     */
+    final Set<Integer> depnos = new HashSet<>();
+    /**
+     * Depnos of the departments whose members changed in the transaction, whose cached employees must be invalidated again at the end.
+     */
+    final Set<Integer> memberChanges = new HashSet<>();
+}
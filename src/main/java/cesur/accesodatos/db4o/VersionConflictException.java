@@ -0,0 +1,62 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Thrown by the optimistic update methods of {@link db4oDAO} when the stored object was committed by someone else after
+ * the caller read it, so applying the update would silently overwrite that change.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class VersionConflictException extends RuntimeException {
+
+    /**
+     * Version of the serialized form.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Business ID (empno) of the object in conflict.
+     */
+    private final int id;
+    /**
+     * Version the caller read.
+     */
+    private final long expectedVersion;
+    /**
+     * Version currently stored.
+     */
+    private final long actualVersion;
+
+    /**
+     * Creates the exception.
+     * @param id Business ID of the object in conflict.
+     * @param expectedVersion Version the caller read.
+     * @param actualVersion Version currently stored.
+     */
+    public VersionConflictException(int id, long expectedVersion, long actualVersion) {
+        super("Object " + id + " was modified concurrently (read version " + expectedVersion + ", stored version " + actualVersion + ")");
+        this.id = id;
+        this.expectedVersion = expectedVersion;
+        this.actualVersion = actualVersion;
+    }
+
+    /**
+     * @return Business ID of the object in conflict.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return Version the caller read.
+     */
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    /**
+     * @return Version currently stored.
+     */
+    public long getActualVersion() {
+        return actualVersion;
+    }
+}
@@ -0,0 +1,13 @@
+package cesur.accesodatos.db4o;
+
+/**
+ * Detached copy of a stored object together with the version it had when it was read, to be passed back to an optimistic
+ * update such as {@link db4oDAO#updateEmployee(Employee, long)}.
+ *
+ * @param value Copy of the object. Changing it doesn't change the stored object.
+ * @param version db4o commit timestamp of the object when it was read, or 0 if it was never committed with timestamps enabled.
+ * @param <T> Type of the object.
+ * @author Marc Albert Seguí Olmos
+ */
+public record Versioned<T>(T value, long version) {
+}
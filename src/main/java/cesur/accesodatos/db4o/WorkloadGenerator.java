@@ -0,0 +1,428 @@
+package cesur.accesodatos.db4o;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * YCSB-style multi-threaded workload driver for any {@link IDAO} implementation.
+ * It loads a set of {@link Employee}s, then runs a configurable mix of reads, inserts, updates and deletes from several threads
+ * for a fixed time, choosing the keys with a scrambled Zipfian distribution. It reports the throughput and the latency
+ * percentiles of every operation type in a {@link WorkloadReport}.
+ *
+ * Operations on the same key are serialized by the driver through lock striping, which lets it keep the exact expected state
+ * of every key. Reads are checked against that state while the workload runs, and after the run the whole key range is read
+ * back to detect lost, phantom, modified and duplicated records. Since only the public {@link IDAO} methods are used, every
+ * backend and decorator (db4o, replicated, sharded, log store...) can be compared the same way.
+ *
+ * The workload uses the employee IDs from {@link #setKeyBase(int)} upwards; existing employees in that range are deleted first.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class WorkloadGenerator {
+
+    /**
+     * Operation types of the workload.
+     */
+    public enum Operation { READ, INSERT, UPDATE, DELETE }
+
+    /**
+     * Number of key lock stripes.
+     */
+    private static final int STRIPES = 1024;
+    /**
+     * Positions used for the generated employees.
+     */
+    private static final String[] POSITIONS = {"Vendedor", "Dependiente", "Responsable", "Contable", "Analista"};
+
+    /**
+     * Tested implementation.
+     */
+    private final IDAO dao;
+    /**
+     * Relative weights of every operation type.
+     */
+    private double readRatio = 0.5, insertRatio = 0.1, updateRatio = 0.3, deleteRatio = 0.1;
+    /**
+     * Number of worker threads.
+     */
+    private int threads = 4;
+    /**
+     * Duration of the measured phase in milliseconds.
+     */
+    private long durationMillis = 10_000;
+    /**
+     * Number of employees loaded before the measured phase.
+     */
+    private int recordCount = 1000;
+    /**
+     * First employee ID used by the workload.
+     */
+    private int keyBase = 1_000_000;
+    /**
+     * Zipfian constant of the key distribution.
+     */
+    private double zipfTheta = ZipfianGenerator.DEFAULT_THETA;
+    /**
+     * Department IDs assigned to the generated employees.
+     */
+    private int[] depnos = {10, 20, 30, 40};
+    /**
+     * Whether the workload's employees are deleted after the correctness check.
+     */
+    private boolean cleanup = true;
+
+    /**
+     * Locks serializing the operations on the same key.
+     */
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    /**
+     * Expected state of every live key.
+     */
+    private final Map<Integer, Employee> expected = new ConcurrentHashMap<>();
+    /**
+     * Next key to insert.
+     */
+    private final AtomicInteger nextKey = new AtomicInteger();
+
+    /**
+     * Creates a driver for the given implementation with the default settings (50% reads, 10% inserts, 30% updates,
+     * 10% deletes, 4 threads, 10 seconds, 1000 records, Zipfian constant 0.99).
+     * @param dao Implementation to test.
+     */
+    public WorkloadGenerator(IDAO dao) {
+        this.dao = dao;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
+
+    /**
+     * Sets the operation mix. The values are relative weights and don't need to add up to 1.
+     * @param read Weight of reads.
+     * @param insert Weight of inserts.
+     * @param update Weight of updates.
+     * @param delete Weight of deletes.
+     * @return This driver.
+     */
+    public WorkloadGenerator setMix(double read, double insert, double update, double delete) {
+        if (read < 0 || insert < 0 || update < 0 || delete < 0 || read + insert + update + delete <= 0) {
+            throw new IllegalArgumentException("The operation weights must be non-negative and not all zero");
+        }
+        this.readRatio = read;
+        this.insertRatio = insert;
+        this.updateRatio = update;
+        this.deleteRatio = delete;
+        return this;
+    }
+
+    /**
+     * @param threads Number of worker threads.
+     * @return This driver.
+     */
+    public WorkloadGenerator setThreads(int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("The number of threads must be positive");
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param durationMillis Duration of the measured phase in milliseconds.
+     * @return This driver.
+     */
+    public WorkloadGenerator setDuration(long durationMillis) {
+        this.durationMillis = durationMillis;
+        return this;
+    }
+
+    /**
+     * @param recordCount Number of employees loaded before the measured phase.
+     * @return This driver.
+     */
+    public WorkloadGenerator setRecordCount(int recordCount) {
+        if (recordCount <= 0) throw new IllegalArgumentException("The number of records must be positive");
+        this.recordCount = recordCount;
+        return this;
+    }
+
+    /**
+     * @param keyBase First employee ID used by the workload.
+     * @return This driver.
+     */
+    public WorkloadGenerator setKeyBase(int keyBase) {
+        this.keyBase = keyBase;
+        return this;
+    }
+
+    /**
+     * @param zipfTheta Zipfian constant of the key distribution (higher is more skewed).
+     * @return This driver.
+     */
+    public WorkloadGenerator setZipfTheta(double zipfTheta) {
+        this.zipfTheta = zipfTheta;
+        return this;
+    }
+
+    /**
+     * @param depnos Department IDs assigned to the generated employees.
+     * @return This driver.
+     */
+    public WorkloadGenerator setDepnos(int... depnos) {
+        if (depnos.length == 0) throw new IllegalArgumentException("At least one department is required");
+        this.depnos = depnos.clone();
+        return this;
+    }
+
+    /**
+     * @param cleanup true to delete the workload's employees after the correctness check (default).
+     * @return This driver.
+     */
+    public WorkloadGenerator setCleanup(boolean cleanup) {
+        this.cleanup = cleanup;
+        return this;
+    }
+
+    /**
+     * Runs the load phase, the measured phase and the correctness check.
+     * The console messages of the tested implementation are left as they are; {@link #main(String[])} discards them because it
+     * owns its process, but a caller sharing the JVM with other work should give the driver an implementation that doesn't print.
+     * @return Results of the run.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the workers.
+     */
+    public WorkloadReport run() throws InterruptedException {
+        load();
+        ZipfianGenerator zipf = new ZipfianGenerator(recordCount, zipfTheta);
+        double total = readRatio + insertRatio + updateRatio + deleteRatio;
+        LongAdder errors = new LongAdder();
+        LongAdder anomalies = new LongAdder();
+        List<Map<Operation, LatencyHistogram>> perThread = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        long deadline = System.nanoTime() + durationMillis * 1_000_000L;
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            Map<Operation, LatencyHistogram> histograms = new EnumMap<>(Operation.class);
+            for (Operation op : Operation.values()) histograms.put(op, new LatencyHistogram());
+            perThread.add(histograms);
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    double r = random.nextDouble() * total;
+                    Operation op = r < readRatio ? Operation.READ
+                            : r < readRatio + insertRatio ? Operation.INSERT
+                            : r < readRatio + insertRatio + updateRatio ? Operation.UPDATE : Operation.DELETE;
+                    int key = op == Operation.INSERT ? nextKey.getAndIncrement()
+                            : keyBase + (int) zipf.nextScrambled(nextKey.get() - keyBase);
+                    try {
+                        histograms.get(op).record(execute(op, key, anomalies));
+                    } catch (RuntimeException e) {
+                        errors.increment();
+                    }
+                }
+            }, "workload-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - start;
+
+        Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+        for (Operation op : Operation.values()) latencies.put(op, new LatencyHistogram());
+        for (Map<Operation, LatencyHistogram> histograms : perThread) {
+            for (Operation op : Operation.values()) latencies.get(op).merge(histograms.get(op));
+        }
+        long[] check = verify();
+        if (cleanup) {
+            for (int key : expected.keySet()) dao.deleteEmployee(key);
+        }
+        return new WorkloadReport(dao.getClass().getSimpleName(), threads, elapsed, latencies, errors.sum(), anomalies.sum(),
+                check[0], check[1], check[2], check[3]);
+    }
+
+    /**
+     * Deletes any leftover employee in the workload's key range and inserts the initial records.
+     */
+    private void load() {
+        expected.clear();
+        for (Employee e : dao.findAllEmployees()) {
+            if (e.getEmpno() >= keyBase) dao.deleteEmployee(e.getEmpno());
+        }
+        nextKey.set(keyBase);
+        for (int i = 0; i < recordCount; i++) {
+            int key = nextKey.getAndIncrement();
+            Employee employee = newEmployee(key);
+            dao.addEmployee(employee);
+            expected.put(key, copy(employee));
+        }
+    }
+
+    /**
+     * Executes one operation on one key while holding the key's stripe lock, and updates the expected state.
+     * @param op Operation to execute.
+     * @param key Employee ID.
+     * @param anomalies Counter of results that don't match the expected state.
+     * @return Latency of the {@link IDAO} call in nanoseconds.
+     */
+    private long execute(Operation op, int key, LongAdder anomalies) {
+        ReentrantLock lock = stripes[Math.floorMod(key, STRIPES)];
+        lock.lock();
+        try {
+            Employee before = expected.get(key);
+            long start;
+            long latency;
+            switch (op) {
+                case READ -> {
+                    start = System.nanoTime();
+                    Employee found = dao.findEmployeeById(key);
+                    latency = System.nanoTime() - start;
+                    if (!sameEmployee(before, found)) anomalies.increment();
+                }
+                case INSERT -> {
+                    Employee employee = newEmployee(key);
+                    start = System.nanoTime();
+                    dao.addEmployee(employee);
+                    latency = System.nanoTime() - start;
+                    expected.put(key, copy(employee));
+                }
+                case UPDATE -> {
+                    Employee employee = newEmployee(key);
+                    start = System.nanoTime();
+                    Employee updated = dao.updateEmployee(employee);
+                    latency = System.nanoTime() - start;
+                    if (before == null) {
+                        if (updated != null) anomalies.increment(); // Updated a record that should not exist
+                    } else {
+                        expected.put(key, copy(employee));
+                    }
+                }
+                default -> {
+                    start = System.nanoTime();
+                    Employee deleted = dao.deleteEmployee(key);
+                    latency = System.nanoTime() - start;
+                    if ((before == null) != (deleted == null)) anomalies.increment();
+                    expected.remove(key);
+                }
+            }
+            return latency;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads back the workload's key range and compares it with the expected state.
+     * @return Number of lost, phantom, mismatched and duplicated records, in that order.
+     */
+    private long[] verify() {
+        Map<Integer, Employee> actual = new HashMap<>();
+        long duplicates = 0, phantoms = 0, mismatches = 0, lost = 0;
+        for (Employee e : dao.findAllEmployees()) {
+            if (e.getEmpno() < keyBase) continue;
+            if (actual.put(e.getEmpno(), e) != null) duplicates++;
+        }
+        for (Map.Entry<Integer, Employee> e : actual.entrySet()) {
+            Employee wanted = expected.get(e.getKey());
+            if (wanted == null) phantoms++;
+            else if (!sameEmployee(wanted, e.getValue())) mismatches++;
+        }
+        for (Integer key : expected.keySet()) {
+            if (!actual.containsKey(key)) lost++;
+        }
+        return new long[]{lost, phantoms, mismatches, duplicates};
+    }
+
+    /**
+     * Builds an employee with random attribute values.
+     * @param key Employee ID.
+     * @return New employee.
+     */
+    private Employee newEmployee(int key) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new Employee(key, "Emp" + random.nextInt(1_000_000), POSITIONS[random.nextInt(POSITIONS.length)],
+                depnos[random.nextInt(depnos.length)]);
+    }
+
+    /**
+     * @param e Employee to copy.
+     * @return Detached copy of the employee, immune to later changes made by the tested implementation.
+     */
+    private static Employee copy(Employee e) {
+        return new Employee(e.getEmpno(), e.getName(), e.getPosition(), e.getDepno());
+    }
+
+    /**
+     * Compares two employees attribute by attribute. Two nulls are equal.
+     * @param a First employee.
+     * @param b Second employee.
+     * @return true if both are null or both have the same attribute values.
+     */
+    private static boolean sameEmployee(Employee a, Employee b) {
+        if (a == null || b == null) return a == b;
+        return a.getEmpno() == b.getEmpno() && Objects.equals(a.getName(), b.getName())
+                && Objects.equals(a.getPosition(), b.getPosition()) && Objects.equals(a.getDepno(), b.getDepno());
+    }
+
+    /**
+     * Command line entry point. Runs the workload against the chosen backend.
+     * Arguments (all optional): backend spec ("db4o:path", "log:path", "shards:path1,path2,..."), threads, seconds,
+     * records and the operation mix as "read,insert,update,delete". Example: {@code log:bench.log 8 30 10000 50,10,30,10}
+     * Without a backend spec the workload runs on a temporary db4o database, deleted at the end, so it never modifies the
+     * application's database.
+     * @param args Command line arguments.
+     * @throws Exception If the backend can't be opened or the run is interrupted.
+     */
+    public static void main(String[] args) throws Exception {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // The backends print a line per operation
+        Path tempDir = args.length > 0 ? null : Files.createTempDirectory("workload");
+        IDAO dao = openBackend(tempDir == null ? args[0] : "db4o:" + tempDir.resolve("workload.yap"));
+        try {
+            WorkloadGenerator generator = new WorkloadGenerator(dao);
+            if (args.length > 1) generator.setThreads(Integer.parseInt(args[1]));
+            if (args.length > 2) generator.setDuration(Long.parseLong(args[2]) * 1000);
+            if (args.length > 3) generator.setRecordCount(Integer.parseInt(args[3]));
+            if (args.length > 4) {
+                String[] mix = args[4].split(",");
+                generator.setMix(Double.parseDouble(mix[0]), Double.parseDouble(mix[1]), Double.parseDouble(mix[2]), Double.parseDouble(mix[3]));
+            }
+            console.print(generator.run());
+        } finally {
+            if (dao instanceof FileHandlerInterface handler) handler.closeConnection();
+            if (tempDir != null) {
+                try (Stream<Path> files = Files.list(tempDir)) {
+                    for (Path file : (Iterable<Path>) files::iterator) Files.delete(file); // The database and its sidecar files
+                }
+                Files.delete(tempDir);
+            }
+        }
+    }
+
+    /**
+     * Opens an {@link IDAO} implementation from a backend spec.
+     * @param spec "db4o:path", "log:path" or "shards:path1,path2,...".
+     * @return The opened implementation.
+     * @throws IOException If a log store can't be opened.
+     */
+    static IDAO openBackend(String spec) throws IOException {
+        int colon = spec.indexOf(':');
+        String kind = colon < 0 ? spec : spec.substring(0, colon);
+        String location = colon < 0 ? "" : spec.substring(colon + 1);
+        return switch (kind) {
+            case "db4o" -> new db4oDAO(location);
+            case "log" -> new LogStoreDAO(location);
+            case "shards" -> new ShardedDAO(location.split(","));
+            default -> throw new IllegalArgumentException("Unknown backend: " + kind);
+        };
+    }
+}
@@ -0,0 +1,158 @@
+package cesur.accesodatos.db4o;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Results of one {@link WorkloadGenerator} run: throughput, latency percentiles per operation and the outcome of the
+ * correctness check performed after the run.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class WorkloadReport {
+
+    /**
+     * Name of the tested {@link IDAO} implementation.
+     */
+    private final String target;
+    /**
+     * Number of worker threads.
+     */
+    private final int threads;
+    /**
+     * Duration of the measured phase in nanoseconds.
+     */
+    private final long elapsedNanos;
+    /**
+     * Latencies of every operation type.
+     */
+    private final Map<WorkloadGenerator.Operation, LatencyHistogram> latencies;
+    /**
+     * Number of operations that threw an exception.
+     */
+    private final long errors;
+    /**
+     * Number of reads (or updates of missing records) whose result didn't match the expected state at that moment.
+     */
+    private final long readAnomalies;
+    /**
+     * Records the driver wrote and did not delete, but that are missing from the storage.
+     */
+    private final long lost;
+    /**
+     * Records found in the storage that the driver never wrote or already deleted.
+     */
+    private final long phantoms;
+    /**
+     * Records found with attribute values different from the last written ones.
+     */
+    private final long mismatches;
+    /**
+     * Records stored more than once with the same ID.
+     */
+    private final long duplicates;
+
+    /**
+     * Creates the report.
+     * @param target Name of the tested implementation.
+     * @param threads Number of worker threads.
+     * @param elapsedNanos Duration of the measured phase in nanoseconds.
+     * @param latencies Latencies of every operation type.
+     * @param errors Number of operations that threw an exception.
+     * @param readAnomalies Number of reads whose result didn't match the expected state.
+     * @param lost Number of lost records.
+     * @param phantoms Number of phantom records.
+     * @param mismatches Number of records with unexpected values.
+     * @param duplicates Number of duplicated records.
+     */
+    public WorkloadReport(String target, int threads, long elapsedNanos, Map<WorkloadGenerator.Operation, LatencyHistogram> latencies,
+                          long errors, long readAnomalies, long lost, long phantoms, long mismatches, long duplicates) {
+        this.target = target;
+        this.threads = threads;
+        this.elapsedNanos = elapsedNanos;
+        this.latencies = new EnumMap<>(latencies);
+        this.errors = errors;
+        this.readAnomalies = readAnomalies;
+        this.lost = lost;
+        this.phantoms = phantoms;
+        this.mismatches = mismatches;
+        this.duplicates = duplicates;
+    }
+
+    /**
+     * @return Total number of executed operations.
+     */
+    public long getOperations() {
+        long total = 0;
+        for (LatencyHistogram h : latencies.values()) total += h.getCount();
+        return total;
+    }
+
+    /**
+     * @return Operations per second during the measured phase.
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : getOperations() * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Returns the latencies of one operation type.
+     * @param operation Operation type.
+     * @return Latency histogram of the operation.
+     */
+    public LatencyHistogram getLatencies(WorkloadGenerator.Operation operation) {
+        return latencies.get(operation);
+    }
+
+    /**
+     * @return Number of operations that threw an exception.
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return Number of lost records.
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * @return Number of phantom records.
+     */
+    public long getPhantoms() {
+        return phantoms;
+    }
+
+    /**
+     * @return true if no record was lost, duplicated, modified or invented, and every read saw the expected state.
+     */
+    public boolean isCorrect() {
+        return errors == 0 && readAnomalies == 0 && lost == 0 && phantoms == 0 && mismatches == 0 && duplicates == 0;
+    }
+
+    /**
+     * @return Table with the throughput, the latency percentiles in microseconds and the correctness check results.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        String row = "+" + "-".repeat(8) + "+" + "-".repeat(11) + ("+" + "-".repeat(11)).repeat(5) + "+\n";
+        sb.append(String.format("Workload on %s: %d threads, %.1f s, %d ops, %.0f ops/s%n",
+                target, threads, elapsedNanos / 1e9, getOperations(), getThroughput()));
+        sb.append(row);
+        sb.append(String.format("| %-6s | %9s | %9s | %9s | %9s | %9s | %9s |%n", "OP", "COUNT", "P50 us", "P95 us", "P99 us", "P99.9 us", "MAX us"));
+        sb.append(row);
+        for (Map.Entry<WorkloadGenerator.Operation, LatencyHistogram> e : latencies.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            sb.append(String.format("| %-6s | %9d | %9.1f | %9.1f | %9.1f | %9.1f | %9.1f |%n", e.getKey(), h.getCount(),
+                    h.getPercentile(50) / 1e3, h.getPercentile(95) / 1e3, h.getPercentile(99) / 1e3,
+                    h.getPercentile(99.9) / 1e3, h.getMax() / 1e3));
+        }
+        sb.append(row);
+        sb.append(String.format("Correctness: %s (errors=%d, read anomalies=%d, lost=%d, phantoms=%d, mismatches=%d, duplicates=%d)%n",
+                isCorrect() ? "OK" : "FAILED", errors, readAnomalies, lost, phantoms, mismatches, duplicates));
+        return sb.toString();
+    }
+}
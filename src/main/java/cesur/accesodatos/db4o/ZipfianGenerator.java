@@ -0,0 +1,148 @@
+package cesur.accesodatos.db4o;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generator of skewed item numbers following a Zipfian distribution, as used by YCSB workloads.
+ * Item 0 is the most popular one; with the default constant 0.99 a small fraction of the items receives most of the requests.
+ * {@link #nextScrambled(long)} spreads the popular items over the key space so they are not all adjacent, and grows the number
+ * of items with the key space, so keys inserted after the generator was created get their share of the requests. Growing is
+ * incremental (the constants are extended, not recomputed), as in YCSB. This class is thread-safe.
+ *
+ * Algorithm from Gray et al., "Quickly Generating Billion-Record Synthetic Databases", SIGMOD 1994.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ZipfianGenerator {
+
+    /**
+     * DEFAULT_THETA -> Default Zipfian constant, the same as YCSB.
+     */
+    public static final double DEFAULT_THETA = 0.99;
+
+    /**
+     * Constants of the algorithm that depend on the number of items.
+     * @param items Number of items.
+     * @param zetan Generalized harmonic number of the items.
+     * @param eta Constant derived from zetan.
+     */
+    private record Items(long items, double zetan, double eta) {
+    }
+
+    /**
+     * Zipfian constant.
+     */
+    private final double theta;
+    /**
+     * Constants of the algorithm that don't depend on the number of items.
+     */
+    private final double zeta2, alpha, halfPowTheta;
+    /**
+     * Current number of items and its constants, replaced when the key space grows.
+     */
+    private volatile Items current;
+
+    /**
+     * Creates a generator over the given number of items.
+     * @param items Number of items (item numbers go from 0 to items - 1).
+     * @param theta Zipfian constant, between 0 (exclusive) and 1 (exclusive). Higher values mean more skew.
+     */
+    public ZipfianGenerator(long items, double theta) {
+        if (items <= 0) throw new IllegalArgumentException("The number of items must be positive");
+        if (theta <= 0 || theta >= 1) throw new IllegalArgumentException("The Zipfian constant must be between 0 and 1");
+        this.theta = theta;
+        this.zeta2 = zeta(0, 2, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.halfPowTheta = 1 + Math.pow(0.5, theta);
+        this.current = items(items, zeta(0, items, theta));
+    }
+
+    /**
+     * Returns the next item number. Lower numbers are more popular.
+     * @return Item number between 0 and items - 1, items being the largest key space seen so far.
+     */
+    public long next() {
+        return next(current);
+    }
+
+    /**
+     * Returns the next item hashed over a key space, so the popular items are scattered instead of being the lowest keys.
+     * If the key space is larger than the number of items, the items grow to it first.
+     * @param keySpace Size of the key space (it may grow over time, e.g. with inserts).
+     * @return Key between 0 and keySpace - 1.
+     */
+    public long nextScrambled(long keySpace) {
+        return Math.floorMod(fnv(next(grow(keySpace))), keySpace);
+    }
+
+    /**
+     * @param items Number of items.
+     * @return Next item number of a distribution over the given items.
+     */
+    private long next(Items items) {
+        double u = ThreadLocalRandom.current().nextDouble();
+        double uz = u * items.zetan();
+        if (uz < 1.0) return 0;
+        if (uz < halfPowTheta) return 1;
+        return Math.min(items.items() - 1, (long) (items.items() * Math.pow(items.eta() * u - items.eta() + 1, alpha)));
+    }
+
+    /**
+     * Grows the number of items to the given one, extending zetan with the new terms only.
+     * @param items Number of items needed.
+     * @return Current constants, with at least the given number of items.
+     */
+    private Items grow(long items) {
+        Items known = current;
+        if (items <= known.items()) return known;
+        synchronized (this) {
+            known = current;
+            if (items > known.items()) current = known = items(items, known.zetan() + zeta(known.items(), items, theta));
+            return known;
+        }
+    }
+
+    /**
+     * @param items Number of items.
+     * @param zetan Generalized harmonic number of the items.
+     * @return Constants of a distribution over the given items.
+     */
+    private Items items(long items, double zetan) {
+        return new Items(items, zetan, (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan));
+    }
+
+    /**
+     * @return Zipfian constant of this generator.
+     */
+    public double getTheta() {
+        return theta;
+    }
+
+    /**
+     * Computes a part of the generalized harmonic number of order theta.
+     * @param from Number of terms already summed.
+     * @param to Number of terms of the whole sum.
+     * @param theta Zipfian constant.
+     * @return Sum of 1 / i^theta for i from from + 1 to to.
+     */
+    private static double zeta(long from, long to, double theta) {
+        double sum = 0;
+        for (long i = from + 1; i <= to; i++) sum += 1 / Math.pow(i, theta);
+        return sum;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a value.
+     * @param value Value to hash.
+     * @return Hash of the value.
+     */
+    private static long fnv(long value) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < 8; i++) {
+            hash ^= value & 0xFF;
+            hash *= 0x100000001B3L;
+            value >>>= 8;
+        }
+        return hash;
+    }
+}
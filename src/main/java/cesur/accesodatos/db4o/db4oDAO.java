@@ -4,15 +4,40 @@ package cesur.accesodatos.db4o;
 import com.db4o.Db4oEmbedded;
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
+import com.db4o.config.EmbeddedConfiguration;
+import com.db4o.config.ObjectClass;
+import com.db4o.io.CachingStorage;
+import com.db4o.io.FileStorage;
 import com.db4o.query.Predicate;
+import com.db4o.query.Query;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 /**
  * db4o-based Data Access Object (DAO) component for managing data persistence.
@@ -27,7 +52,7 @@ import java.util.Scanner;
  *
  * @author Marc Albert Seguí Olmos
  */
-public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
+public final class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
 
     // Terminal outputs and colors
     /**
@@ -73,8 +98,643 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
      * Path to the "empresa.txt" file within the project's resources directory, used as the data storage for the application.
      */
     static String path = "src/main/resources/empresa.yap"; // Path of the file
+    /**
+     * IDENTITY_SIDECAR_MIN_ENTRIES -> Minimum number of employees and departments for the identity maps to be saved in a sidecar
+     * file on close; smaller databases are scanned at startup, which is as fast as reading the file.
+     */
+    static final int IDENTITY_SIDECAR_MIN_ENTRIES = 10_000;
+    /**
+     * IDENTITY_SIDECAR_MAGIC -> First bytes of the identity maps sidecar file ("IDS1").
+     */
+    private static final int IDENTITY_SIDECAR_MAGIC = 0x49445331;
+    /**
+     * EMPNO_MARK -> Bit set on the empnos stored in the reverse identity map, so no empno is stored as {@link IntLongHashMap#NO_VALUE}.
+     */
+    private static final long EMPNO_MARK = 1L << 32;
+    /**
+     * Path of the database file opened by this DAO instance.
+     */
+    private final String dbPath;
+    /**
+     * db4o container of the database file opened by this DAO instance.
+     */
+    private final ObjectContainer db;
+    /**
+     * Identity map from {@link Employee}'s empno to its db4o internal object ID.
+     * Built at startup and kept up to date by the add and delete methods, so ID lookups don't need to run a query.
+     */
+    private final IntLongHashMap employeeIds = new IntLongHashMap();
+    /**
+     * Reverse of {@link #employeeIds}: from db4o internal ID (db4o IDs fit in an int) to empno, encoded with
+     * {@link #EMPNO_MARK} since {@link IntLongHashMap#NO_VALUE} is reserved. It is guarded by the employeeIds monitor and
+     * only changed through {@link #setEmployeeId(int, long)}, so both maps always agree.
+     */
+    private final IntLongHashMap employeeEmpnos = new IntLongHashMap();
+    /**
+     * Identity map from {@link Department}'s depno to its db4o internal object ID.
+     * Built at startup and kept up to date by the add and delete methods, so ID lookups don't need to run a query.
+     */
+    private final IntLongHashMap departmentIds = new IntLongHashMap();
+    /**
+     * Cache of the empnos of each department's employees, used by {@link #findEmployeesByDept(Object)}.
+     */
+    private final DepartmentQueryCache departmentCache = new DepartmentQueryCache(DepartmentQueryCache.DEFAULT_MAX_IDS);
+    /**
+     * Engine of the analytics scans, returned by {@link #getScanEngine()}.
+     */
+    private final ScanEngine scanEngine;
+    /**
+     * Manager keeping the reference system of the container small during scans.
+     */
+    private final ReferenceManager references;
+    /**
+     * Allocators of new empnos and depnos, used by {@link #addEmployee(String, String, Integer)} and {@link #addDepartment(String, String)}.
+     */
+    private final IdAllocator employeeIdAllocator, departmentIdAllocator;
+
+    /**
+     * Change-data-capture feed of this DAO's container, created on demand by {@link #openChangeFeed(String)}.
+     */
+    private ChangeFeed changeFeed;
+    /**
+     * Full-text index of the database, opened on demand by {@link #openSearchIndex()} and kept up to date by the write methods.
+     */
+    private volatile FullTextIndex searchIndex;
+    /**
+     * Whether something was committed since the database was opened, so the search index sidecar file is outdated.
+     */
+    private volatile boolean committedSinceOpen;
+    /**
+     * Size and modification time of the database file before it was opened, to check if the search index sidecar file is up to date.
+     */
+    private final String openStamp;
+    /**
+     * Diagnostics of the queries run by this DAO, with the slow-query log next to the database file.
+     */
+    private final QueryDiagnostics diagnostics;
+    /**
+     * Lock held by the thread writing to the container: during a single write method, or from {@link #begin()} until the
+     * transaction ends. db4o has one transaction per container, so writes of other threads wait instead of joining it.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /**
+     * Explicit transaction of the thread holding {@link #writeLock}, or null if the write methods commit on their own.
+     */
+    private UnitOfWork unitOfWork;
+    /**
+     * Storage of the database file, applying the durability mode of the commits.
+     */
+    private final DurableStorage storage;
+    /**
+     * Set by the lock holder after a commit, so it waits for the commit to be durable once it releases {@link #writeLock}.
+     */
+    private boolean durabilityPending;
+    /**
+     * Number of optimistic updates rejected because the employee was committed by someone else after it was read.
+     */
+    private final AtomicLong versionConflicts = new AtomicLong();
+
+    /**
+     * Creates the DAO over the default "empresa.yap" database file and builds the identity maps from the objects already stored in it.
+     */
+    public db4oDAO() {
+        this(path);
+    }
+
+    /**
+     * Creates the DAO over the given database file and builds the identity maps from the objects already stored in it.
+     * The file is created if it doesn't exist. This allows several containers (e.g. read replicas) in the same process.
+     * Every commit is synced to disk ({@link DurabilityMode#SYNC}).
+     *
+     * @param dbPath Path of the db4o database file.
+     */
+    public db4oDAO(String dbPath) {
+        this(dbPath, DurabilityMode.SYNC);
+    }
+
+    /**
+     * Creates the DAO over the given database file with the given durability of the commits.
+     *
+     * @param dbPath Path of the db4o database file.
+     * @param durability When the commits reach the disk, see {@link DurabilityMode}.
+     */
+    public db4oDAO(String dbPath, DurabilityMode durability) {
+        this(dbPath, durability, ReferenceSettings.DEFAULT, false);
+    }
+
+    /**
+     * Creates the DAO over the given database file with the given durability of the commits and reference system settings,
+     * e.g. strong references for processes that prefer to keep the loaded objects and rely on the purges of the scans.
+     *
+     * @param dbPath Path of the db4o database file.
+     * @param durability When the commits reach the disk, see {@link DurabilityMode}.
+     * @param references Settings of the reference system, see {@link ReferenceSettings}.
+     */
+    public db4oDAO(String dbPath, DurabilityMode durability, ReferenceSettings references) {
+        this(dbPath, durability, references, false);
+    }
+
+    /**
+     * Creates the DAO over the given database file with the given durability of the commits.
+     *
+     * @param dbPath Path of the db4o database file.
+     * @param durability When the commits reach the disk, see {@link DurabilityMode}.
+     * @param simulatePowerLoss true to keep the unsynced writes in memory, so killing the process loses what a power failure would (crash tests only).
+     */
+    db4oDAO(String dbPath, DurabilityMode durability, boolean simulatePowerLoss) {
+        this(dbPath, durability, ReferenceSettings.DEFAULT, simulatePowerLoss);
+    }
+
+    /**
+     * Creates the DAO over the given database file with the given durability of the commits and reference system settings.
+     *
+     * @param dbPath Path of the db4o database file.
+     * @param durability When the commits reach the disk, see {@link DurabilityMode}.
+     * @param referenceSettings Settings of the reference system, see {@link ReferenceSettings}.
+     * @param simulatePowerLoss true to keep the unsynced writes in memory, so killing the process loses what a power failure would (crash tests only).
+     */
+    private db4oDAO(String dbPath, DurabilityMode durability, ReferenceSettings referenceSettings, boolean simulatePowerLoss) {
+        this.dbPath = dbPath;
+        this.openStamp = stampOf(dbPath);
+        this.diagnostics = new QueryDiagnostics(sidecarPath(".slow.log"));
+        this.storage = new DurableStorage(new FileStorage(), durability, simulatePowerLoss);
+        EmbeddedConfiguration config = newConfiguration();
+        config.common().diagnostic().addListener(diagnostics);
+        config.file().storage(new CachingStorage(storage)); // Same page cache as the default storage, over the durable file
+        config.common().weakReferences(referenceSettings.weakReferences());
+        config.common().weakReferenceCollectionInterval(referenceSettings.collectionIntervalMillis());
+        this.db = Db4oEmbedded.openFile(config, dbPath);
+        diagnostics.attach(db);
+        this.scanEngine = new ScanEngine(db);
+        this.references = new ReferenceManager(db, writeLock, this::isInTransaction, referenceSettings);
+        if (!loadIdentitySidecar()) loadIdentityMaps();
+        this.employeeIdAllocator = new IdAllocator(db, "Employee.empno", this::hasEmployee, () -> highestKey(employeeIds) + 1);
+        this.departmentIdAllocator = new IdAllocator(db, "Department.depno", this::hasDepartment, () -> highestKey(departmentIds) + 1);
+    }
+
+    /**
+     * Creates the db4o configuration used to open the database files.
+     * The fields used by the identity maps and the bulk operations are indexed, so queries constrained on them don't scan
+     * every object. db4o builds missing indexes when a file is opened with this configuration.
+     *
+     * @return A new configuration with the field indexes set.
+     */
+    static EmbeddedConfiguration newConfiguration() {
+        EmbeddedConfiguration config = Db4oEmbedded.newConfiguration();
+        ObjectClass employee = config.common().objectClass(Employee.class);
+        employee.objectField("empno").indexed(true);
+        employee.objectField("depno").indexed(true);
+        employee.objectField("position").indexed(true);
+        employee.objectField("name").indexed(true);
+        config.common().objectClass(Department.class).objectField("depno").indexed(true);
+        config.file().generateCommitTimestamps(true); // Per-object versions for the optimistic updates
+        return config;
+    }
+
+    /**
+     * Fills the empno and depno identity maps with one pass over every stored {@link Employee} and {@link Department}.
+     * If an error occurs, an error message is printed and the maps are left empty.
+     */
+    private void loadIdentityMaps() {
+        try (ReferenceManager.Batch batch = references.batch()) {
+            for (Employee emp : db.query(Employee.class)) {
+                synchronized (employeeIds) {
+                    setEmployeeId(emp.getEmpno(), db.ext().getID(emp));
+                }
+                batch.add(emp);
+            }
+            for (Department dept : db.query(Department.class)) {
+                synchronized (departmentIds) {
+                    departmentIds.put(dept.getDepno(), db.ext().getID(dept));
+                }
+                batch.add(dept);
+            }
+        } catch (Exception e) {
+            System.err.println("ERROR: An error occurred while loading the identity maps: " + e.getMessage());
+            synchronized (employeeIds) {
+                employeeIds.clear();
+                employeeEmpnos.clear();
+            }
+            synchronized (departmentIds) {
+                departmentIds.clear();
+            }
+        }
+    }
+
+    /**
+     * Fills the identity maps from the sidecar file saved when the database was last closed (the database path with the ".ids"
+     * extension), so a large database doesn't have to be scanned at startup. The file is used only if the database wasn't
+     * modified since it was saved and the maps hold as many entries as there are stored objects.
+     *
+     * @return true if the maps were loaded, false if they must be built with {@link #loadIdentityMaps()}.
+     */
+    private boolean loadIdentitySidecar() {
+        Path file = sidecarPath(".ids");
+        if (!Files.exists(file)) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != IDENTITY_SIDECAR_MAGIC || !in.readUTF().equals(openStamp)) return false;
+            synchronized (employeeIds) {
+                employeeIds.readFrom(in);
+                employeeEmpnos.clear();
+                for (int empno : employeeIds.keys()) employeeEmpnos.put((int) employeeIds.get(empno), EMPNO_MARK | (empno & 0xFFFFFFFFL));
+            }
+            synchronized (departmentIds) {
+                departmentIds.readFrom(in);
+            }
+            if (employeeIds.size() == db.query(Employee.class).ext().getIDs().length
+                    && departmentIds.size() == db.query(Department.class).ext().getIDs().length) return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("ERROR: The identity maps file " + file + " can't be read, rebuilding them - " + e.getMessage());
+        }
+        synchronized (employeeIds) {
+            employeeIds.clear();
+            employeeEmpnos.clear();
+        }
+        synchronized (departmentIds) {
+            departmentIds.clear();
+        }
+        return false;
+    }
+
+    /**
+     * Saves the identity maps to their sidecar file, stamped with the closed database file, or deletes the file if the
+     * database is too small to need it (see {@link #IDENTITY_SIDECAR_MIN_ENTRIES}).
+     */
+    private void saveIdentitySidecar() {
+        Path file = sidecarPath(".ids");
+        try {
+            if (employeeIds.size() + departmentIds.size() < IDENTITY_SIDECAR_MIN_ENTRIES) {
+                Files.deleteIfExists(file);
+                return;
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(IDENTITY_SIDECAR_MAGIC);
+                out.writeUTF(stampOf(dbPath));
+                synchronized (employeeIds) {
+                    employeeIds.writeTo(out);
+                }
+                synchronized (departmentIds) {
+                    departmentIds.writeTo(out);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            System.err.println("ERROR: Unable to save the identity maps - " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * @param ids Identity map.
+     * @return Highest business ID in the map, or 0 if it is empty.
+     */
+    private static int highestKey(IntLongHashMap ids) {
+        int highest = 0;
+        synchronized (ids) {
+            for (int key : ids.keys()) highest = Math.max(highest, key);
+        }
+        return highest;
+    }
+
+    /**
+     * Resolves a business ID through the given identity map and loads the object directly by its db4o internal ID.
+     * The object is activated so all its fields are available. Stale entries (objects no longer stored) are removed.
+     *
+     * @param ids Identity map to look up.
+     * @param key Business ID (empno or depno).
+     * @return The stored object or null if there is no object mapped to the key.
+     */
+    private <T> T getByBusinessId(IntLongHashMap ids, int key) {
+        long internalId;
+        synchronized (ids) {
+            internalId = ids.get(key);
+        }
+        if (internalId == IntLongHashMap.NO_VALUE) return null;
+        T obj;
+        Lock guard = references.readGuard(); // Not purged between the load and the activation
+        guard.lock();
+        try {
+            obj = db.ext().getByID(internalId);
+            if (obj != null) db.activate(obj, 1);
+        } finally {
+            guard.unlock();
+        }
+        if (obj == null) {
+            synchronized (ids) {
+                ids.remove(key);
+            }
+        }
+        return obj;
+    }
+
+    /**
+     * Updates the state derived from the stored employees after an add, update or delete of an {@link Employee}:
+     * invalidates the cached employees of the departments it left and joined (departments whose members didn't change keep
+     * their entries) and updates the search index if it is open. Inside an explicit transaction the change is not committed
+     * yet, so it is also remembered to undo it on rollback.
+     *
+     * @param empno Employee's ID.
+     * @param oldDepno Department the employee belonged to before the change, or null if it was just added.
+     * @param current The employee after the change, or null if it was deleted.
+     */
+    private void employeeWritten(int empno, Integer oldDepno, Employee current) {
+        Integer newDepno = current == null ? null : current.getDepno();
+        if (!Objects.equals(oldDepno, newDepno)) {
+            if (oldDepno != null) departmentCache.invalidate(oldDepno);
+            if (newDepno != null) departmentCache.invalidate(newDepno);
+            if (unitOfWork != null) {
+                if (oldDepno != null) unitOfWork.memberChanges.add(oldDepno);
+                if (newDepno != null) unitOfWork.memberChanges.add(newDepno);
+            }
+        }
+        if (unitOfWork != null) unitOfWork.empnos.add(empno);
+        FullTextIndex index = searchIndex;
+        if (index != null) {
+            if (current == null) index.removeEmployee(empno);
+            else index.putEmployee(current);
+        }
+    }
+
+    /**
+     * Updates the state derived from the stored departments after an add, update or delete of a {@link Department}.
+     *
+     * @param depno Department's ID.
+     * @param current The department after the change, or null if it was deleted.
+     */
+    private void departmentWritten(int depno, Department current) {
+        if (unitOfWork != null) unitOfWork.depnos.add(depno);
+        FullTextIndex index = searchIndex;
+        if (index != null) {
+            if (current == null) index.removeDepartment(depno);
+            else index.putDepartment(current);
+        }
+    }
 
-    static ObjectContainer db = Db4oEmbedded.openFile("src/main/resources/empresa.yap");
+    /**
+     * Invalidates the cached employees of the departments whose members were changed by a bulk update or delete, and
+     * remembers the changed employees if an explicit transaction is open.
+     *
+     * @param empnos Empnos of the changed employees.
+     * @param count Number of valid positions of empnos.
+     * @param depnos Departments whose members changed.
+     */
+    private void bulkWritten(int[] empnos, int count, Set<Integer> depnos) {
+        for (int depno : depnos) departmentCache.invalidate(depno);
+        if (unitOfWork != null) {
+            for (int i = 0; i < count; i++) unitOfWork.empnos.add(empnos[i]);
+            unitOfWork.memberChanges.addAll(depnos);
+        }
+    }
+
+    /**
+     * Updates an identity map after a write, remembering the previous value of the key if an explicit transaction is open.
+     *
+     * @param ids Identity map to update.
+     * @param key Business ID (empno or depno).
+     * @param internalId New db4o internal ID of the key, or {@link IntLongHashMap#NO_VALUE} to remove it.
+     */
+    private void mapId(IntLongHashMap ids, int key, long internalId) {
+        synchronized (ids) {
+            if (unitOfWork != null) {
+                (ids == employeeIds ? unitOfWork.employeeIdsBefore : unitOfWork.departmentIdsBefore).putIfAbsent(key, ids.get(key));
+            }
+            if (ids == employeeIds) setEmployeeId(key, internalId);
+            else if (internalId == IntLongHashMap.NO_VALUE) ids.remove(key);
+            else ids.put(key, internalId);
+        }
+    }
+
+    /**
+     * Maps an empno to an internal ID in {@link #employeeIds} and in its reverse, {@link #employeeEmpnos}.
+     * The caller holds the employeeIds monitor.
+     *
+     * @param empno Employee's ID.
+     * @param internalId New db4o internal ID of the employee, or {@link IntLongHashMap#NO_VALUE} to remove it.
+     */
+    private void setEmployeeId(int empno, long internalId) {
+        long previous = employeeIds.get(empno);
+        if (previous != IntLongHashMap.NO_VALUE) employeeEmpnos.remove((int) previous);
+        if (internalId == IntLongHashMap.NO_VALUE) {
+            employeeIds.remove(empno);
+        } else {
+            employeeIds.put(empno, internalId);
+            employeeEmpnos.put((int) internalId, EMPNO_MARK | (empno & 0xFFFFFFFFL));
+        }
+    }
+
+    /**
+     * Ends a write method: commits its changes, unless an explicit transaction is open, which will commit them.
+     */
+    private void commitWrite() {
+        if (unitOfWork == null) {
+            db.commit();
+            durabilityPending = true;
+            committedSinceOpen = true;
+        }
+    }
+
+    /**
+     * Releases {@link #writeLock} at the end of a write method or transaction. If the lock is no longer held and something was
+     * committed, waits until it is durable; waiting after releasing the lock lets other writers commit meanwhile and share
+     * the same disk sync ({@link DurabilityMode#GROUP}).
+     */
+    private void endWrite() {
+        boolean await = durabilityPending && writeLock.getHoldCount() == 1;
+        if (await) durabilityPending = false;
+        writeLock.unlock();
+        if (await) storage.awaitDurable();
+    }
+
+    /**
+     * @return Durability mode of the commits of this DAO.
+     */
+    public DurabilityMode getDurabilityMode() {
+        return storage.getMode();
+    }
+
+    /**
+     * Ends a failed write method: rolls back its changes, or marks the explicit transaction so it is rolled back as a whole.
+     */
+    private void abortWrite() {
+        if (unitOfWork == null) db.rollback();
+        else unitOfWork.rollbackOnly = true;
+    }
+
+    /**
+     * Opens an explicit transaction: until {@link #commit()} or {@link #rollback()} is called, the write methods of this thread
+     * don't commit on their own, so several of them (e.g. adding a department and its employees) are committed at once and
+     * atomically. Writes of other threads wait until the transaction ends. Calls can be nested; only the outermost commit
+     * reaches the database, and a rollback at any level rolls back the whole transaction.
+     * Every begin() must be followed by exactly one commit() or rollback() in the same thread; {@link #inTransaction(Consumer)}
+     * does it automatically.
+     */
+    public void begin() {
+        writeLock.lock();
+        if (unitOfWork != null) unitOfWork.depth++;
+        else unitOfWork = new UnitOfWork();
+    }
+
+    /**
+     * Commits the explicit transaction opened by {@link #begin()}. If a write method failed during the transaction, everything
+     * is rolled back instead. A nested commit only closes its level.
+     *
+     * @return true if the changes were committed (or the nested level closed without errors), false if they were rolled back.
+     */
+    public boolean commit() {
+        if (!isInTransaction()) {
+            System.err.println("ERROR: There is no transaction to commit. Call begin() first");
+            return false;
+        }
+        UnitOfWork work = unitOfWork;
+        try {
+            if (--work.depth > 0) return !work.rollbackOnly;
+            unitOfWork = null;
+            if (work.rollbackOnly) {
+                undo(work);
+                System.err.println("ERROR: The transaction was rolled back because one of its operations failed");
+                return false;
+            }
+            try {
+                db.commit();
+                durabilityPending = true;
+                committedSinceOpen = true;
+            } catch (Exception e) {
+                undo(work);
+                System.err.println("ERROR: Unable to commit the transaction, it was rolled back - " + e.getMessage());
+                return false;
+            }
+            for (int depno : work.memberChanges) departmentCache.invalidate(depno); // Drop results read before the commit
+            return true;
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Rolls back the explicit transaction opened by {@link #begin()}. A nested rollback closes its level and marks the whole
+     * transaction to be rolled back when the outermost level ends.
+     */
+    public void rollback() {
+        if (!isInTransaction()) {
+            System.err.println("ERROR: There is no transaction to roll back. Call begin() first");
+            return;
+        }
+        UnitOfWork work = unitOfWork;
+        try {
+            if (--work.depth > 0) {
+                work.rollbackOnly = true;
+                return;
+            }
+            unitOfWork = null;
+            undo(work);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Runs the given work in an explicit transaction: it is committed if the work ends normally and every write method
+     * succeeded, and rolled back otherwise (including when the work throws an exception).
+     * Example: {@code dao.inTransaction(tx -> { tx.addDepartment(dept); tx.addEmployee(emp); })}.
+     *
+     * @param work Operations to run, receiving this DAO.
+     * @return true if the changes were committed, false if they were rolled back.
+     * @throws Error If the work throws one (e.g. an AssertionError), after rolling back the transaction and releasing the lock.
+     */
+    public boolean inTransaction(Consumer<db4oDAO> work) {
+        begin();
+        boolean completed = false;
+        try {
+            work.accept(this);
+            completed = true;
+        } catch (RuntimeException e) {
+            System.err.println("ERROR: The transaction failed and was rolled back - " + e.getMessage());
+            return false;
+        } finally {
+            if (!completed) rollback();
+        }
+        return commit();
+    }
+
+    /**
+     * @return true if the current thread has an explicit transaction open.
+     */
+    public boolean isInTransaction() {
+        return writeLock.isHeldByCurrentThread() && unitOfWork != null;
+    }
+
+    /**
+     * Rolls back the database and puts the derived state back in sync with it: restores the identity map entries changed by
+     * the transaction, drops the rolled back changes from the in-memory objects, reindexes the touched records and invalidates
+     * the cached employees of the departments whose members changed.
+     *
+     * @param work Transaction to undo.
+     */
+    private void undo(UnitOfWork work) {
+        db.rollback();
+        synchronized (employeeIds) {
+            for (Map.Entry<Integer, Long> e : work.employeeIdsBefore.entrySet()) setEmployeeId(e.getKey(), e.getValue());
+        }
+        synchronized (departmentIds) {
+            for (Map.Entry<Integer, Long> e : work.departmentIdsBefore.entrySet()) {
+                if (e.getValue() == IntLongHashMap.NO_VALUE) departmentIds.remove(e.getKey());
+                else departmentIds.put(e.getKey(), e.getValue());
+            }
+        }
+        FullTextIndex index = searchIndex;
+        for (int empno : work.empnos) {
+            Employee employee = getByBusinessId(employeeIds, empno);
+            if (employee != null) db.ext().refresh(employee, 1); // Drop the in-memory changes that were rolled back
+            if (index != null) {
+                if (employee == null) index.removeEmployee(empno);
+                else index.putEmployee(employee);
+            }
+        }
+        for (int depno : work.depnos) {
+            Department department = getByBusinessId(departmentIds, depno);
+            if (department != null) db.ext().refresh(department, 1);
+            if (index != null) {
+                if (department == null) index.removeDepartment(depno);
+                else index.putDepartment(department);
+            }
+        }
+        for (int depno : work.memberChanges) departmentCache.invalidate(depno);
+    }
+
+    /**
+     * @return Cache of {@link #findEmployeesByDept(Object)} results, e.g. to read its hit ratio.
+     */
+    public DepartmentQueryCache getDepartmentCache() {
+        return departmentCache;
+    }
+
+    /**
+     * @return Engine running analytics scans of the employees in a session isolated from the writers.
+     */
+    public ScanEngine getScanEngine() {
+        return scanEngine;
+    }
+
+    /**
+     * @return Manager of the reference system, e.g. to read how many objects the scans released.
+     */
+    public ReferenceManager getReferenceManager() {
+        return references;
+    }
+
+    /**
+     * @return Allocator of new empnos, stored in this DAO's database.
+     */
+    public IdAllocator getEmployeeIdAllocator() {
+        return employeeIdAllocator;
+    }
+
+    /**
+     * @return Allocator of new depnos, stored in this DAO's database.
+     */
+    public IdAllocator getDepartmentIdAllocator() {
+        return departmentIdAllocator;
+    }
 
     /**
      * Checks if the db4o database file exists at the specified path.
@@ -86,7 +746,7 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
     @Override
     public boolean checkDBExists() {
         try {
-            File dbFile = new File(path);
+            File dbFile = new File(dbPath);
             connectionFlag = dbFile.exists();
 
             if (connectionFlag) {
@@ -106,16 +766,232 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
      * This method attempts to close the db4o database connection gracefully, ensuring all resources are freed properly.
      * If the connection is successfully closed, a confirmation message is printed to the console.
      * If an error occurs during the closure process, an error message is displayed, detailing the issue encountered.
+     * The connection is closed holding {@link #writeLock}, so it waits for the write or transaction of another thread to end
+     * instead of letting db4o commit its half-done changes on close.
      */
     @Override
     public void closeConnection() {
-        if (db != null) {
+        writeLock.lock();
+        try {
+            if (isInTransaction()) {
+                System.err.println("ERROR: Closing the connection with an open transaction, its changes are rolled back");
+                while (isInTransaction()) rollback(); // db4o would commit them on close
+            }
+            if (changeFeed != null) {
+                changeFeed.close(); // Flush the change log before the container goes away
+                changeFeed = null;
+            }
+            references.close();
+            if (db != null) {
+                try {
+                    db.close(); // Intenta cerrar la conexión db4o
+                    System.out.println("Database connection successfully closed.");
+                } catch (Exception e) {
+                    System.err.println("ERROR: An error occurred while closing the database connection: " + e.getMessage());
+                }
+                storage.close(); // The file was synced when db4o closed it
+                saveIdentitySidecar(); // Stamped after closing, like the search index
+            }
+            if (searchIndex != null) {
+                try {
+                    searchIndex.save(searchIndexPath(), stampOf(dbPath)); // Stamped after closing, as the file is found on the next open
+                } catch (IOException ioe) {
+                    System.err.println("ERROR: Unable to save the search index - " + ioe.getMessage());
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the change-data-capture feed of the database, creating it on the first call.
+     * Downstream consumers subscribe to it to follow added, updated and deleted {@link Employee}s and {@link Department}s
+     * without re-reading the database file. The feed is closed together with the connection.
+     *
+     * @param logPath Path of the on-disk change log used to resume consumers, or null to keep the feed only in memory. Ignored if the feed already exists.
+     * @return The change feed, or null if the change log could not be opened.
+     */
+    public synchronized ChangeFeed openChangeFeed(String logPath) {
+        if (changeFeed == null) {
             try {
-                db.close(); // Intenta cerrar la conexión db4o
-                System.out.println("Database connection successfully closed.");
+                changeFeed = new ChangeFeed(db, ChangeFeed.DEFAULT_CAPACITY, logPath);
+            } catch (IOException ioe) {
+                System.err.println("ERROR: Unable to open the change log - " + ioe.getMessage());
+            }
+        }
+        return changeFeed;
+    }
+
+    /**
+     * Returns the full-text index of the database, opening it on the first call.
+     * The index is read from its sidecar file (the database path with the ".fts" extension) if the file was saved when the
+     * database was last closed and nothing was committed since it was opened; otherwise it is rebuilt in parallel from the
+     * database. It is loaded or rebuilt holding {@link #writeLock}, so no write is missed, and published before the lock is
+     * released; from then on the write methods keep it up to date, and it is saved again when the connection is closed.
+     *
+     * @return The search index, or null if it could not be built.
+     */
+    public FullTextIndex openSearchIndex() {
+        FullTextIndex index = searchIndex;
+        if (index != null) return index;
+        writeLock.lock();
+        try {
+            if (searchIndex == null) {
+                index = committedSinceOpen ? null : FullTextIndex.load(searchIndexPath(), openStamp);
+                if (index == null) {
+                    try {
+                        index = FullTextIndex.rebuild(db, references.readGuard(), Runtime.getRuntime().availableProcessors());
+                        System.out.println("Search index rebuilt with " + index.size() + " records.");
+                    } catch (Exception e) {
+                        System.err.println("ERROR: Unable to build the search index - " + e.getMessage());
+                        return null;
+                    }
+                }
+                searchIndex = index;
+            }
+            return searchIndex;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Searches employees by name or position and departments by name or location, ignoring case and accents.
+     * Results are ranked by relevance; load the records with {@link #findEmployeeById(Object)} or {@link #findDepartmentById(Object)}.
+     *
+     * @param query Free text, e.g. "vendedor madrid".
+     * @param limit Maximum number of results.
+     * @return Matching records from most to least relevant. The list is empty if nothing matches or the index can't be opened.
+     */
+    public List<SearchHit> search(String query, int limit) {
+        FullTextIndex index = openSearchIndex();
+        return index == null ? new ArrayList<>() : index.search(query, limit);
+    }
+
+    /**
+     * @return Path of the search index sidecar file: the database path with the ".fts" extension.
+     */
+    private Path searchIndexPath() {
+        return sidecarPath(".fts");
+    }
+
+    /**
+     * Returns the path of a file kept next to the database file.
+     * @param extension Extension replacing ".yap", e.g. ".fts".
+     * @return Path of the sidecar file.
+     */
+    private Path sidecarPath(String extension) {
+        String base = dbPath.endsWith(".yap") ? dbPath.substring(0, dbPath.length() - 4) : dbPath;
+        return Path.of(base + extension);
+    }
+
+    /**
+     * @return Diagnostics of the queries run by this DAO, e.g. to change the slow-query threshold.
+     */
+    public QueryDiagnostics getQueryDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Identifies the current state of a database file by its size and modification time.
+     * @param file Path of the database file.
+     * @return Stamp of the file ("0:0" if it doesn't exist).
+     */
+    private static String stampOf(String file) {
+        File f = new File(file);
+        return f.length() + ":" + f.lastModified();
+    }
+
+    /**
+     * Checks through the identity map if an {@link Employee} with the given ID is stored, without querying nor printing anything.
+     * It doesn't load the employee, so it is the cheapest way to validate an ID, especially one that doesn't exist.
+     * @param empno Employee's ID.
+     * @return true if the employee is stored in this DAO's database.
+     */
+    public boolean hasEmployee(int empno) {
+        synchronized (employeeIds) {
+            return employeeIds.containsKey(empno);
+        }
+    }
+
+    /**
+     * Checks through the identity map if a {@link Department} with the given ID is stored, without querying nor printing anything.
+     * It doesn't load the department, so it is the cheapest way to validate an ID, e.g. the depno of an imported employee.
+     * @param depno Department's ID.
+     * @return true if the department is stored in this DAO's database.
+     */
+    public boolean hasDepartment(int depno) {
+        synchronized (departmentIds) {
+            return departmentIds.containsKey(depno);
+        }
+    }
+
+    /**
+     * Applies a change captured from another container, used to keep read replicas in sync with the primary database.
+     * Added and updated records are upserted by their business ID and deleted records are removed if present, so applying
+     * the same event twice is harmless; a record that already has the values of the event isn't stored again. Each change is
+     * committed on its own, unless it is applied inside an explicit transaction; on error the transaction is rolled back.
+     * Like the other write methods it only takes {@link #writeLock}.
+     *
+     * @param event Change published by the primary's {@link ChangeFeed}.
+     * @return true if the change was applied, false if an error occurred.
+     */
+    boolean applyChange(ChangeEvent event) {
+        writeLock.lock();
+        try {
+            boolean deleted = event.getType() == ChangeEvent.Type.DELETED;
+            try {
+                if (event.isEmployee()) {
+                    Employee source = (Employee) event.getRecord();
+                    Employee current = getByBusinessId(employeeIds, source.getEmpno());
+                    Integer oldDepno = current == null ? null : current.getDepno();
+                    if (deleted) {
+                        if (current == null) return true;
+                        db.delete(current);
+                    } else if (current == null) {
+                        current = (Employee) ChangeEvent.snapshot(source); // Own copy, the event is shared between replicas
+                        db.store(current);
+                    } else if (Objects.equals(current.getName(), source.getName()) && Objects.equals(current.getPosition(), source.getPosition())
+                            && Objects.equals(current.getDepno(), source.getDepno())) {
+                        return true; // Already up to date
+                    } else {
+                        current.setName(source.getName());
+                        current.setPosition(source.getPosition());
+                        current.setDepno(source.getDepno());
+                        db.store(current);
+                    }
+                    commitWrite();
+                    mapId(employeeIds, source.getEmpno(), deleted ? IntLongHashMap.NO_VALUE : db.ext().getID(current));
+                    employeeWritten(source.getEmpno(), oldDepno, deleted ? null : current);
+                } else {
+                    Department source = (Department) event.getRecord();
+                    Department current = getByBusinessId(departmentIds, source.getDepno());
+                    if (deleted) {
+                        if (current == null) return true;
+                        db.delete(current);
+                    } else if (current == null) {
+                        current = (Department) ChangeEvent.snapshot(source);
+                        db.store(current);
+                    } else if (Objects.equals(current.getName(), source.getName()) && Objects.equals(current.getLocation(), source.getLocation())) {
+                        return true; // Already up to date
+                    } else {
+                        current.setName(source.getName());
+                        current.setLocation(source.getLocation());
+                        db.store(current);
+                    }
+                    commitWrite();
+                    mapId(departmentIds, source.getDepno(), deleted ? IntLongHashMap.NO_VALUE : db.ext().getID(current));
+                    departmentWritten(source.getDepno(), deleted ? null : current);
+                }
+                return true;
             } catch (Exception e) {
-                System.err.println("ERROR: An error occurred while closing the database connection: " + e.getMessage());
+                abortWrite();
+                System.err.println("ERROR: Unable to apply replicated change " + event.getSequence() + " - " + e.getMessage());
+                return false;
             }
+        } finally {
+            endWrite();
         }
     }
 
@@ -130,22 +1006,132 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
     public List<Employee> findAllEmployees() {
         List<Employee> employees = new ArrayList<>();
         try {
+            QueryDiagnostics.Probe probe = diagnostics.start("Employee (all)", Employee.class);
+            probe.setClassIndexScan();
             // Consulta para obtener todos los objetos Employee
             ObjectSet<Employee> result = db.query(Employee.class);
-            for (Employee emp : result) {
-                employees.add(emp);
+            try (ReferenceManager.Batch batch = references.batch()) {
+                for (Employee emp : result) {
+                    employees.add(emp);
+                    batch.add(emp); // The caller holds them; the container doesn't need to
+                }
             }
+            diagnostics.finish(probe, employees.size());
         } catch (Exception e) {
             System.err.println("ERROR: An error occurred while retrieving employees: " + e.getMessage());
         }
         return employees;
     }
 
+    /**
+     * Streams every stored employee to an action without keeping them in memory, for scans of any size.
+     * The employees are read through a private session of the container, so the scan doesn't share objects with other threads
+     * and only sees committed changes; each one is copied, and the loaded objects are deactivated and purged from the session
+     * in batches of {@link ReferenceSettings#purgeBatchSize()}, so memory use stays flat however many employees there are.
+     *
+     * @param action Action receiving a detached copy of each employee.
+     * @return Number of employees passed to the action, or -1 if an error occurred.
+     */
+    public long forEachEmployee(Consumer<? super Employee> action) {
+        ObjectContainer session = null;
+        try {
+            session = db.ext().openSession();
+            long count = 0;
+            try (ReferenceManager.Batch batch = references.batch(session)) {
+                for (long id : session.query(Employee.class).ext().getIDs()) {
+                    Employee stored = session.ext().getByID(id);
+                    if (stored == null) continue; // Deleted meanwhile
+                    session.activate(stored, 1);
+                    Employee copy = (Employee) ChangeEvent.snapshot(stored);
+                    batch.add(stored);
+                    action.accept(copy);
+                    count++;
+                }
+            }
+            return count;
+        } catch (Exception e) {
+            System.err.println("ERROR: An error occurred while scanning the employees: " + e.getMessage());
+            return -1;
+        } finally {
+            if (session != null) session.close();
+        }
+    }
+
+    /**
+     * Retrieves every employee matching the criteria together with its department, in one query instead of one department
+     * lookup per employee. See {@link #forEachEmployeeWithDepartment(EmployeeCriteria, Consumer)}.
+     *
+     * @param criteria Employees to find. A criteria without conditions returns every employee.
+     * @return Joined rows in the order of the query. The list is empty if there are none or an error occurs.
+     */
+    public List<EmployeeDepartment> findEmployeesWithDepartments(EmployeeCriteria criteria) {
+        List<EmployeeDepartment> rows = new ArrayList<>();
+        if (forEachEmployeeWithDepartment(criteria, rows::add) < 0) rows.clear();
+        return rows;
+    }
+
+    /**
+     * Streams every employee matching the criteria joined with its department to an action.
+     * The employees are found with one indexed query and loaded one at a time. Each department is loaded through the depno
+     * identity map the first time one of its employees is read and kept in a depno-keyed table for the rest of the scan, so
+     * it is loaded once however many employees it has. The loaded objects are released from the reference system in batches,
+     * as in {@link #findAllEmployees()}.
+     *
+     * @param criteria Employees to join. A criteria without conditions joins every employee.
+     * @param action Action receiving each joined row.
+     * @return Number of rows passed to the action, or -1 if an error occurred.
+     */
+    public long forEachEmployeeWithDepartment(EmployeeCriteria criteria, Consumer<? super EmployeeDepartment> action) {
+        try (ReferenceManager.Batch batch = references.batch()) {
+            QueryDiagnostics.Probe probe = diagnostics.start("Employee join Department where " + criteria.getShape(), Employee.class);
+            if (criteria.isEmpty()) probe.setClassIndexScan();
+            Query query = db.query();
+            query.constrain(Employee.class);
+            criteria.constrain(query);
+            IntLongHashMap joined = new IntLongHashMap(); // depno -> position in departments + 1 (the value 0 is reserved)
+            List<Department> departments = new ArrayList<>();
+            Lock guard = references.readGuard();
+            long count = 0;
+            for (long id : query.execute().ext().getIDs()) {
+                Employee employee;
+                guard.lock();
+                try {
+                    employee = db.ext().getByID(id);
+                    if (employee == null) continue; // Deleted meanwhile
+                    db.activate(employee, 1);
+                } finally {
+                    guard.unlock();
+                }
+                batch.add(employee);
+                Department department = null;
+                if (employee.getDepno() != null) {
+                    int depno = employee.getDepno();
+                    long slot = joined.get(depno);
+                    if (slot == IntLongHashMap.NO_VALUE) {
+                        department = getByBusinessId(departmentIds, depno);
+                        if (department != null) batch.add(department);
+                        departments.add(department);
+                        slot = departments.size();
+                        joined.put(depno, slot);
+                    }
+                    department = departments.get((int) slot - 1);
+                }
+                action.accept(new EmployeeDepartment(employee, department));
+                count++;
+            }
+            diagnostics.finish(probe, count);
+            return count;
+        } catch (Exception e) {
+            System.err.println("ERROR: An error occurred while joining the employees with their departments: " + e.getMessage());
+            return -1;
+        }
+    }
+
     /**
      * Searches for an Employee in the db4o database by their ID.
      * This method accepts an Object as an ID, which it expects to be an Integer. It validates the ID's data type before proceeding with the search.
-     * It utilizes a db4o query with a Predicate to find the employee whose employee number matches the given ID.
-     * If found, it returns the first matching Employee object, assuming ID uniqueness. Otherwise, it notifies the user of the absence of such an employee.
+     * It resolves the employee number through the empno identity map and loads the object directly by its db4o internal ID, so no query is run.
+     * If found, it returns the activated Employee object. Otherwise, it notifies the user of the absence of such an employee.
      *
      * @param id The unique identifier for the employee, expected to be an Integer.
      * @return The Employee object matching the given ID, or null if no matching employee is found or an invalid ID is provided.
@@ -161,15 +1147,9 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
         Employee foundEmployee = null;
 
         try {
-            List<Employee> employees = db.query(new Predicate<Employee>() {
-                @Override
-                public boolean match(Employee employee) {
-                    return employee.getEmpno() == searchId;
-                }
-            });
+            foundEmployee = getByBusinessId(employeeIds, searchId); // Direct load by internal ID, no query needed (nor profiled)
 
-            if (!employees.isEmpty()) {
-                foundEmployee = employees.get(0); // Assuming IDs are unique, there should be at most one match.
+            if (foundEmployee != null) {
                 System.out.println("Employee found: " + foundEmployee);
             } else {
                 System.out.println("No employee found with ID: " + searchId);
@@ -191,20 +1171,44 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public void addEmployee(Employee employee) {
-        if (db != null) {
-            try {
-                db.store(employee); // Almacena el objeto Employee en la base de datos db4o
-                db.commit(); // Confirma la transacción
-                System.out.println("Employee added successfully.");
-            } catch (Exception e) {
-                db.rollback(); // Revierte la transacción en caso de error
-                System.err.println("ERROR: Unable to add employee - " + e.getMessage());
+        writeLock.lock();
+        try {
+            if (db != null) {
+                try {
+                    db.store(employee); // Almacena el objeto Employee en la base de datos db4o
+                    commitWrite(); // Confirma la transacción
+                    mapId(employeeIds, employee.getEmpno(), db.ext().getID(employee));
+                    employeeWritten(employee.getEmpno(), null, employee);
+                    System.out.println("Employee added successfully.");
+                } catch (Exception e) {
+                    abortWrite(); // Revierte la transacción en caso de error
+                    System.err.println("ERROR: Unable to add employee - " + e.getMessage());
+                }
+            } else {
+                System.err.println("Database connection is not established.");
             }
-        } else {
-            System.err.println("Database connection is not established.");
+        } finally {
+            endWrite();
         }
     }
 
+    /**
+     * Adds a new employee with an empno assigned by the {@link #getEmployeeIdAllocator() empno allocator}, so concurrent callers
+     * never pick the same ID and no lookup is needed to check it.
+     *
+     * @param name Name of the employee.
+     * @param position Job position of the employee.
+     * @param depno Department of the employee, or null.
+     * @return The added employee with its assigned empno, or null if no empno could be assigned or the employee couldn't be added.
+     */
+    public Employee addEmployee(String name, String position, Integer depno) {
+        int empno = employeeIdAllocator.next();
+        if (empno < 0) return null;
+        Employee employee = new Employee(empno, name, position, depno);
+        addEmployee(employee);
+        return hasEmployee(empno) ? employee : null;
+    }
+
     /**
      * Updates the information of an existing employee identified by the provided ID.
      * Validates the ID to ensure it's an integer and searches for the corresponding employee in the database.
@@ -244,34 +1248,154 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
         String departmentId = scanner.nextLine();
         if (departmentId.isEmpty()) throw new IllegalArgumentException("The department ID cannot be empty");
 
-        // Set the new values to the employee
-        employee.setName(surname);
-        employee.setPosition(job);
+        int depno;
         try {
-            employee.setDepno(Integer.parseInt(departmentId));
+            depno = Integer.parseInt(departmentId);
         } catch (NumberFormatException e) {
             System.err.println("Invalid department ID format");
             return null;
         }
 
+        // Set the new values to the employee
+        return updateEmployee(new Employee(empId, surname, job, depno));
+    }
+
+    /**
+     * Updates an existing employee with the values of the given object, without asking the user.
+     * The stored employee with the same ID is loaded through the identity map, its attributes are replaced and the changes are committed.
+     * If an error occurs during the database operation, the transaction is rolled back.
+     *
+     * @param employee Employee object holding the ID of the employee to update and its new values. It doesn't need to be a stored object.
+     * @return The updated (stored) Employee object, or null if the employee is not found or an error occurs.
+     */
+    @Override
+    public Employee updateEmployee(Employee employee) {
+        writeLock.lock();
         try {
-            // Store the updated object
-            db.store(employee);
-            db.commit(); // Confirm the transaction
-            System.out.println("Employee has been successfully updated.");
-        } catch (Exception e) {
-            db.rollback(); // Revert in case of error
-            System.err.println("An error occurred: " + e.getMessage());
-            return null;
+            Employee stored = getByBusinessId(employeeIds, employee.getEmpno());
+            if (stored == null) {
+                System.out.println("Employee not found.");
+                return null;
+            }
+
+            Integer oldDepno = stored.getDepno();
+            try {
+                stored.setName(employee.getName());
+                stored.setPosition(employee.getPosition());
+                stored.setDepno(employee.getDepno());
+                // Store the updated object
+                db.store(stored);
+                commitWrite(); // Confirm the transaction
+                employeeWritten(stored.getEmpno(), oldDepno, stored);
+                System.out.println("Employee has been successfully updated.");
+            } catch (Exception e) {
+                abortWrite(); // Revert in case of error
+                db.ext().refresh(stored, 1); // Drop the in-memory changes that were not stored
+                System.err.println("An error occurred: " + e.getMessage());
+                return null;
+            }
+
+            return stored;
+        } finally {
+            endWrite();
         }
+    }
+
+    /**
+     * Reads an employee together with its version, to update it later with {@link #updateEmployee(Employee, long)}.
+     * The version is the db4o commit timestamp of the stored object, so it changes every time a change of the employee is committed.
+     *
+     * @param empno Employee's ID.
+     * @return Detached copy of the employee and its version, or null if there is no employee with that ID.
+     */
+    public Versioned<Employee> findEmployeeVersioned(int empno) {
+        Lock guard = references.readGuard(); // The version is read from the reference of the object
+        guard.lock();
+        try {
+            Employee stored = getByBusinessId(employeeIds, empno);
+            if (stored == null) return null;
+            long version = versionOf(stored);
+            return new Versioned<>((Employee) ChangeEvent.snapshot(stored), version);
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    /**
+     * Updates an employee only if nobody committed a change of it since it was read (optimistic concurrency control).
+     * Nothing is locked between the read and the update: the stored version is compared with the read one when the update is
+     * applied, and the update is rejected if they differ, instead of silently overwriting the other change.
+     *
+     * @param employee New values of the employee.
+     * @param expectedVersion Version returned by {@link #findEmployeeVersioned(int)} with the values the change is based on.
+     * @return The updated (stored) Employee object, or null if the employee is not found or an error occurs.
+     * @throws VersionConflictException If the employee was committed by someone else after it was read.
+     */
+    public Employee updateEmployee(Employee employee, long expectedVersion) {
+        writeLock.lock();
+        try {
+            Employee stored = getByBusinessId(employeeIds, employee.getEmpno());
+            if (stored == null) {
+                System.out.println("Employee not found.");
+                return null;
+            }
+            long actualVersion = versionOf(stored);
+            if (actualVersion != expectedVersion) {
+                versionConflicts.incrementAndGet();
+                throw new VersionConflictException(employee.getEmpno(), expectedVersion, actualVersion);
+            }
+            return updateEmployee(employee);
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Updates an employee optimistically, retrying on conflicts: the change is applied to a fresh copy of the employee and
+     * stored with {@link #updateEmployee(Employee, long)}; if someone else committed the employee meanwhile, the latest version is
+     * read and the change is applied again on top of it, so the other change is merged instead of overwritten.
+     * The change must therefore depend only on the copy it receives, e.g. {@code e -> { e.setDepno(e.getDepno() + 10); return e; }}.
+     *
+     * @param empno Employee's ID.
+     * @param change Function receiving a copy of the latest employee and returning its new values.
+     * @param maxAttempts Maximum number of attempts, at least 1.
+     * @return The updated (stored) Employee object, or null if the employee is not found or an error occurs.
+     * @throws VersionConflictException If every attempt conflicted.
+     */
+    public Employee updateEmployee(int empno, UnaryOperator<Employee> change, int maxAttempts) {
+        for (int attempt = 1; ; attempt++) {
+            Versioned<Employee> read = findEmployeeVersioned(empno);
+            if (read == null) {
+                System.out.println("Employee not found.");
+                return null;
+            }
+            try {
+                return updateEmployee(change.apply(read.value()), read.version());
+            } catch (VersionConflictException vce) {
+                if (attempt >= maxAttempts) throw vce;
+            }
+        }
+    }
+
+    /**
+     * @return Number of optimistic updates rejected because of a version conflict since the DAO was opened (retried ones included).
+     */
+    public long getVersionConflicts() {
+        return versionConflicts.get();
+    }
 
-        return employee;
+    /**
+     * @param stored Stored object.
+     * @return Commit timestamp of the object, used as its version.
+     */
+    private long versionOf(Object stored) {
+        return db.ext().getObjectInfo(stored).getCommitTimestamp();
     }
 
     /**
      * Deletes an employee from the db4o database based on the provided ID.
      * Validates the provided ID to ensure it's an integer and checks if the database connection is established.
-     * Queries the database for the employee matching the given ID. If found, the employee is deleted from the database,
+     * Loads the employee matching the given ID through the identity map. If found, the employee is deleted from the database,
      * and a confirmation message is printed. If no matching employee is found, a message indicating this is printed.
      *
      * @param id The unique identifier of the employee to be deleted, must be an Integer.
@@ -279,38 +1403,39 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public Employee deleteEmployee(Object id) {
-        if (!(id instanceof Integer)) {
-            System.out.println("Invalid ID format.");
-            return null;
-        }
+        writeLock.lock();
+        try {
+            if (!(id instanceof Integer)) {
+                System.out.println("Invalid ID format.");
+                return null;
+            }
 
-        if (db == null) {
-            System.out.println("Database connection is not established.");
-            return null;
-        }
+            if (db == null) {
+                System.out.println("Database connection is not established.");
+                return null;
+            }
 
-        int empId = (Integer) id;
-        Employee employeeToDelete = null;
+            int empId = (Integer) id;
 
-        // Query for the employee by ID
-        List<Employee> employees = db.query(new Predicate<Employee>() {
-            public boolean match(Employee employee) {
-                return employee.getEmpno() == empId;
+            // Load the employee through the identity map
+            Employee employeeToDelete = getByBusinessId(employeeIds, empId);
+
+            // Check if the employee exists
+            if (employeeToDelete != null) {
+                // Delete the employee
+                db.delete(employeeToDelete);
+                System.out.println("Employee deleted successfully.");
+                commitWrite();
+                mapId(employeeIds, empId, IntLongHashMap.NO_VALUE);
+                employeeWritten(empId, employeeToDelete.getDepno(), null);
+            } else {
+                System.out.println("Employee not found.");
             }
-        });
 
-        // Check if the employee exists
-        if (!employees.isEmpty()) {
-            employeeToDelete = employees.get(0);
-            // Delete the employee
-            db.delete(employeeToDelete);
-            System.out.println("Employee deleted successfully.");
-            db.commit();
-        } else {
-            System.out.println("Employee not found.");
+            return employeeToDelete;
+        } finally {
+            endWrite();
         }
-
-        return employeeToDelete;
     }
 
     /**
@@ -327,9 +1452,12 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
 
         if (db != null) {
             try {
+                QueryDiagnostics.Probe probe = diagnostics.start("Department (all)", Department.class);
+                probe.setClassIndexScan();
                 // Realiza una consulta para obtener todos los objetos Department
                 List<Department> result = db.query(Department.class);
                 departments.addAll(result);
+                diagnostics.finish(probe, departments.size());
                 System.out.println("Found " + departments.size() + " departments.");
             } catch (Exception e) {
                 System.err.println("ERROR: Unable to retrieve departments - " + e.getMessage());
@@ -342,8 +1470,8 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
 
     /**
      * Retrieves a Department object from the db4o database by its ID.
-     * Validates the ID to ensure it's an integer before attempting a search. Utilizes db4o's queryByExample method to find the Department
-     * matching the given ID. If a matching department is found, it's returned; otherwise, a message indicating no such department
+     * Validates the ID to ensure it's an integer before attempting a search. Resolves the ID through the depno identity map and loads
+     * the Department directly by its db4o internal ID. If a matching department is found, it's returned; otherwise, a message indicating no such department
      * is printed. Checks if the database connection is established before attempting the search.
      *
      * @param id The unique identifier of the department to find, expected to be an Integer.
@@ -361,11 +1489,9 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
 
         if (db != null) {
             try {
-                Department proto = new Department(deptId, null, null);
-                ObjectSet<Department> result = db.queryByExample(proto);
+                foundDepartment = getByBusinessId(departmentIds, deptId); // Direct load by internal ID, no query needed (nor profiled)
 
-                if (result.hasNext()) {
-                    foundDepartment = result.next();
+                if (foundDepartment != null) {
                     System.out.println("Department found.");
                 } else {
                     System.out.println("No department found with ID: " + deptId);
@@ -389,20 +1515,42 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public void addDepartment(Department department) {
-        if (db != null) {
-            try {
-                db.store(department); // Almacena el objeto Department en la base de datos db4o
-                db.commit(); // Confirma la transacción
-                System.out.println("Department added successfully.");
-            } catch (Exception e) {
-                db.rollback(); // Revierte la transacción en caso de error
-                System.err.println("ERROR: Unable to add department - " + e.getMessage());
+        writeLock.lock();
+        try {
+            if (db != null) {
+                try {
+                    db.store(department); // Almacena el objeto Department en la base de datos db4o
+                    commitWrite(); // Confirma la transacción
+                    mapId(departmentIds, department.getDepno(), db.ext().getID(department));
+                    departmentWritten(department.getDepno(), department);
+                    System.out.println("Department added successfully.");
+                } catch (Exception e) {
+                    abortWrite(); // Revierte la transacción en caso de error
+                    System.err.println("ERROR: Unable to add department - " + e.getMessage());
+                }
+            } else {
+                System.err.println("Database connection is not established.");
             }
-        } else {
-            System.err.println("Database connection is not established.");
+        } finally {
+            endWrite();
         }
     }
 
+    /**
+     * Adds a new department with a depno assigned by the {@link #getDepartmentIdAllocator() depno allocator}.
+     *
+     * @param name Name of the department.
+     * @param location Location of the department.
+     * @return The added department with its assigned depno, or null if no depno could be assigned or the department couldn't be added.
+     */
+    public Department addDepartment(String name, String location) {
+        int depno = departmentIdAllocator.next();
+        if (depno < 0) return null;
+        Department department = new Department(depno, name, location);
+        addDepartment(department);
+        return hasDepartment(depno) ? department : null;
+    }
+
     /**
      * Updates the information of an existing department identified by the provided ID.
      * Validates the ID to ensure it's an integer and searches for the corresponding department in the database.
@@ -437,20 +1585,45 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
         String city = scanner.nextLine();
         if (city.isEmpty()) throw new IllegalArgumentException("The city cannot be empty");
 
-        department.setName(name);
-        department.setLocation(city);
+        return updateDepartment(new Department(deptId, name, city));
+    }
 
+    /**
+     * Updates an existing department with the values of the given object, without asking the user.
+     * The stored department with the same ID is loaded through the identity map, its attributes are replaced and the changes are committed.
+     * If an error occurs during the database operation, the transaction is rolled back.
+     *
+     * @param department Department object holding the ID of the department to update and its new values. It doesn't need to be a stored object.
+     * @return The updated (stored) Department object, or null if the department is not found or an error occurs.
+     */
+    @Override
+    public Department updateDepartment(Department department) {
+        writeLock.lock();
         try {
-            db.store(department);
-            db.commit();
-            System.out.println("Department has been successfully updated.");
-        } catch (Exception e) {
-            db.rollback();
-            System.err.println("An error occurred while updating the department: " + e.getMessage());
-            return null;
-        }
+            Department stored = getByBusinessId(departmentIds, department.getDepno());
+            if (stored == null) {
+                System.out.println("Department not found.");
+                return null;
+            }
+
+            try {
+                stored.setName(department.getName());
+                stored.setLocation(department.getLocation());
+                db.store(stored);
+                commitWrite();
+                departmentWritten(stored.getDepno(), stored);
+                System.out.println("Department has been successfully updated.");
+            } catch (Exception e) {
+                abortWrite();
+                db.ext().refresh(stored, 1); // Drop the in-memory changes that were not stored
+                System.err.println("An error occurred while updating the department: " + e.getMessage());
+                return null;
+            }
 
-        return department;
+            return stored;
+        } finally {
+            endWrite();
+        }
     }
 
     /**
@@ -464,35 +1637,43 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public Department deleteDepartment(Object id) {
-        if (!(id instanceof Integer)) {
-            System.out.println("Invalid ID");
-            return null;
-        }
+        writeLock.lock();
+        try {
+            if (!(id instanceof Integer)) {
+                System.out.println("Invalid ID");
+                return null;
+            }
 
-        int deptId = (Integer) id;
-        Department departmentToDelete = findDepartmentById(deptId);
-        if (departmentToDelete == null) {
-            System.out.println("Department not found.");
-            return null;
-        }
+            int deptId = (Integer) id;
+            Department departmentToDelete = findDepartmentById(deptId);
+            if (departmentToDelete == null) {
+                System.out.println("Department not found.");
+                return null;
+            }
 
-        try {
-            db.delete(departmentToDelete); // Deletes the department from the db4o database
-            db.commit(); // Confirms the transaction
-            System.out.println("Department has been successfully deleted.");
-        } catch (Exception e) {
-            db.rollback(); // Reverts the transaction in case of error
-            System.err.println("An error occurred while deleting the department: " + e.getMessage());
-            return null;
-        }
+            try {
+                db.delete(departmentToDelete); // Deletes the department from the db4o database
+                commitWrite(); // Confirms the transaction
+                mapId(departmentIds, deptId, IntLongHashMap.NO_VALUE);
+                departmentWritten(deptId, null);
+                System.out.println("Department has been successfully deleted.");
+            } catch (Exception e) {
+                abortWrite(); // Reverts the transaction in case of error
+                System.err.println("An error occurred while deleting the department: " + e.getMessage());
+                return null;
+            }
 
-        return departmentToDelete; // Returns the deleted department
+            return departmentToDelete; // Returns the deleted department
+        } finally {
+            endWrite();
+        }
     }
 
     /**
      * Retrieves a list of employees who belong to a specified department.
      * Validates the department ID to ensure it's an integer before querying the db4o database for employees in that department.
-     * Iterates over all employees, adding those whose department number matches the provided ID to the list.
+     * The empnos of the department are taken from the {@link DepartmentQueryCache} when they are cached and up to date, and the
+     * employees are then loaded through the identity map; otherwise the department is queried and its empnos are cached.
      *
      * @param idDept The unique identifier of the department whose employees are to be found. Expected to be of type {@link Integer}.
      * @return A list of {@link Employee} objects associated with the specified department ID. Returns an empty list if the department ID is invalid or if no employees are found in the specified department. Returns null if an error occurs during retrieval.
@@ -508,12 +1689,30 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
         int deptId = (Integer) idDept;
 
         try {
-            List<Employee> allEmployees = db.query(Employee.class); // Assuming db is your ObjectContainer
-            for (Employee emp : allEmployees) {
-                if (emp.getDepno() == deptId) {
-                    employeesInDept.add(emp);
+            QueryDiagnostics.Probe probe = diagnostics.start("Employee where depno = ?", Employee.class);
+            int[] cached = departmentCache.get(deptId);
+            if (cached != null) {
+                probe.setMode("department cache", cached.length);
+                for (int empno : cached) {
+                    Employee emp = getByBusinessId(employeeIds, empno);
+                    if (emp != null) employeesInDept.add(emp);
                 }
+                release(employeesInDept);
+                diagnostics.finish(probe, employeesInDept.size());
+                return employeesInDept;
             }
+
+            long version = departmentCache.getVersion(deptId); // Read before querying, so a concurrent write discards this result
+            Query query = db.query();
+            query.constrain(Employee.class);
+            query.descend("depno").constrain(deptId);
+            ObjectSet<Employee> result = query.execute();
+            employeesInDept.addAll(result);
+            release(employeesInDept);
+            int[] empnos = new int[employeesInDept.size()];
+            for (int i = 0; i < empnos.length; i++) empnos[i] = employeesInDept.get(i).getEmpno();
+            departmentCache.put(deptId, version, empnos);
+            diagnostics.finish(probe, employeesInDept.size());
             return employeesInDept;
         } catch (Exception e) {
             System.err.println("Error retrieving employees: " + e.getMessage());
@@ -521,6 +1720,476 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
         }
     }
 
+    /**
+     * Applies a patch to every employee matching the criteria, in a single transaction.
+     * The matching employees are found with an indexed query and modified one at a time; everything is committed at the end, or
+     * rolled back if any of them fails. The modified employees stay in the reference system until the commit, since an object
+     * being modified must not be purged (see {@link ReferenceManager}).
+     *
+     * @param criteria Employees to update.
+     * @param patch Changes to apply.
+     * @return Number of employees that changed (employees that already had the patched values are not counted), or -1 if an error occurred and nothing was updated.
+     */
+    public int updateEmployeesWhere(EmployeeCriteria criteria, EmployeePatch patch) {
+        writeLock.lock();
+        try {
+            long[] ids = findEmployeeIds(criteria);
+            int[] empnos = new int[ids.length];
+            Set<Integer> movedDepnos = new HashSet<>();
+            int updated = 0;
+            try {
+                for (long id : ids) {
+                    Employee employee = db.ext().getByID(id);
+                    db.activate(employee, 1);
+                    Integer oldDepno = employee.getDepno();
+                    if (!criteria.matches(employee) || !patch.applyTo(employee)) continue;
+                    db.store(employee);
+                    empnos[updated++] = employee.getEmpno();
+                    if (!Objects.equals(oldDepno, employee.getDepno())) {
+                        if (oldDepno != null) movedDepnos.add(oldDepno);
+                        movedDepnos.add(employee.getDepno());
+                    }
+                }
+                commitWrite();
+            } catch (Exception e) {
+                abortWrite();
+                for (long id : ids) db.ext().refresh(db.ext().getByID(id), 1); // Drop the in-memory changes that were not stored
+                System.err.println("ERROR: Unable to update the employees matching " + criteria + " - " + e.getMessage());
+                return -1;
+            }
+            bulkWritten(empnos, updated, movedDepnos);
+            FullTextIndex index = searchIndex;
+            if (index != null) {
+                for (int i = 0; i < updated; i++) {
+                    Employee employee = getByBusinessId(employeeIds, empnos[i]);
+                    if (employee != null) index.putEmployee(employee);
+                }
+            }
+            System.out.println(updated + " employees updated.");
+            return updated;
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Deletes every employee matching the criteria, in a single transaction.
+     * The matching employees are found with an indexed query and deleted one at a time; everything is committed at the end, or
+     * rolled back if any of them fails.
+     *
+     * @param criteria Employees to delete.
+     * @return Number of deleted employees, or -1 if an error occurred and nothing was deleted.
+     */
+    public int deleteEmployeesWhere(EmployeeCriteria criteria) {
+        writeLock.lock();
+        try {
+            long[] ids = findEmployeeIds(criteria);
+            int[] empnos = new int[ids.length];
+            Set<Integer> depnos = new HashSet<>();
+            int deleted = 0;
+            try {
+                for (long id : ids) {
+                    Employee employee = db.ext().getByID(id);
+                    db.activate(employee, 1);
+                    if (!criteria.matches(employee)) continue;
+                    db.delete(employee);
+                    empnos[deleted++] = employee.getEmpno();
+                    if (employee.getDepno() != null) depnos.add(employee.getDepno());
+                }
+                commitWrite();
+            } catch (Exception e) {
+                abortWrite();
+                System.err.println("ERROR: Unable to delete the employees matching " + criteria + " - " + e.getMessage());
+                return -1;
+            }
+            for (int i = 0; i < deleted; i++) mapId(employeeIds, empnos[i], IntLongHashMap.NO_VALUE);
+            bulkWritten(empnos, deleted, depnos);
+            FullTextIndex index = searchIndex;
+            if (index != null) {
+                for (int i = 0; i < deleted; i++) index.removeEmployee(empnos[i]);
+            }
+            System.out.println(deleted + " employees deleted.");
+            return deleted;
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Returns the IDs of every stored employee, taken from the empno identity map without touching the database.
+     *
+     * @return Sorted empnos. The array is empty if there are no employees.
+     */
+    public int[] findAllEmpnos() {
+        int[] empnos;
+        synchronized (employeeIds) {
+            empnos = employeeIds.keys();
+        }
+        Arrays.sort(empnos);
+        return empnos;
+    }
+
+    /**
+     * Returns the IDs of the employees of a department, without loading the employees.
+     * The empnos come from the {@link DepartmentQueryCache} when they are cached; otherwise an indexed query returns the internal IDs
+     * of the department's employees, which are translated back to empnos through the reverse identity map. The result is cached.
+     *
+     * @param depno Department's ID.
+     * @return Empnos of the department's employees, or an empty array if there are none or an error occurs.
+     */
+    public int[] findEmpnosByDept(int depno) {
+        try {
+            int[] cached = departmentCache.get(depno);
+            if (cached != null) return cached.clone(); // Not profiled, it is a map lookup
+
+            QueryDiagnostics.Probe probe = diagnostics.start("Employee.empno where depno = ?", Employee.class);
+            long version = departmentCache.getVersion(depno);
+            Query query = db.query();
+            query.constrain(Employee.class);
+            query.descend("depno").constrain(depno);
+            int[] empnos = empnosOf(query.execute().ext().getIDs());
+            departmentCache.put(depno, version, empnos);
+            diagnostics.finish(probe, empnos.length);
+            return empnos.clone();
+        } catch (Exception e) {
+            System.err.println("ERROR: Unable to retrieve the employee IDs of department " + depno + " - " + e.getMessage());
+            return new int[0];
+        }
+    }
+
+    /**
+     * Returns the ID and name of every employee matching the criteria, without activating the employees.
+     * An indexed query returns the internal IDs of the matching employees; employees that weren't active are activated only long
+     * enough to copy their ID and name and then deactivated again, so the loaded attributes can be garbage collected right away.
+     *
+     * @param criteria Employees to find. A criteria without conditions returns every employee.
+     * @return Summaries of the matching employees. The list is empty if there are none or an error occurs.
+     */
+    public List<EmployeeSummary> findEmployeeSummaries(EmployeeCriteria criteria) {
+        List<EmployeeSummary> summaries = new ArrayList<>();
+        try (ReferenceManager.Batch batch = references.batch()) {
+            Lock guard = references.readGuard();
+            for (long id : findEmployeeIds(criteria)) {
+                guard.lock();
+                try {
+                    Employee employee = db.ext().getByID(id);
+                    boolean wasActive = db.ext().isActive(employee);
+                    if (!wasActive) db.activate(employee, 1);
+                    summaries.add(new EmployeeSummary(employee.getEmpno(), employee.getName()));
+                    if (!wasActive) {
+                        db.deactivate(employee, 1); // Don't keep the rest of the fields alive
+                        batch.add(employee);
+                    }
+                } finally {
+                    guard.unlock();
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("ERROR: Unable to retrieve the employee summaries - " + e.getMessage());
+            summaries.clear();
+        }
+        return summaries;
+    }
+
+    /**
+     * Retrieves every employee sorted by the given field. The sorting is done by the database on the field index,
+     * and ties are broken by empno so the order is always the same.
+     *
+     * @param field Field to sort by.
+     * @param descending true for descending order, false for ascending order.
+     * @return Sorted list of employees. The list is empty if there are none or an error occurs.
+     */
+    public List<Employee> findEmployeesOrdered(EmployeeSortField field, boolean descending) {
+        return findTopEmployees(field, descending, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retrieves the first employees sorted by the given field, e.g. the 10 highest empnos.
+     * Only the returned employees are activated.
+     *
+     * @param field Field to sort by.
+     * @param descending true for descending order, false for ascending order.
+     * @param limit Maximum number of employees to return.
+     * @return Sorted list of at most limit employees. The list is empty if there are none or an error occurs.
+     */
+    public List<Employee> findTopEmployees(EmployeeSortField field, boolean descending, int limit) {
+        try {
+            QueryDiagnostics.Probe probe = diagnostics.start("Employee order by " + field.getField() + (descending ? " desc" : "") + " limit ?", Employee.class);
+            Query query = db.query();
+            query.constrain(Employee.class);
+            order(query, field, descending);
+            List<Employee> employees = firstResults(query.execute(), limit);
+            diagnostics.finish(probe, employees.size());
+            return employees;
+        } catch (Exception e) {
+            System.err.println("ERROR: Unable to retrieve the sorted employees - " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Retrieves one page of employees in empno order, starting right after the last empno of the previous page (keyset pagination).
+     * Sorting every remaining employee would make deep pages as slow as loading the whole table, so the page is looked for in an
+     * empno range right after afterEmpno, answered by the empno index: the range starts as wide as the page and is doubled until it
+     * holds enough employees. Only that range is sorted, so a page costs about the same at any depth.
+     *
+     * @param afterEmpno Last empno of the previous page, or null for the first page.
+     * @param pageSize Maximum number of employees per page.
+     * @return Employees with empno greater than afterEmpno, in ascending empno order. The list is empty after the last page or if an error occurs.
+     */
+    public List<Employee> findEmployeesAfter(Integer afterEmpno, int pageSize) {
+        try {
+            long from;
+            if (afterEmpno != null) {
+                from = afterEmpno;
+            } else {
+                int[] empnos;
+                synchronized (employeeIds) {
+                    empnos = employeeIds.keys();
+                }
+                if (empnos.length == 0) return new ArrayList<>();
+                from = Arrays.stream(empnos).min().getAsInt() - 1L;
+            }
+            QueryDiagnostics.Probe probe = diagnostics.start("Employee where empno > ? order by empno limit ?", Employee.class);
+            for (long window = Math.max(1, pageSize); ; window *= 2) {
+                long to = Math.min(Integer.MAX_VALUE, from + window);
+                Query query = db.query();
+                query.constrain(Employee.class);
+                if (from >= Integer.MIN_VALUE) query.descend("empno").constrain((int) from).greater();
+                query.descend("empno").constrain((int) to).smaller().equal();
+                query.descend("empno").orderAscending();
+                ObjectSet<Employee> result = query.execute();
+                if (result.size() >= pageSize || to == Integer.MAX_VALUE) {
+                    List<Employee> employees = release(firstResults(result, pageSize));
+                    diagnostics.finish(probe, employees.size());
+                    return employees;
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("ERROR: Unable to retrieve the page of employees after " + afterEmpno + " - " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Retrieves one page of departments in depno order, starting right after the last depno of the previous page (keyset pagination).
+     *
+     * @param afterDepno Last depno of the previous page, or null for the first page.
+     * @param pageSize Maximum number of departments per page.
+     * @return Departments with depno greater than afterDepno, in ascending depno order. The list is empty after the last page or if an error occurs.
+     */
+    public List<Department> findDepartmentsAfter(Integer afterDepno, int pageSize) {
+        try {
+            QueryDiagnostics.Probe probe = diagnostics.start("Department where depno > ? order by depno limit ?", Department.class);
+            Query query = db.query();
+            query.constrain(Department.class);
+            if (afterDepno != null) query.descend("depno").constrain(afterDepno).greater();
+            query.descend("depno").orderAscending();
+            List<Department> departments = release(firstResults(query.<Department>execute(), pageSize));
+            diagnostics.finish(probe, departments.size());
+            return departments;
+        } catch (Exception e) {
+            System.err.println("ERROR: Unable to retrieve the page of departments after " + afterDepno + " - " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Retrieves one page of the employees of a department in empno order, starting right after the last empno of the previous page.
+     * The department's empnos come from {@link #findEmpnosByDept(int)} (usually cached) and only the employees of the page are loaded.
+     *
+     * @param depno Department's ID.
+     * @param afterEmpno Last empno of the previous page, or null for the first page.
+     * @param pageSize Maximum number of employees per page.
+     * @return Employees of the department with empno greater than afterEmpno, in ascending empno order. The list is empty after the last page.
+     */
+    public List<Employee> findEmployeesByDeptAfter(int depno, Integer afterEmpno, int pageSize) {
+        int[] empnos = findEmpnosByDept(depno);
+        Arrays.sort(empnos);
+        int from = 0;
+        if (afterEmpno != null) {
+            int found = Arrays.binarySearch(empnos, afterEmpno);
+            from = found >= 0 ? found + 1 : -found - 1;
+        }
+        List<Employee> employees = new ArrayList<>();
+        for (int i = from; i < empnos.length && employees.size() < pageSize; i++) {
+            Employee employee = getByBusinessId(employeeIds, empnos[i]);
+            if (employee != null) employees.add(employee);
+        }
+        return release(employees);
+    }
+
+    /**
+     * @return Writer of the console tables, buffered so a page is written at once. It must be flushed, not closed.
+     */
+    private static PrintWriter consoleWriter() {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+    }
+
+    /**
+     * Adds the sorting of an ordered query, with empno as tie breaker.
+     * @param query Query on {@link Employee}.
+     * @param field Field to sort by.
+     * @param descending true for descending order.
+     */
+    private static void order(Query query, EmployeeSortField field, boolean descending) {
+        Query sorted = query.descend(field.getField());
+        if (descending) sorted.orderDescending();
+        else sorted.orderAscending();
+        if (field != EmployeeSortField.EMPNO) {
+            Query tieBreaker = query.descend("empno");
+            if (descending) tieBreaker.orderDescending();
+            else tieBreaker.orderAscending();
+        }
+    }
+
+    /**
+     * Activates only the first results of a query.
+     * @param result Results of the query.
+     * @param limit Maximum number of results.
+     * @return First results of the query.
+     */
+    private static <T> List<T> firstResults(ObjectSet<T> result, int limit) {
+        List<T> objects = new ArrayList<>();
+        while (objects.size() < limit && result.hasNext()) {
+            objects.add(result.next());
+        }
+        return objects;
+    }
+
+    /**
+     * Removes objects returned to the caller from the reference system, so pages and listings don't accumulate in it.
+     * @param objects Stored objects about to be returned.
+     * @return The same list.
+     */
+    private <T> List<T> release(List<T> objects) {
+        try (ReferenceManager.Batch batch = references.batch()) {
+            for (T object : objects) batch.add(object);
+        }
+        return objects;
+    }
+
+    /**
+     * Translates db4o internal IDs of employees to their empnos through the reverse identity map, without loading the employees.
+     * Employees missing from the map (e.g. stored by another process) are resolved by reading their empno field.
+     * @param ids Internal IDs of stored employees.
+     * @return Empnos of the employees, in the same order as the IDs.
+     */
+    private int[] empnosOf(long[] ids) {
+        int[] empnos = new int[ids.length];
+        boolean[] missing = new boolean[ids.length];
+        boolean anyMissing = false;
+        synchronized (employeeIds) {
+            for (int i = 0; i < ids.length; i++) {
+                long empno = employeeEmpnos.get((int) ids[i]);
+                missing[i] = empno == IntLongHashMap.NO_VALUE;
+                anyMissing |= missing[i];
+                empnos[i] = (int) empno;
+            }
+        }
+        if (anyMissing) {
+            for (int i = 0; i < ids.length; i++) {
+                if (missing[i]) empnos[i] = (Integer) readField(ids[i], "empno");
+            }
+        }
+        return empnos;
+    }
+
+    /**
+     * Reads one field of a stored object without activating it.
+     * @param internalId db4o internal ID of the object.
+     * @param field Name of the field.
+     * @return Value of the field.
+     */
+    private Object readField(long internalId, String field) {
+        Lock guard = references.readGuard();
+        guard.lock();
+        try {
+            return db.ext().descend(db.ext().getByID(internalId), new String[]{field});
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    /**
+     * Runs an indexed query for the employees matching the criteria, without activating them.
+     * @param criteria Employees to find.
+     * @return db4o internal IDs of the matching employees.
+     */
+    private long[] findEmployeeIds(EmployeeCriteria criteria) {
+        QueryDiagnostics.Probe probe = diagnostics.start("Employee.id where " + criteria.getShape(), Employee.class);
+        if (criteria.isEmpty()) probe.setClassIndexScan();
+        Query query = db.query();
+        query.constrain(Employee.class);
+        criteria.constrain(query);
+        long[] ids = query.execute().ext().getIDs();
+        diagnostics.finish(probe, ids.length);
+        return ids;
+    }
+
+    /**
+     * Runs a query on the employees and describes how it was executed: plan (field index, class index scan or native query
+     * optimization), candidates, results, activations and time, plus the hints reported by db4o.
+     * The query is written as conditions separated by spaces, e.g. {@code depno=10 position=Vendedor}; the fields are
+     * empno, name, position and depno. With the prefix {@code nq} it runs as a native query instead of a SODA query.
+     *
+     * @param query Conditions of the query.
+     * @return Profile of the execution, or null if the query can't be parsed or an error occurs.
+     */
+    public QueryProfile explain(String query) {
+        String[] tokens = query.trim().split("\\s+");
+        boolean nativeQuery = tokens.length > 0 && tokens[0].equalsIgnoreCase("nq");
+        EmployeeCriteria criteria = new EmployeeCriteria();
+        try {
+            for (int i = nativeQuery ? 1 : 0; i < tokens.length; i++) {
+                if (tokens[i].isEmpty()) continue;
+                int eq = tokens[i].indexOf('=');
+                if (eq <= 0) {
+                    System.err.println("ERROR: Invalid condition '" + tokens[i] + "'. Conditions are written as field=value");
+                    return null;
+                }
+                String value = tokens[i].substring(eq + 1);
+                switch (tokens[i].substring(0, eq).toLowerCase()) {
+                    case "empno" -> criteria.empnoBetween(Integer.parseInt(value), Integer.parseInt(value));
+                    case "depno" -> criteria.depno(Integer.parseInt(value));
+                    case "name" -> criteria.name(value);
+                    case "position" -> criteria.position(value);
+                    default -> {
+                        System.err.println("ERROR: Unknown field '" + tokens[i].substring(0, eq) + "'. Valid fields are empno, name, position and depno");
+                        return null;
+                    }
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            System.err.println("ERROR: empno and depno must be Integer values");
+            return null;
+        }
+        try {
+            QueryDiagnostics.Probe probe = diagnostics.start("Employee where " + criteria.getShape(), Employee.class);
+            if (criteria.isEmpty()) probe.setClassIndexScan();
+            ObjectSet<Employee> result;
+            if (nativeQuery) {
+                result = db.query(new Predicate<Employee>() {
+                    @Override
+                    public boolean match(Employee employee) {
+                        return criteria.matches(employee);
+                    }
+                });
+            } else {
+                Query soda = db.query();
+                soda.constrain(Employee.class);
+                criteria.constrain(soda);
+                result = soda.execute();
+            }
+            long count = 0;
+            for (Employee ignored : result) count++; // Activate every result, as a real caller would
+            return diagnostics.finish(probe, count);
+        } catch (Exception e) {
+            System.err.println("ERROR: Unable to explain the query - " + e.getMessage());
+            return null;
+        }
+    }
+
     // Implementation from Menu interface
     @Override
     public void executeMenu() {
@@ -528,7 +2197,7 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
         try {
             while (this.executionFlag) {
                 System.out.printf("%s%s- WELCOME TO THE COMPANY -%s\n", "\u001B[46m", BLACK_FONT, RESET);
-                System.out.println("Select an option:" + "\n\t1) List all Employees" + "\n\t2) Find Employee by its ID" + "\n\t3) Add new Employee" + "\n\t4) Update Employee" + "\n\t5) Delete Employee" + "\n\t6) List all Departments" + "\n\t7) Find Department by its ID" + "\n\t8) Add new Department" + "\n\t9) Update Department" + "\n\t10) Delete Department" + "\n\t11) Find Employees by Department" + "\n\t0) Exit program");
+                System.out.println("Select an option:" + "\n\t1) List all Employees" + "\n\t2) Find Employee by its ID" + "\n\t3) Add new Employee" + "\n\t4) Update Employee" + "\n\t5) Delete Employee" + "\n\t6) List all Departments" + "\n\t7) Find Department by its ID" + "\n\t8) Add new Department" + "\n\t9) Update Department" + "\n\t10) Delete Department" + "\n\t11) Find Employees by Department" + "\n\t12) Explain a query" + "\n\t0) Exit program");
                 System.out.print(USER_INPUT);
                 String optStr = reader.readLine(); // Read user input and check its value for bad inputs
                 if (optStr.isEmpty()) {
@@ -551,6 +2220,7 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
                     case 9 -> executeUpdateDepartment();
                     case 10 -> executeDeleteDepartment();
                     case 11 -> executeFindEmployeesByDept();
+                    case 12 -> executeExplainQuery();
                     case 0 -> this.executionFlag = false;
                     default -> System.err.println("Please provide a valid option");
                 }
@@ -572,18 +2242,18 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
     @Override
     public void executeFindAllEmployees() {
         if (this.connectionFlag) {
-            String row = "+" + "-".repeat(7) + "+" + "-".repeat(16) + "+" + "-".repeat(16) + "+" + "-".repeat(7) + "+";
-            List<Employee> employees = this.findAllEmployees(); // Get the Employees list
-            if (employees != null) { // Check if the returned list is not null
-                System.out.println(row);
-                System.out.printf("| %-5s | %-14s | %-14s | %-5s |\n", "EMPNO", "NOMBRE", "PUESTO", "DEPNO");
-                System.out.println(row);
-                for (Employee e : employees) {
-                    System.out.printf("| %-5s | %-14s | %-14s | %-5s |\n", e.getEmpno(), e.getName(), e.getPosition(), e.getDepno());
-                }
-                System.out.println(row);
-            } else {
-                System.out.println("There are currently no Employees stored");
+            BufferedReader reader = new BufferedReader(this.isr); // To read the page commands
+            try {
+                // Employees are read page by page in empno order, never the whole list
+                boolean found = new TableRenderer<Employee>((last, n) -> findEmployeesAfter(last == null ? null : last.getEmpno(), n), TableRenderer.DEFAULT_PAGE_SIZE)
+                        .column("EMPNO", Employee::getEmpno).column("NOMBRE", Employee::getName)
+                        .column("PUESTO", Employee::getPosition).column("DEPNO", Employee::getDepno)
+                        .browse(reader, consoleWriter());
+                if (!found) {
+                    System.out.println("There are currently no Employees stored");
+                }
+            } catch (IOException ioe) {
+                System.err.println("ERROR: IOException error reported: " + ioe.getMessage());
             }
         } else {
             System.err.println("ERROR: You must first try to connect to the database with the method .connectDB()");
@@ -630,7 +2300,7 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
                 if (!id.matches("\\d+")) { // Check if the output is not numeric
                     System.err.println("ERROR: Please provide a valid Employee ID. Employee's ID are Integer values");
                     return;
-                } else if (findEmployeeById(Integer.parseInt(id)) != null) { // There is already an Employee with that ID
+                } else if (hasEmployee(Integer.parseInt(id))) { // There is already an Employee with that ID
                     System.err.println("ERROR: There is already an Employee with the same ID");
                     return;
                 }
@@ -654,7 +2324,7 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
                 if (!depno.matches("\\d+")) { // Check if the output is not numeric
                     System.err.println("ERROR: Please provide a valid Department ID. Departments' ID are Integer values");
                     return;
-                } else if (findDepartmentById(Integer.parseInt(depno)) == null) { // There is no Department with introduced DEPNO
+                } else if (!hasDepartment(Integer.parseInt(depno))) { // There is no Department with introduced DEPNO
                     System.err.println("ERROR: There is no Department with DEPNO " + depno);
                     return;
                 }
@@ -732,18 +2402,17 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
     @Override
     public void executeFindAllDepartments() {
         if (this.connectionFlag) {
-            String row = "+" + "-".repeat(7) + "+" + "-".repeat(20) + "+" + "-".repeat(16) + "+";
-            List<Department> departments = this.findAllDepartments();
-            if (departments != null) { // Check if the returned list is null or empty
-                System.out.println(row);
-                System.out.printf("| %-5s | %-18s | %-14s |\n", "DEPNO", "NOMBRE", "UBICACION");
-                System.out.println(row);
-                for (Department d : departments) {
-                    System.out.printf("| %-5s | %-18s | %-14s |\n", d.getDepno(), d.getName(), d.getLocation());
-                }
-                System.out.println(row);
-            } else {
-                System.out.println("There are currently no Department stored");
+            BufferedReader reader = new BufferedReader(this.isr); // To read the page commands
+            try {
+                boolean found = new TableRenderer<Department>((last, n) -> findDepartmentsAfter(last == null ? null : last.getDepno(), n), TableRenderer.DEFAULT_PAGE_SIZE)
+                        .column("DEPNO", Department::getDepno).column("NOMBRE", Department::getName)
+                        .column("UBICACION", Department::getLocation)
+                        .browse(reader, consoleWriter());
+                if (!found) {
+                    System.out.println("There are currently no Department stored");
+                }
+            } catch (IOException ioe) {
+                System.err.println("ERROR: IOException error reported: " + ioe.getMessage());
             }
         } else {
             System.err.println("ERROR: You must first try to connect to the database with the method .connectDB()");
@@ -790,7 +2459,7 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
                 if (!depno.matches("\\d+")) { // Check if the output is not numeric
                     System.err.println("ERROR: Please provide a valid Department ID. Department's ID are Integer values");
                     return;
-                } else if (findDepartmentById(Integer.parseInt(depno)) != null) { // There is already an Employee with that ID
+                } else if (hasDepartment(Integer.parseInt(depno))) { // There is already a Department with that ID
                     System.err.println("ERROR: There is already an Department with the same ID");
                     return;
                 }
@@ -896,19 +2565,33 @@ public class db4oDAO  implements IDAO, Menu, FileHandlerInterface{
                     System.out.println("There is no Department with DEPNO " + input);
                     return;
                 }
-                // Execute IDAO method
-                ArrayList<Employee> departmentEmployees = (ArrayList<Employee>) findEmployeesByDept(Integer.parseInt(input));
-                String row = "+" + "-".repeat(7) + "+" + "-".repeat(16) + "+" + "-".repeat(16) + "+";
-                if (departmentEmployees == null || departmentEmployees.isEmpty()) { // No Employees in Department case
+                int depno = Integer.parseInt(input);
+                boolean found = new TableRenderer<Employee>((last, n) -> findEmployeesByDeptAfter(depno, last == null ? null : last.getEmpno(), n), TableRenderer.DEFAULT_PAGE_SIZE)
+                        .column("EMPNO", Employee::getEmpno).column("NOMBRE", Employee::getName).column("PUESTO", Employee::getPosition)
+                        .browse(reader, consoleWriter());
+                if (!found) { // No Employees in Department case
                     System.out.println("There are currently no Employees in the Department");
-                } else {
-                    System.out.println(row);
-                    System.out.printf("| %-5s | %-14s | %-14s |\n", "EMPNO", "NOMBRE", "PUESTO");
-                    System.out.println(row);
-                    for (Employee e : departmentEmployees) {
-                        System.out.printf("| %-5s | %-14s | %-14s |\n", e.getEmpno(), e.getName(), e.getPosition());
-                    }
-                    System.out.println(row);
+                }
+            } catch (IOException ioe) {
+                System.err.println("ERROR: IOException error reported: " + ioe.getMessage());
+            }
+        } else {
+            System.err.println("ERROR: You must first try to connect to the database with the method .connectDB()");
+        }
+    }
+
+    // Implementation from Menu interface
+    @Override
+    public void executeExplainQuery() {
+        if (this.connectionFlag) {
+            BufferedReader reader = new BufferedReader(this.isr); // To read user input
+            try {
+                System.out.println("Insert the query conditions (e.g. depno=10 position=Vendedor, prefix nq for a native query):");
+                System.out.print(USER_INPUT);
+                String input = reader.readLine();
+                QueryProfile profile = explain(input == null ? "" : input);
+                if (profile != null) {
+                    System.out.print(profile.toExplain());
                 }
             } catch (IOException ioe) {
                 System.err.println("ERROR: IOException error reported: " + ioe.getMessage());
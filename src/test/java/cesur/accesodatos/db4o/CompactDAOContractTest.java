@@ -0,0 +1,48 @@
+package cesur.accesodatos.db4o;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link IDAO} contract of {@link CompactDAO}, plus reading a file migrated by {@link CompactLayoutMigration}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class CompactDAOContractTest extends IDAOContractTest {
+
+    @Override
+    IDAO open(Path dir) {
+        return new CompactDAO(dir.resolve("test.yap").toString());
+    }
+
+    @Test
+    void migratedFileCanBeRead() throws Exception {
+        String source = dir.resolve("regular.yap").toString();
+        String target = dir.resolve("compact.yap").toString();
+        db4oDAO regular = new db4oDAO(source);
+        regular.addDepartment(new Department(10, "Ventas", "Palma"));
+        regular.addEmployee(new Employee(1, "Alpha", "Vendedor", 10));
+        regular.addEmployee(new Employee(2, "Beta", "Vendedor", null));
+        regular.closeConnection();
+
+        byte[] before = Files.readAllBytes(Path.of(source));
+        assertTrue(CompactLayoutMigration.migrate(source, target) > 0);
+        assertArrayEquals(before, Files.readAllBytes(Path.of(source)), "The migration modified its source file");
+        CompactDAO compact = new CompactDAO(target);
+        try {
+            assertDepartment(new Department(10, "Ventas", "Palma"), compact.findDepartmentById(10));
+            assertEmployee(new Employee(1, "Alpha", "Vendedor", 10), compact.findEmployeeById(1));
+            assertEmployee(new Employee(2, "Beta", "Vendedor", null), compact.findEmployeeById(2));
+            compact.addEmployee(new Employee(3, "Gamma", "Programador", 10));
+            assertEquals(2, compact.findEmployeesByDept(10).size());
+        } finally {
+            compact.closeConnection();
+        }
+    }
+}
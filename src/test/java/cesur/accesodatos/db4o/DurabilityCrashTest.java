@@ -0,0 +1,133 @@
+package cesur.accesodatos.db4o;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Power-loss simulation of the {@link DurabilityMode}s that promise that nothing acknowledged is lost. A child process adds
+ * employees and reports each acknowledged (committed) one, and is killed in the middle of the writes. Its storage keeps the
+ * unsynced writes in memory ({@link DurableStorage}), so the kill loses what a power failure would. The database is then
+ * reopened to check that every acknowledged employee survived.
+ * {@link DurabilityMode#ASYNC} is not tested: it loses acknowledged commits by design, and the simulation can't reproduce the
+ * reordered writes that may corrupt its file.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class DurabilityCrashTest {
+
+    /**
+     * Concurrent writers of the child process.
+     */
+    private static final int WRITERS = 2;
+    /**
+     * Time the child writes before being killed.
+     */
+    private static final long KILL_AFTER_MILLIS = 1500;
+
+    /**
+     * Directory of the database of the test.
+     */
+    @TempDir
+    Path dir;
+
+    @Test
+    void syncModeKeepsEveryAcknowledgedCommit() throws Exception {
+        assertNoAcknowledgedCommitLost(DurabilityMode.SYNC);
+    }
+
+    @Test
+    void groupModeKeepsEveryAcknowledgedCommit() throws Exception {
+        assertNoAcknowledgedCommitLost(DurabilityMode.GROUP);
+    }
+
+    /**
+     * Runs the child process in the given mode, kills it and checks the reopened database.
+     * @param mode Durability mode.
+     * @throws Exception If the child process can't be started.
+     */
+    private void assertNoAcknowledgedCommitLost(DurabilityMode mode) throws Exception {
+        String file = dir.resolve("crash.yap").toString();
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), DurabilityCrashTest.class.getName(),
+                mode.name(), file, String.valueOf(WRITERS)).redirectErrorStream(true).start();
+        Set<Integer> acknowledged = new HashSet<>();
+        CountDownLatch ready = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(child.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.equals("READY")) ready.countDown();
+                    else if (line.startsWith("ACK ")) {
+                        synchronized (acknowledged) {
+                            acknowledged.add(Integer.parseInt(line.substring(4)));
+                        }
+                    }
+                }
+            } catch (IOException ignored) {
+                // The pipe breaks when the child is killed
+            } finally {
+                ready.countDown(); // Don't wait forever if the child died before starting
+            }
+        }, "crash-test-reader");
+        reader.start();
+        try {
+            ready.await();
+            Thread.sleep(KILL_AFTER_MILLIS);
+        } finally {
+            child.destroyForcibly().waitFor(); // No shutdown hooks, no close: like pulling the plug
+            reader.join();
+        }
+
+        db4oDAO dao = new db4oDAO(file);
+        Set<Integer> stored = new HashSet<>();
+        try {
+            for (int empno : dao.findAllEmpnos()) stored.add(empno);
+        } finally {
+            dao.closeConnection();
+        }
+        Set<Integer> lost = new HashSet<>(acknowledged);
+        lost.removeAll(stored);
+
+        assertTrue(acknowledged.size() > 0, "The child acknowledged no commit");
+        assertEquals(0, lost.size(), mode + " lost " + lost.size() + " of " + acknowledged.size() + " acknowledged commits");
+    }
+
+    /**
+     * Child process: adds employees until it is killed, printing "ACK empno" after each add returns.
+     * @param args Durability mode, database file and number of concurrent writers.
+     */
+    public static void main(String[] args) {
+        PrintStream acks = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        db4oDAO dao = new db4oDAO(args[1], DurabilityMode.valueOf(args[0]), true);
+        AtomicInteger ids = new AtomicInteger();
+        acks.println("READY");
+        acks.flush();
+        for (int t = 0; t < Integer.parseInt(args[2]); t++) {
+            new Thread(() -> {
+                while (true) {
+                    int id = ids.incrementAndGet();
+                    dao.addEmployee(new Employee(id, "Employee" + id, "Vendedor", 10));
+                    synchronized (acks) {
+                        acks.println("ACK " + id);
+                        acks.flush();
+                    }
+                }
+            }, "crash-writer-" + t).start();
+        }
+    }
+}
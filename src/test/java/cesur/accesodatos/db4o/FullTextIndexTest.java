@@ -0,0 +1,89 @@
+package cesur.accesodatos.db4o;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Tests of {@link FullTextIndex} and of how {@link db4oDAO} keeps it in sync with the database.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class FullTextIndexTest {
+
+    /**
+     * Directory of the files of the test.
+     */
+    @TempDir
+    Path dir;
+
+    @Test
+    void updatedIndexMatchesAFreshOneAndSurvivesSaving() throws Exception {
+        String[] positions = {"Vendedor", "Contable", "Director", "Vendedor Senior"};
+        String[] names = {"García", "Lopez", "Perez Garcia", "Ruiz"};
+        Random random = new Random(1);
+        FullTextIndex index = new FullTextIndex();
+        Map<Integer, Employee> state = new HashMap<>();
+        for (int i = 0; i < 20_000; i++) {
+            int empno = random.nextInt(2_000);
+            if (random.nextInt(10) == 0) {
+                index.removeEmployee(empno);
+                state.remove(empno);
+            } else {
+                Employee employee = new Employee(empno, names[random.nextInt(names.length)] + " " + random.nextInt(50),
+                        positions[random.nextInt(positions.length)], 1);
+                index.putEmployee(employee);
+                state.put(empno, employee);
+            }
+        }
+        FullTextIndex fresh = new FullTextIndex();
+        for (Employee employee : state.values()) fresh.putEmployee(employee);
+        index.save(dir.resolve("test.fts"), "stamp");
+        FullTextIndex loaded = FullTextIndex.load(dir.resolve("test.fts"), "stamp");
+
+        assertNotNull(loaded);
+        assertEquals(fresh.size(), index.size());
+        assertEquals(fresh.getTermCount(), index.getTermCount());
+        for (String query : new String[]{"vendedor", "garcia", "director senior", "lopez 7"}) {
+            assertEquals(fresh.search(query, 50).toString(), index.search(query, 50).toString(), query);
+            assertEquals(fresh.search(query, 50).toString(), loaded.search(query, 50).toString(), query);
+        }
+    }
+
+    @Test
+    void removedRecordsLeaveNoTerms() {
+        FullTextIndex index = new FullTextIndex();
+        index.putEmployee(new Employee(1, "Alpha", "Vendedor", 10));
+        index.putEmployee(new Employee(1, "Alpha", "Contable", 10));
+        index.removeEmployee(1);
+
+        assertEquals(0, index.size());
+        assertEquals(0, index.getTermCount());
+        assertEquals(0, index.search("alpha vendedor contable", 10).size());
+    }
+
+    @Test
+    void writesAfterOpeningAreNotMissedBySavedIndex() {
+        String path = dir.resolve("test.yap").toString();
+        db4oDAO dao = new db4oDAO(path);
+        dao.addEmployee(new Employee(1, "Alpha", "Vendedor", 10));
+        dao.openSearchIndex();
+        dao.closeConnection(); // Saves the index
+
+        dao = new db4oDAO(path);
+        try {
+            dao.addEmployee(new Employee(2, "Zeta", "Vendedor", 10));
+            assertEquals(1, dao.search("zeta", 10).size());
+            assertEquals(2, dao.search("vendedor", 10).size());
+        } finally {
+            dao.closeConnection();
+        }
+    }
+}
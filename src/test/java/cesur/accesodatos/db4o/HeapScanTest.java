@@ -0,0 +1,99 @@
+package cesur.accesodatos.db4o;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the heap used while {@link db4oDAO#forEachEmployee(java.util.function.Consumer)} streams a large database with strong
+ * references (the worst case: db4o keeps every loaded object until it is purged). The heap after a garbage collection is
+ * sampled {@link #SAMPLES} times during each scan, with the objects purged in batches and, for comparison, purged only at the
+ * end of the scan. With batches the samples must stay flat; without them they grow with the number of employees read.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class HeapScanTest {
+
+    /**
+     * Employees of the scanned database.
+     */
+    private static final int EMPLOYEES = 100_000;
+    /**
+     * Heap samples taken during each scan.
+     */
+    private static final int SAMPLES = 10;
+    /**
+     * Employees added per commit while creating the database.
+     */
+    private static final int LOAD_CHUNK = 10_000;
+
+    /**
+     * Directory of the database of the test.
+     */
+    @TempDir
+    Path dir;
+
+    @Test
+    void batchedPurgesKeepTheHeapFlat() {
+        Path file = dir.resolve("heapscan.yap");
+        db4oDAO loader = new db4oDAO(file.toString());
+        try {
+            for (int from = 1; from <= EMPLOYEES; from += LOAD_CHUNK) {
+                int start = from, end = Math.min(EMPLOYEES, from + LOAD_CHUNK - 1);
+                loader.inTransaction(tx -> {
+                    for (int empno = start; empno <= end; empno++) tx.addEmployee(new Employee(empno, "Employee" + empno, "Vendedor", empno % 50));
+                });
+            }
+        } finally {
+            loader.closeConnection();
+        }
+
+        long batched = growth(scan(file, ReferenceSettings.DEFAULT.purgeBatchSize()));
+        long atEnd = growth(scan(file, Integer.MAX_VALUE));
+
+        assertTrue(atEnd > 2 * batched, "Heap growth (bytes) with batches " + batched + ", purging at the end " + atEnd);
+    }
+
+    /**
+     * Scans the database once with the given purge batch size.
+     * @param file Database file.
+     * @param purgeBatchSize Objects purged at once; {@link Integer#MAX_VALUE} to purge only at the end of the scan.
+     * @return Heap used after a garbage collection at each sample, in bytes.
+     */
+    private static List<Long> scan(Path file, int purgeBatchSize) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        List<Long> samples = new ArrayList<>();
+        long every = EMPLOYEES / SAMPLES;
+        long[] read = new long[1];
+        db4oDAO dao = new db4oDAO(file.toString(), DurabilityMode.SYNC, new ReferenceSettings(false, 0, purgeBatchSize, 0));
+        try {
+            dao.forEachEmployee(e -> {
+                if (++read[0] % every == 0) {
+                    System.gc();
+                    samples.add(memory.getHeapMemoryUsage().getUsed());
+                }
+            });
+        } finally {
+            dao.closeConnection();
+        }
+        assertEquals(EMPLOYEES, read[0]);
+        return samples;
+    }
+
+    /**
+     * @param samples Heap samples of a scan.
+     * @return Growth of the heap between the lowest and the highest sample.
+     */
+    private static long growth(List<Long> samples) {
+        return Collections.max(samples) - Collections.min(samples);
+    }
+}
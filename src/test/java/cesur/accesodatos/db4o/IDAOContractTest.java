@@ -0,0 +1,188 @@
+package cesur.accesodatos.db4o;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Functional contract of {@link IDAO}, run against every implementation by its subclasses so they can be compared with
+ * {@link WorkloadGenerator} knowing they behave the same. Each test works on a new database in a temporary directory.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+abstract class IDAOContractTest {
+
+    /**
+     * Rounds of the race between two deletes and an update of the same employee.
+     */
+    private static final int RACE_ROUNDS = 50;
+
+    /**
+     * Directory of the databases of the test.
+     */
+    @TempDir
+    Path dir;
+    /**
+     * Implementation under test.
+     */
+    IDAO dao;
+
+    /**
+     * Opens the implementation under test on a new database.
+     * @param dir Directory for its files.
+     * @return The opened implementation.
+     * @throws Exception If it can't be opened.
+     */
+    abstract IDAO open(Path dir) throws Exception;
+
+    @BeforeEach
+    void openDao() throws Exception {
+        dao = open(dir);
+    }
+
+    @AfterEach
+    void closeDao() {
+        if (dao instanceof FileHandlerInterface handler) handler.closeConnection();
+    }
+
+    @Test
+    void addedDepartmentCanBeFound() {
+        dao.addDepartment(new Department(10, "Ventas", "Palma"));
+
+        assertDepartment(new Department(10, "Ventas", "Palma"), dao.findDepartmentById(10));
+        assertTrue(dao.findAllDepartments().stream().anyMatch(d -> d.getDepno() == 10));
+    }
+
+    @Test
+    void addedEmployeesCanBeFoundByIdAndDepartment() {
+        dao.addDepartment(new Department(10, "Ventas", "Palma"));
+        dao.addEmployee(new Employee(1, "Alpha", "Vendedor", 10));
+        dao.addEmployee(new Employee(2, "Beta", "Contable", 10));
+
+        assertEmployee(new Employee(1, "Alpha", "Vendedor", 10), dao.findEmployeeById(1));
+        assertEquals(2, dao.findAllEmployees().size());
+        assertEquals(2, dao.findEmployeesByDept(10).size());
+    }
+
+    @Test
+    void employeeWithoutDepartmentIsSupported() {
+        dao.addEmployee(new Employee(1, "Alpha", "Vendedor", null));
+
+        assertEmployee(new Employee(1, "Alpha", "Vendedor", null), dao.findEmployeeById(1));
+    }
+
+    @Test
+    void updateEmployeeReplacesItsValues() {
+        dao.addEmployee(new Employee(1, "Alpha", "Vendedor", 10));
+
+        Employee updated = dao.updateEmployee(new Employee(1, "Alpha2", "Responsable", 20));
+
+        assertEmployee(new Employee(1, "Alpha2", "Responsable", 20), updated);
+        assertEmployee(new Employee(1, "Alpha2", "Responsable", 20), dao.findEmployeeById(1));
+        assertEquals(0, dao.findEmployeesByDept(10).size());
+        assertEquals(1, dao.findEmployeesByDept(20).size());
+    }
+
+    @Test
+    void updateOfMissingEmployeeDoesNothing() {
+        assertNull(dao.updateEmployee(new Employee(3, "X", "Y", 10)));
+        assertNull(dao.findEmployeeById(3));
+    }
+
+    @Test
+    void updateDepartmentReplacesItsValues() {
+        dao.addDepartment(new Department(10, "Ventas", "Palma"));
+
+        Department updated = dao.updateDepartment(new Department(10, "Compras", "Madrid"));
+
+        assertDepartment(new Department(10, "Compras", "Madrid"), updated);
+        assertDepartment(new Department(10, "Compras", "Madrid"), dao.findDepartmentById(10));
+    }
+
+    @Test
+    void deleteEmployeeRemovesIt() {
+        dao.addEmployee(new Employee(1, "Alpha", "Vendedor", 10));
+        dao.addEmployee(new Employee(2, "Beta", "Contable", 10));
+
+        Employee deleted = dao.deleteEmployee(1);
+
+        assertNotNull(deleted);
+        assertEquals(1, deleted.getEmpno());
+        assertNull(dao.findEmployeeById(1));
+        assertNull(dao.deleteEmployee(1));
+        assertEquals(1, dao.findEmployeesByDept(10).size());
+    }
+
+    @Test
+    void deleteDepartmentRemovesIt() {
+        dao.addDepartment(new Department(10, "Ventas", "Palma"));
+
+        Department deleted = dao.deleteDepartment(10);
+
+        assertNotNull(deleted);
+        assertEquals(10, deleted.getDepno());
+        assertNull(dao.findDepartmentById(10));
+    }
+
+    @Test
+    void concurrentDeletesAndUpdatesDontResurrectEmployees() throws Exception {
+        for (int empno = 1; empno <= RACE_ROUNDS; empno++) {
+            dao.addEmployee(new Employee(empno, "Alpha", "Vendedor", 10));
+            int id = empno;
+            CyclicBarrier start = new CyclicBarrier(3);
+            ExecutorService pool = Executors.newFixedThreadPool(3);
+            try {
+                Future<Employee> delete1 = pool.submit(() -> { start.await(); return dao.deleteEmployee(id); });
+                Future<Employee> delete2 = pool.submit(() -> { start.await(); return dao.deleteEmployee(id); });
+                Future<Employee> update = pool.submit(() -> { start.await(); return dao.updateEmployee(new Employee(id, "Beta", "Contable", 10)); });
+
+                assertEquals(1, (delete1.get() == null ? 0 : 1) + (delete2.get() == null ? 0 : 1), "Deletes of employee " + id + " that succeeded");
+                update.get();
+                assertNull(dao.findEmployeeById(id), "Employee " + id + " was brought back by the update");
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    void nonIntegerIdsAreRejected() {
+        dao.addEmployee(new Employee(1, "Alpha", "Vendedor", 10));
+
+        assertNull(dao.findEmployeeById("1"));
+        assertNull(dao.findDepartmentById("1"));
+        assertTrue(dao.findEmployeesByDept("10").isEmpty());
+    }
+
+    /**
+     * Checks that an employee has the expected attribute values.
+     * @param expected Expected values.
+     * @param actual Employee returned by the implementation.
+     */
+    static void assertEmployee(Employee expected, Employee actual) {
+        assertNotNull(actual);
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    /**
+     * Checks that a department has the expected attribute values.
+     * @param expected Expected values.
+     * @param actual Department returned by the implementation.
+     */
+    static void assertDepartment(Department expected, Department actual) {
+        assertNotNull(actual);
+        assertEquals(expected.toString(), actual.toString());
+    }
+}
@@ -0,0 +1,17 @@
+package cesur.accesodatos.db4o;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * {@link IDAO} contract of {@link LogStoreDAO}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class LogStoreDAOContractTest extends IDAOContractTest {
+
+    @Override
+    IDAO open(Path dir) throws IOException {
+        return new LogStoreDAO(dir.resolve("test.log").toString());
+    }
+}
@@ -0,0 +1,126 @@
+package cesur.accesodatos.db4o;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the optimistic concurrency control of {@link db4oDAO}: the versions returned by
+ * {@link db4oDAO#findEmployeeVersioned(int)}, {@link db4oDAO#updateEmployee(Employee, long)} and its retrying overload
+ * {@link db4oDAO#updateEmployee(int, java.util.function.UnaryOperator, int)}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class OptimisticConcurrencyTest {
+
+    /**
+     * Directory of the database of the test.
+     */
+    @TempDir
+    Path dir;
+    /**
+     * DAO under test, with employee 1 in department 10.
+     */
+    private db4oDAO dao;
+
+    @BeforeEach
+    void open() {
+        dao = new db4oDAO(dir.resolve("occ.yap").toString());
+        dao.addEmployee(new Employee(1, "Garcia", "Vendedor", 10));
+    }
+
+    @AfterEach
+    void close() {
+        dao.closeConnection();
+    }
+
+    @Test
+    void versionChangesOnEveryCommit() {
+        long first = dao.findEmployeeVersioned(1).version();
+        dao.updateEmployee(new Employee(1, "Garcia", "Contable", 10));
+        long second = dao.findEmployeeVersioned(1).version();
+        dao.updateEmployee(new Employee(1, "Garcia", "Director", 10));
+        long third = dao.findEmployeeVersioned(1).version();
+
+        assertTrue(first > 0, "Commit timestamps are not enabled");
+        assertTrue(second > first);
+        assertTrue(third > second);
+    }
+
+    @Test
+    void staleVersionIsRejectedAndLeavesTheStoredRowUnchanged() {
+        Versioned<Employee> read = dao.findEmployeeVersioned(1);
+        assertNotNull(dao.updateEmployee(new Employee(1, "Lopez", "Contable", 10), read.version()));
+        long current = dao.findEmployeeVersioned(1).version();
+
+        VersionConflictException conflict = assertThrows(VersionConflictException.class,
+                () -> dao.updateEmployee(new Employee(1, "Perez", "Director", 20), read.version()));
+
+        assertEquals(1, conflict.getId());
+        assertEquals(read.version(), conflict.getExpectedVersion());
+        assertEquals(current, conflict.getActualVersion());
+        assertEquals(1, dao.getVersionConflicts());
+        IDAOContractTest.assertEmployee(new Employee(1, "Lopez", "Contable", 10), dao.findEmployeeById(1));
+        assertEquals(current, dao.findEmployeeVersioned(1).version());
+    }
+
+    @Test
+    void retryRereadsAndMergesAConcurrentChange() {
+        boolean[] interfered = {false};
+        Employee updated = dao.updateEmployee(1, e -> {
+            if (!interfered[0]) { // Someone else commits a change between the read and the update of the first attempt
+                interfered[0] = true;
+                dao.updateEmployee(new Employee(1, "Lopez", "Vendedor", 10));
+            }
+            e.setDepno(e.getDepno() + 10);
+            return e;
+        }, 3);
+
+        IDAOContractTest.assertEmployee(new Employee(1, "Lopez", "Vendedor", 20), updated);
+        IDAOContractTest.assertEmployee(new Employee(1, "Lopez", "Vendedor", 20), dao.findEmployeeById(1));
+        assertEquals(1, dao.getVersionConflicts());
+    }
+
+    @Test
+    void retryGivesUpAfterTheLastAttempt() {
+        assertThrows(VersionConflictException.class, () -> dao.updateEmployee(1, e -> {
+            dao.updateEmployee(new Employee(1, "Lopez", "Vendedor", dao.findEmployeeById(1).getDepno() + 1));
+            return e;
+        }, 2));
+        assertEquals(2, dao.getVersionConflicts());
+    }
+
+    @Test
+    void concurrentRetriedIncrementsAreNotLost() throws Exception {
+        int threads = 4, increments = 25;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                workers.add(pool.submit(() -> {
+                    for (int i = 0; i < increments; i++) {
+                        assertNotNull(dao.updateEmployee(1, e -> { e.setDepno(e.getDepno() + 1); return e; }, Integer.MAX_VALUE));
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) worker.get();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(10 + threads * increments, dao.findEmployeeById(1).getDepno());
+    }
+}
@@ -0,0 +1,20 @@
+package cesur.accesodatos.db4o;
+
+import java.nio.file.Path;
+
+/**
+ * {@link IDAO} contract of {@link ReplicatedDAO} with two replicas. Lagging replicas are not read, so every read sees the
+ * previous writes.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class ReplicatedDAOContractTest extends IDAOContractTest {
+
+    @Override
+    IDAO open(Path dir) {
+        ReplicatedDAO replicated = new ReplicatedDAO(new db4oDAO(dir.resolve("primary.yap").toString()), dir.resolve("changes.log").toString(),
+                dir.resolve("replica1.yap").toString(), dir.resolve("replica2.yap").toString());
+        replicated.setMaxLagEvents(0);
+        return replicated;
+    }
+}
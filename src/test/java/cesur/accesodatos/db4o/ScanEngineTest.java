@@ -0,0 +1,53 @@
+package cesur.accesodatos.db4o;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests of the {@link ScanEngine} of a {@link db4oDAO}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class ScanEngineTest {
+
+    /**
+     * Directory of the database of the test.
+     */
+    @TempDir
+    Path dir;
+
+    @Test
+    void scansMatchTheStoredEmployeesAndSkipUncommittedChanges() {
+        db4oDAO dao = new db4oDAO(dir.resolve("scan.yap").toString());
+        try {
+            dao.inTransaction(tx -> {
+                for (int empno = 1; empno <= 1_000; empno++) tx.addEmployee(new Employee(empno, "Employee" + empno, "Vendedor", empno % 10));
+            });
+            ScanEngine engine = dao.getScanEngine();
+
+            ScanEngine.ScanResult<Long> count = engine.count(e -> e.getDepno() == 3);
+            assertEquals(100L, count.value());
+            assertEquals(1_000, count.scanned());
+            assertEquals(0, count.changedDuringScan());
+            assertEquals(1_000 * 1_001 / 2, engine.mapReduce(e -> true, Employee::getEmpno, 0, Integer::sum).value());
+            List<Employee> filtered = engine.filter(e -> e.getEmpno() <= 3).value();
+            assertEquals(List.of(1, 2, 3), filtered.stream().map(Employee::getEmpno).toList());
+
+            dao.begin();
+            try {
+                dao.deleteEmployee(1);
+                dao.addEmployee(new Employee(1_001, "New", "Vendedor", 3));
+                assertEquals(100L, engine.count(e -> e.getDepno() == 3).value()); // The open unit of work is not visible
+            } finally {
+                dao.rollback();
+            }
+        } finally {
+            dao.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package cesur.accesodatos.db4o;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * {@link IDAO} contract of {@link ShardedDAO} over three shards, and rebalancing of its files with {@link ShardRebalancer}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class ShardedDAOContractTest extends IDAOContractTest {
+
+    @Override
+    IDAO open(Path dir) {
+        return new ShardedDAO(dir.resolve("s0.yap").toString(), dir.resolve("s1.yap").toString(), dir.resolve("s2.yap").toString());
+    }
+
+    @Test
+    void reshardMovesEveryRecordToItsHomeShard() {
+        String[] oldPaths = {dir.resolve("old0.yap").toString(), dir.resolve("old1.yap").toString()};
+        String[] newPaths = {oldPaths[0], oldPaths[1], dir.resolve("new2.yap").toString()};
+        int employees = 2 * ShardRebalancer.PAGE_SIZE + 100, departments = 30; // Several pages per shard
+        db4oDAO[] shards = {new db4oDAO(oldPaths[0]), new db4oDAO(oldPaths[1])};
+        try {
+            for (db4oDAO shard : shards) shard.begin();
+            for (int depno = 1; depno <= departments; depno++) {
+                shards[ShardedDAO.shardFor(depno, 2)].addDepartment(new Department(depno, "Dept" + depno, "Palma"));
+            }
+            for (int empno = 1; empno <= employees; empno++) {
+                Employee employee = new Employee(empno, "Employee" + empno, "Vendedor", empno % departments + 1);
+                shards[ShardedDAO.shardFor(employee, 2)].addEmployee(employee);
+            }
+            for (db4oDAO shard : shards) shard.commit();
+        } finally {
+            for (db4oDAO shard : shards) shard.closeConnection();
+        }
+
+        int moved = ShardRebalancer.reshard(oldPaths, newPaths);
+
+        int stored = 0, storedDepartments = 0, expectedMoves = 0;
+        for (int depno = 1; depno <= departments; depno++) {
+            if (ShardedDAO.shardFor(depno, 3) != ShardedDAO.shardFor(depno, 2)) expectedMoves++;
+        }
+        for (int empno = 1; empno <= employees; empno++) {
+            Employee employee = new Employee(empno, null, null, empno % departments + 1);
+            if (ShardedDAO.shardFor(employee, 3) != ShardedDAO.shardFor(employee, 2)) expectedMoves++;
+        }
+        for (int i = 0; i < newPaths.length; i++) {
+            db4oDAO shard = new db4oDAO(newPaths[i]);
+            try {
+                for (Department d : shard.findDepartmentsAfter(null, departments)) {
+                    assertEquals(i, ShardedDAO.shardFor(d.getDepno(), 3), "Shard of department " + d.getDepno());
+                    storedDepartments++;
+                }
+                for (int empno : shard.findAllEmpnos()) {
+                    assertEquals(i, ShardedDAO.shardFor(shard.findEmployeeById(empno), 3), "Shard of employee " + empno);
+                    stored++;
+                }
+            } finally {
+                shard.closeConnection();
+            }
+        }
+        assertEquals(departments, storedDepartments);
+        assertEquals(employees, stored);
+        assertEquals(expectedMoves, moved);
+    }
+}
@@ -0,0 +1,163 @@
+package cesur.accesodatos.db4o;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the explicit transactions of {@link db4oDAO}: {@link db4oDAO#begin()}, {@link db4oDAO#commit()},
+ * {@link db4oDAO#rollback()}, their nesting, {@link db4oDAO#inTransaction(java.util.function.Consumer)}, and the derived state
+ * (identity maps, search index and department cache) put back in sync by a rollback.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class TransactionTest {
+
+    /**
+     * Directory of the database of the test.
+     */
+    @TempDir
+    Path dir;
+    /**
+     * DAO under test, with department 10 and employees 1 and 2 in it.
+     */
+    private db4oDAO dao;
+
+    @BeforeEach
+    void open() {
+        dao = new db4oDAO(dir.resolve("tx.yap").toString());
+        dao.addDepartment(new Department(10, "Ventas", "Madrid"));
+        dao.addEmployee(new Employee(1, "Garcia", "Vendedor", 10));
+        dao.addEmployee(new Employee(2, "Lopez", "Contable", 10));
+    }
+
+    @AfterEach
+    void close() {
+        dao.closeConnection();
+    }
+
+    @Test
+    void commitKeepsTheChangesAfterReopening() {
+        dao.begin();
+        dao.addEmployee(new Employee(3, "Perez", "Director", 10));
+        dao.deleteEmployee(2);
+        assertTrue(dao.commit());
+        assertFalse(dao.isInTransaction());
+
+        dao.closeConnection();
+        dao = new db4oDAO(dir.resolve("tx.yap").toString());
+        assertTrue(dao.hasEmployee(3));
+        assertFalse(dao.hasEmployee(2));
+    }
+
+    @Test
+    void rollbackRestoresTheIdentityMapsAndTheStoredValues() {
+        dao.begin();
+        dao.addEmployee(new Employee(3, "Perez", "Director", 10));
+        dao.updateEmployee(new Employee(1, "Changed", "Director", 10));
+        dao.deleteEmployee(2);
+        dao.addDepartment(new Department(20, "Compras", "Sevilla"));
+        dao.rollback();
+        assertFalse(dao.isInTransaction());
+
+        assertFalse(dao.hasEmployee(3));
+        assertNull(dao.findEmployeeById(3));
+        assertTrue(dao.hasEmployee(2));
+        assertEquals("Lopez", dao.findEmployeeById(2).getName());
+        assertEquals("Garcia", dao.findEmployeeById(1).getName());
+        assertFalse(dao.hasDepartment(20));
+    }
+
+    @Test
+    void nestedRollbackMarksTheWholeTransactionRollbackOnly() {
+        dao.begin();
+        dao.addEmployee(new Employee(3, "Perez", "Director", 10));
+        dao.begin();
+        dao.addEmployee(new Employee(4, "Ruiz", "Vendedor", 10));
+        dao.rollback();
+        assertTrue(dao.isInTransaction()); // Only the inner level is closed
+        assertFalse(dao.commit());
+
+        assertFalse(dao.isInTransaction());
+        assertFalse(dao.hasEmployee(3));
+        assertFalse(dao.hasEmployee(4));
+    }
+
+    @Test
+    void nestedCommitOnlyClosesItsLevel() {
+        dao.begin();
+        dao.begin();
+        dao.addEmployee(new Employee(3, "Perez", "Director", 10));
+        assertTrue(dao.commit());
+        assertTrue(dao.isInTransaction());
+        assertTrue(dao.commit());
+
+        assertFalse(dao.isInTransaction());
+        assertTrue(dao.hasEmployee(3));
+    }
+
+    @Test
+    void rollbackRestoresTheSearchIndex() {
+        assertNotNull(dao.openSearchIndex());
+        dao.begin();
+        dao.updateEmployee(new Employee(1, "Zapatero", "Vendedor", 10));
+        dao.addEmployee(new Employee(3, "Zapatero", "Director", 10));
+        assertEquals(2, dao.search("zapatero", 10).size());
+        dao.rollback();
+
+        assertEquals(List.of(), dao.search("zapatero", 10));
+        List<SearchHit> hits = dao.search("garcia", 10);
+        assertEquals(1, hits.size());
+        assertEquals(1, hits.get(0).id());
+    }
+
+    @Test
+    void rollbackInvalidatesTheDepartmentCache() {
+        assertEquals(2, dao.findEmployeesByDept(10).size()); // Cached
+        dao.begin();
+        dao.addEmployee(new Employee(3, "Perez", "Director", 10));
+        dao.deleteEmployee(1);
+        dao.rollback();
+
+        List<Integer> empnos = dao.findEmployeesByDept(10).stream().map(Employee::getEmpno).sorted().toList();
+        assertEquals(List.of(1, 2), empnos);
+    }
+
+    @Test
+    void inTransactionRollsBackAndUnlocksWhenTheWorkThrowsAnError() throws Exception {
+        assertThrows(AssertionError.class, () -> dao.inTransaction(tx -> {
+            tx.addEmployee(new Employee(3, "Perez", "Director", 10));
+            throw new AssertionError("boom");
+        }));
+        assertFalse(dao.isInTransaction());
+        assertFalse(dao.hasEmployee(3));
+
+        Thread writer = new Thread(() -> dao.addEmployee(new Employee(4, "Ruiz", "Vendedor", 10)));
+        writer.start();
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(writer.isAlive(), "The write lock is still held");
+        assertTrue(dao.hasEmployee(4));
+    }
+
+    @Test
+    void inTransactionRollsBackWhenTheWorkThrowsARuntimeException() {
+        assertFalse(dao.inTransaction(tx -> {
+            tx.addEmployee(new Employee(3, "Perez", "Director", 10));
+            throw new IllegalStateException("boom");
+        }));
+        assertFalse(dao.isInTransaction());
+        assertFalse(dao.hasEmployee(3));
+    }
+}
@@ -0,0 +1,16 @@
+package cesur.accesodatos.db4o;
+
+import java.nio.file.Path;
+
+/**
+ * {@link IDAO} contract of {@link db4oDAO}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class db4oDAOContractTest extends IDAOContractTest {
+
+    @Override
+    IDAO open(Path dir) {
+        return new db4oDAO(dir.resolve("test.yap").toString());
+    }
+}